@@ -21,6 +21,10 @@ public interface FlameContext {
 
   public FlameRDD fromTable(String tableName, RowToString lambda) throws Exception;
 
+  // Same, but rows only carry the listed columns, so workers skip large unused ones
+
+  public FlameRDD fromTable(String tableName, List<String> columns, RowToString lambda) throws Exception;
+
   public interface RowToString extends Serializable {
     String op(kvs.Row row) throws Exception;
   }
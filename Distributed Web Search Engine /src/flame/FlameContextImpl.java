@@ -2,6 +2,7 @@ package flame;
 
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
@@ -102,24 +103,13 @@ public class FlameContextImpl implements FlameContext {
         // Build partitioner
         Partitioner partitioner = new Partitioner();
 
-        // Register KVS workers
+        // Partition the KVS hash ring
         int numKVSWorkers = kvs.numWorkers();
-
+        List<String> kvsWorkerAddresses = new ArrayList<>();
         for (int i = 0; i < numKVSWorkers; i++) {
-            String workerAddress = kvs.getWorkerAddress(i);
-            String workerId = kvs.getWorkerID(i);
-
-            if (i == numKVSWorkers - 1) {
-                // Last worker covers wrap-around
-                String firstWorkerId = kvs.getWorkerID(0);
-                partitioner.addKVSWorker(workerAddress, workerId, null); // High range
-                partitioner.addKVSWorker(workerAddress, null, firstWorkerId); // Low range
-            } else {
-                // Mid workers cover bounded range
-                String nextWorkerId = kvs.getWorkerID(i + 1);
-                partitioner.addKVSWorker(workerAddress, workerId, nextWorkerId);
-            }
+            kvsWorkerAddresses.add(kvs.getWorkerAddress(i));
         }
+        partitioner.setRing(kvs.getRing(), kvsWorkerAddresses);
 
         // Register Flame workers
         Vector<String> flameWorkers = Coordinator.getWorkers();
@@ -155,12 +145,12 @@ public class FlameContextImpl implements FlameContext {
                     urlBuilder.append("&outputTable=").append(URLEncoder.encode(finalOutputTableName, "UTF-8"));
                     urlBuilder.append("&kvsCoordinator=").append(URLEncoder.encode(kvs.getCoordinator(), "UTF-8"));
 
-                    // Append key bounds when present
-                    if (partition.fromKey != null) {
-                        urlBuilder.append("&fromKey=").append(URLEncoder.encode(partition.fromKey, "UTF-8"));
+                    // Append token bounds when present
+                    if (partition.fromToken != null) {
+                        urlBuilder.append("&fromToken=").append(partition.fromToken);
                     }
-                    if (partition.toKeyExclusive != null) {
-                        urlBuilder.append("&toKey=").append(URLEncoder.encode(partition.toKeyExclusive, "UTF-8"));
+                    if (partition.toTokenExclusive != null) {
+                        urlBuilder.append("&toToken=").append(partition.toTokenExclusive);
                     }
 
                     // Append optional params
@@ -222,24 +212,13 @@ public class FlameContextImpl implements FlameContext {
         // Build partitioner
         Partitioner partitioner = new Partitioner();
 
-        // Register KVS workers
+        // Partition the KVS hash ring
         int numKVSWorkers = kvs.numWorkers();
-
+        List<String> kvsWorkerAddresses = new ArrayList<>();
         for (int i = 0; i < numKVSWorkers; i++) {
-            String workerAddress = kvs.getWorkerAddress(i);
-            String workerId = kvs.getWorkerID(i);
-
-            if (i == numKVSWorkers - 1) {
-                // Last worker covers wrap-around
-                String firstWorkerId = kvs.getWorkerID(0);
-                partitioner.addKVSWorker(workerAddress, workerId, null); // High range
-                partitioner.addKVSWorker(workerAddress, null, firstWorkerId); // Low range
-            } else {
-                // Mid workers cover bounded range
-                String nextWorkerId = kvs.getWorkerID(i + 1);
-                partitioner.addKVSWorker(workerAddress, workerId, nextWorkerId);
-            }
+            kvsWorkerAddresses.add(kvs.getWorkerAddress(i));
         }
+        partitioner.setRing(kvs.getRing(), kvsWorkerAddresses);
 
         // Register Flame workers
         Vector<String> flameWorkers = Coordinator.getWorkers();
@@ -275,12 +254,12 @@ public class FlameContextImpl implements FlameContext {
                     urlBuilder.append("&outputTable=").append(URLEncoder.encode(finalOutputTableName, "UTF-8"));
                     urlBuilder.append("&kvsCoordinator=").append(URLEncoder.encode(kvs.getCoordinator(), "UTF-8"));
 
-                    // Append key bounds when present
-                    if (partition.fromKey != null) {
-                        urlBuilder.append("&fromKey=").append(URLEncoder.encode(partition.fromKey, "UTF-8"));
+                    // Append token bounds when present
+                    if (partition.fromToken != null) {
+                        urlBuilder.append("&fromToken=").append(partition.fromToken);
                     }
-                    if (partition.toKeyExclusive != null) {
-                        urlBuilder.append("&toKey=").append(URLEncoder.encode(partition.toKeyExclusive, "UTF-8"));
+                    if (partition.toTokenExclusive != null) {
+                        urlBuilder.append("&toToken=").append(partition.toTokenExclusive);
                     }
 
                     // Append optional params
@@ -335,20 +314,14 @@ public class FlameContextImpl implements FlameContext {
 
         // Build partitioner
         Partitioner partitioner = new Partitioner();
-        int numKVSWorkers = kvs.numWorkers();
 
+        // Partition the KVS hash ring
+        int numKVSWorkers = kvs.numWorkers();
+        List<String> kvsWorkerAddresses = new ArrayList<>();
         for (int i = 0; i < numKVSWorkers; i++) {
-            String workerAddress = kvs.getWorkerAddress(i);
-            String workerId = kvs.getWorkerID(i);
-            if (i == numKVSWorkers - 1) {
-                String firstWorkerId = kvs.getWorkerID(0);
-                partitioner.addKVSWorker(workerAddress, workerId, null);
-                partitioner.addKVSWorker(workerAddress, null, firstWorkerId);
-            } else {
-                String nextWorkerId = kvs.getWorkerID(i + 1);
-                partitioner.addKVSWorker(workerAddress, workerId, nextWorkerId);
-            }
+            kvsWorkerAddresses.add(kvs.getWorkerAddress(i));
         }
+        partitioner.setRing(kvs.getRing(), kvsWorkerAddresses);
 
         Vector<String> flameWorkers = Coordinator.getWorkers();
         for (String worker : flameWorkers) {
@@ -373,11 +346,11 @@ public class FlameContextImpl implements FlameContext {
                     urlBuilder.append("http://").append(partition.assignedFlameWorker).append(operationRoute);
                     urlBuilder.append("?inputTable=").append(URLEncoder.encode(inputTableName, "UTF-8"));
                     urlBuilder.append("&kvsCoordinator=").append(URLEncoder.encode(kvs.getCoordinator(), "UTF-8"));
-                    if (partition.fromKey != null) {
-                        urlBuilder.append("&fromKey=").append(URLEncoder.encode(partition.fromKey, "UTF-8"));
+                    if (partition.fromToken != null) {
+                        urlBuilder.append("&fromToken=").append(partition.fromToken);
                     }
-                    if (partition.toKeyExclusive != null) {
-                        urlBuilder.append("&toKey=").append(URLEncoder.encode(partition.toKeyExclusive, "UTF-8"));
+                    if (partition.toTokenExclusive != null) {
+                        urlBuilder.append("&toToken=").append(partition.toTokenExclusive);
                     }
                     if (extraParams != null) {
                         for (Map.Entry<String, String> entry : extraParams.entrySet()) {
@@ -426,16 +399,28 @@ public class FlameContextImpl implements FlameContext {
 
     @Override
     public FlameRDD fromTable(String tableName, FlameContext.RowToString lambda) throws Exception {
+        return fromTable(tableName, null, lambda);
+    }
+
+    @Override
+    public FlameRDD fromTable(String tableName, List<String> columns, FlameContext.RowToString lambda) throws Exception {
         // Serialize lambda
         byte[] serializedLambda = Serializer.objectToByteArray(lambda);
 
+        // Workers scan only these columns
+        Map<String, String> extraParams = null;
+        if (columns != null) {
+            extraParams = new HashMap<>();
+            extraParams.put("columns", String.join(",", columns));
+        }
+
         // Run worker operation
         String outputTable = invokeOperation(
                 tableName, // input table
                 null, // output table (will be generated)
                 "/context/fromTable", // operation route
                 serializedLambda, // serialized lambda
-                null // no extra params
+                extraParams // column projection, if any
         );
 
         // Return resulting RDD
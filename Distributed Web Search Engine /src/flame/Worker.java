@@ -3,13 +3,16 @@ package flame;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 
 import kvs.KVSClient;
 import kvs.Row;
+import kvs.ScanFilter;
 import tools.Hasher;
 import tools.Serializer;
 import static webserver.Server.port;
@@ -51,8 +54,8 @@ class Worker extends generic.Worker {
                 String inputTable = request.queryParams("inputTable");
                 String outputTable = request.queryParams("outputTable");
                 String kvsCoordinator = request.queryParams("kvsCoordinator");
-                String fromKey = request.queryParams("fromKey");  // may be null
-                String toKeyExclusive = request.queryParams("toKey");  // may be null
+                String fromToken = request.queryParams("fromToken");  // may be null
+                String toTokenExclusive = request.queryParams("toToken");  // may be null
 
                 // Deserialize lambda
                 byte[] lambdaBytes = request.bodyAsBytes();
@@ -60,16 +63,17 @@ class Worker extends generic.Worker {
 
                 // Connect to KVS
                 KVSClient kvs = new KVSClient(kvsCoordinator);
+                KVSClient.BatchWriter output = kvs.batchWriter(outputTable);
 
                 // Scan input range
                 Iterator<Row> rows;
                 try {
-                    if (fromKey == null && toKeyExclusive == null) {
+                    if (fromToken == null && toTokenExclusive == null) {
                         // Scan whole table
                         rows = kvs.scan(inputTable);
                     } else {
                         // Scan range
-                        rows = kvs.scan(inputTable, fromKey, toKeyExclusive);
+                        rows = kvs.scanTokens(inputTable, fromToken, toTokenExclusive);
                     }
                 } catch (FileNotFoundException fnf) {
                     response.status(404, "Not Found");
@@ -91,12 +95,13 @@ class Worker extends generic.Worker {
                             for (String result : results) {
                                 // Hash unique row key
                                 String rowKey = Hasher.hash(row.key() + "-" + (counter++));
-                                kvs.put(outputTable, rowKey, "value", result);
+                                output.put(rowKey, "value", result);
                             }
                         }
                     }
                 }
 
+                output.close();
                 response.status(200, "OK");
                 return "OK";
             } catch (FileNotFoundException fnf) {
@@ -114,8 +119,8 @@ class Worker extends generic.Worker {
             try {
                 String inputTable = request.queryParams("inputTable");
                 String kvsCoordinator = request.queryParams("kvsCoordinator");
-                String fromKey = request.queryParams("fromKey");
-                String toKeyExclusive = request.queryParams("toKey");
+                String fromToken = request.queryParams("fromToken");
+                String toTokenExclusive = request.queryParams("toToken");
 
                 byte[] lambdaBytes = request.bodyAsBytes();
                 FlameRDD.StringToVoid lambda = (FlameRDD.StringToVoid) Serializer.byteArrayToObject(lambdaBytes, myJAR);
@@ -124,7 +129,7 @@ class Worker extends generic.Worker {
 
                 Iterator<Row> rows;
                 try {
-                    rows = (fromKey == null && toKeyExclusive == null) ? kvs.scan(inputTable) : kvs.scan(inputTable, fromKey, toKeyExclusive);
+                    rows = (fromToken == null && toTokenExclusive == null) ? kvs.scan(inputTable) : kvs.scanTokens(inputTable, fromToken, toTokenExclusive);
                 } catch (FileNotFoundException fnf) {
                     response.status(404, "Not Found");
                     return "Table not found: " + inputTable;
@@ -153,8 +158,8 @@ class Worker extends generic.Worker {
                 String inputTable = request.queryParams("inputTable");
                 String outputTable = request.queryParams("outputTable");
                 String kvsCoordinator = request.queryParams("kvsCoordinator");
-                String fromKey = request.queryParams("fromKey");  // may be null
-                String toKeyExclusive = request.queryParams("toKey");  // may be null
+                String fromToken = request.queryParams("fromToken");  // may be null
+                String toTokenExclusive = request.queryParams("toToken");  // may be null
 
                 // Deserialize lambda
                 byte[] lambdaBytes = request.bodyAsBytes();
@@ -162,16 +167,17 @@ class Worker extends generic.Worker {
 
                 // Connect to KVS
                 KVSClient kvs = new KVSClient(kvsCoordinator);
+                KVSClient.BatchWriter output = kvs.batchWriter(outputTable);
 
                 // Scan input range
                 Iterator<Row> rows;
                 try {
-                    if (fromKey == null && toKeyExclusive == null) {
+                    if (fromToken == null && toTokenExclusive == null) {
                         // Scan whole table
                         rows = kvs.scan(inputTable);
                     } else {
                         // Scan range
-                        rows = kvs.scan(inputTable, fromKey, toKeyExclusive);
+                        rows = kvs.scanTokens(inputTable, fromToken, toTokenExclusive);
                     }
                 } catch (FileNotFoundException fnf) {
                     response.status(404, "Not Found");
@@ -193,11 +199,12 @@ class Worker extends generic.Worker {
                             String pairValue = pair._2();
                             String columnName = row.key();
 
-                            kvs.put(outputTable, pairKey, columnName, pairValue);
+                            output.put(pairKey, columnName, pairValue);
                         }
                     }
                 }
 
+                output.close();
                 response.status(200, "OK");
                 return "OK";
             } catch (FileNotFoundException fnf) {
@@ -216,8 +223,8 @@ class Worker extends generic.Worker {
                 String inputTable = request.queryParams("inputTable");
                 String outputTable = request.queryParams("outputTable");
                 String kvsCoordinator = request.queryParams("kvsCoordinator");
-                String fromKey = request.queryParams("fromKey");  // may be null
-                String toKeyExclusive = request.queryParams("toKey");  // may be null
+                String fromToken = request.queryParams("fromToken");  // may be null
+                String toTokenExclusive = request.queryParams("toToken");  // may be null
                 String zeroElement = request.queryParams("zeroElement");  // initial accumulator
 
                 // Deserialize lambda
@@ -226,16 +233,17 @@ class Worker extends generic.Worker {
 
                 // Connect to KVS
                 KVSClient kvs = new KVSClient(kvsCoordinator);
+                KVSClient.BatchWriter output = kvs.batchWriter(outputTable);
 
                 // Scan input range
                 Iterator<Row> rows;
                 try {
-                    if (fromKey == null && toKeyExclusive == null) {
+                    if (fromToken == null && toTokenExclusive == null) {
                         // Scan whole table
                         rows = kvs.scan(inputTable);
                     } else {
                         // Scan range
-                        rows = kvs.scan(inputTable, fromKey, toKeyExclusive);
+                        rows = kvs.scanTokens(inputTable, fromToken, toTokenExclusive);
                     }
                 } catch (FileNotFoundException fnf) {
                     System.err.println("[FlameWorker] foldByKey: table not found: " + inputTable
@@ -268,18 +276,19 @@ class Worker extends generic.Worker {
                     }
 
                     // Store accumulator under key
-                    kvs.put(outputTable, key, "value", accumulator);
+                    output.put(key, "value", accumulator);
                     outputRows++;
                 }
 
                 System.err.println("[FlameWorker] foldByKey: inputTable=" + inputTable
                         + ", outputTable=" + outputTable
-                        + ", fromKey=" + fromKey
-                        + ", toKeyExclusive=" + toKeyExclusive
+                        + ", fromToken=" + fromToken
+                        + ", toTokenExclusive=" + toTokenExclusive
                         + ", rowsScanned=" + rowsScanned
                         + ", valuesSeen=" + valuesSeen
                         + ", outputRows=" + outputRows);
 
+                output.close();
                 response.status(200, "OK");
                 return "OK";
             } catch (FileNotFoundException fnf) {
@@ -297,18 +306,23 @@ class Worker extends generic.Worker {
                 String inputTable = request.queryParams("inputTable");
                 String outputTable = request.queryParams("outputTable");
                 String kvsCoordinator = request.queryParams("kvsCoordinator");
-                String fromKey = request.queryParams("fromKey");
-                String toKey = request.queryParams("toKey");
+                String fromToken = request.queryParams("fromToken");
+                String toToken = request.queryParams("toToken");
 
                 // Read other table name
                 String otherTableName = (String) Serializer.byteArrayToObject(request.bodyAsBytes(), myJAR);
 
                 KVSClient kvs = new KVSClient(kvsCoordinator);
+                KVSClient.BatchWriter output = kvs.batchWriter(outputTable);
+
+                // Only rows with a value take part, and only the value is needed
+                ScanFilter hasValue = new ScanFilter().hasColumn("value");
+                List<String> valueColumn = Arrays.asList("value");
 
                 // Cache other table values
                 Set<String> otherValues = new HashSet<>();
                 try {
-                    Iterator<Row> otherRows = kvs.scan(otherTableName);
+                    Iterator<Row> otherRows = kvs.scan(otherTableName, null, null, valueColumn, hasValue);
                     while (otherRows.hasNext()) {
                         Row row = otherRows.next();
                         String value = row.get("value");
@@ -325,7 +339,7 @@ class Worker extends generic.Worker {
                 Set<String> seenValues = new HashSet<>();
                 Iterator<Row> rows;
                 try {
-                    rows = kvs.scan(inputTable, fromKey, toKey);
+                    rows = kvs.scanTokens(inputTable, fromToken, toToken, valueColumn, hasValue);
                 } catch (FileNotFoundException fnf) {
                     response.status(404, "Not Found");
                     return "Table not found: " + inputTable;
@@ -338,10 +352,11 @@ class Worker extends generic.Worker {
                     if (value != null && otherValues.contains(value) && !seenValues.contains(value)) {
                         seenValues.add(value);
                         String rowKey = Hasher.hash(value);
-                        kvs.put(outputTable, rowKey, "value", value);
+                        output.put(rowKey, "value", value);
                     }
                 }
 
+                output.close();
                 response.status(200, "OK");
                 return "OK";
             } catch (FileNotFoundException fnf) {
@@ -359,14 +374,15 @@ class Worker extends generic.Worker {
                 String inputTable = request.queryParams("inputTable");
                 String outputTable = request.queryParams("outputTable");
                 String kvsCoordinator = request.queryParams("kvsCoordinator");
-                String fromKey = request.queryParams("fromKey");
-                String toKey = request.queryParams("toKey");
+                String fromToken = request.queryParams("fromToken");
+                String toToken = request.queryParams("toToken");
                 double samplingRate = Double.parseDouble(request.queryParams("samplingRate"));
 
                 KVSClient kvs = new KVSClient(kvsCoordinator);
+                KVSClient.BatchWriter output = kvs.batchWriter(outputTable);
                 Iterator<Row> rows;
                 try {
-                    rows = kvs.scan(inputTable, fromKey, toKey);
+                    rows = kvs.scanTokens(inputTable, fromToken, toToken);
                 } catch (FileNotFoundException fnf) {
                     response.status(404, "Not Found");
                     return "Table not found: " + inputTable;
@@ -380,10 +396,11 @@ class Worker extends generic.Worker {
 
                     if (value != null && random.nextDouble() < samplingRate) {
                         String rowKey = Hasher.hash(row.key() + "-sampled");
-                        kvs.put(outputTable, rowKey, "value", value);
+                        output.put(rowKey, "value", value);
                     }
                 }
 
+                output.close();
                 response.status(200, "OK");
                 return "OK";
             } catch (FileNotFoundException fnf) {
@@ -401,15 +418,16 @@ class Worker extends generic.Worker {
                 String inputTable = request.queryParams("inputTable");
                 String outputTable = request.queryParams("outputTable");
                 String kvsCoordinator = request.queryParams("kvsCoordinator");
-                String fromKey = request.queryParams("fromKey");
-                String toKey = request.queryParams("toKey");
+                String fromToken = request.queryParams("fromToken");
+                String toToken = request.queryParams("toToken");
 
                 FlameRDD.StringToString lambda = (FlameRDD.StringToString) Serializer.byteArrayToObject(request.bodyAsBytes(), myJAR);
 
                 KVSClient kvs = new KVSClient(kvsCoordinator);
+                KVSClient.BatchWriter output = kvs.batchWriter(outputTable);
                 Iterator<Row> rows;
                 try {
-                    rows = kvs.scan(inputTable, fromKey, toKey);
+                    rows = kvs.scanTokens(inputTable, fromToken, toToken);
                 } catch (FileNotFoundException fnf) {
                     response.status(404, "Not Found");
                     return "Table not found: " + inputTable;
@@ -424,11 +442,12 @@ class Worker extends generic.Worker {
                         String key = lambda.op(value);
                         if (key != null) {
                             // Use original row key as column
-                            kvs.put(outputTable, key, row.key(), value);
+                            output.put(key, row.key(), value);
                         }
                     }
                 }
 
+                output.close();
                 response.status(200, "OK");
                 return "OK";
             } catch (FileNotFoundException fnf) {
@@ -447,8 +466,10 @@ class Worker extends generic.Worker {
                 String inputTable = request.queryParams("inputTable");
                 String outputTable = request.queryParams("outputTable");
                 String kvsCoordinator = request.queryParams("kvsCoordinator");
-                String fromKey = request.queryParams("fromKey");
-                String toKeyExclusive = request.queryParams("toKey");
+                String fromToken = request.queryParams("fromToken");
+                String toTokenExclusive = request.queryParams("toToken");
+                String columnsParam = request.queryParams("columns");
+                List<String> columns = (columnsParam == null) ? null : Arrays.asList(columnsParam.split(","));
 
                 // Deserialize lambda
                 byte[] lambdaBytes = request.bodyAsBytes();
@@ -456,15 +477,13 @@ class Worker extends generic.Worker {
 
                 // Connect to KVS
                 KVSClient kvs = new KVSClient(kvsCoordinator);
+                kvs.setCompressScans(true);
+                KVSClient.BatchWriter output = kvs.batchWriter(outputTable);
 
                 // Scan input range
                 Iterator<Row> rows;
                 try {
-                    if (fromKey == null && toKeyExclusive == null) {
-                        rows = kvs.scan(inputTable);
-                    } else {
-                        rows = kvs.scan(inputTable, fromKey, toKeyExclusive);
-                    }
+                    rows = kvs.scanTokens(inputTable, fromToken, toTokenExclusive, columns);
                 } catch (FileNotFoundException fnf) {
                     response.status(404, "Not Found");
                     return "Table not found: " + inputTable;
@@ -482,10 +501,11 @@ class Worker extends generic.Worker {
                     if (result != null) {
                         // Hash unique row key
                         String rowKey = Hasher.hash(row.key() + "-" + (counter++));
-                        kvs.put(outputTable, rowKey, "value", result);
+                        output.put(rowKey, "value", result);
                     }
                 }
 
+                output.close();
                 response.status(200, "OK");
                 return "OK";
             } catch (FileNotFoundException fnf) {
@@ -504,8 +524,8 @@ class Worker extends generic.Worker {
                 String inputTable = request.queryParams("inputTable");
                 String outputTable = request.queryParams("outputTable");
                 String kvsCoordinator = request.queryParams("kvsCoordinator");
-                String fromKey = request.queryParams("fromKey");
-                String toKeyExclusive = request.queryParams("toKey");
+                String fromToken = request.queryParams("fromToken");
+                String toTokenExclusive = request.queryParams("toToken");
 
                 // Deserialize lambda
                 byte[] lambdaBytes = request.bodyAsBytes();
@@ -513,14 +533,15 @@ class Worker extends generic.Worker {
 
                 // Connect to KVS
                 KVSClient kvs = new KVSClient(kvsCoordinator);
+                KVSClient.BatchWriter output = kvs.batchWriter(outputTable);
 
                 // Scan input range
                 Iterator<Row> rows;
                 try {
-                    if (fromKey == null && toKeyExclusive == null) {
+                    if (fromToken == null && toTokenExclusive == null) {
                         rows = kvs.scan(inputTable);
                     } else {
-                        rows = kvs.scan(inputTable, fromKey, toKeyExclusive);
+                        rows = kvs.scanTokens(inputTable, fromToken, toTokenExclusive);
                     }
                 } catch (FileNotFoundException fnf) {
                     response.status(404, "Not Found");
@@ -546,13 +567,14 @@ class Worker extends generic.Worker {
                                     String pairValue = pair._2();
                                     // Hash unique column name
                                     String columnName = Hasher.hash(row.key() + "-" + (counter++));
-                                    kvs.put(outputTable, pairKey, columnName, pairValue);
+                                    output.put(pairKey, columnName, pairValue);
                                 }
                             }
                         }
                     }
                 }
 
+                output.close();
                 response.status(200, "OK");
                 return "OK";
             } catch (FileNotFoundException fnf) {
@@ -571,8 +593,8 @@ class Worker extends generic.Worker {
                 String inputTable = request.queryParams("inputTable");
                 String outputTable = request.queryParams("outputTable");
                 String kvsCoordinator = request.queryParams("kvsCoordinator");
-                String fromKey = request.queryParams("fromKey");
-                String toKeyExclusive = request.queryParams("toKey");
+                String fromToken = request.queryParams("fromToken");
+                String toTokenExclusive = request.queryParams("toToken");
 
                 // Deserialize lambda
                 byte[] lambdaBytes = request.bodyAsBytes();
@@ -580,14 +602,15 @@ class Worker extends generic.Worker {
 
                 // Connect to KVS
                 KVSClient kvs = new KVSClient(kvsCoordinator);
+                KVSClient.BatchWriter output = kvs.batchWriter(outputTable);
 
                 // Scan input range
                 Iterator<Row> rows;
                 try {
-                    if (fromKey == null && toKeyExclusive == null) {
+                    if (fromToken == null && toTokenExclusive == null) {
                         rows = kvs.scan(inputTable);
                     } else {
-                        rows = kvs.scan(inputTable, fromKey, toKeyExclusive);
+                        rows = kvs.scanTokens(inputTable, fromToken, toTokenExclusive);
                     }
                 } catch (FileNotFoundException fnf) {
                     response.status(404, "Not Found");
@@ -614,7 +637,7 @@ class Worker extends generic.Worker {
                                     if (result != null) {
                                         // Hash unique row key
                                         String rowKey = Hasher.hash(key + "-" + columnName + "-" + (counter++));
-                                        kvs.put(outputTable, rowKey, "value", result);
+                                        output.put(rowKey, "value", result);
                                     }
                                 }
                             }
@@ -622,6 +645,7 @@ class Worker extends generic.Worker {
                     }
                 }
 
+                output.close();
                 response.status(200, "OK");
                 return "OK";
             } catch (FileNotFoundException fnf) {
@@ -640,8 +664,8 @@ class Worker extends generic.Worker {
                 String inputTable = request.queryParams("inputTable");
                 String outputTable = request.queryParams("outputTable");
                 String kvsCoordinator = request.queryParams("kvsCoordinator");
-                String fromKey = request.queryParams("fromKey");
-                String toKeyExclusive = request.queryParams("toKey");
+                String fromToken = request.queryParams("fromToken");
+                String toTokenExclusive = request.queryParams("toToken");
 
                 // Deserialize lambda
                 byte[] lambdaBytes = request.bodyAsBytes();
@@ -649,14 +673,15 @@ class Worker extends generic.Worker {
 
                 // Connect to KVS
                 KVSClient kvs = new KVSClient(kvsCoordinator);
+                KVSClient.BatchWriter output = kvs.batchWriter(outputTable);
 
                 // Scan input range
                 Iterator<Row> rows;
                 try {
-                    if (fromKey == null && toKeyExclusive == null) {
+                    if (fromToken == null && toTokenExclusive == null) {
                         rows = kvs.scan(inputTable);
                     } else {
-                        rows = kvs.scan(inputTable, fromKey, toKeyExclusive);
+                        rows = kvs.scanTokens(inputTable, fromToken, toTokenExclusive);
                     }
                 } catch (FileNotFoundException fnf) {
                     response.status(404, "Not Found");
@@ -685,7 +710,7 @@ class Worker extends generic.Worker {
                                         String pairValue = resultPair._2();
                                         // Hash unique column name
                                         String newColumnName = Hasher.hash(key + "-" + columnName + "-" + (counter++));
-                                        kvs.put(outputTable, pairKey, newColumnName, pairValue);
+                                        output.put(pairKey, newColumnName, pairValue);
                                     }
                                 }
                             }
@@ -693,6 +718,7 @@ class Worker extends generic.Worker {
                     }
                 }
 
+                output.close();
                 response.status(200, "OK");
                 return "OK";
             } catch (FileNotFoundException fnf) {
@@ -711,19 +737,20 @@ class Worker extends generic.Worker {
                 String inputTable = request.queryParams("inputTable");
                 String outputTable = request.queryParams("outputTable");
                 String kvsCoordinator = request.queryParams("kvsCoordinator");
-                String fromKey = request.queryParams("fromKey");
-                String toKeyExclusive = request.queryParams("toKey");
+                String fromToken = request.queryParams("fromToken");
+                String toTokenExclusive = request.queryParams("toToken");
 
                 // Connect to KVS
                 KVSClient kvs = new KVSClient(kvsCoordinator);
+                KVSClient.BatchWriter output = kvs.batchWriter(outputTable);
 
                 // Scan input range
                 Iterator<Row> rows;
                 try {
-                    if (fromKey == null && toKeyExclusive == null) {
+                    if (fromToken == null && toTokenExclusive == null) {
                         rows = kvs.scan(inputTable);
                     } else {
-                        rows = kvs.scan(inputTable, fromKey, toKeyExclusive);
+                        rows = kvs.scanTokens(inputTable, fromToken, toTokenExclusive);
                     }
                 } catch (FileNotFoundException fnf) {
                     response.status(404, "Not Found");
@@ -737,10 +764,11 @@ class Worker extends generic.Worker {
 
                     if (value != null) {
                         // Use value as row key in output table
-                        kvs.put(outputTable, value, "value", value);
+                        output.put(value, "value", value);
                     }
                 }
 
+                output.close();
                 response.status(200, "OK");
                 return "OK";
             } catch (FileNotFoundException fnf) {
@@ -757,8 +785,8 @@ class Worker extends generic.Worker {
             try {
                 String inputTable = request.queryParams("inputTable");
                 String kvsCoordinator = request.queryParams("kvsCoordinator");
-                String fromKey = request.queryParams("fromKey");
-                String toKeyExclusive = request.queryParams("toKey");
+                String fromToken = request.queryParams("fromToken");
+                String toTokenExclusive = request.queryParams("toToken");
 
                 // Deserialize lambda
                 byte[] lambdaBytes = request.bodyAsBytes();
@@ -768,10 +796,10 @@ class Worker extends generic.Worker {
 
                 Iterator<Row> rows;
                 try {
-                    if (fromKey == null && toKeyExclusive == null) {
+                    if (fromToken == null && toTokenExclusive == null) {
                         rows = kvs.scan(inputTable);
                     } else {
-                        rows = kvs.scan(inputTable, fromKey, toKeyExclusive);
+                        rows = kvs.scanTokens(inputTable, fromToken, toTokenExclusive);
                     }
                 } catch (FileNotFoundException fnf) {
                     response.status(404, "Not Found");
@@ -811,8 +839,8 @@ class Worker extends generic.Worker {
                 String inputTable = request.queryParams("inputTable");
                 String outputTable = request.queryParams("outputTable");
                 String kvsCoordinator = request.queryParams("kvsCoordinator");
-                String fromKey = request.queryParams("fromKey");
-                String toKeyExclusive = request.queryParams("toKey");
+                String fromToken = request.queryParams("fromToken");
+                String toTokenExclusive = request.queryParams("toToken");
 
                 // Deserialize other table name
                 byte[] bodyBytes = request.bodyAsBytes();
@@ -820,14 +848,15 @@ class Worker extends generic.Worker {
 
                 // Connect to KVS
                 KVSClient kvs = new KVSClient(kvsCoordinator);
+                KVSClient.BatchWriter output = kvs.batchWriter(outputTable);
 
                 // Scan input range
                 Iterator<Row> rows;
                 try {
-                    if (fromKey == null && toKeyExclusive == null) {
+                    if (fromToken == null && toTokenExclusive == null) {
                         rows = kvs.scan(inputTable);
                     } else {
-                        rows = kvs.scan(inputTable, fromKey, toKeyExclusive);
+                        rows = kvs.scanTokens(inputTable, fromToken, toTokenExclusive);
                     }
                 } catch (FileNotFoundException fnf) {
                     response.status(404, "Not Found");
@@ -870,13 +899,14 @@ class Worker extends generic.Worker {
                                     String columnName = Hasher.hash(col1) + "-" + Hasher.hash(col2);
 
                                     // Store joined value
-                                    kvs.put(outputTable, key, columnName, combinedValue);
+                                    output.put(key, columnName, combinedValue);
                                 }
                             }
                         }
                     }
                 }
 
+                output.close();
                 response.status(200, "OK");
                 return "OK";
             } catch (FileNotFoundException fnf) {
@@ -895,8 +925,8 @@ class Worker extends generic.Worker {
                 String inputTable = request.queryParams("inputTable");
                 String outputTable = request.queryParams("outputTable");
                 String kvsCoordinator = request.queryParams("kvsCoordinator");
-                String fromKey = request.queryParams("fromKey");
-                String toKeyExclusive = request.queryParams("toKey");
+                String fromToken = request.queryParams("fromToken");
+                String toTokenExclusive = request.queryParams("toToken");
 
                 // Deserialize predicate
                 byte[] bodyBytes = request.bodyAsBytes();
@@ -904,13 +934,14 @@ class Worker extends generic.Worker {
 
                 // Connect to KVS
                 KVSClient kvs = new KVSClient(kvsCoordinator);
+                KVSClient.BatchWriter output = kvs.batchWriter(outputTable);
 
                 // Scan input range
                 Iterator<Row> rows;
-                if (fromKey == null && toKeyExclusive == null) {
+                if (fromToken == null && toTokenExclusive == null) {
                     rows = kvs.scan(inputTable);
                 } else {
-                    rows = kvs.scan(inputTable, fromKey, toKeyExclusive);
+                    rows = kvs.scanTokens(inputTable, fromToken, toTokenExclusive);
                 }
 
                 // Apply predicate
@@ -923,11 +954,12 @@ class Worker extends generic.Worker {
                         if (predicate.op(value)) {
                             // Write matches
                             String rowKey = Hasher.hash(value);
-                            kvs.put(outputTable, rowKey, "value", value);
+                            output.put(rowKey, "value", value);
                         }
                     }
                 }
 
+                output.close();
                 response.status(200, "OK");
                 return "OK";
             } catch (FileNotFoundException fnf) {
@@ -947,18 +979,19 @@ class Worker extends generic.Worker {
                 String inputTable = request.queryParams("inputTable");
                 String outputTable = request.queryParams("outputTable");
                 String kvsCoordinator = request.queryParams("kvsCoordinator");
-                String fromKey = request.queryParams("fromKey");
-                String toKeyExclusive = request.queryParams("toKey");
+                String fromToken = request.queryParams("fromToken");
+                String toTokenExclusive = request.queryParams("toToken");
 
                 // Connect to KVS
                 KVSClient kvs = new KVSClient(kvsCoordinator);
+                KVSClient.BatchWriter output = kvs.batchWriter(outputTable);
 
                 // Scan input range
                 Iterator<Row> rows;
-                if (fromKey == null && toKeyExclusive == null) {
+                if (fromToken == null && toTokenExclusive == null) {
                     rows = kvs.scan(inputTable);
                 } else {
-                    rows = kvs.scan(inputTable, fromKey, toKeyExclusive);
+                    rows = kvs.scanTokens(inputTable, fromToken, toTokenExclusive);
                 }
 
                 // Process PairRDD table
@@ -971,11 +1004,12 @@ class Worker extends generic.Worker {
                         String pairValue = row.get(columnName);
                         if (pairValue != null) {
                             // Write pair value under "value"
-                            kvs.put(outputTable, pairKey, "value", pairValue);
+                            output.put(pairKey, "value", pairValue);
                         }
                     }
                 }
 
+                output.close();
                 response.status(200, "OK");
                 return "OK";
             } catch (FileNotFoundException fnf) {
@@ -994,10 +1028,10 @@ class Worker extends generic.Worker {
             try {
                 String inputTable = request.queryParams("inputTable");
                 String kvsCoordinator = request.queryParams("kvsCoordinator");
-                String fromKey = request.queryParams("fromKey");
-                String toKeyExclusive = request.queryParams("toKey");
+                String fromToken = request.queryParams("fromToken");
+                String toTokenExclusive = request.queryParams("toToken");
                 
-                System.out.println("[Worker /pairRdd/forEachPair] inputTable=" + inputTable + ", fromKey=" + fromKey + ", toKey=" + toKeyExclusive);
+                System.out.println("[Worker /pairRdd/forEachPair] inputTable=" + inputTable + ", fromToken=" + fromToken + ", toToken=" + toTokenExclusive);
 
                 byte[] lambdaBytes = request.bodyAsBytes();
                 FlamePairRDD.PairToVoid lambda = (FlamePairRDD.PairToVoid) Serializer.byteArrayToObject(lambdaBytes, myJAR);
@@ -1005,10 +1039,10 @@ class Worker extends generic.Worker {
                 KVSClient kvs = new KVSClient(kvsCoordinator);
 
                 Iterator<Row> rows;
-                if (fromKey == null && toKeyExclusive == null) {
+                if (fromToken == null && toTokenExclusive == null) {
                     rows = kvs.scan(inputTable);
                 } else {
-                    rows = kvs.scan(inputTable, fromKey, toKeyExclusive);
+                    rows = kvs.scanTokens(inputTable, fromToken, toTokenExclusive);
                 }
 
                 // Execute side effect per pair
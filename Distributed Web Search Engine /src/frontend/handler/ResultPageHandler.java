@@ -8,7 +8,9 @@ import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import frontend.app.Result;
@@ -97,16 +99,21 @@ public class ResultPageHandler implements Route {
         // Candidate URLs
         List<String> allUrls = searchUrlsForWords(queryWords);
 
+        // Fetch signals for all candidates at once
+        Map<String, List<TfIdfComponent>> tfIdfByUrl = KVSStorage.getTfIdfComponents(allUrls, queryWords);
+        Map<String, Object[]> metadataByUrl = KVSStorage.getPageRankMetadata(allUrls);
+
         // Rank results
         List<Result> allResults = new ArrayList<>();
 
         for (String url : allUrls) {
 
             // Core signals
-            double tfidf = KVSStorage.getTfIdf(url, queryWords);
+            List<TfIdfComponent> tfIdfComponents = tfIdfByUrl.getOrDefault(url, Collections.emptyList());
+            double tfidf = KVSStorage.averageTfIdf(tfIdfComponents);
 
             // Metadata fetch
-            Object[] metadata = KVSStorage.getPageRankMetadata(url);
+            Object[] metadata = metadataByUrl.get(url);
             double pagerank;
             String title;
             String snippet;
@@ -184,8 +191,7 @@ public class ResultPageHandler implements Route {
             r.setTfIdfIncomplete(tfIdfBuilding);
             r.setTfIdfScale(tfIdfCompletion);
             if (isDiagMode) {
-                List<TfIdfComponent> components = KVSStorage.getTfIdfComponents(url, queryWords);
-                r.setTfIdfDetails(components);
+                r.setTfIdfDetails(tfIdfComponents);
             }
             allResults.add(r);
         }
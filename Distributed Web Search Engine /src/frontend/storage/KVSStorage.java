@@ -2,11 +2,14 @@ package frontend.storage;
 
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 import kvs.KVSClient;
@@ -31,6 +34,9 @@ public class KVSStorage {
     private static final String INDEX_META_COUNT = "__count";
     private static final char INDEX_SEPARATOR = ',';
 
+    private static final List<String> PAGERANK_COLUMNS = Arrays.asList("pagerank", "title", "snippet");
+    private static final List<String> TFIDF_COLUMNS = Arrays.asList("tf", "idf", "tfidf");
+
     private static final String TFIDF_PROGRESS_META_ROW = "__meta__";
     private static final String TFIDF_PROGRESS_TOTAL_COL = "totalDocs";
 
@@ -110,46 +116,81 @@ public class KVSStorage {
             if (row == null) {
                 return null;
             }
-
-            double pagerank = 0.1;  // default
-            String title = url;      // fallback to URL
-            String snippet = "...";  // default
+            return pageRankMetadata(url, row);
             
-            // Extract pagerank
-            String prStr = row.get("pagerank");
-            if (prStr != null) {
-                try {
-                    pagerank = Double.parseDouble(prStr.trim());
-                } catch (NumberFormatException e) {
-                    pagerank = 0.1;
+        } catch (Exception e) {
+            System.err.println("[KVSStorage] Error getting page rank metadata for URL: " + url);
+        }
+
+        return null;
+    }
+
+    // Loads pagerank metadata for many URLs in one multi-get; URLs without a row are left out.
+    public static Map<String, Object[]> getPageRankMetadata(List<String> urls) {
+        Map<String, Object[]> result = new HashMap<>();
+        if (kvs == null || urls == null || urls.isEmpty()) {
+            return result;
+        }
+
+        try {
+            Map<String, String> urlByHash = new HashMap<>();
+            for (String url : urls) {
+                if (url != null && !url.isEmpty()) {
+                    urlByHash.put(Hasher.hash(url), url);
                 }
             }
-            
-            // Extract title
-            String titleStr = row.get("title");
-            if (titleStr != null && !titleStr.trim().isEmpty()) {
-                title = titleStr.trim();
-            }
-            
-            // Extract snippet
-            String snippetStr = row.get("snippet");
-            if (snippetStr != null && !snippetStr.trim().isEmpty()) {
-                snippet = snippetStr.trim();
+            Map<String, Row> rows = kvs.multiGet(PAGERANK_TABLE, urlByHash.keySet(), PAGERANK_COLUMNS);
+            for (Map.Entry<String, Row> e : rows.entrySet()) {
+                String url = urlByHash.get(e.getKey());
+                if (url != null) {
+                    result.put(url, pageRankMetadata(url, e.getValue()));
+                }
             }
-            
-            return new Object[] { pagerank, title, snippet };
-            
         } catch (Exception e) {
-            System.err.println("[KVSStorage] Error getting page rank metadata for URL: " + url);
+            System.err.println("[KVSStorage] Error getting page rank metadata for " + urls.size() + " URLs: " + e.getMessage());
         }
+        return result;
+    }
 
-        return null;
+    // Pagerank, title, and snippet from a pagerank row, with defaults for missing values.
+    private static Object[] pageRankMetadata(String url, Row row) {
+        double pagerank = 0.1;  // default
+        String title = url;      // fallback to URL
+        String snippet = "...";  // default
+        
+        // Extract pagerank
+        String prStr = row.get("pagerank");
+        if (prStr != null) {
+            try {
+                pagerank = Double.parseDouble(prStr.trim());
+            } catch (NumberFormatException e) {
+                pagerank = 0.1;
+            }
+        }
+        
+        // Extract title
+        String titleStr = row.get("title");
+        if (titleStr != null && !titleStr.trim().isEmpty()) {
+            title = titleStr.trim();
+        }
+        
+        // Extract snippet
+        String snippetStr = row.get("snippet");
+        if (snippetStr != null && !snippetStr.trim().isEmpty()) {
+            snippet = snippetStr.trim();
+        }
+        
+        return new Object[] { pagerank, title, snippet };
     }
 
     // Computes the average TF-IDF score for the URL and query terms.
     public static double getTfIdf(String url, List<String> queryWords) {
-        List<TfIdfComponent> components = getTfIdfComponents(url, queryWords);
-        if (components.isEmpty()) {
+        return averageTfIdf(getTfIdfComponents(url, queryWords));
+    }
+
+    // Average TF-IDF score over the components found for a URL.
+    public static double averageTfIdf(List<TfIdfComponent> components) {
+        if (components == null || components.isEmpty()) {
             return 0.0;
         }
         double sum = 0.0;
@@ -175,16 +216,10 @@ public class KVSStorage {
                 String composite = word.toLowerCase(Locale.ROOT) + "|" + url;
                 String key = Hasher.hash(composite);
                 Row row = kvs.getRow(TFIDF_TABLE, key);
-                if (row == null) {
-                    continue;
+                TfIdfComponent component = tfIdfComponent(word, row);
+                if (component != null) {
+                    components.add(component);
                 }
-                double tf = parseDoubleSafe(row.get("tf"), 0.0);
-                double idf = parseDoubleSafe(row.get("idf"), 0.0);
-                double tfidf = parseDoubleSafe(row.get("tfidf"), 0.0);
-                if (tfidf <= 0.0) {
-                    continue;
-                }
-                components.add(new TfIdfComponent(word.toLowerCase(Locale.ROOT), tf, idf, tfidf));
             } catch (Exception e) {
                 System.err.println("[KVSStorage] TF-IDF component lookup failed for word='" + word + "' url='" + url + "'");
             }
@@ -192,6 +227,67 @@ public class KVSStorage {
         return components;
     }
 
+    // Per-word TF/IDF components for many URLs, fetched with one multi-get.
+    public static Map<String, List<TfIdfComponent>> getTfIdfComponents(List<String> urls, List<String> queryWords) {
+        Map<String, List<TfIdfComponent>> result = new HashMap<>();
+        if (kvs == null || urls == null || urls.isEmpty() ||
+            queryWords == null || queryWords.isEmpty()) {
+            return result;
+        }
+
+        Map<String, String> keyByUrlAndWord = new HashMap<>();
+        for (String url : urls) {
+            if (url == null || url.isEmpty()) {
+                continue;
+            }
+            for (String word : queryWords) {
+                if (word == null || word.isEmpty()) {
+                    continue;
+                }
+                String composite = word.toLowerCase(Locale.ROOT) + "|" + url;
+                keyByUrlAndWord.put(composite, Hasher.hash(composite));
+            }
+        }
+
+        Map<String, Row> rows;
+        try {
+            rows = kvs.multiGet(TFIDF_TABLE, keyByUrlAndWord.values(), TFIDF_COLUMNS);
+        } catch (Exception e) {
+            System.err.println("[KVSStorage] TF-IDF multi-get failed for " + urls.size() + " URLs: " + e.getMessage());
+            return result;
+        }
+
+        for (String url : urls) {
+            List<TfIdfComponent> components = new ArrayList<>();
+            for (String word : queryWords) {
+                if (word == null || word.isEmpty() || url == null || url.isEmpty()) {
+                    continue;
+                }
+                String key = keyByUrlAndWord.get(word.toLowerCase(Locale.ROOT) + "|" + url);
+                TfIdfComponent component = tfIdfComponent(word, rows.get(key));
+                if (component != null) {
+                    components.add(component);
+                }
+            }
+            result.put(url, components);
+        }
+        return result;
+    }
+
+    // Component from a TF-IDF row; null when the row is missing or has no positive score.
+    private static TfIdfComponent tfIdfComponent(String word, Row row) {
+        if (row == null) {
+            return null;
+        }
+        double tf = parseDoubleSafe(row.get("tf"), 0.0);
+        double idf = parseDoubleSafe(row.get("idf"), 0.0);
+        double tfidf = parseDoubleSafe(row.get("tfidf"), 0.0);
+        if (tfidf <= 0.0) {
+            return null;
+        }
+        return new TfIdfComponent(word.toLowerCase(Locale.ROOT), tf, idf, tfidf);
+    }
+
     // Report TF-IDF job progress (best-effort).
     public static TfIdfStatus getTfIdfStatus() {
         if (kvs == null) {
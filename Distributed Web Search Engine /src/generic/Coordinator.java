@@ -1,5 +1,7 @@
 package generic;
 
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -41,6 +43,16 @@ public class Coordinator {
         return result;
     }
     
+    /** Live workers as ID -> ip:port. */
+    public static Map<String, String> getWorkerAddressesById() {
+        workers.entrySet().removeIf(entry -> entry.getValue().isExpired());
+        Map<String, String> result = new TreeMap<>();
+        for (WorkerInfo worker : workers.values()) {
+            result.put(worker.id, worker.ip + ":" + worker.port);
+        }
+        return result;
+    }
+    
     public static String workerTable() {
         workers.entrySet().removeIf(entry -> entry.getValue().isExpired());
         
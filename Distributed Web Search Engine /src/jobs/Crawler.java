@@ -37,6 +37,12 @@ public class Crawler {
     private static final double DEFAULT_DELAY = 1.0;
     private static final String[] DEFAULT_SEEDS = Urls.DEFAULT_SEEDS;
     private static final String UA = "cis5550-crawler";
+    // Dedup against pt-crawl and pt-crawl-visited is deliberately approximate: existsRow()
+    // answers misses from a cached Bloom filter (KVSClient.useBloomFilter), which learns of
+    // rows other Flame workers wrote only when it is refreshed, up to this long later. Such a
+    // row is reported missing and its URL queued again; the exact check before a fetch
+    // (alreadyVisited) keeps the page from being crawled twice.
+    private static final long BLOOM_MAX_AGE_MS = 10_000;
 
     private static final Set<String> BLACKLISTED_HOSTS = Urls.BLACKLISTED_HOSTS;
     private static final List<String> BLACKLISTED_SUBSTRINGS = Urls.BLACKLISTED_SUBSTRINGS;
@@ -67,6 +73,8 @@ public class Crawler {
 
         //normalize seeds
         KVSClient admin = context.getKVS();
+        // Approximate: a page crawled in the last BLOOM_MAX_AGE_MS may be queued again (see above)
+        admin.useBloomFilter("pt-crawl", BLOOM_MAX_AGE_MS);
 
         List<String> normalizedSeeds = new ArrayList<>();
         for (String s : rawSeeds) {
@@ -107,7 +115,8 @@ public class Crawler {
         // Initialize the URL queue
         if (pendingUrlsCount > 0) {
             List<String> pendingUrls = new ArrayList<>();
-            Iterator<kvs.Row> iterator = admin.scan("pt-crawl-queue");
+            // Workers send only the queued URLs themselves
+            Iterator<kvs.Row> iterator = admin.scan("pt-crawl-queue", null, null, Arrays.asList("value"), new kvs.ScanFilter().hasColumn("value"));
             while (iterator.hasNext()) {
                 kvs.Row row = iterator.next();
                 String url = row.get("value");
@@ -154,12 +163,19 @@ public class Crawler {
                 urlQueue = urlQueue.flatMap(url -> {
                     try {
                         KVSClient kvs = new KVSClient(kvsCoord);
+                        // Approximate: links to pages other workers visited in the last
+                        // BLOOM_MAX_AGE_MS may be queued again (see above)
+                        kvs.useBloomFilter("pt-crawl-visited", BLOOM_MAX_AGE_MS);
                         String key = Hasher.hash(url);
                         boolean completed = false;
                         boolean throttled = false;
 
 
                         try {
+                            if (alreadyVisited(kvs, key)) {
+                                completed = true;
+                                return java.util.Collections.<String>emptyList();
+                            }
                             try {
                                 String host = hostname(url);
                                 if (host == null || host.isBlank()) {
@@ -673,6 +689,16 @@ public class Crawler {
         return path;
     }
 
+    // Exact check, unlike existsRow() with the Bloom filter: the URL may have been queued
+    // again after another worker visited it. If the check fails, the page is crawled.
+    private static boolean alreadyVisited(KVSClient kvs, String key) {
+        try {
+            return kvs.getRow("pt-crawl-visited", key) != null;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     private static void updateLastAccess(KVSClient kvs, String host, long now) throws IOException {
         kvs.put("hosts", host, "lastAccess", Long.toString(now));
     }
@@ -3,6 +3,7 @@ package jobs;
 import flame.FlameContext;
 import flame.FlameRDD;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -54,7 +55,7 @@ public class Indexer {
             context.output("Indexer: Resume marker detected → continuing without wiping pt-index.");
         }
 
-        FlameRDD crawlData = context.fromTable("pt-crawl", rowObj -> {
+        FlameRDD crawlData = context.fromTable("pt-crawl", Arrays.asList("url", "page"), rowObj -> {
             Row r = (Row) rowObj;
             String url = r.get("url");
             byte[] pageBytes = r.getBytes("page");
@@ -2,6 +2,7 @@ package jobs;
 
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -118,7 +119,7 @@ public class PageRank {
         storeProgress(kvs, PROGRESS_COL_ITERATION, "0");
         storeProgress(kvs, PROGRESS_COL_RESIDUAL, Double.toString(Double.POSITIVE_INFINITY));
 
-        FlameRDD crawlData = context.fromTable("pt-crawl", rowObj -> {
+        FlameRDD crawlData = context.fromTable("pt-crawl", Arrays.asList("url", "page"), rowObj -> {
             Row row = (Row) rowObj;
             String url = row.get("url");
             byte[] pageBytes = row.getBytes("page");
@@ -233,7 +234,7 @@ public class PageRank {
         double baseRank = (totalPages > 0) ? (1.0 / totalPages) : 0.0;
         String baseString = Double.toString(baseRank);
 
-        FlameRDD vertexIds = context.fromTable(TABLE_GRAPH, rowObj -> {
+        FlameRDD vertexIds = context.fromTable(TABLE_GRAPH, Arrays.asList("url"), rowObj -> {
             Row row = (Row) rowObj;
             if (row.get("url") == null) {
                 return null;
@@ -2,6 +2,7 @@ package jobs;
 
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -80,7 +81,7 @@ public class TfIdf {
             logger.warn("Unable to store totalDocs in progress table: " + e.getMessage());
         }
 
-        FlameRDD crawlData = context.fromTable(CRAWL_TABLE, rowObj -> {
+        FlameRDD crawlData = context.fromTable(CRAWL_TABLE, Arrays.asList("url", "page"), rowObj -> {
             Row row = (Row) rowObj;
             String url = row.get("url");
             byte[] pageBytes = row.getBytes("page");
@@ -0,0 +1,370 @@
+package kvs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Non-blocking KVS client: every call returns at once with a CompletableFuture, so one thread
+ * can have hundreds of reads and writes outstanding. It routes by the ring of a KVSClient
+ * (and notices ring changes the same way, from the X-Ring-Epoch header), but sends through
+ * java.net.http.HttpClient, whose requests complete without a thread waiting for each.
+ *
+ * Each worker has a queue and at most maxInFlightPerWorker requests outstanding. Calls that
+ * arrive while the worker's requests are all in flight wait in its queue, and when a request
+ * completes, the run of compatible calls at the head of the queue goes out as one request:
+ * reads of the same table and columns as one POST /mget, cell writes to the same table as one
+ * PUT /batch. This is what pipelining buys on these workers, which serve the requests of a
+ * connection one after the other anyway, and it needs fewer round trips besides. Whole-row
+ * puts (which replace the row) and deletes are sent on their own.
+ *
+ * Calls on the same row are carried out in the order they were made: a call waits while an
+ * earlier call on its row is in flight, and a batch never passes a call it would overtake.
+ * Calls on different rows may complete in any order. Futures complete on HttpClient's threads;
+ * dependent actions that block should be moved elsewhere with the *Async variants.
+ */
+public class AsyncKVSClient {
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    private static final int MAX_BATCH_CALLS = 1000;
+    private static final int MAX_BATCH_BYTES = 4 << 20;
+    private static final Duration TIMEOUT = Duration.ofSeconds(60);
+
+    private static final int GET = 0, PUT = 1, PUT_ROW = 2, DELETE = 3;
+
+    /** One call; completes with the row read or written, or, for deletes, non-null if the row existed. */
+    private static final class Call {
+        final int kind;
+        final String tableName;
+        final String rowKey;
+        final String columns;       // reads: comma-separated columns, or null for all
+        final Row row;              // writes: the cells to store
+        final CompletableFuture<Row> done = new CompletableFuture<>();
+
+        Call(int kind, String tableName, String rowKey, String columns, Row row) {
+            this.kind = kind;
+            this.tableName = tableName;
+            this.rowKey = rowKey;
+            this.columns = columns;
+            this.row = row;
+        }
+
+        String id() {
+            return tableName + "\n" + rowKey;
+        }
+
+        boolean batchesWith(Call first) {
+            return kind == first.kind && (kind == GET || kind == PUT) && tableName.equals(first.tableName)
+                    && (columns == null ? first.columns == null : columns.equals(first.columns));
+        }
+
+        int size() {
+            return rowKey.length() + (row == null ? 0 : row.toByteArray().length);
+        }
+    }
+
+    private final KVSClient kvs;
+    private final int maxInFlightPerWorker;
+    private final HttpClient http;
+    private final Map<String, WorkerQueue> queues = new ConcurrentHashMap<>();
+
+    public AsyncKVSClient(String coordinator) {
+        this(new KVSClient(coordinator), DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /** Route by the given client's ring, with at most maxInFlightPerWorker requests outstanding per worker. */
+    public AsyncKVSClient(KVSClient kvs, int maxInFlightPerWorker) {
+        if (maxInFlightPerWorker < 1) {
+            throw new IllegalArgumentException("maxInFlightPerWorker must be at least 1");
+        }
+        this.kvs = kvs;
+        this.maxInFlightPerWorker = maxInFlightPerWorker;
+        this.http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+    }
+
+    public KVSClient syncClient() {
+        return kvs;
+    }
+
+    public CompletableFuture<Row> getRow(String tableName, String rowKey) {
+        return getRow(tableName, rowKey, null);
+    }
+
+    /** The row restricted to the given columns (all columns if null); completes with null if it does not exist. */
+    public CompletableFuture<Row> getRow(String tableName, String rowKey, Collection<String> columns) {
+        return submit(new Call(GET, tableName, rowKey, columns == null ? null : String.join(",", columns), null));
+    }
+
+    /** One cell; completes with null if the row or the column does not exist. */
+    public CompletableFuture<byte[]> get(String tableName, String rowKey, String column) {
+        return getRow(tableName, rowKey, List.of(column)).thenApply(row -> row == null ? null : row.getBytes(column));
+    }
+
+    /** The rows that exist, by key, restricted to the given columns (all columns if null). */
+    public CompletableFuture<Map<String, Row>> multiGet(String tableName, Collection<String> rowKeys, Collection<String> columns) {
+        Map<String, CompletableFuture<Row>> pending = new HashMap<>();
+        for (String rowKey : rowKeys) {
+            if (rowKey != null && !rowKey.isEmpty() && !pending.containsKey(rowKey)) {
+                pending.put(rowKey, getRow(tableName, rowKey, columns));
+            }
+        }
+        return CompletableFuture.allOf(pending.values().toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            Map<String, Row> result = new HashMap<>();
+            for (Map.Entry<String, CompletableFuture<Row>> e : pending.entrySet()) {
+                Row row = e.getValue().join();
+                if (row != null) {
+                    result.put(e.getKey(), row);
+                }
+            }
+            return result;
+        });
+    }
+
+    public CompletableFuture<Void> put(String tableName, String rowKey, String column, String value) {
+        return put(tableName, rowKey, column, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Store one cell; the row's other columns are left alone. */
+    public CompletableFuture<Void> put(String tableName, String rowKey, String column, byte[] value) {
+        Row row = new Row(rowKey);
+        row.put(column, value);
+        return submit(new Call(PUT, tableName, rowKey, null, row)).thenApply(r -> null);
+    }
+
+    /** Store the row, replacing what was stored under its key. */
+    public CompletableFuture<Void> putRow(String tableName, Row row) {
+        return submit(new Call(PUT_ROW, tableName, row.key(), null, row.clone())).thenApply(r -> null);
+    }
+
+    /** Delete the row; completes with false if it did not exist. */
+    public CompletableFuture<Boolean> deleteRow(String tableName, String rowKey) {
+        return submit(new Call(DELETE, tableName, rowKey, null, null)).thenApply(r -> r != null);
+    }
+
+    /** Calls queued or in flight, per worker. */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, WorkerQueue> e : queues.entrySet()) {
+            sb.append(e.getKey()).append(": ").append(e.getValue().describe()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private CompletableFuture<Row> submit(Call call) {
+        if (call.rowKey == null || call.rowKey.isEmpty()) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Row key can't be empty!"));
+        }
+        String address;
+        try {
+            address = ownerOf(call.rowKey);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        queues.computeIfAbsent(address, WorkerQueue::new).submit(call);
+        return call.done;
+    }
+
+    private String ownerOf(String rowKey) throws IOException {
+        kvs.getRing();   // fetches the ring if there is none, or ours is stale
+        // The worker list and the ring are swapped together under the client's lock
+        synchronized (kvs) {
+            return kvs.workers.elementAt(kvs.workerIndexForKey(rowKey)).address;
+        }
+    }
+
+    private static String encode(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+
+    /** The calls for one worker that wait for a free request slot, and the requests in flight. */
+    private final class WorkerQueue {
+        final String address;
+        private final ArrayDeque<Call> waiting = new ArrayDeque<>();
+        private final Set<String> busyRows = new HashSet<>();     // rows with a call in flight
+        private int inFlight = 0;
+        private long requests = 0;
+        private long calls = 0;
+
+        WorkerQueue(String address) {
+            this.address = address;
+        }
+
+        synchronized String describe() {
+            return waiting.size() + " queued, " + inFlight + " in flight, " + calls + " calls in " + requests + " requests";
+        }
+
+        void submit(Call call) {
+            synchronized (this) {
+                waiting.addLast(call);
+            }
+            pump();
+        }
+
+        /** Send the calls at the head of the queue, as long as there are free slots and their rows are not busy. */
+        private void pump() {
+            while (true) {
+                List<Call> batch = new ArrayList<>();
+                synchronized (this) {
+                    if (inFlight >= maxInFlightPerWorker || waiting.isEmpty() || busyRows.contains(waiting.peekFirst().id())) {
+                        return;
+                    }
+                    Call first = waiting.pollFirst();
+                    batch.add(first);
+                    int bytes = first.size();
+                    while (!waiting.isEmpty() && batch.size() < MAX_BATCH_CALLS && bytes < MAX_BATCH_BYTES) {
+                        Call next = waiting.peekFirst();
+                        if (!next.batchesWith(first) || busyRows.contains(next.id())) {
+                            break;
+                        }
+                        batch.add(waiting.pollFirst());
+                        bytes += next.size();
+                    }
+                    for (Call call : batch) {
+                        busyRows.add(call.id());
+                    }
+                    inFlight++;
+                    requests++;
+                    calls += batch.size();
+                }
+                send(batch);
+            }
+        }
+
+        private void send(List<Call> batch) {
+            HttpRequest request = request(batch);
+            http.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).whenComplete((res, err) -> {
+                List<Row> results = null;
+                Throwable failure = err;
+                if (failure == null) {
+                    try {
+                        noteEpoch(res);
+                        results = results(batch, res);
+                    } catch (Exception e) {
+                        failure = e;
+                    }
+                }
+                // Free the slot and the rows first, so the next request is on its way while callers run
+                synchronized (this) {
+                    inFlight--;
+                    for (Call call : batch) {
+                        busyRows.remove(call.id());
+                    }
+                }
+                pump();
+                for (int i = 0; i < batch.size(); i++) {
+                    if (failure != null) {
+                        batch.get(i).done.completeExceptionally(failure);
+                    } else {
+                        batch.get(i).done.complete(results.get(i));
+                    }
+                }
+            });
+        }
+
+        private HttpRequest request(List<Call> batch) {
+            Call first = batch.get(0);
+            String base = "http://" + address;
+            HttpRequest.Builder b = HttpRequest.newBuilder().timeout(TIMEOUT);
+            switch (first.kind) {
+                case GET: {
+                    StringBuilder keys = new StringBuilder();
+                    for (Call call : batch) {
+                        keys.append(call.rowKey).append('\n');
+                    }
+                    String params = (first.columns == null) ? "" : "?columns=" + encode(first.columns);
+                    return b.uri(URI.create(base + "/mget/" + encode(first.tableName) + params))
+                            .POST(HttpRequest.BodyPublishers.ofString(keys.toString(), StandardCharsets.UTF_8)).build();
+                }
+                case PUT: {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    for (Call call : batch) {
+                        byte[] bytes = call.row.toByteArray();
+                        out.write(bytes, 0, bytes.length);
+                        out.write('\n');
+                    }
+                    return b.uri(URI.create(base + "/batch/" + encode(first.tableName)))
+                            .PUT(HttpRequest.BodyPublishers.ofByteArray(out.toByteArray())).build();
+                }
+                case PUT_ROW:
+                    return b.uri(URI.create(base + "/data/" + encode(first.tableName)))
+                            .PUT(HttpRequest.BodyPublishers.ofByteArray(first.row.toByteArray())).build();
+                default:
+                    return b.uri(URI.create(base + "/data/" + encode(first.tableName) + "/" + encode(first.rowKey)))
+                            .DELETE().build();
+            }
+        }
+
+        /** What each call of the batch completes with, in order; throws if the request failed. */
+        private List<Row> results(List<Call> batch, HttpResponse<byte[]> res) throws IOException {
+            Call first = batch.get(0);
+            int status = res.statusCode();
+            List<Row> results = new ArrayList<>(batch.size());
+            if (first.kind == GET) {
+                if (status != 200) {
+                    throw new IOException("Multi-get failed: status=" + status + " (" + res.uri() + ")");
+                }
+                Map<String, Row> rows = new HashMap<>();
+                ByteArrayInputStream in = new ByteArrayInputStream(res.body());
+                Row r;
+                try {
+                    while ((r = Row.readFrom(in)) != null) {
+                        rows.put(r.key(), r);
+                    }
+                } catch (Exception e) {
+                    throw new IOException("Decoding error in multi-get answer from " + address, e);
+                }
+                // Callers that asked for the same row each get a copy of their own
+                Set<String> handedOut = new HashSet<>();
+                for (Call call : batch) {
+                    Row row = rows.get(call.rowKey);
+                    results.add((row == null || handedOut.add(call.rowKey)) ? row : row.clone());
+                }
+                return results;
+            }
+            if (first.kind == DELETE) {
+                if (status != 200 && status != 404) {
+                    throw new IOException("DELETE row failed: status=" + status + " (" + res.uri() + ")");
+                }
+                results.add(status == 200 ? new Row(first.rowKey) : null);
+                return results;
+            }
+            String answer = new String(res.body(), StandardCharsets.UTF_8);
+            if (status != 200 || !answer.equals("OK")) {
+                throw new IOException("PUT returned something other than OK: status=" + status + ", " + answer + " (" + res.uri() + ")");
+            }
+            for (Call call : batch) {
+                kvs.noteWrite(call.tableName, call.rowKey);
+                results.add(call.row);
+            }
+            return results;
+        }
+    }
+
+    /** An answer routed by a newer ring than ours means ours is stale; see KVSClient.send(). */
+    private void noteEpoch(HttpResponse<byte[]> res) {
+        String epoch = res.headers().firstValue("x-ring-epoch").orElse(null);
+        if (epoch != null && Integer.parseInt(epoch) > kvs.ringEpoch) {
+            kvs.haveWorkers = false;
+        }
+    }
+}
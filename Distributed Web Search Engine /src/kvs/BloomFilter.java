@@ -0,0 +1,159 @@
+package kvs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scalable Bloom filter over row keys, served by workers at GET /bloom/:T and cached by
+ * KVSClient to answer definite misses without a round trip.
+ *
+ * The filter is a list of stages. Each stage is a plain Bloom filter sized for its capacity
+ * at about 1% false positives; once it is full, a new stage with twice the capacity takes
+ * the new keys, so a table can grow without rebuilding the filter. A key may be present if
+ * any stage says so. Deleted keys are never removed, they just become false positives.
+ *
+ * Serialized form: int stages, then per stage: int capacity | int count | int hashes |
+ * int words | long[words]
+ */
+public class BloomFilter {
+
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 7;
+
+    private static final class Stage {
+        final int capacity;
+        final int hashes;
+        final long[] bits;
+        int count;
+
+        Stage(int capacity, int hashes, long[] bits, int count) {
+            this.capacity = capacity;
+            this.hashes = hashes;
+            this.bits = bits;
+            this.count = count;
+        }
+
+        Stage(int capacity) {
+            this(capacity, HASHES, new long[(int) Math.max(1, ((long) capacity * BITS_PER_KEY + 63) / 64)], 0);
+        }
+
+        long numBits() {
+            return 64L * bits.length;
+        }
+
+        void add(long h1, long h2) {
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, numBits());
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+            count++;
+        }
+
+        boolean mightContain(long h1, long h2) {
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, numBits());
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<>();
+
+    public BloomFilter(int expectedKeys) {
+        stages.add(new Stage(Math.max(1024, expectedKeys)));
+    }
+
+    private BloomFilter() {
+    }
+
+    /** 64-bit FNV-1a over the key's chars; the two halves drive the double hashing. */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public synchronized void add(String key) {
+        long h = hash(key);
+        Stage last = stages.get(stages.size() - 1);
+        if (last.count >= last.capacity) {
+            last = new Stage((int) Math.min(Integer.MAX_VALUE / BITS_PER_KEY, 2L * last.capacity));
+            stages.add(last);
+        }
+        last.add(h, (h >>> 32) | 1);
+    }
+
+    /** False means the key was definitely never added. */
+    public synchronized boolean mightContain(String key) {
+        long h = hash(key);
+        for (Stage s : stages) {
+            if (s.mightContain(h, (h >>> 32) | 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized long sizeInBytes() {
+        long bytes = 0;
+        for (Stage s : stages) {
+            bytes += 8L * s.bits.length;
+        }
+        return bytes;
+    }
+
+    public synchronized byte[] toByteArray() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        try {
+            out.writeInt(stages.size());
+            for (Stage s : stages) {
+                out.writeInt(s.capacity);
+                out.writeInt(s.count);
+                out.writeInt(s.hashes);
+                out.writeInt(s.bits.length);
+                for (long word : s.bits) {
+                    out.writeLong(word);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("This should not happen!");
+        }
+        return baos.toByteArray();
+    }
+
+    public static BloomFilter readFrom(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        BloomFilter filter = new BloomFilter();
+        int n = in.readInt();
+        if (n < 1) throw new IOException("Bad Bloom filter: " + n + " stages");
+        for (int i = 0; i < n; i++) {
+            int capacity = in.readInt();
+            int count = in.readInt();
+            int hashes = in.readInt();
+            int words = in.readInt();
+            if (words < 1 || 8L * words > data.length) throw new IOException("Bad Bloom filter stage size " + words);
+            long[] bits = new long[words];
+            for (int j = 0; j < words; j++) {
+                bits[j] = in.readLong();
+            }
+            filter.stages.add(new Stage(capacity, hashes, bits, count));
+        }
+        return filter;
+    }
+}
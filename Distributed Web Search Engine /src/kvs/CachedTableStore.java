@@ -0,0 +1,116 @@
+package kvs;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Persistent table with a RowCache in front of its point reads. Writes and deletes go to
+ * the underlying store first and then invalidate the cached row; scans bypass the cache,
+ * so a full-table pass neither pays for cache bookkeeping nor displaces the hot rows.
+ */
+public class CachedTableStore implements TableStore {
+
+    private final TableStore store;
+    private final RowCache cache;
+
+    public CachedTableStore(TableStore store, long maxBytes) {
+        this.store = store;
+        this.cache = new RowCache(maxBytes);
+    }
+
+    /** Callers may modify the returned row, so cached rows are handed out as clones. */
+    @Override
+    public Row get(String key) throws IOException {
+        Row cached = cache.get(key);
+        if (cached != null) {
+            return cached.clone();
+        }
+        long stamp = cache.stamp(key);
+        Row row = store.get(key);
+        if (row != null) {
+            cache.admit(key, row.clone(), stamp);
+        }
+        return row;
+    }
+
+    @Override
+    public void put(Row row) throws IOException {
+        try {
+            store.put(row);
+        } finally {
+            cache.invalidate(row.key());
+        }
+    }
+
+    @Override
+    public void putAll(List<Row> rows) throws IOException {
+        try {
+            store.putAll(rows);
+        } finally {
+            for (Row row : rows) {
+                cache.invalidate(row.key());
+            }
+        }
+    }
+
+    @Override
+    public boolean delete(String key) throws IOException {
+        try {
+            return store.delete(key);
+        } finally {
+            cache.invalidate(key);
+        }
+    }
+
+    @Override
+    public boolean contains(String key) throws IOException {
+        return store.contains(key);
+    }
+
+    @Override
+    public Iterator<Row> scan(String startRow, String endRowExclusive) throws IOException {
+        return store.scan(startRow, endRowExclusive);
+    }
+
+    @Override
+    public Iterator<Row> scanKeys(Iterator<String> keys) {
+        return store.scanKeys(keys);
+    }
+
+    @Override
+    public Version pin(String key) throws IOException {
+        return store.pin(key);
+    }
+
+    @Override
+    public boolean sortedScans() {
+        return store.sortedScans();
+    }
+
+    @Override
+    public int count() throws IOException {
+        return store.count();
+    }
+
+    @Override
+    public Iterator<String> keys() throws IOException {
+        return store.keys();
+    }
+
+    @Override
+    public String describe() {
+        return store.describe();
+    }
+
+    /** Cache size and hit/miss/eviction counters for the worker dashboard. */
+    public String describeCache() {
+        return cache.describe();
+    }
+
+    @Override
+    public void close() {
+        cache.clear();
+        store.close();
+    }
+}
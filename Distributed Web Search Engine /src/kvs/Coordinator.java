@@ -1,16 +1,109 @@
 package kvs;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import tools.HashRing;
 import webserver.Server;
 
 public class Coordinator extends generic.Coordinator {
-    
+
+    /** Membership must be unchanged this long before the ring follows it. */
+    private static final long RING_SETTLE_MS = 3000;
+    private static final long RING_CHECK_MS = 1000;
+
+    /*
+     * The ring that clients route by, and the one the workers are migrating to. The epoch is
+     * bumped whenever either changes. When the live workers differ from the ring, a pending
+     * ring is announced; every worker streams the rows whose owner changes to their new owner
+     * (see Rebalancer) and reports back, and once all live workers have reported, the pending
+     * ring becomes current in one step. Clients only ever see the current ring, so every key
+     * has exactly one place to look.
+     */
+    private static int epoch = 0;
+    private static HashRing current = null;
+    private static HashRing pending = null;
+    private static final Set<String> migrated = new HashSet<>();
+    private static final Map<String, String> addresses = new HashMap<>();
+    private static Set<String> lastMembers = new HashSet<>();
+    private static long membersSince = 0;
+
+    static synchronized void updateRing() {
+        Map<String, String> live = getWorkerAddressesById();
+        addresses.putAll(live);
+        long now = System.currentTimeMillis();
+        if (!live.keySet().equals(lastMembers)) {
+            lastMembers = new HashSet<>(live.keySet());
+            membersSince = now;
+            return;
+        }
+        if (live.isEmpty() || now - membersSince < RING_SETTLE_MS) {
+            return;
+        }
+
+        if (current == null) {
+            current = new HashRing(live.keySet());
+            epoch++;
+            System.out.println("Ring epoch " + epoch + ": " + current.spec());
+            return;
+        }
+
+        HashRing target = (pending != null) ? pending : current;
+        if (!new TreeSet<>(live.keySet()).equals(new TreeSet<>(target.workerIds()))) {
+            HashRing next = new HashRing(live.keySet());
+            pending = next.workerIds().equals(current.workerIds()) ? null : next;
+            migrated.clear();
+            epoch++;
+            System.out.println("Ring epoch " + epoch + ": " + (pending == null ? "rebalancing cancelled" : "migrating to " + pending.spec()));
+            return;
+        }
+
+        if (pending != null && migrated.containsAll(live.keySet())) {
+            current = pending;
+            pending = null;
+            migrated.clear();
+            epoch++;
+            System.out.println("Ring epoch " + epoch + ": " + current.spec());
+        }
+    }
+
+    /** Body of GET /ring: epoch, current spec, pending spec or "-", then "id,ip:port" per member. */
+    static synchronized String ringDescription() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(epoch).append("\n").append(current.spec()).append("\n").append(pending == null ? "-" : pending.spec()).append("\n");
+        Set<String> members = new TreeSet<>(current.workerIds());
+        if (pending != null) {
+            members.addAll(pending.workerIds());
+        }
+        for (String id : members) {
+            sb.append(id).append(",").append(addresses.get(id)).append("\n");
+        }
+        return sb.toString();
+    }
+
+    static synchronized String ringTable() {
+        if (current == null) {
+            return "<p>No ring yet: waiting for workers to register.</p>";
+        }
+        StringBuilder html = new StringBuilder("<h2>Ring</h2><p>Epoch ").append(epoch).append(": ")
+                .append(current.size()).append(" workers, ").append(HashRing.VNODES).append(" virtual nodes each</p>");
+        if (pending != null) {
+            html.append("<p>Migrating to ").append(pending.spec()).append(": ").append(migrated.size())
+                .append(" of ").append(pending.size()).append(" workers done</p>");
+        }
+        return html.toString();
+    }
+
     public static void main(String[] args) {
         // Expect single port arg
         if (args.length != 1) {
             System.err.println("Usage: java kvs.Coordinator <port>");
             System.exit(1);
         }
-        
+
         int port;
         try {
             port = Integer.parseInt(args[0]);
@@ -19,13 +112,58 @@ public class Coordinator extends generic.Coordinator {
             System.exit(1);
             return;
         }
-        
+
         // Configure server port
         Server.port(port);
-        
+
         // Hook generic routes
         registerRoutes();
-        
+
+        // GET /ring: the ring clients route by (see ringDescription); 503 until workers have registered
+        Server.get("/ring", (request, response) -> {
+            response.type("text/plain");
+            synchronized (Coordinator.class) {
+                if (current == null) {
+                    response.status(503, "Service Unavailable");
+                    return "No ring yet";
+                }
+                return ringDescription();
+            }
+        });
+
+        // POST /ring/done?id=<worker>&epoch=<n>: the worker has migrated its rows for that epoch
+        Server.post("/ring/done", (request, response) -> {
+            String id = request.queryParams("id");
+            String reportedEpoch = request.queryParams("epoch");
+            if (id == null || reportedEpoch == null) {
+                response.status(400, "Bad Request");
+                return "Missing id or epoch parameter";
+            }
+            synchronized (Coordinator.class) {
+                if (pending == null || Integer.parseInt(reportedEpoch) != epoch) {
+                    return "STALE";
+                }
+                migrated.add(id);
+            }
+            updateRing();
+            return "OK";
+        });
+
+        Thread ringThread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(RING_CHECK_MS);
+                    updateRing();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    System.err.println("Ring update failed: " + e);
+                }
+            }
+        }, "RingUpdater");
+        ringThread.setDaemon(true);
+        ringThread.start();
+
         // Serve coordinator dashboard
         Server.get("/", (request, response) -> {
             response.type("text/html");
@@ -35,11 +173,12 @@ public class Coordinator extends generic.Coordinator {
                          "<body>" +
                          "<h1>KVS Coordinator</h1>" +
                          workerTable() +
+                         ringTable() +
                          "</body>" +
                          "</html>";
             return html;
         });
-        
+
         System.out.println("KVS Coordinator started on port " + port);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,257 @@
+package kvs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tools.Logger;
+
+/**
+ * Original persistent layout: one file per row under <table>/_xx/<encodedKey>.
+ * Kept so that tables written by older workers remain readable.
+ *
+ * The row keys are listed once when the table is opened and then kept in a sorted in-memory
+ * index, so counts and existence checks do not touch the disk and scans read only the rows
+ * in their range, in key order.
+ *
+ * Point reads map the row file through MappedRegionCache, so repeated lookups of hot rows
+ * need no open() or read(). Writes go to a temporary file that is renamed over the row
+ * file, so a mapping never sees a file being rewritten. Scans read the files directly.
+ */
+public class FileTableStore implements TableStore {
+
+    private static final Logger logger = Logger.getLogger(FileTableStore.class);
+
+    private final File tableDir;
+    private final boolean mmap;
+    private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<>();
+    private final AtomicInteger liveRows = new AtomicInteger();
+
+    public FileTableStore(File tableDir) {
+        this.tableDir = tableDir;
+        this.mmap = !WorkerConfig.forTable(tableDir.getName(), "mmap", "on").equals("off");
+        for (File f : listRowFiles(tableDir)) {
+            String key = keyOf(f);
+            if (key != null && keys.add(key)) {
+                liveRows.incrementAndGet();
+            }
+        }
+    }
+
+    /** Row key of a row file: decoded from its name, or read from the file if the name does not round-trip. */
+    private static String keyOf(File f) {
+        String name = f.getName();
+        try {
+            String key = tools.KeyEncoder.decode(name);
+            if (tools.KeyEncoder.encode(key).equals(name)) {
+                return key;
+            }
+        } catch (RuntimeException e) {
+            // fall through to reading the file
+        }
+        try (FileInputStream fis = new FileInputStream(f)) {
+            Row row = Row.readFrom(fis);
+            return (row == null) ? null : row.key();
+        } catch (Exception e) {
+            logger.warn("Skipping unreadable row file " + f);
+            return null;
+        }
+    }
+
+    /** Location of a row file; subdirectories when encoded file name length >= 6. */
+    private File rowFile(String rowKey) {
+        String encodedKey = tools.KeyEncoder.encode(rowKey);
+        if (encodedKey.length() >= 6) {
+            return new File(new File(tableDir, "_" + encodedKey.substring(0, 2)), encodedKey);
+        }
+        return new File(tableDir, encodedKey);
+    }
+
+    /** Resolve an existing row file, including rows written before subdirectories were used. */
+    private File existingRowFile(String rowKey) {
+        File rowFile = rowFile(rowKey);
+        if (!rowFile.exists() && rowFile.getParentFile().getName().startsWith("_")) {
+            File rootFile = new File(tableDir, rowFile.getName());
+            if (rootFile.exists()) {
+                return rootFile;
+            }
+        }
+        return rowFile.exists() ? rowFile : null;
+    }
+
+    @Override
+    public Row get(String rowKey) {
+        return read(rowKey, mmap);
+    }
+
+    private Row read(String rowKey, boolean mapped) {
+        if (!keys.contains(rowKey)) {
+            return null;
+        }
+        try {
+            if (mapped) {
+                // A cached mapping needs no stat() of the row file either
+                return RowCodec.decode(MappedRegionCache.SHARED.get(this, rowKey, () -> map(existingRowFile(rowKey))));
+            }
+            File rowFile = existingRowFile(rowKey);
+            return (rowFile == null) ? null : Row.fromByteArray(Files.readAllBytes(rowFile.toPath()));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static MappedByteBuffer map(File rowFile) throws IOException {
+        if (rowFile == null) {
+            throw new java.io.FileNotFoundException("Row file is gone");
+        }
+        try (FileChannel channel = FileChannel.open(rowFile.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    @Override
+    public void put(Row row) throws IOException {
+        File rowFile = rowFile(row.key());
+        File parent = rowFile.getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        File tmp = new File(parent, "." + rowFile.getName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            fos.write(row.toByteArray());
+        }
+        Files.move(tmp.toPath(), rowFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        MappedRegionCache.SHARED.invalidate(this, row.key());
+        if (keys.add(row.key())) {
+            liveRows.incrementAndGet();
+        }
+        logger.debug("Wrote file " + rowFile.getName() + " to location: " + rowFile.getAbsolutePath());
+    }
+
+    @Override
+    public boolean delete(String rowKey) throws IOException {
+        File rowFile = existingRowFile(rowKey);
+        if (rowFile == null || !rowFile.isFile()) {
+            return false;
+        }
+        if (!rowFile.delete()) {
+            throw new IOException("Failed to delete row file " + rowFile);
+        }
+        MappedRegionCache.SHARED.invalidate(this, rowKey);
+        if (keys.remove(rowKey)) {
+            liveRows.decrementAndGet();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(String rowKey) {
+        return keys.contains(rowKey);
+    }
+
+    // List persistent row files.
+    static List<File> listRowFiles(File tableDir) {
+        List<File> result = new ArrayList<>();
+        File[] children = tableDir.listFiles();
+        if (children == null) return result;
+        for (File f : children) {
+            if (f.isFile()) {
+                // Skip hidden/system files.
+                String name = f.getName();
+                if (name.startsWith(".")) {
+                    continue; // ignore hidden/system files that aren't row data
+                }
+                result.add(f);
+            } else if (f.isDirectory() && f.getName().startsWith("_")) {
+                File[] nested = f.listFiles();
+                if (nested != null) {
+                    for (File nf : nested) if (nf.isFile()) {
+                        String name = nf.getName();
+                        if (name.startsWith(".")) continue;
+                        result.add(nf);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Iterator<Row> scan(String startRow, String endRowExclusive) {
+        NavigableSet<String> range = keys;
+        if (startRow != null && endRowExclusive != null) {
+            if (startRow.compareTo(endRowExclusive) >= 0) return Collections.emptyIterator();
+            range = keys.subSet(startRow, true, endRowExclusive, false);
+        } else if (startRow != null) {
+            range = keys.tailSet(startRow, true);
+        } else if (endRowExclusive != null) {
+            range = keys.headSet(endRowExclusive, false);
+        }
+        Iterator<String> rowKeys = range.iterator();
+        return new Iterator<Row>() {
+            Row next = advance();
+
+            private Row advance() {
+                while (rowKeys.hasNext()) {
+                    Row row = read(rowKeys.next(), false);
+                    if (row != null) {
+                        return row;
+                    }
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Row next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Row r = next;
+                next = advance();
+                return r;
+            }
+        };
+    }
+
+    @Override
+    public boolean sortedScans() {
+        return true;
+    }
+
+    @Override
+    public int count() {
+        return liveRows.get();
+    }
+
+    @Override
+    public Iterator<String> keys() {
+        return keys.iterator();
+    }
+
+    @Override
+    public String describe() {
+        return "file-per-row";
+    }
+
+    @Override
+    public void close() {
+        MappedRegionCache.SHARED.invalidateAll(this);
+    }
+}
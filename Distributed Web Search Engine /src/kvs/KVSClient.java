@@ -5,7 +5,6 @@ import java.net.*;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantLock;
 import tools.*;
 
 public class KVSClient implements KVS {
@@ -27,8 +26,77 @@ public class KVSClient implements KVS {
     }
   };
 
-  Vector<WorkerEntry> workers;
-  boolean haveWorkers;
+  volatile Vector<WorkerEntry> workers;
+  volatile HashRing ring;     // key placement; worker indexes match the sorted 'workers' vector
+  volatile int ringEpoch;     // epoch of the coordinator's ring we route by; 0 if it has none yet
+  volatile boolean haveWorkers;
+  boolean compressScans = false;
+
+  // Ask workers to gzip scan responses; worth it when rows are large, e.g. page bodies
+  public void setCompressScans(boolean compress) {
+    compressScans = compress;
+  }
+
+  // Bloom filters fetched from GET /bloom/<table>, shared by all clients in this JVM and
+  // keyed by worker address and table. Writes made through any client are added locally;
+  // other machines' writes show up only after the next refresh.
+  static class CachedBloom {
+    BloomFilter filter;
+    long fetchedAt;
+  }
+  static final ConcurrentHashMap<String,CachedBloom> bloomCache = new ConcurrentHashMap<String,CachedBloom>();
+  Map<String,Long> bloomMaxAge = new ConcurrentHashMap<String,Long>();
+
+  // Let existsRow() answer definite misses for this table from a cached Bloom filter that is
+  // refreshed after maxAgeMillis. Only safe where a row written by another client in the
+  // last maxAgeMillis may be reported missing, e.g. for deduplicating crawl links; callers
+  // that cannot afford that check exactly with getRow() (see jobs.Crawler).
+  public void useBloomFilter(String tableName, long maxAgeMillis) {
+    bloomMaxAge.put(tableName, maxAgeMillis);
+  }
+
+  // Cached filter for the worker that owns a key; null if none could be fetched
+  BloomFilter bloomFilter(String tableName, int workerIdx) {
+    Long maxAge = bloomMaxAge.get(tableName);
+    if (maxAge == null)
+      return null;
+    String address = workers.elementAt(workerIdx).address;
+    CachedBloom cached = bloomCache.computeIfAbsent(address+"/"+tableName, k -> new CachedBloom());
+    synchronized (cached) {
+      long now = System.currentTimeMillis();
+      if (cached.filter == null || now - cached.fetchedAt > maxAge) {
+        try {
+          HTTP.Response r = send("GET", "http://"+address+"/bloom/"+java.net.URLEncoder.encode(tableName, "UTF-8"), null);
+          if (r != null && r.statusCode() == 200)
+            cached.filter = BloomFilter.readFrom(r.body());
+          else if (r != null && r.statusCode() == 404)
+            cached.filter = new BloomFilter(0);
+          cached.fetchedAt = now;
+        } catch (Exception e) {
+          logger.warn("Could not fetch Bloom filter for "+tableName+" from "+address+": "+e);
+          cached.fetchedAt = now;
+        }
+      }
+      return cached.filter;
+    }
+  }
+
+  void forgetBloomFilters(String tableName) {
+    bloomCache.keySet().removeIf(k -> k.substring(k.indexOf('/')+1).equals(tableName));
+  }
+
+  // Record our own write in the cached filter, so that existsRow() sees it before the next refresh
+  void noteWrite(String tableName, String row) {
+    if (bloomCache.isEmpty() || !haveWorkers)
+      return;
+    CachedBloom cached = bloomCache.get(workers.elementAt(workerIndexForKey(row)).address+"/"+tableName);
+    if (cached != null) {
+      synchronized (cached) {
+        if (cached.filter != null)
+          cached.filter.add(row);
+      }
+    }
+  }
 
   public int numWorkers() throws IOException {
     if (!haveWorkers)
@@ -56,37 +124,67 @@ public class KVSClient implements KVS {
     return workers.elementAt(idx).id;
   }
 
+  public HashRing getRing() throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+    return ring;
+  }
+
   class KVSIterator implements Iterator<Row> {
     InputStream in;
+    DataInputStream framedIn;   // set when the worker sends length-prefixed rows
     boolean atEnd;
     Row nextRow;
     int currentRangeIndex;
     String endRowExclusive;
     String startRow;
+    String fromToken;
+    String toTokenExclusive;
     String tableName;
+    Collection<String> columns;
     Vector<String> ranges;
+    HashRing scanRing;                 // the ring and workers are read once, so a concurrent
+    Vector<WorkerEntry> scanWorkers;   // refresh cannot mix two rings in one scan
+    String snapshotId;                 // read this snapshot (see snapshot()) instead of the live table
+    ScanFilter filter;                 // rows the workers send, see ScanFilter
 
     KVSIterator(String tableNameArg, String startRowArg, String endRowExclusiveArg) throws IOException {
+      this(tableNameArg, startRowArg, endRowExclusiveArg, null);
+    }
+
+    KVSIterator(String tableNameArg, String startRowArg, String endRowExclusiveArg, Collection<String> columnsArg) throws IOException {
+      this(tableNameArg, startRowArg, endRowExclusiveArg, columnsArg, null, null);
+    }
+
+    // Keys are spread over the workers by hash, so any key range can live on every worker;
+    // each worker is asked only for the rows it owns on our ring, which skips the replicas
+    // it holds for others. A token range is only sent to workers that own part of it.
+    KVSIterator(String tableNameArg, String startRowArg, String endRowExclusiveArg, Collection<String> columnsArg, String fromTokenArg, String toTokenExclusiveArg) throws IOException {
+      this(tableNameArg, startRowArg, endRowExclusiveArg, columnsArg, fromTokenArg, toTokenExclusiveArg, null, null);
+    }
+
+    // A snapshot is read on the ring it was taken on, which the workers apply themselves,
+    // so every worker is asked, not only those owning the token range on the current ring
+    KVSIterator(String tableNameArg, String startRowArg, String endRowExclusiveArg, Collection<String> columnsArg, String fromTokenArg, String toTokenExclusiveArg, String snapshotIdArg, ScanFilter filterArg) throws IOException {
       in = null;
+      snapshotId = snapshotIdArg;
+      filter = filterArg;
+      columns = columnsArg;
       currentRangeIndex = 0;
       atEnd = false;
       endRowExclusive = endRowExclusiveArg;
       tableName = tableNameArg;
       startRow = startRowArg;
+      fromToken = fromTokenArg;
+      toTokenExclusive = toTokenExclusiveArg;
       ranges = new Vector<String>();
-      if ((startRowArg == null) || (startRowArg.compareTo(getWorkerID(0)) < 0)) {
-        String url = getURL(tableNameArg, numWorkers()-1, startRowArg, ((endRowExclusiveArg != null) && (endRowExclusiveArg.compareTo(getWorkerID(0))<0)) ? endRowExclusiveArg : getWorkerID(0));
-        ranges.add(url);
+      synchronized (KVSClient.this) {
+        scanRing = ring;
+        scanWorkers = workers;
       }
-      for (int i=0; i<numWorkers(); i++) {
-        if ((startRowArg == null) || (i == numWorkers()-1) || (startRowArg.compareTo(getWorkerID(i+1))<0)) {
-          if ((endRowExclusiveArg == null) || (endRowExclusiveArg.compareTo(getWorkerID(i)) > 0)) {
-            boolean useActualStartRow = (startRowArg != null) && (startRowArg.compareTo(getWorkerID(i))>0);
-            boolean useActualEndRow = (endRowExclusiveArg != null) && ((i==(numWorkers()-1)) || (endRowExclusiveArg.compareTo(getWorkerID(i+1))<0));
-            String url = getURL(tableNameArg, i, useActualStartRow ? startRowArg : getWorkerID(i), useActualEndRow ? endRowExclusiveArg : ((i<numWorkers()-1) ? getWorkerID(i+1) : null));
-            ranges.add(url);
-          }
-        }
+      for (int i=0; i<scanWorkers.size(); i++) {
+        if (((fromToken == null) && (toTokenExclusive == null)) || (snapshotId != null) || scanRing.ownsTokensIn(i, fromToken, toTokenExclusive))
+          ranges.add(getURL(tableNameArg, i, startRowArg, endRowExclusiveArg));
       }
 
       openConnectionAndFill();
@@ -98,7 +196,19 @@ public class KVSClient implements KVS {
         params = "startRow="+startRowArg;
       if (endRowExclusiveArg != null)
         params = (params.equals("") ? "" : (params+"&"))+"endRowExclusive="+endRowExclusiveArg;
-      return "http://"+getWorkerAddress(workerIndexArg)+"/data/"+tableNameArg+(params.equals("") ? "" : "?"+params);
+      if (columns != null)
+        params = (params.equals("") ? "" : (params+"&"))+"columns="+java.net.URLEncoder.encode(String.join(",", columns), "UTF-8");
+      params = (params.equals("") ? "" : (params+"&"))+"owner="+java.net.URLEncoder.encode(scanWorkers.elementAt(workerIndexArg).id, "UTF-8")+"&ring="+java.net.URLEncoder.encode(scanRing.spec(), "UTF-8");
+      if (fromToken != null)
+        params = params+"&fromToken="+fromToken;
+      if (toTokenExclusive != null)
+        params = params+"&toTokenExclusive="+toTokenExclusive;
+      if (snapshotId != null)
+        params = params+"&snapshot="+java.net.URLEncoder.encode(snapshotId, "UTF-8");
+      if (filter != null)
+        params = params+"&filter="+java.net.URLEncoder.encode(filter.toString(), "UTF-8");
+      params = params+"&framing=binary";
+      return "http://"+scanWorkers.elementAt(workerIndexArg).address+"/data/"+tableNameArg+(params.equals("") ? "" : "?"+params);
     }
 
     void openConnectionAndFill() {
@@ -106,6 +216,7 @@ public class KVSClient implements KVS {
         if (in != null) {
           in.close();
           in = null;
+          framedIn = null;
         }
 
         if (atEnd)
@@ -121,8 +232,22 @@ public class KVSClient implements KVS {
             URL url = new URI(ranges.elementAt(currentRangeIndex)).toURL();
             HttpURLConnection con = (HttpURLConnection)url.openConnection();
             con.setRequestMethod("GET");
+            if (compressScans)
+              con.setRequestProperty("Accept-Encoding", "gzip");
             con.connect();
+            if (snapshotId != null && con.getResponseCode() == 410) {
+              // The worker says why: released, expired, or dropped (see kvs.TableSnapshot)
+              String reason = "";
+              if (con.getErrorStream() != null)
+                reason = ": "+new String(con.getErrorStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+              throw new IllegalStateException("Snapshot "+snapshotId+" of "+tableName+" is no longer open on "+url.getHost()+":"+url.getPort()+reason);
+            }
             in = con.getInputStream();
+            if ("gzip".equalsIgnoreCase(con.getContentEncoding()))
+              in = new java.util.zip.GZIPInputStream(in, 1 << 16);
+            in = new BufferedInputStream(in, 1 << 16);
+            if ("binary".equals(con.getHeaderField("X-Row-Framing")))
+              framedIn = new DataInputStream(in);
             Row r = fill();
             if (r != null) {
               nextRow = r;
@@ -138,6 +263,7 @@ public class KVSClient implements KVS {
         if (in != null) {
           try { in.close(); } catch (Exception e) {}
           in = null;
+          framedIn = null;
         }
         atEnd = true;
       }
@@ -145,7 +271,7 @@ public class KVSClient implements KVS {
 
     synchronized Row fill() {
       try {
-        Row r = Row.readFrom(in);
+        Row r = (framedIn != null) ? Row.readFramed(framedIn) : Row.readFrom(in);
         return r;
       } catch (Exception e) {
         return null;
@@ -170,8 +296,26 @@ public class KVSClient implements KVS {
     }
   }
 
+  // Fetch the coordinator's ring (GET /ring: epoch, current spec, pending spec, "id,address" per
+  // member). Before the coordinator has formed a ring, fall back to one over the live workers.
   synchronized void downloadWorkers() throws IOException {
-    HTTP.Response res = HTTP.doRequest("GET", "http://"+coordinator+"/workers", null);
+    HTTP.Response res = HTTP.doRequest("GET", "http://"+coordinator+"/ring", null);
+    if (res != null && res.statusCode() == 200) {
+      String[] pieces = new String(res.body(), StandardCharsets.UTF_8).split("\n");
+      HashRing newRing = HashRing.parse(pieces[1]);
+      Map<String,String> addresses = new HashMap<String,String>();
+      for (int i=3; i<pieces.length; i++) {
+        String[] pcs = pieces[i].split(",");
+        addresses.put(pcs[0], pcs[1]);
+      }
+      Vector<WorkerEntry> newWorkers = new Vector<WorkerEntry>();
+      for (String id : newRing.workerIds())
+        newWorkers.add(new WorkerEntry(addresses.get(id), id));
+      setRing(newWorkers, newRing, Integer.parseInt(pieces[0]));
+      return;
+    }
+
+    res = HTTP.doRequest("GET", "http://"+coordinator+"/workers", null);
     if (res == null)
       throw new IOException("Failed to get workers list from coordinator");
     String result = new String(res.body());
@@ -182,26 +326,100 @@ public class KVSClient implements KVS {
       throw new IOException("No active KVS workers");
     if (pieces.length != (numWorkers+1))
       throw new RuntimeException("Received truncated response when asking KVS coordinator for list of workers");
-    workers.clear();
+    Vector<WorkerEntry> newWorkers = new Vector<WorkerEntry>();
+    Vector<String> ids = new Vector<String>();
     for (int i=0; i<numWorkers; i++) {
       String[] pcs = pieces[1+i].split(",");
-      workers.add(new WorkerEntry(pcs[1], pcs[0]));
+      newWorkers.add(new WorkerEntry(pcs[1], pcs[0]));
+      ids.add(pcs[0]);
     }
-    Collections.sort(workers);
+    Collections.sort(newWorkers);
+    setRing(newWorkers, new HashRing(ids), 0);
+  }
 
+  // The worker list and the ring are swapped together, so a key's index always fits the list
+  synchronized void setRing(Vector<WorkerEntry> newWorkers, HashRing newRing, int epoch) {
+    workers = newWorkers;
+    ring = newRing;
+    ringEpoch = epoch;
     haveWorkers = true;
   }
 
+  // Every worker answer carries the epoch of the ring it routes by; a newer one means our ring
+  // is stale, and we fetch the new one before the next request. Until then the old owners
+  // relay our requests, so nothing is lost in the meantime.
+  HTTP.Response send(String method, String url, byte[] body) throws IOException {
+    HTTP.Response res = HTTP.doRequest(method, url, body);
+    if (res != null) {
+      String epoch = res.headers().get("x-ring-epoch");
+      if (epoch != null && Integer.parseInt(epoch) > ringEpoch)
+        haveWorkers = false;
+    }
+    return res;
+  }
+
   int workerIndexForKey(String key) {
-    int chosenWorker = workers.size()-1;
-    if (key != null) {
-      for (int i=0; i<workers.size()-1; i++) {
-        if ((key.compareTo(workers.elementAt(i).id) >= 0) && (key.compareTo(workers.elementAt(i+1).id) < 0))
-          chosenWorker = i;
+    if (key == null)
+      return workers.size()-1;
+    return ring.ownerIndex(key);
+  }
+
+  // Tables whose reads are spread over the key's owner and replicas, see readFromReplicas()
+  Map<String,Integer> replicaReads = new ConcurrentHashMap<String,Integer>();
+  static final Random replicaChoice = new Random();
+
+  // Spread the reads of this table over each key's owner and its replicas, the first
+  // 'replicas' workers on the ring, to share the load of hot rows. Replicas are updated
+  // asynchronously, so a read may miss a write of the last moments; fine for crawled pages
+  // and index rows, not for rows that are read back right after being changed.
+  public void readFromReplicas(String tableName, int replicas) {
+    if (replicas > 1)
+      replicaReads.put(tableName, replicas);
+    else
+      replicaReads.remove(tableName);
+  }
+
+  // GET from the key's owner, or from one of its replicas if the table reads from replicas
+  // and the replica has the row. Only if the owner cannot be reached (it died, and the ring
+  // has not caught up yet) do we fall back to the other replicas; a 404 from the owner is final.
+  HTTP.Response readFromOwner(String tableName, String key, String path) throws IOException {
+    HashRing r;
+    Vector<WorkerEntry> w;
+    synchronized (this) {
+      r = ring;
+      w = workers;
+    }
+    Integer spread = replicaReads.get(tableName);
+    List<Integer> holders = r.successors(key, Math.max(ReplicationManager.REPLICAS, spread == null ? 1 : spread));
+    // Replicas answer from their own copy instead of relaying to the owner
+    String replicaPath = path+(path.contains("?") ? "&" : "?")+"replicated=true";
+
+    if (spread != null) {
+      int pick = replicaChoice.nextInt(Math.min(spread, holders.size()));
+      if (pick > 0) {
+        try {
+          HTTP.Response res = send("GET", "http://"+w.elementAt(holders.get(pick)).address+replicaPath, null);
+          if (res != null && res.statusCode() == 200)
+            return res;
+        } catch (Exception e) {}
       }
     }
 
-    return chosenWorker;
+    IOException failure = null;
+    for (int i=0; i<holders.size(); i++) {
+      WorkerEntry holder = w.elementAt(holders.get(i));
+      try {
+        HTTP.Response res = send("GET", "http://"+holder.address+(i == 0 ? path : replicaPath), null);
+        if (res != null)
+          return res;
+      } catch (Exception e) {
+        failure = new IOException("Worker "+holder.id+" unreachable: "+e, e);
+      }
+      haveWorkers = false;
+    }
+    if (failure != null)
+      throw failure;
+    return null;
   }
 
   public KVSClient(String coordinatorArg) {
@@ -213,11 +431,13 @@ public class KVSClient implements KVS {
   public boolean rename(String oldTableName, String newTableName) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
+    forgetBloomFilters(oldTableName);
+    forgetBloomFilters(newTableName);
 
     boolean result = true;
     for (WorkerEntry w : workers) {
       try {
-        byte[] response = HTTP.doRequest("PUT", "http://"+w.address+"/rename/"+java.net.URLEncoder.encode(oldTableName, "UTF-8")+"/", newTableName.getBytes()).body();
+        byte[] response = send("PUT", "http://"+w.address+"/rename/"+java.net.URLEncoder.encode(oldTableName, "UTF-8")+"/", newTableName.getBytes()).body();
         String res = new String(response);
         result &= res.equals("OK");
       } catch (Exception e) {}
@@ -229,10 +449,11 @@ public class KVSClient implements KVS {
   public void delete(String oldTableName) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
+    forgetBloomFilters(oldTableName);
 
     for (WorkerEntry w : workers) {
       try {
-        byte[] response = HTTP.doRequest("PUT", "http://"+w.address+"/delete/"+java.net.URLEncoder.encode(oldTableName, "UTF-8")+"/", null).body();
+        byte[] response = send("PUT", "http://"+w.address+"/delete/"+java.net.URLEncoder.encode(oldTableName, "UTF-8")+"/", null).body();
         String result = new String(response);
       } catch (Exception e) {}
     }
@@ -246,7 +467,7 @@ public class KVSClient implements KVS {
 
     try {
       String target = "http://"+workers.elementAt(workerIndexForKey(row)).address+"/data/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8");
-      HTTP.Response res = HTTP.doRequest("DELETE", target, null);
+      HTTP.Response res = send("DELETE", target, null);
       if (res == null || res.statusCode() != 200) {
         String msg = res != null ? ("status=" + res.statusCode()) : "null response";
         throw new RuntimeException("DELETE row failed: " + msg + " (" + target + ")");
@@ -262,13 +483,14 @@ public class KVSClient implements KVS {
 
     try {
       String target = "http://"+workers.elementAt(workerIndexForKey(row)).address+"/data/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8")+"/"+java.net.URLEncoder.encode(column, "UTF-8");
-      HTTP.Response res = HTTP.doRequest("PUT", target, value);
+      HTTP.Response res = send("PUT", target, value);
       if (res == null)
         throw new RuntimeException("PUT request returned null for target: " + target);
       byte[] response = res.body();
       String result = new String(response);
       if (!result.equals("OK")) 
       	throw new RuntimeException("PUT returned something other than OK: "+result+ "("+target+")");
+      noteWrite(tableName, row);
 
       // logger.debug("Write to " + target + " successful");
 
@@ -281,67 +503,181 @@ public class KVSClient implements KVS {
     put(tableName, row, column, value.getBytes());
   }
 
-  private static final ConcurrentHashMap<String, ReentrantLock> APPEND_LOCKS = new ConcurrentHashMap<>();
-  private static final int DEFAULT_CHUNK_SIZE = 10;
-  private static final String META_COUNT = "__count";
-  private static final String META_NEXT_CHUNK = "__nextChunk";
-  private static final String META_FULL = "__full";
+  private static final int DEFAULT_BATCH_BYTES = 1024 * 1024;
+  private static final long DEFAULT_BATCH_MILLIS = 1000;
+
+  // Buffers writes per worker and sends them as PUT /batch/<table> once a buffer reaches
+  // maxBytes or the oldest buffered write is maxMillis old. Columns are merged into existing
+  // rows, like put(). Call close() to send whatever is still buffered.
+  //
+  // The time limit also holds when no more rows arrive: a daemon thread shared by all writers
+  // flushes those whose oldest row has waited maxMillis, checking every FLUSH_CHECK_MILLIS.
+  // A failure there is thrown by the writer's next putRow(); the rows stay buffered, and
+  // flush() and close() try to send them again.
 
-  private ReentrantLock lockFor(String tableName, String row) {
-    String key = tableName + "|" + row;
-    APPEND_LOCKS.putIfAbsent(key, new ReentrantLock());
-    return APPEND_LOCKS.get(key);
+  private static final long FLUSH_CHECK_MILLIS = 100;
+  static final Set<BatchWriter> pendingWriters = ConcurrentHashMap.newKeySet();
+  static Thread flusher = null;
+
+  static synchronized void startFlusher() {
+    if (flusher != null)
+      return;
+    flusher = new Thread(() -> {
+      while (true) {
+        try {
+          Thread.sleep(FLUSH_CHECK_MILLIS);
+        } catch (InterruptedException ie) {
+          return;
+        }
+        long now = System.currentTimeMillis();
+        for (BatchWriter w : pendingWriters)
+          w.flushIfDue(now);
+      }
+    }, "BatchWriter-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
   }
 
-  private int readIntColumn(String tableName, String row, String column, int defaultValue) throws IOException {
-    byte[] data = get(tableName, row, column);
-    if (data == null) {
-      return defaultValue;
+  public class BatchWriter implements Closeable {
+    final String tableName;
+    final int maxBytes;
+    final long maxMillis;
+    final ByteArrayOutputStream[] buffers;
+    final HashRing batchRing;                 // buffers are per worker of the ring at creation;
+    final Vector<WorkerEntry> batchWorkers;   // if it changes, workers relay rows that moved
+    long oldestPending;
+    IOException flushFailure;                 // from the flusher thread, not yet thrown
+
+    BatchWriter(String tableNameArg, int maxBytesArg, long maxMillisArg) throws IOException {
+      if (!haveWorkers)
+        downloadWorkers();
+      tableName = tableNameArg;
+      maxBytes = maxBytesArg;
+      maxMillis = maxMillisArg;
+      synchronized (KVSClient.this) {
+        batchRing = ring;
+        batchWorkers = workers;
+      }
+      buffers = new ByteArrayOutputStream[batchWorkers.size()];
+      for (int i=0; i<buffers.length; i++)
+        buffers[i] = new ByteArrayOutputStream();
+      oldestPending = 0;
     }
-    try {
-      return Integer.parseInt(new String(data, StandardCharsets.UTF_8));
-    } catch (NumberFormatException nfe) {
-      return defaultValue;
+
+    public void put(String row, String column, byte value[]) throws IOException {
+      Row r = new Row(row);
+      r.put(column, value);
+      putRow(r);
     }
-  }
 
-  private String readStringColumn(String tableName, String row, String column) throws IOException {
-    byte[] data = get(tableName, row, column);
-    return data == null ? null : new String(data, StandardCharsets.UTF_8);
-  }
+    public void put(String row, String column, String value) throws IOException {
+      put(row, column, value.getBytes());
+    }
+
+    public synchronized void putRow(Row row) throws IOException {
+      if (row.key().equals(""))
+        throw new RuntimeException("Row key can't be empty!");
+      throwFlushFailure();
+
+      int idx = batchRing.ownerIndex(row.key());
+      noteWrite(tableName, row.key());
+      ByteArrayOutputStream buf = buffers[idx];
+      buf.write(row.toByteArray());
+      buf.write('\n');
+      long now = System.currentTimeMillis();
+      if (oldestPending == 0) {
+        oldestPending = now;
+        if (maxMillis != Long.MAX_VALUE) {
+          pendingWriters.add(this);
+          startFlusher();
+        }
+      }
 
-  private int countItems(String chunkValue, char sep) {
-    if (chunkValue == null || chunkValue.isEmpty()) {
-      return 0;
+      if (buf.size() >= maxBytes)
+        sendBuffer(idx);
+      if ((oldestPending != 0) && (now - oldestPending >= maxMillis))
+        flush();
     }
-    int count = 1;
-    for (int i = 0; i < chunkValue.length(); i++) {
-      if (chunkValue.charAt(i) == sep) {
-        count++;
+
+    void sendBuffer(int idx) throws IOException {
+      ByteArrayOutputStream buf = buffers[idx];
+      if (buf.size() == 0)
+        return;
+
+      String target = "http://"+batchWorkers.elementAt(idx).address+"/batch/"+tableName;
+      HTTP.Response res = send("PUT", target, buf.toByteArray());
+      if (res == null)
+        throw new RuntimeException("Batch PUT request returned null for target: " + target);
+      String result = new String(res.body());
+      if (!result.equals("OK"))
+        throw new RuntimeException("Batch PUT returned something other than OK: "+result+" ("+target+")");
+      buf.reset();
+
+      boolean anyPending = false;
+      for (ByteArrayOutputStream b : buffers)
+        anyPending |= (b.size() > 0);
+      if (!anyPending) {
+        oldestPending = 0;
+        pendingWriters.remove(this);
       }
     }
-    return count;
-  }
 
-  private boolean chunkContains(String chunkValue, String candidate, char sep) {
-    if (chunkValue == null || chunkValue.isEmpty()) {
-      return false;
+    public synchronized void flush() throws IOException {
+      flushFailure = null;
+      for (int i=0; i<buffers.length; i++)
+        sendBuffer(i);
+      oldestPending = 0;
+      pendingWriters.remove(this);
+    }
+
+    // Called by the flusher thread
+    synchronized void flushIfDue(long now) {
+      if ((oldestPending == 0) || (now - oldestPending < maxMillis))
+        return;
+      try {
+        for (int i=0; i<buffers.length; i++)
+          sendBuffer(i);
+      } catch (Exception e) {
+        // The rows stay buffered until the caller's next flush()
+        flushFailure = (e instanceof IOException) ? (IOException)e : new IOException(e);
+        pendingWriters.remove(this);
+        logger.warn("Background flush of batch for "+tableName+" failed: "+e);
+      }
     }
-    String[] parts = chunkValue.split(String.valueOf(sep));
-    for (String part : parts) {
-      if (part.equals(candidate)) {
-        return true;
+
+    void throwFlushFailure() throws IOException {
+      IOException e = flushFailure;
+      if (e != null) {
+        flushFailure = null;
+        throw e;
       }
     }
-    return false;
+
+    public void close() throws IOException {
+      flush();
+    }
+  }
+
+  public BatchWriter batchWriter(String tableName) throws IOException {
+    return new BatchWriter(tableName, DEFAULT_BATCH_BYTES, DEFAULT_BATCH_MILLIS);
   }
 
-  private String chunkColumnName(String prefix, int index) {
-    String actualPrefix = (prefix == null || prefix.isEmpty()) ? "chunk" : prefix;
-    return actualPrefix + String.format("%04d", Math.max(index, 0));
+  public BatchWriter batchWriter(String tableName, int maxBytes, long maxMillis) throws IOException {
+    return new BatchWriter(tableName, maxBytes, maxMillis);
   }
 
-  // Manage chunked posting lists with per-word locks.
+  // Write a set of rows with one request per worker; columns are merged into existing rows.
+
+  public void putBatch(String tableName, Collection<Row> rows) throws IOException {
+    BatchWriter writer = new BatchWriter(tableName, Integer.MAX_VALUE, Long.MAX_VALUE);
+    for (Row row : rows)
+      writer.putRow(row);
+    writer.close();
+  }
+
+  private static final int DEFAULT_CHUNK_SIZE = 10;
+
+  // Manage chunked posting lists; the owning worker appends under its row lock.
   public void appendCapped(String tableName, String row, String columnPrefix, String value,
                            int maxItems, char sep) throws IOException {
     appendCapped(tableName, row, columnPrefix, value, maxItems, sep, DEFAULT_CHUNK_SIZE, 0);
@@ -368,72 +704,62 @@ public class KVSClient implements KVS {
       return;
     }
 
-    ReentrantLock lock = lockFor(tableName, row);
-    lock.lock();
-    try {
-      String fullFlag = readStringColumn(tableName, row, META_FULL);
-      if ("1".equals(fullFlag)) {
-        return;
-      }
-
-      int currentCount = readIntColumn(tableName, row, META_COUNT, 0);
-      if (currentCount >= effectiveCap) {
-        put(tableName, row, META_FULL, "1");
-        return;
-      }
-
-      int nextChunk = readIntColumn(tableName, row, META_NEXT_CHUNK, 0);
-      if (nextChunk < 0) {
-        nextChunk = 0;
-      }
-
-      while (true) {
-        if (currentCount >= effectiveCap) {
-          put(tableName, row, META_FULL, "1");
-          return;
-        }
+    if (!haveWorkers)
+      downloadWorkers();
 
-        String chunkColumn = chunkColumnName(columnPrefix, nextChunk);
-        String chunkValue = readStringColumn(tableName, row, chunkColumn);
+    String params = "?cap="+effectiveCap+"&chunkSize="+chunkSize+"&sep="+java.net.URLEncoder.encode(String.valueOf(sep), "UTF-8");
+    if (columnPrefix != null)
+      params += "&prefix="+java.net.URLEncoder.encode(columnPrefix, "UTF-8");
+    HTTP.Response res = send("POST", "http://"+workers.elementAt(workerIndexForKey(row)).address+"/append/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8")+params, value.getBytes(StandardCharsets.UTF_8));
+    if (res == null || res.statusCode() != 200)
+      throw new IOException("Append failed for table: " + tableName + ", row: " + row + (res == null ? "" : " ("+new String(res.body())+")"));
+    noteWrite(tableName, row);
+  }
 
-        if (chunkContains(chunkValue, value, sep)) {
-          return; // already present
-        }
+  // Atomically adds delta to a decimal counter column on the owning worker; returns the new value.
+  public long increment(String tableName, String row, String column, long delta) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
 
-        if (chunkValue == null || chunkValue.isEmpty()) {
-          put(tableName, row, chunkColumn, value);
-          currentCount++;
-          put(tableName, row, META_COUNT, Integer.toString(currentCount));
-          put(tableName, row, META_NEXT_CHUNK, Integer.toString(nextChunk));
-          if (currentCount >= effectiveCap) {
-            put(tableName, row, META_FULL, "1");
-          }
-          return;
-        }
+    HTTP.Response res = send("POST", "http://"+workers.elementAt(workerIndexForKey(row)).address+"/incr/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8")+"/"+java.net.URLEncoder.encode(column, "UTF-8")+"?delta="+delta, null);
+    if (res == null || res.statusCode() != 200)
+      throw new IOException("Increment failed for table: " + tableName + ", row: " + row + ", column: " + column);
+    noteWrite(tableName, row);
+    return Long.parseLong(new String(res.body(), StandardCharsets.UTF_8).trim());
+  }
 
-        int chunkCount = countItems(chunkValue, sep);
-        if (chunkCount >= chunkSize) {
-          nextChunk++;
-          put(tableName, row, META_NEXT_CHUNK, Integer.toString(nextChunk));
-          continue;
-        }
+  // Writes updates only if each expected column currently has the given value (null = column
+  // must be absent); the check and the write happen atomically on the owning worker.
+  public boolean compareAndSet(String tableName, String row, Map<String,String> expected, Map<String,String> updates) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
 
-        String updated = chunkValue + sep + value;
-        put(tableName, row, chunkColumn, updated);
-        currentCount++;
-        if (chunkCount + 1 >= chunkSize) {
-          nextChunk++;
-        }
-        put(tableName, row, META_COUNT, Integer.toString(currentCount));
-        put(tableName, row, META_NEXT_CHUNK, Integer.toString(nextChunk));
-        if (currentCount >= effectiveCap) {
-          put(tableName, row, META_FULL, "1");
-        }
-        return;
-      }
-    } finally {
-      lock.unlock();
+    Row expectedRow = new Row(row);
+    List<String> absent = new ArrayList<String>();
+    for (Map.Entry<String,String> e : expected.entrySet()) {
+      if (e.getValue() == null)
+        absent.add(e.getKey());
+      else
+        expectedRow.put(e.getKey(), e.getValue());
     }
+    Row updateRow = new Row(row);
+    for (Map.Entry<String,String> e : updates.entrySet())
+      updateRow.put(e.getKey(), e.getValue());
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write(expectedRow.toByteArray());
+    body.write('\n');
+    body.write(updateRow.toByteArray());
+    body.write('\n');
+
+    String params = absent.isEmpty() ? "" : "?absent="+java.net.URLEncoder.encode(String.join(",", absent), "UTF-8");
+    HTTP.Response res = send("POST", "http://"+workers.elementAt(workerIndexForKey(row)).address+"/cas/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8")+params, body.toByteArray());
+    if (res == null || res.statusCode() != 200)
+      throw new IOException("Compare-and-set failed for table: " + tableName + ", row: " + row);
+    boolean applied = new String(res.body()).equals("OK");
+    if (applied)
+      noteWrite(tableName, row);
+    return applied;
   }
 
   public void putRow(String tableName, Row row) throws FileNotFoundException, IOException {
@@ -442,22 +768,31 @@ public class KVSClient implements KVS {
     if (row.key().equals(""))
       throw new RuntimeException("Row key can't be empty!");
 
-    HTTP.Response res = HTTP.doRequest("PUT", "http://"+workers.elementAt(workerIndexForKey(row.key())).address+"/data/"+tableName, row.toByteArray());
+    HTTP.Response res = send("PUT", "http://"+workers.elementAt(workerIndexForKey(row.key())).address+"/data/"+tableName, row.toByteArray());
     if (res == null)
       throw new RuntimeException("PUT request returned null for table: " + tableName + ", row: " + row.key());
     byte[] response = res.body();
     String result = new String(response);
     if (!result.equals("OK")) 
       throw new RuntimeException("PUT returned something other than OK: "+result);
+    noteWrite(tableName, row.key());
   }
 
   public Row getRow(String tableName, String row) throws IOException {
+    return getRow(tableName, row, null);
+  }
+
+  // Fetches only the given columns of the row (all columns if null)
+  public Row getRow(String tableName, String row, Collection<String> columns) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
     if (row.equals(""))
       throw new RuntimeException("Row key can't be empty!");
 
-    HTTP.Response resp = HTTP.doRequest("GET", "http://"+workers.elementAt(workerIndexForKey(row)).address+"/data/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8"), null);
+    String params = "";
+    if (columns != null)
+      params = "?columns="+java.net.URLEncoder.encode(String.join(",", columns), "UTF-8");
+    HTTP.Response resp = readFromOwner(tableName, row, "/data/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8")+params);
     if (resp == null)
       throw new IOException("GET request returned null for table: " + tableName + ", row: " + row);
     if (resp.statusCode() == 404)
@@ -479,45 +814,138 @@ public class KVSClient implements KVS {
     if (row.equals(""))
       throw new RuntimeException("Row key can't be empty!");
 
-    int workerIdx = workerIndexForKey(row);
-    String encodedRow = java.net.URLEncoder.encode(row, "UTF-8");
-    String encodedColumn = java.net.URLEncoder.encode(column, "UTF-8");
-
-    // Try the primary worker first
-    String workerAddress = workers.elementAt(workerIdx).address;
-    String url = "http://"+workerAddress+"/data/"+tableName+"/"+encodedRow+"/"+encodedColumn;
-    
-    HTTP.Response res = HTTP.doRequest("GET", url, null);
-    if (res != null && res.statusCode() == 200) {
+    // The ring says exactly where the row lives; while rows are moving, the worker relays
+    // the request to whichever worker has the current copy
+    HTTP.Response res = readFromOwner(tableName, row, "/data/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8")+"/"+java.net.URLEncoder.encode(column, "UTF-8"));
+    if (res != null && res.statusCode() == 200)
       return res.body();
+    return null;
+  }
+
+
+
+
+  // Fetch many rows with one POST /mget request per worker, sent in parallel. Rows that do not
+  // exist are missing from the result; columns == null fetches whole rows.
+  public Map<String,Row> multiGet(String tableName, Collection<String> rows, Collection<String> columns) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    HashMap<Integer,StringBuilder> keysByWorker = new HashMap<Integer,StringBuilder>();
+    for (String row : rows) {
+      if ((row == null) || row.equals(""))
+        continue;
+      keysByWorker.computeIfAbsent(workerIndexForKey(row), k -> new StringBuilder()).append(row).append('\n');
     }
 
-    // Fall back to other workers if primary misses (e.g., rebalancing)
-    for (int i = 0; i < workers.size(); i++) {
-      if (i == workerIdx) continue; // Skip the one we already tried
-      workerAddress = workers.elementAt(i).address;
-      url = "http://"+workerAddress+"/data/"+tableName+"/"+encodedRow+"/"+encodedColumn;
-      try {
-        res = HTTP.doRequest("GET", url, null);
-        if (res != null && res.statusCode() == 200) {
-          return res.body();
+    String params = "";
+    if (columns != null)
+      params = "?columns="+java.net.URLEncoder.encode(String.join(",", columns), "UTF-8");
+
+    Map<String,Row> result = new ConcurrentHashMap<String,Row>();
+    Vector<Exception> errors = new Vector<Exception>();
+    Vector<Thread> threads = new Vector<Thread>();
+    for (Map.Entry<Integer,StringBuilder> e : keysByWorker.entrySet()) {
+      String target = "http://"+workers.elementAt(e.getKey()).address+"/mget/"+tableName+params;
+      byte[] body = e.getValue().toString().getBytes(StandardCharsets.UTF_8);
+      Thread t = new Thread(() -> {
+        try {
+          HTTP.Response res = send("POST", target, body);
+          if ((res == null) || (res.statusCode() != 200))
+            throw new IOException("Multi-get failed: "+(res == null ? "null response" : "status="+res.statusCode())+" ("+target+")");
+          ByteArrayInputStream in = new ByteArrayInputStream(res.body());
+          Row r;
+          while ((r = Row.readFrom(in)) != null)
+            result.put(r.key(), r);
+        } catch (Exception ex) {
+          errors.add(ex);
         }
-      } catch (Exception e) {
-        // Continue to next worker
+      });
+      threads.add(t);
+      t.start();
+    }
+
+    for (Thread t : threads) {
+      try {
+        t.join();
+      } catch (InterruptedException ie) {
+        throw new IOException("Interrupted while waiting for multi-get");
       }
     }
-    
-    return null;
+    if (!errors.isEmpty())
+      throw (errors.get(0) instanceof IOException) ? (IOException)errors.get(0) : new IOException(errors.get(0));
+
+    return result;
+  }
+
+  public List<Row> lookupByIndex(String tableName, String index, String value) throws IOException {
+    return lookupByIndex(tableName, index, value, null);
   }
 
+  // Rows whose column 'index' holds the value, found with the secondary index the workers keep
+  // for tables that declare it (<table>.indexes in kvs.properties). Each worker holds the index
+  // of its own rows, so all workers are asked at once, each for the matching rows it owns;
+  // columns == null fetches whole rows.
+  public List<Row> lookupByIndex(String tableName, String index, String value, Collection<String> columns) throws IOException {
+    HashRing r;
+    Vector<WorkerEntry> w;
+    synchronized (this) {
+      if (!haveWorkers)
+        downloadWorkers();
+      r = ring;
+      w = workers;
+    }
+
+    String params = "?value="+java.net.URLEncoder.encode(value, "UTF-8")+"&ring="+java.net.URLEncoder.encode(r.spec(), "UTF-8");
+    if (columns != null)
+      params = params+"&columns="+java.net.URLEncoder.encode(String.join(",", columns), "UTF-8");
+
+    List<Row> result = Collections.synchronizedList(new ArrayList<Row>());
+    Vector<Exception> errors = new Vector<Exception>();
+    Vector<Thread> threads = new Vector<Thread>();
+    for (WorkerEntry worker : w) {
+      String target = "http://"+worker.address+"/index/"+java.net.URLEncoder.encode(tableName, "UTF-8")+"/"+java.net.URLEncoder.encode(index, "UTF-8")+params+"&owner="+java.net.URLEncoder.encode(worker.id, "UTF-8");
+      Thread t = new Thread(() -> {
+        try {
+          HTTP.Response res = send("GET", target, null);
+          if ((res != null) && (res.statusCode() == 404))
+            return;
+          if ((res == null) || (res.statusCode() != 200))
+            throw new IOException("Index lookup failed: "+(res == null ? "null response" : "status="+res.statusCode()+", "+new String(res.body(), StandardCharsets.UTF_8))+" ("+target+")");
+          ByteArrayInputStream in = new ByteArrayInputStream(res.body());
+          Row row;
+          while ((row = Row.readFrom(in)) != null)
+            result.add(row);
+        } catch (Exception ex) {
+          errors.add(ex);
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
 
+    for (Thread t : threads) {
+      try {
+        t.join();
+      } catch (InterruptedException ie) {
+        throw new IOException("Interrupted while waiting for index lookup");
+      }
+    }
+    if (!errors.isEmpty())
+      throw (errors.get(0) instanceof IOException) ? (IOException)errors.get(0) : new IOException(errors.get(0));
 
+    return result;
+  }
 
   public boolean existsRow(String tableName, String row) throws FileNotFoundException, IOException {
     if (!haveWorkers)
       downloadWorkers();
 
-    HTTP.Response r = HTTP.doRequest("GET", "http://"+workers.elementAt(workerIndexForKey(row)).address+"/data/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8"), null);
+    BloomFilter filter = bloomFilter(tableName, workerIndexForKey(row));
+    if (filter != null && !filter.mightContain(row))
+      return false;
+
+    HTTP.Response r = readFromOwner(tableName, row, "/data/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8"));
     if (r == null)
       return false;
     return r.statusCode() == 200;
@@ -529,7 +957,7 @@ public class KVSClient implements KVS {
 
     int total = 0;
     for (WorkerEntry w : workers) {
-      HTTP.Response r = HTTP.doRequest("GET", "http://"+w.address+"/count/"+tableName, null);
+      HTTP.Response r = send("GET", "http://"+w.address+"/count/"+tableName, null);
       if ((r != null) && (r.statusCode() == 200)) {
         String result = new String(r.body());
         total += Integer.valueOf(result).intValue();
@@ -543,10 +971,121 @@ public class KVSClient implements KVS {
   }
 
   public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive) throws FileNotFoundException, IOException {
+    return scan(tableName, startRow, endRowExclusive, (Collection<String>)null);
+  }
+
+  // Workers send only the given columns of each row (all columns if null)
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive, Collection<String> columns) throws FileNotFoundException, IOException {
+    return scan(tableName, startRow, endRowExclusive, columns, null);
+  }
+
+  // Workers send only the rows that match the filter, so a selective scan ships little
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive, ScanFilter filter) throws FileNotFoundException, IOException {
+    return scan(tableName, startRow, endRowExclusive, null, filter);
+  }
+
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive, Collection<String> columns, ScanFilter filter) throws FileNotFoundException, IOException {
+    // Always plan a scan on the latest ring: after a switch, the old owners drop the rows
+    // they moved away, so a scan on a stale ring could miss them
+    downloadWorkers();
+
+    return new KVSIterator(tableName, startRow, endRowExclusive, columns, null, null, null, filter);
+  }
+
+  // Rows whose ring token is in [fromToken, toTokenExclusive), see HashRing.tokenString;
+  // this is how Flame splits a table into evenly sized partitions
+  public Iterator<Row> scanTokens(String tableName, String fromToken, String toTokenExclusive) throws FileNotFoundException, IOException {
+    return scanTokens(tableName, fromToken, toTokenExclusive, null);
+  }
+
+  public Iterator<Row> scanTokens(String tableName, String fromToken, String toTokenExclusive, Collection<String> columns) throws FileNotFoundException, IOException {
+    return scanTokens(tableName, fromToken, toTokenExclusive, columns, (ScanFilter)null);
+  }
+
+  public Iterator<Row> scanTokens(String tableName, String fromToken, String toTokenExclusive, Collection<String> columns, ScanFilter filter) throws FileNotFoundException, IOException {
+    // Always plan a scan on the latest ring: after a switch, the old owners drop the rows
+    // they moved away, so a scan on a stale ring could miss them
+    downloadWorkers();
+
+    return new KVSIterator(tableName, null, null, columns, fromToken, toTokenExclusive, null, filter);
+  }
+
+  // How long workers hold client writes while a snapshot is opened (see kvs.WriteHold)
+  static final int SNAPSHOT_HOLD_MS = 5000;
+
+  // Open a snapshot of the table on every worker and return its id; scan(tableName, id) then
+  // sees the rows as they were at this point, however long it runs and whatever is written
+  // meanwhile. All workers take their part at one cut: the first round has every worker hold
+  // client writes and open its part, the second lets writes through again. The parts are
+  // only consistent if the first round ends before the holds do, and if every worker read
+  // its part on the same ring; otherwise the snapshot is released and opened again. Snapshots
+  // that no scan has used for a while expire on the workers (snapshot.idleSeconds);
+  // releaseSnapshot frees them earlier.
+  public String snapshot(String tableName) throws IOException {
+    String table = java.net.URLEncoder.encode(tableName, "UTF-8");
+    for (int attempt=1; ; attempt++) {
+      downloadWorkers();
+      Vector<WorkerEntry> cut = workers;
+      String id = Long.toHexString(System.currentTimeMillis())+"-"+Long.toHexString(new Random().nextLong() >>> 1);
+      String ringSpec = null;
+      boolean oneCut = true;
+      long start = System.currentTimeMillis();
+      try {
+        for (WorkerEntry w : cut) {
+          HTTP.Response res = send("POST", "http://"+w.address+"/snapshot/"+table+"?id="+id+"&hold="+SNAPSHOT_HOLD_MS, null);
+          if (res == null || res.statusCode() != 200) {
+            releaseSnapshot(tableName, id);
+            throw new IOException("Could not open snapshot of "+tableName+" on "+w.address);
+          }
+          String spec = new String(res.body(), StandardCharsets.UTF_8);
+          if (ringSpec == null)
+            ringSpec = spec;
+          else if (!ringSpec.equals(spec))
+            oneCut = false;
+        }
+        if (System.currentTimeMillis() - start >= SNAPSHOT_HOLD_MS)
+          oneCut = false;
+      } finally {
+        for (WorkerEntry w : cut) {
+          try {
+            send("POST", "http://"+w.address+"/snapshot/"+table+"/"+java.net.URLEncoder.encode(id, "UTF-8")+"/resume", null);
+          } catch (Exception e) {}
+        }
+      }
+      if (oneCut)
+        return id;
+      releaseSnapshot(tableName, id);
+      if (attempt >= 3)
+        throw new IOException("Could not open snapshot of "+tableName+" at one cut; the ring kept changing or the workers were too slow");
+      try {
+        Thread.sleep(1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while opening snapshot of "+tableName);
+      }
+    }
+  }
+
+  public void releaseSnapshot(String tableName, String snapshotId) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
+    for (WorkerEntry w : workers) {
+      try {
+        send("DELETE", "http://"+w.address+"/snapshot/"+java.net.URLEncoder.encode(tableName, "UTF-8")+"/"+java.net.URLEncoder.encode(snapshotId, "UTF-8"), null);
+      } catch (Exception e) {}
+    }
+  }
+
+  // Rows of a snapshot opened with snapshot(); throws IllegalStateException while iterating
+  // if the snapshot has expired or been released on a worker
+  public Iterator<Row> scan(String tableName, String snapshotId) throws FileNotFoundException, IOException {
+    return scanTokens(tableName, null, null, null, snapshotId);
+  }
+
+  public Iterator<Row> scanTokens(String tableName, String fromToken, String toTokenExclusive, Collection<String> columns, String snapshotId) throws FileNotFoundException, IOException {
+    downloadWorkers();
 
-    return new KVSIterator(tableName, startRow, endRowExclusive);
+    return new KVSIterator(tableName, null, null, columns, fromToken, toTokenExclusive, snapshotId, null);
   }
 
   public static void main(String args[]) throws Exception {
@@ -0,0 +1,146 @@
+package kvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Which form of row keys and column names a table on this worker is stored in.
+ *
+ * Clients URL-encode keys and column names in request paths, and workers decode them (see
+ * Worker.pathParam), so a row has the same key whether it was written through /data, /append,
+ * /incr or /cas or with a raw key in the body of /batch or PUT /data/<table>, and the ring
+ * places it by that key. Workers used to store path parameters as sent, so tables written
+ * before then hold the path routes' rows and columns under the encoded form.
+ *
+ * A marker file per table (keys-decoded/<table> in the storage directory) records that the
+ * table is stored in the decoded form. Tables created since have it from the start. A
+ * persistent or logged table found without it when the worker starts was written by the old
+ * routes and is migrated once, before the worker serves requests, as its "keyMigration"
+ * setting says:
+ *  - "decode" (the default): every key and column name that is exactly URLEncoder's encoding
+ *    of another string is replaced by that string, which is the name the path routes used
+ *    for it. The old routes disagreed on such names: a path request for "a b" reached the row
+ *    stored as "a+b", while /batch and /mget read "a+b" as it is. The migration keeps what the
+ *    path routes saw. If the new key or column is already taken, the existing one wins.
+ *  - "none": the table was only written with raw keys in request bodies; it is just marked.
+ * Rows whose keys change may no longer sit on their owner; the Rebalancer moves them.
+ */
+final class KeyFormat {
+
+    private static final String MARKER_DIR = "keys-decoded";
+
+    private KeyFormat() {
+    }
+
+    private static File marker(String storageDir, String tableName) {
+        return new File(new File(storageDir, MARKER_DIR), tools.KeyEncoder.encode(tableName));
+    }
+
+    static boolean isDecoded(String storageDir, String tableName) {
+        return marker(storageDir, tableName).exists();
+    }
+
+    /** Record that a table, new or migrated, stores decoded keys. */
+    static void markDecoded(String storageDir, String tableName) throws IOException {
+        File f = marker(storageDir, tableName);
+        f.getParentFile().mkdirs();
+        if (!f.exists() && !f.createNewFile()) {
+            throw new IOException("Could not create " + f);
+        }
+    }
+
+    static void rename(String storageDir, String oldTableName, String newTableName) {
+        File from = marker(storageDir, oldTableName);
+        if (from.exists() && !from.renameTo(marker(storageDir, newTableName))) {
+            from.delete();
+        }
+    }
+
+    static void forget(String storageDir, String tableName) {
+        marker(storageDir, tableName).delete();
+    }
+
+    /** The name a path route used for a stored name, or null if it is stored as it is. */
+    static String decoded(String stored) {
+        try {
+            String name = URLDecoder.decode(stored, "UTF-8");
+            return (!name.equals(stored) && URLEncoder.encode(name, "UTF-8").equals(stored)) ? name : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 encoding not supported?!?");
+        }
+    }
+
+    private static boolean needsMigration(Row row) {
+        if (decoded(row.key()) != null) {
+            return true;
+        }
+        for (String column : row.columns()) {
+            if (decoded(column) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Migrate a table without the marker, as its keyMigration setting says, and mark it.
+     * Called before the worker serves requests, so nothing else touches the store. Returns the
+     * new keys of the rows whose keys changed.
+     */
+    static List<String> migrate(String storageDir, String tableName, TableStore store) throws IOException {
+        List<String> renamed = new ArrayList<>();
+        String mode = WorkerConfig.forTable(tableName, "keyMigration", "decode");
+        if (mode.equals("decode")) {
+            List<String> stale = new ArrayList<>();
+            Iterator<Row> rows = store.scan(null, null);
+            while (rows.hasNext()) {
+                Row row = rows.next();
+                if (needsMigration(row)) {
+                    stale.add(row.key());
+                }
+            }
+            for (String rowKey : stale) {
+                Row old = store.get(rowKey);
+                if (old == null) {
+                    continue;
+                }
+                String newKey = decoded(rowKey);
+                Row row = new Row(newKey != null ? newKey : rowKey);
+                // Renamed columns first, so that a column already stored under the new name wins
+                for (String column : old.columns()) {
+                    if (decoded(column) != null) {
+                        row.put(decoded(column), old.getBytes(column));
+                    }
+                }
+                for (String column : old.columns()) {
+                    if (decoded(column) == null) {
+                        row.put(column, old.getBytes(column));
+                    }
+                }
+                if (newKey != null) {
+                    Row existing = store.get(newKey);
+                    if (existing != null) {
+                        for (String column : existing.columns()) {
+                            row.put(column, existing.getBytes(column));
+                        }
+                    }
+                    store.delete(rowKey);
+                    renamed.add(newKey);
+                }
+                store.put(row);
+            }
+        } else if (!mode.equals("none")) {
+            throw new IOException("Unknown keyMigration '" + mode + "' for " + tableName);
+        }
+        markDecoded(storageDir, tableName);
+        return renamed;
+    }
+}
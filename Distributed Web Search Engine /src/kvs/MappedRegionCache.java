@@ -0,0 +1,109 @@
+package kvs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * LRU of read-only memory-mapped file regions, shared by all persistent tables on a worker.
+ *
+ * Point reads decode rows straight out of the mapping, so hot rows are served from the page
+ * cache without a file open or read() per lookup. Only files that are never modified in
+ * place may be mapped: sealed segments, and row files, which are replaced by rename. A
+ * mapping dropped from the LRU is unmapped once the GC collects it, and readers that still
+ * hold it keep seeing the old contents.
+ *
+ * The cache is bounded by mmap.maxBytes of mapped address space and mmap.maxRegions
+ * mappings, since each mapping also costs a kernel memory-map entry.
+ */
+final class MappedRegionCache {
+
+    interface Mapper {
+        MappedByteBuffer map() throws IOException;
+    }
+
+    private static final class Key {
+        final Object owner;
+        final Object id;
+
+        Key(Object owner, Object id) {
+            this.owner = owner;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).owner == owner && ((Key) o).id.equals(id);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(owner) * 31 + id.hashCode();
+        }
+    }
+
+    static final MappedRegionCache SHARED = new MappedRegionCache(
+            WorkerConfig.getLong("mmap.maxBytes", 1L << 30), (int) WorkerConfig.getLong("mmap.maxRegions", 8192));
+
+    private final long maxBytes;
+    private final int maxRegions;
+    private final LinkedHashMap<Key, MappedByteBuffer> regions = new LinkedHashMap<>(16, 0.75f, true);
+    private long mappedBytes = 0;
+
+    MappedRegionCache(long maxBytes, int maxRegions) {
+        this.maxBytes = maxBytes;
+        this.maxRegions = maxRegions;
+    }
+
+    /**
+     * The mapping for (owner, id), created with the mapper on a miss. Returns an independent
+     * read-only view positioned at 0. Mapping happens under the cache lock, so a concurrent
+     * invalidate() cannot be overtaken by a stale mapping.
+     */
+    synchronized ByteBuffer get(Object owner, Object id, Mapper mapper) throws IOException {
+        Key key = new Key(owner, Objects.requireNonNull(id));
+        MappedByteBuffer region = regions.get(key);
+        if (region == null) {
+            region = mapper.map();
+            regions.put(key, region);
+            mappedBytes += region.capacity();
+            evict();
+        }
+        return region.asReadOnlyBuffer();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Key, MappedByteBuffer>> it = regions.entrySet().iterator();
+        while ((mappedBytes > maxBytes || regions.size() > maxRegions) && regions.size() > 1 && it.hasNext()) {
+            mappedBytes -= it.next().getValue().capacity();
+            it.remove();
+        }
+    }
+
+    synchronized void invalidate(Object owner, Object id) {
+        MappedByteBuffer region = regions.remove(new Key(owner, id));
+        if (region != null) {
+            mappedBytes -= region.capacity();
+        }
+    }
+
+    /** Drop every mapping of a store that is being closed. */
+    synchronized void invalidateAll(Object owner) {
+        Iterator<Map.Entry<Key, MappedByteBuffer>> it = regions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, MappedByteBuffer> e = it.next();
+            if (e.getKey().owner == owner) {
+                mappedBytes -= e.getValue().capacity();
+                it.remove();
+            }
+        }
+    }
+
+    synchronized long mappedBytes() {
+        return mappedBytes;
+    }
+}
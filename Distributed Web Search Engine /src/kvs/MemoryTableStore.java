@@ -0,0 +1,86 @@
+package kvs;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** In-memory table: row key -> live Row object. */
+public class MemoryTableStore implements TableStore {
+
+    private final ConcurrentHashMap<String, Row> rows = new ConcurrentHashMap<>();
+
+    @Override
+    public Row get(String key) {
+        return rows.get(key);
+    }
+
+    @Override
+    public void put(Row row) {
+        rows.put(row.key(), row);
+    }
+
+    @Override
+    public boolean delete(String key) {
+        return rows.remove(key) != null;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return rows.containsKey(key);
+    }
+
+    @Override
+    public Iterator<Row> scan(String startRow, String endRowExclusive) {
+        Iterator<Row> all = rows.values().iterator();
+        return new Iterator<Row>() {
+            Row next = advance();
+
+            private Row advance() {
+                while (all.hasNext()) {
+                    Row row = all.next();
+                    if (startRow != null && row.key().compareTo(startRow) < 0) {
+                        continue;
+                    }
+                    if (endRowExclusive != null && row.key().compareTo(endRowExclusive) >= 0) {
+                        continue;
+                    }
+                    return row;
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Row next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Row r = next;
+                next = advance();
+                return r;
+            }
+        };
+    }
+
+    @Override
+    public int count() {
+        return rows.size();
+    }
+
+    @Override
+    public Iterator<String> keys() {
+        return rows.keySet().iterator();
+    }
+
+    @Override
+    public String describe() {
+        return "memory";
+    }
+
+    @Override
+    public void close() {
+        rows.clear();
+    }
+}
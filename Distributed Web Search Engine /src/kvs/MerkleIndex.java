@@ -0,0 +1,328 @@
+package kvs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import tools.HashRing;
+
+/**
+ * Content hashes of the rows of one table on this worker, arranged so that two workers can
+ * find the rows on which they differ by exchanging a handful of hashes (see
+ * ReplicationManager's anti-entropy).
+ *
+ * Every row has a 64-bit hash of its key, columns and values, kept in memory by key token.
+ * The leaves of the tree are the ring's arcs (see HashRing.arcOf), each split into SPLIT
+ * buckets by the low bits of the token; a leaf's hash is the XOR of the hashes of its rows,
+ * so a write or delete updates one leaf in constant time. Two workers compare the tree over
+ * the leaves of the arcs they both hold, in arc order, whose inner nodes are computed from
+ * the leaves when asked for. Leaves are regrouped when the ring changes.
+ *
+ * Deleted rows leave a tombstone (key and time of the delete) that is kept for
+ * replication.tombstoneSeconds (default: an hour) and listed with the rows, so that a
+ * replica that missed a delete learns of it from the owner instead of handing the row
+ * back. Tombstones are kept in memory only: a worker that restarts forgets its deletes.
+ *
+ * Writers call update() with the row's lock held. The index is built once from the store;
+ * keys written while it is being built are not overwritten by the build, which may have
+ * read an older version of the row.
+ */
+final class MerkleIndex {
+
+    static final int SPLIT = 16;
+
+    /** Token -> row hash; 0 never occurs as a row hash and marks a free slot. */
+    private long[] tokens = new long[1024];
+    private long[] hashes = new long[1024];
+    private int size = 0;
+
+    private HashRing ring = null;
+    private long[] leaves = null;
+
+    /** Deleted row key -> time of the delete, oldest first. */
+    private final LinkedHashMap<String, Long> tombstones = new LinkedHashMap<>();
+    private final long tombstoneMillis = 1000L * WorkerConfig.getLong("replication.tombstoneSeconds", 3600);
+
+    private Set<Long> touched = new HashSet<>();
+    private final AtomicBoolean building = new AtomicBoolean();
+    final CountDownLatch ready = new CountDownLatch(1);
+
+    /** Record a written row, or a deleted one if row is null. */
+    synchronized void update(String rowKey, Row row) {
+        long token = HashRing.token(rowKey);
+        set(token, row == null ? 0 : rowHash(row));
+        if (touched != null) {
+            touched.add(token);
+        }
+        tombstones.remove(rowKey);
+        long now = System.currentTimeMillis();
+        if (row == null) {
+            tombstones.put(rowKey, now);
+        }
+        for (Iterator<Long> it = tombstones.values().iterator(); it.hasNext() && now - it.next() > tombstoneMillis; ) {
+            it.remove();
+        }
+    }
+
+    /** True for the one caller that is to build the index. */
+    boolean claimBuild() {
+        return building.compareAndSet(false, true);
+    }
+
+    /** Hash every row of the store; called once, by the thread that claimed the build. */
+    void build(TableStore store) throws IOException {
+        try {
+            Iterator<String> keys = store.keys();
+            while (keys.hasNext()) {
+                String rowKey = keys.next();
+                Row row = store.get(rowKey);
+                long token = HashRing.token(rowKey);
+                synchronized (this) {
+                    if (!touched.contains(token)) {
+                        set(token, row == null ? 0 : rowHash(row));
+                    }
+                }
+            }
+        } finally {
+            synchronized (this) {
+                touched = null;
+            }
+        }
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /** Arcs whose replicas include both workers, in ring order; the leaves two workers compare. */
+    static int[] sharedArcs(HashRing ring, String a, String b, int replicas) {
+        int ia = ring.workerIds().indexOf(a);
+        int ib = ring.workerIds().indexOf(b);
+        List<Integer> shared = new ArrayList<>();
+        for (int arc = 0; arc < ring.arcCount(); arc++) {
+            List<Integer> holders = ring.arcReplicas(arc, replicas);
+            if (holders.contains(ia) && holders.contains(ib)) {
+                shared.add(arc);
+            }
+        }
+        int[] result = new int[shared.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = shared.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Tree over the leaves of the given arcs as a 1-based heap: node n has children 2n and
+     * 2n+1, and the leaves are nodes P..2P-1, where P is arcs.length*SPLIT rounded up to a
+     * power of two. Missing leaves hash to 0.
+     */
+    synchronized long[] tree(HashRing r, int[] arcs) {
+        useRing(r);
+        int n = arcs.length * SPLIT;
+        int p = Integer.highestOneBit(Math.max(1, n));
+        if (p < n) {
+            p <<= 1;
+        }
+        long[] tree = new long[2 * p];
+        for (int i = 0; i < n; i++) {
+            tree[p + i] = leaves[arcs[i / SPLIT] * SPLIT + i % SPLIT];
+        }
+        for (int node = p - 1; node >= 1; node--) {
+            tree[node] = combine(tree[2 * node], tree[2 * node + 1]);
+        }
+        return tree;
+    }
+
+    /**
+     * Keys and row hashes of the rows in the given leaves (positions among the arcs' leaves),
+     * and the keys of the tombstones there with hash 0.
+     */
+    Map<String, Long> rowsIn(TableStore store, HashRing r, int[] arcs, Set<Integer> leafPositions) throws IOException {
+        int[] arcPosition = new int[r.arcCount()];
+        java.util.Arrays.fill(arcPosition, -1);
+        for (int i = 0; i < arcs.length; i++) {
+            arcPosition[arcs[i]] = i;
+        }
+        Map<String, Long> rows = new HashMap<>();
+        List<String> deleted;
+        synchronized (this) {
+            deleted = new ArrayList<>(tombstones.keySet());
+        }
+        for (String rowKey : deleted) {
+            if (inLeaves(rowKey, r, arcPosition, leafPositions)) {
+                rows.put(rowKey, 0L);
+            }
+        }
+        Iterator<String> keys = store.keys();
+        while (keys.hasNext()) {
+            String rowKey = keys.next();
+            if (!inLeaves(rowKey, r, arcPosition, leafPositions)) {
+                continue;
+            }
+            long hash;
+            synchronized (this) {
+                hash = get(HashRing.token(rowKey));
+            }
+            if (hash != 0) {
+                rows.put(rowKey, hash);
+            }
+        }
+        return rows;
+    }
+
+    private static boolean inLeaves(String rowKey, HashRing r, int[] arcPosition, Set<Integer> leafPositions) {
+        long token = HashRing.token(rowKey);
+        int position = arcPosition[r.arcOf(token)];
+        return position >= 0 && leafPositions.contains(position * SPLIT + (int) (token & (SPLIT - 1)));
+    }
+
+    // ---- leaves ----
+
+    private void useRing(HashRing r) {
+        if (ring != null && ring.spec().equals(r.spec())) {
+            return;
+        }
+        ring = r;
+        leaves = new long[r.arcCount() * SPLIT];
+        for (int i = 0; i < tokens.length; i++) {
+            if (hashes[i] != 0) {
+                leaves[leaf(tokens[i])] ^= hashes[i];
+            }
+        }
+    }
+
+    private int leaf(long token) {
+        return ring.arcOf(token) * SPLIT + (int) (token & (SPLIT - 1));
+    }
+
+    private void set(long token, long hash) {
+        long previous = (hash == 0) ? remove(token) : put(token, hash);
+        if (leaves != null) {
+            leaves[leaf(token)] ^= previous ^ hash;
+        }
+    }
+
+    static long rowHash(Row row) {
+        long h = 0xcbf29ce484222325L;
+        h = mixIn(h, row.key());
+        synchronized (row) {
+            for (String column : new TreeSet<>(row.columns())) {
+                h = mixIn(h, column);
+                byte[] value = row.getBytes(column);
+                for (byte b : value) {
+                    h ^= b & 0xff;
+                    h *= 0x100000001b3L;
+                }
+                h ^= 0x100;
+                h *= 0x100000001b3L;
+            }
+        }
+        h = fmix(h);
+        return (h == 0) ? 1 : h;
+    }
+
+    private static long mixIn(long h, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= 0x10000;
+        return h * 0x100000001b3L;
+    }
+
+    private static long combine(long left, long right) {
+        return fmix(left * 0x9e3779b97f4a7c15L + Long.rotateLeft(right, 31) + 1);
+    }
+
+    private static long fmix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // ---- token -> hash map: open addressing with linear probing, about 16 bytes per row ----
+
+    private int slot(long token) {
+        return (int) (fmix(token) & (tokens.length - 1));
+    }
+
+    private long get(long token) {
+        for (int i = slot(token); hashes[i] != 0; i = (i + 1) & (tokens.length - 1)) {
+            if (tokens[i] == token) {
+                return hashes[i];
+            }
+        }
+        return 0;
+    }
+
+    private long put(long token, long hash) {
+        if (2 * (size + 1) > tokens.length) {
+            resize();
+        }
+        int i = slot(token);
+        for (; hashes[i] != 0; i = (i + 1) & (tokens.length - 1)) {
+            if (tokens[i] == token) {
+                long previous = hashes[i];
+                hashes[i] = hash;
+                return previous;
+            }
+        }
+        tokens[i] = token;
+        hashes[i] = hash;
+        size++;
+        return 0;
+    }
+
+    private long remove(long token) {
+        int mask = tokens.length - 1;
+        int i = slot(token);
+        for (; hashes[i] != 0; i = (i + 1) & mask) {
+            if (tokens[i] == token) {
+                break;
+            }
+        }
+        long previous = hashes[i];
+        if (previous == 0) {
+            return 0;
+        }
+        // Shift later entries of the probe run back, so lookups never stop at the hole
+        int hole = i;
+        for (int j = (i + 1) & mask; hashes[j] != 0; j = (j + 1) & mask) {
+            int home = slot(tokens[j]);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                tokens[hole] = tokens[j];
+                hashes[hole] = hashes[j];
+                hole = j;
+            }
+        }
+        hashes[hole] = 0;
+        size--;
+        return previous;
+    }
+
+    private void resize() {
+        long[] oldTokens = tokens;
+        long[] oldHashes = hashes;
+        tokens = new long[oldTokens.length * 2];
+        hashes = new long[oldTokens.length * 2];
+        size = 0;
+        for (int i = 0; i < oldTokens.length; i++) {
+            if (oldHashes[i] != 0) {
+                put(oldTokens[i], oldHashes[i]);
+            }
+        }
+    }
+}
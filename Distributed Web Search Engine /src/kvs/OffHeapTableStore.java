@@ -0,0 +1,387 @@
+package kvs;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory table that keeps row bytes outside the Java heap.
+ *
+ * Rows are appended in their wire encoding to direct ByteBuffer arenas, which double in size
+ * up to offheap.arenaBytes so that small tables stay small. An open-addressing hash index
+ * maps keys to record addresses, so a table with millions of rows costs the collector a few
+ * large arrays instead of a HashMap and a Row per row. Row objects are decoded on every get()
+ * and scan(); callers already put() rows back after changing them, so nothing relies on
+ * sharing.
+ *
+ * Overwrites and deletes leave dead bytes in the arenas. Once the dead bytes outweigh the
+ * live ones, the live records are copied into fresh arenas and the old ones are left to the
+ * collector, which also frees their native memory.
+ *
+ * Record:  int keyLength | key | int rowLength | row bytes
+ * Address: arena index << 32 | offset within the arena
+ */
+public class OffHeapTableStore implements TableStore {
+
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+    private static final int SCAN_BATCH_ROWS = 256;
+    private static final int MIN_ARENA_BYTES = 1 << 16;
+
+    /** Key index: slot i holds address + 1 of a record, EMPTY or DELETED. */
+    private static final class Index {
+        final long[] slots;
+        final int[] hashes;
+        int size = 0;       // live slots
+        int used = 0;       // live and deleted slots
+
+        Index(int capacity) {
+            slots = new long[capacity];
+            hashes = new int[capacity];
+        }
+    }
+
+    private final int arenaBytes;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Appended to by put() (arenaFor() adds arenas and advances the last one's position) and
+    // replaced by compaction, both under the write lock, so it is only read under the read
+    // lock. Scans keep the list they started on to read keys through a superseded index; the
+    // records those slots point to are never overwritten.
+    private List<ByteBuffer> arenas = new ArrayList<>();
+    private Index index = new Index(1024);
+    private long liveBytes = 0;
+    private long deadBytes = 0;
+
+    public OffHeapTableStore() {
+        this.arenaBytes = (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_ARENA_BYTES, WorkerConfig.getLong("offheap.arenaBytes", 64L << 20)));
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int recordLength(int keyLength, int rowLength) {
+        return 4 + keyLength + 4 + rowLength;
+    }
+
+    private static ByteBuffer arena(List<ByteBuffer> arenas, long address) {
+        return arenas.get((int) (address >>> 32));
+    }
+
+    private static boolean keyEquals(List<ByteBuffer> arenas, long address, byte[] key) {
+        ByteBuffer a = arena(arenas, address);
+        int offset = (int) address;
+        if (a.getInt(offset) != key.length) return false;
+        for (int i = 0; i < key.length; i++) {
+            if (a.get(offset + 4 + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    private static String readKey(List<ByteBuffer> arenas, long address) {
+        ByteBuffer a = arena(arenas, address);
+        int offset = (int) address;
+        byte[] key = new byte[a.getInt(offset)];
+        a.get(offset + 4, key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private static int storedLength(List<ByteBuffer> arenas, long address) {
+        ByteBuffer a = arena(arenas, address);
+        int offset = (int) address;
+        int keyLength = a.getInt(offset);
+        return recordLength(keyLength, a.getInt(offset + 4 + keyLength));
+    }
+
+    private static Row readRow(List<ByteBuffer> arenas, long address) {
+        ByteBuffer a = arena(arenas, address);
+        int offset = (int) address;
+        int keyLength = a.getInt(offset);
+        int rowLength = a.getInt(offset + 4 + keyLength);
+        ByteBuffer row = a.duplicate();
+        row.limit(offset + 8 + keyLength + rowLength).position(offset + 8 + keyLength);
+        try {
+            return RowCodec.decode(row);
+        } catch (Exception e) {
+            throw new IllegalStateException("Corrupt off-heap row: " + e.getMessage());
+        }
+    }
+
+    /** Slot holding the key, or -1; callers hold the lock. */
+    private static int find(Index idx, List<ByteBuffer> arenas, byte[] key, int h) {
+        int mask = idx.slots.length - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            long s = idx.slots[i];
+            if (s == EMPTY) return -1;
+            if (s != DELETED && idx.hashes[i] == h && keyEquals(arenas, s - 1, key)) return i;
+        }
+    }
+
+    /** First free slot for a key known to be absent; callers hold the write lock. */
+    private static int freeSlot(Index idx, int h) {
+        int mask = idx.slots.length - 1;
+        int i = h & mask;
+        while (idx.slots[i] != EMPTY && idx.slots[i] != DELETED) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /** Arena with room for length more bytes; small tables start with small arenas. */
+    private static ByteBuffer arenaFor(List<ByteBuffer> arenas, int arenaBytes, int length) {
+        ByteBuffer a = arenas.isEmpty() ? null : arenas.get(arenas.size() - 1);
+        if (a == null || a.remaining() < length) {
+            int size = (a == null) ? MIN_ARENA_BYTES : (int) Math.min(arenaBytes, 2L * a.capacity());
+            a = ByteBuffer.allocateDirect(Math.max(size, length));
+            arenas.add(a);
+        }
+        return a;
+    }
+
+    /** Copy a record into the arenas; callers hold the write lock. */
+    private static long append(List<ByteBuffer> arenas, int arenaBytes, byte[] key, byte[] row) {
+        ByteBuffer a = arenaFor(arenas, arenaBytes, recordLength(key.length, row.length));
+        long address = ((long) (arenas.size() - 1) << 32) | a.position();
+        a.putInt(key.length).put(key).putInt(row.length).put(row);
+        return address;
+    }
+
+    private void resize(int capacity) {
+        Index fresh = new Index(capacity);
+        for (int i = 0; i < index.slots.length; i++) {
+            long s = index.slots[i];
+            if (s == EMPTY || s == DELETED) continue;
+            int j = freeSlot(fresh, index.hashes[i]);
+            fresh.slots[j] = s;
+            fresh.hashes[j] = index.hashes[i];
+            fresh.size++;
+            fresh.used++;
+        }
+        index = fresh;
+    }
+
+    /** Copy the live records into fresh arenas; callers hold the write lock. */
+    private void compact() {
+        List<ByteBuffer> fresh = new ArrayList<>();
+        Index moved = new Index(index.slots.length);
+        for (int i = 0; i < index.slots.length; i++) {
+            long s = index.slots[i];
+            if (s == EMPTY || s == DELETED) continue;
+            ByteBuffer a = arena(arenas, s - 1);
+            int offset = (int) (s - 1);
+            byte[] record = new byte[storedLength(arenas, s - 1)];
+            a.get(offset, record);
+            ByteBuffer b = arenaFor(fresh, arenaBytes, record.length);
+            long address = ((long) (fresh.size() - 1) << 32) | b.position();
+            b.put(record);
+            int j = freeSlot(moved, index.hashes[i]);
+            moved.slots[j] = address + 1;
+            moved.hashes[j] = index.hashes[i];
+            moved.size++;
+            moved.used++;
+        }
+        arenas = fresh;
+        index = moved;
+        deadBytes = 0;
+    }
+
+    private void maybeCompact() {
+        if (deadBytes > liveBytes && deadBytes >= arenaBytes) {
+            compact();
+        }
+    }
+
+    @Override
+    public Row get(String key) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int h = hash(key);
+        lock.readLock().lock();
+        try {
+            int i = find(index, arenas, k, h);
+            return (i < 0) ? null : readRow(arenas, index.slots[i] - 1);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(Row row) {
+        put(row.key(), row.toByteArray());
+    }
+
+    @Override
+    public void putAll(List<Row> rows) {
+        for (Row row : rows) {
+            put(row.key(), row.toByteArray());
+        }
+    }
+
+    private void put(String key, byte[] row) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int h = hash(key);
+        int length = recordLength(k.length, row.length);
+        lock.writeLock().lock();
+        try {
+            int i = find(index, arenas, k, h);
+            long address = append(arenas, arenaBytes, k, row);
+            if (i >= 0) {
+                int old = storedLength(arenas, index.slots[i] - 1);
+                liveBytes -= old;
+                deadBytes += old;
+                index.slots[i] = address + 1;
+            } else {
+                if ((index.used + 1) * 4L >= index.slots.length * 3L) {
+                    resize((index.size + 1) * 2L >= index.slots.length ? index.slots.length * 2 : index.slots.length);
+                }
+                int j = freeSlot(index, h);
+                if (index.slots[j] == EMPTY) index.used++;
+                index.slots[j] = address + 1;
+                index.hashes[j] = h;
+                index.size++;
+            }
+            liveBytes += length;
+            maybeCompact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(String key) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int h = hash(key);
+        lock.writeLock().lock();
+        try {
+            int i = find(index, arenas, k, h);
+            if (i < 0) return false;
+            int old = storedLength(arenas, index.slots[i] - 1);
+            liveBytes -= old;
+            deadBytes += old;
+            index.slots[i] = DELETED;
+            index.size--;
+            maybeCompact();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(String key) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int h = hash(key);
+        lock.readLock().lock();
+        try {
+            return find(index, arenas, k, h) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Walks the index slots in batches, holding the read lock only while decoding a batch.
+     * If the index was resized or compacted since the scan started, the remaining slots of
+     * the old index are still walked, but each key is looked up again so that the scan
+     * returns its current version, or skips it if it was deleted.
+     */
+    @Override
+    public Iterator<Row> scan(String startRow, String endRowExclusive) {
+        final Index start;
+        final List<ByteBuffer> startArenas;
+        lock.readLock().lock();
+        try {
+            start = index;
+            startArenas = arenas;
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new Iterator<Row>() {
+            final ArrayDeque<Row> buffer = new ArrayDeque<>();
+            int slot = 0;
+
+            private boolean inRange(String key) {
+                return (startRow == null || key.compareTo(startRow) >= 0) &&
+                       (endRowExclusive == null || key.compareTo(endRowExclusive) < 0);
+            }
+
+            private void fill() {
+                while (buffer.isEmpty() && slot < start.slots.length) {
+                    List<String> stale = new ArrayList<>();
+                    lock.readLock().lock();
+                    try {
+                        boolean current = (index == start);
+                        while (buffer.size() + stale.size() < SCAN_BATCH_ROWS && slot < start.slots.length) {
+                            long s = start.slots[slot++];
+                            if (s == EMPTY || s == DELETED) continue;
+                            if (current) {
+                                Row row = readRow(arenas, s - 1);
+                                if (inRange(row.key())) buffer.add(row);
+                            } else {
+                                String key = readKey(startArenas, s - 1);
+                                if (inRange(key)) stale.add(key);
+                            }
+                        }
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                    for (String key : stale) {
+                        Row row = get(key);
+                        if (row != null) buffer.add(row);
+                    }
+                }
+            }
+
+            public boolean hasNext() {
+                fill();
+                return !buffer.isEmpty();
+            }
+
+            public Row next() {
+                fill();
+                if (buffer.isEmpty()) throw new NoSuchElementException();
+                return buffer.poll();
+            }
+        };
+    }
+
+    @Override
+    public int count() {
+        lock.readLock().lock();
+        try {
+            return index.size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String describe() {
+        lock.readLock().lock();
+        try {
+            long total = liveBytes + deadBytes;
+            int pct = (total == 0) ? 100 : (int) (100 * liveBytes / total);
+            return "off-heap (" + arenas.size() + " arenas, " + (total >> 20) + " MB, " + pct + "% live)";
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            arenas = new ArrayList<>();
+            index = new Index(1024);
+            liveBytes = 0;
+            deadBytes = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
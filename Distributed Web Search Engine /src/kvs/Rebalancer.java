@@ -0,0 +1,630 @@
+package kvs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import tools.HashRing;
+
+/**
+ * Worker side of ring changes (see Coordinator): follows the coordinator's ring and moves
+ * rows to their new owners when workers join or leave.
+ *
+ * While a pending ring is announced, this worker streams every row it is responsible for
+ * and whose owner changes to the new owner in batches of PUT /batch?fill=true. Writes it
+ * accepts for such keys in the meantime are forwarded to the new owner under the row's
+ * lock, and the new owner ignores a copied row once a forwarded write or delete for its
+ * key has arrived in this epoch, so an older copy never overwrites a newer write. No locks
+ * are held while rows are copied: when a worker leaves, the survivors copy rows to each
+ * other, and locks held across those requests could deadlock. Both owners keep serving
+ * reads until the coordinator switches the ring.
+ * Afterwards, requests for rows this worker no longer owns are proxied to the owner (see
+ * Worker's before filter), and after a delay for scans still running on the old ring, the
+ * moved rows are dropped unless this worker is one of their replicas.
+ *
+ * The responsible sender for a key is its first live worker on the old ring: the old
+ * owner if it is still alive, otherwise the replica that replaces it.
+ *
+ * Rows stored before keys were placed on the ring sit where the old worker-ID ranges put
+ * them (see legacyOwner()). Each worker moves those rows once, as soon as it has a ring: it
+ * sends every row it holds but does not own to the row's owner, which keeps its own columns
+ * over the old copy's, since they can only come from newer writes; the worker then drops
+ * the rows it does not also hold as a replica. A marker file in the storage directory
+ * records that the move is done. Until the old holder reports it is done (GET /placement),
+ * the owner looks up rows it does not have on the old holder, and the old holder's scans
+ * still return the rows it has not sent yet. Only the worker IDs of the ring are known, so
+ * this assumes the workers are the same as before the upgrade. Rows that KeyFormat renames
+ * when it decodes the keys of an old table are moved the same way, after the placement move
+ * if that has already happened.
+ */
+final class Rebalancer {
+
+    private static final long POLL_MS = 1000;
+    private static final int BATCH_ROWS = 500;
+    private static final int BATCH_BYTES = 4 << 20;
+    /** How long moved rows are kept after the switch, for scans that were planned on the old ring. */
+    private static final long DROP_DELAY_MS = 30000;
+    /** Written to the storage directory once no rows placed by worker-ID ranges are left here. */
+    private static final String PLACEMENT_MARKER = "placement-ring";
+    /** Written while rows that KeyFormat renamed after the placement move are still to move. */
+    private static final String RENAMED_MARKER = "placement-renamed";
+
+    /** One consistent view of the coordinator's ring. */
+    static final class RingState {
+        final int epoch;
+        final HashRing current;
+        final HashRing pending;
+        final Map<String, String> addresses;
+
+        RingState(int epoch, HashRing current, HashRing pending, Map<String, String> addresses) {
+            this.epoch = epoch;
+            this.current = current;
+            this.pending = pending;
+            this.addresses = addresses;
+        }
+    }
+
+    private static final RingState NO_RING = new RingState(0, null, null, Collections.emptyMap());
+
+    private static String coordinator;
+    private static String selfId;
+    private static volatile RingState state = NO_RING;
+    private static volatile String status = "idle";
+    private static volatile long rowsMoved = 0;
+    private static int migratedEpoch = -1;
+    private static RingState dropBefore = null;
+    private static RingState dropAfter = null;
+    private static long dropAt = 0;
+    private static File storageDir;
+    private static volatile boolean legacyPending = false;   // this worker may still hold rows by the old placement
+    private static volatile long legacyRowsMoved = 0;
+    /** Workers that have reported their rows by the old placement moved. */
+    private static final java.util.Set<String> legacyDone = ConcurrentHashMap.newKeySet();
+    /** Keys ("table\nrow") that KeyFormat renamed here, and whether they were stored by the ring or by worker-ID ranges. */
+    private static final java.util.Set<String> renamedKeys = ConcurrentHashMap.newKeySet();
+    private static volatile boolean renamedOnRing = false;
+
+    /** Keys ("table\nrow") that received a forwarded write or delete, with the epoch it was sent in. */
+    private static final ConcurrentHashMap<String, Integer> forwardedKeys = new ConcurrentHashMap<>();
+
+    private Rebalancer() {
+    }
+
+    static void start(String coordinatorAddress, String workerId, String storageDirectory) throws IOException {
+        coordinator = coordinatorAddress;
+        selfId = workerId;
+        storageDir = new File(storageDirectory);
+        renamedOnRing = new File(storageDir, RENAMED_MARKER).exists();
+        if (renamedOnRing) {
+            legacyPending = true;
+        } else if (!new File(storageDir, PLACEMENT_MARKER).exists()) {
+            legacyPending = false;
+            for (String tableName : Worker.listTableNames()) {
+                TableStore store = Worker.store(tableName, false);
+                if (store != null && store.keys().hasNext()) {
+                    legacyPending = true;
+                    break;
+                }
+            }
+            if (!legacyPending) {
+                markPlacementDone();
+            }
+        }
+        Thread watcher = new Thread(Rebalancer::watch, "RingWatcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    static int epoch() {
+        return state.epoch;
+    }
+
+    static HashRing currentRing() {
+        return state.current;
+    }
+
+    static String describe() {
+        RingState s = state;
+        if (s.current == null) {
+            return "No ring yet";
+        }
+        return "Ring epoch " + s.epoch + ", " + s.current.size() + " workers"
+                + (s.pending != null ? ", migrating to " + s.pending.size() + " workers" : "")
+                + "; rebalancing " + status + ", " + rowsMoved + " rows moved"
+                + (legacyPending ? "; rows by worker-ID ranges still to move" : "")
+                + (legacyRowsMoved > 0 ? "; " + legacyRowsMoved + " rows moved from worker-ID ranges" : "");
+    }
+
+    // ---- routing ----
+
+    /** Address of the worker that should serve the key, or null if this worker should. */
+    static String redirect(String rowKey) {
+        RingState s = state;
+        if (s.current == null) {
+            return null;
+        }
+        String owner = s.current.ownerOf(rowKey);
+        if (owner.equals(selfId) || (s.pending != null && s.pending.ownerOf(rowKey).equals(selfId))) {
+            return null;
+        }
+        return s.addresses.get(owner);
+    }
+
+    /** Where a write to the key must also go during a migration; null if nowhere. */
+    private static String forwardTarget(RingState s, String rowKey) {
+        if (s.pending == null || !s.current.ownerOf(rowKey).equals(selfId)) {
+            return null;
+        }
+        String next = s.pending.ownerOf(rowKey);
+        return next.equals(selfId) ? null : s.addresses.get(next);
+    }
+
+    /**
+     * Called with the rows' locks held, after the rows have been stored here. Forwards only
+     * go from a key's current owner to its new owner, which for one membership change never
+     * sends the other way, so holding the locks cannot deadlock.
+     */
+    static void forwardWrites(String tableName, List<Row> rows) throws IOException {
+        RingState s = state;
+        if (s.pending == null) {
+            return;
+        }
+        Map<String, List<Row>> byTarget = new HashMap<>();
+        for (Row row : rows) {
+            String target = forwardTarget(s, row.key());
+            if (target != null) {
+                byTarget.computeIfAbsent(target, k -> new ArrayList<>()).add(row);
+            }
+        }
+        for (Map.Entry<String, List<Row>> e : byTarget.entrySet()) {
+            sendRows(e.getKey(), tableName, e.getValue(), s.epoch, false);
+        }
+    }
+
+    /** Called with the row's lock held, after the row has been deleted here. */
+    static void forwardDelete(String tableName, String rowKey) throws IOException {
+        RingState s = state;
+        String target = forwardTarget(s, rowKey);
+        if (target != null) {
+            send("DELETE", "http://" + target + "/data/" + encode(tableName) + "/" + encode(rowKey)
+                    + "?migrated=true&epoch=" + s.epoch, null);
+        }
+    }
+
+    /** On the new owner, with the row's lock held: a forwarded write or delete of the key arrived. */
+    static void noteForwarded(String tableName, String rowKey, int epoch) {
+        forwardedKeys.put(tableName + "\n" + rowKey, epoch);
+    }
+
+    /** On the new owner, with the row's lock held: false if a copied row is older than a forwarded write. */
+    static boolean copyAllowed(String tableName, String rowKey, int epoch) {
+        Integer forwarded = forwardedKeys.get(tableName + "\n" + rowKey);
+        return forwarded == null || forwarded != epoch;
+    }
+
+    // ---- following the coordinator ----
+
+    private static void watch() {
+        while (true) {
+            try {
+                Thread.sleep(POLL_MS);
+                RingState previous = state;
+                RingState next = fetch();
+                if (next == null) {
+                    continue;
+                }
+                state = next;
+                if (next.pending != null) {
+                    // A failed pass is retried on the next poll; rows already sent are just sent again
+                    if (migratedEpoch != next.epoch) {
+                        status = "migrating";
+                        migrate(next);
+                        migratedEpoch = next.epoch;
+                        status = "waiting for other workers";
+                    }
+                    reportDone(next.epoch);
+                } else if (next.epoch != previous.epoch) {
+                    forwardedKeys.clear();
+                    dropAfter = null;
+                    if (previous.pending != null && previous.pending.workerIds().equals(next.current.workerIds())) {
+                        dropBefore = previous;
+                        dropAfter = next;
+                        dropAt = System.currentTimeMillis() + DROP_DELAY_MS;
+                    }
+                    status = "idle";
+                }
+                if (next.pending == null && legacyPending) {
+                    status = "moving rows placed by worker-ID ranges";
+                    moveLegacyRows(next);
+                    legacyPending = false;
+                    markPlacementDone();
+                    new File(storageDir, RENAMED_MARKER).delete();
+                    renamedKeys.clear();
+                    status = "idle";
+                }
+                pollLegacyDone(next);
+                // Skipped if the ring has changed again since; the rows then just stay as garbage
+                if (dropAfter != null && System.currentTimeMillis() >= dropAt) {
+                    if (dropAfter.epoch == state.epoch) {
+                        status = "dropping moved rows";
+                        dropMovedRows(dropBefore, dropAfter);
+                        status = "idle";
+                    }
+                    dropAfter = null;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                status = "failed: " + e.getMessage();
+                System.err.println("Rebalancing error: " + e);
+            }
+        }
+    }
+
+    private static RingState fetch() throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL("http://" + coordinator + "/ring").openConnection();
+        c.setConnectTimeout(2000);
+        c.setReadTimeout(2000);
+        if (c.getResponseCode() != 200) {
+            c.disconnect();
+            return null;
+        }
+        String[] lines;
+        try (InputStream in = c.getInputStream()) {
+            lines = new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\n");
+        }
+        Map<String, String> addresses = new HashMap<>();
+        for (int i = 3; i < lines.length; i++) {
+            int comma = lines[i].indexOf(',');
+            if (comma > 0) {
+                addresses.put(lines[i].substring(0, comma), lines[i].substring(comma + 1));
+            }
+        }
+        return new RingState(Integer.parseInt(lines[0]), HashRing.parse(lines[1]),
+                lines[2].equals("-") ? null : HashRing.parse(lines[2]), addresses);
+    }
+
+    private static void reportDone(int epoch) throws IOException {
+        send("POST", "http://" + coordinator + "/ring/done?id=" + encode(selfId) + "&epoch=" + epoch, null);
+    }
+
+    // ---- moving rows ----
+
+    /** True if this worker sends the key's row to its new owner: it is the first live worker holding the key. */
+    private static boolean responsible(RingState s, String rowKey) {
+        for (int idx : s.current.successors(rowKey, ReplicationManager.REPLICAS)) {
+            String id = s.current.workerIds().get(idx);
+            if (s.pending.workerIds().contains(id)) {
+                return id.equals(selfId);
+            }
+        }
+        return false;
+    }
+
+    private static void migrate(RingState s) throws IOException {
+        for (String tableName : Worker.listTableNames()) {
+            TableStore store = Worker.store(tableName, false);
+            if (store == null) {
+                continue;
+            }
+            Map<String, List<String>> byTarget = new HashMap<>();
+            Iterator<String> keys = store.keys();
+            while (keys.hasNext()) {
+                String rowKey = keys.next();
+                String next = s.pending.ownerOf(rowKey);
+                if (next.equals(selfId) || !responsible(s, rowKey)) {
+                    continue;
+                }
+                List<String> batch = byTarget.computeIfAbsent(s.addresses.get(next), k -> new ArrayList<>());
+                batch.add(rowKey);
+                if (batch.size() >= BATCH_ROWS) {
+                    moveRows(store, tableName, s.addresses.get(next), batch, s.epoch);
+                    batch.clear();
+                }
+            }
+            for (Map.Entry<String, List<String>> e : byTarget.entrySet()) {
+                moveRows(store, tableName, e.getKey(), e.getValue(), s.epoch);
+            }
+        }
+    }
+
+    /** Reads the rows under their locks, so each is copied whole, and sends them after releasing the locks. */
+    private static void moveRows(TableStore store, String tableName, String target, List<String> rowKeys, int epoch) throws IOException {
+        if (rowKeys.isEmpty()) {
+            return;
+        }
+        List<Row> rows = new ArrayList<>();
+        List<ReentrantLock> held = Worker.lockRows(tableName, rowKeys);
+        try {
+            for (String rowKey : rowKeys) {
+                Row row = store.get(rowKey);
+                if (row != null) {
+                    rows.add(row);
+                }
+            }
+        } finally {
+            Worker.unlockRows(held);
+        }
+        List<Row> chunk = new ArrayList<>();
+        int bytes = 0;
+        for (Row row : rows) {
+            chunk.add(row);
+            bytes += RowCache.weigh(row);
+            if (bytes >= BATCH_BYTES) {
+                sendRows(target, tableName, chunk, epoch, true);
+                chunk.clear();
+                bytes = 0;
+            }
+        }
+        sendRows(target, tableName, chunk, epoch, true);
+    }
+
+    private static void sendRows(String target, String tableName, List<Row> rows, int epoch, boolean copy) throws IOException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        putBatch(target, tableName, rows, "migrated=true&epoch=" + epoch + (copy ? "&fill=true" : ""));
+        if (copy) {
+            rowsMoved += rows.size();
+        }
+    }
+
+    private static void putBatch(String target, String tableName, List<Row> rows, String query) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (Row row : rows) {
+            body.write(row.toByteArray());
+            body.write('\n');
+        }
+        int code = send("PUT", "http://" + target + "/batch/" + encode(tableName) + "?" + query, body.toByteArray());
+        if (code != 200) {
+            throw new IOException("Moving " + rows.size() + " rows of " + tableName + " to " + target + " failed with status " + code);
+        }
+    }
+
+    /** After the switch, drop the rows this worker sent away, unless it still holds them as a replica. */
+    private static void dropMovedRows(RingState before, RingState after) throws IOException {
+        for (String tableName : Worker.listTableNames()) {
+            TableStore store = Worker.store(tableName, false);
+            if (store == null) {
+                continue;
+            }
+            List<String> moved = new ArrayList<>();
+            Iterator<String> keys = store.keys();
+            while (keys.hasNext()) {
+                String rowKey = keys.next();
+                if (!before.pending.ownerOf(rowKey).equals(selfId) && responsible(before, rowKey)
+                        && !ReplicationManager.holdsKey(after.current, rowKey, ReplicationManager.replicationFactor(tableName))) {
+                    moved.add(rowKey);
+                }
+            }
+            for (String rowKey : moved) {
+                Worker.dropRow(tableName, rowKey);
+            }
+        }
+    }
+
+    // ---- rows placed by worker-ID ranges ----
+
+    /** The worker the old placement put the key on: the one with the highest ID at or below the key, else the last. */
+    static String legacyOwner(HashRing ring, String rowKey) {
+        List<String> ids = ring.workerIds();
+        for (int i = 0; i < ids.size() - 1; i++) {
+            if (rowKey.compareTo(ids.get(i)) >= 0 && rowKey.compareTo(ids.get(i + 1)) < 0) {
+                return ids.get(i);
+            }
+        }
+        return ids.get(ids.size() - 1);
+    }
+
+    /**
+     * Called before start() with the keys of a table that KeyFormat has renamed here. The rows
+     * sit where their old keys were placed, so they are moved like rows by the old placement,
+     * also on a worker that has moved those already.
+     */
+    static void keysRenamed(String storageDirectory, String tableName, List<String> rowKeys) throws IOException {
+        if (rowKeys.isEmpty()) {
+            return;
+        }
+        File dir = new File(storageDirectory);
+        if (new File(dir, PLACEMENT_MARKER).exists() && !new File(dir, RENAMED_MARKER).exists()
+                && !new File(dir, RENAMED_MARKER).createNewFile()) {
+            throw new IOException("Could not create " + RENAMED_MARKER + " in " + dir);
+        }
+        for (String rowKey : rowKeys) {
+            renamedKeys.add(tableName + "\n" + rowKey);
+        }
+    }
+
+    /**
+     * True while this worker may still hold the row by the old placement, and its scans must
+     * return it. A renamed row is returned by the worker its old key was placed on. If the
+     * worker restarted since renaming, its scans miss renamed rows it has not moved yet.
+     */
+    static boolean holdsLegacyRow(HashRing ring, String tableName, String rowKey) {
+        if (!legacyPending) {
+            return false;
+        }
+        if (renamedKeys.contains(tableName + "\n" + rowKey)) {
+            String oldKey = encode(rowKey);
+            return (renamedOnRing ? ring.ownerOf(oldKey) : legacyOwner(ring, oldKey)).equals(selfId);
+        }
+        return !renamedOnRing && legacyOwner(ring, rowKey).equals(selfId);
+    }
+
+    /** True if some worker may still hold rows by the old placement, so a miss here is not final. */
+    static boolean legacyRowsPossible() {
+        RingState s = state;
+        if (legacyPending) {
+            return true;
+        }
+        if (s.current == null) {
+            return false;
+        }
+        for (String id : s.current.workerIds()) {
+            if (!id.equals(selfId) && !legacyDone.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Body of GET /placement: whether this worker has moved its rows by the old placement. */
+    static String placementStatus() {
+        return legacyPending ? "pending" : "done";
+    }
+
+    /**
+     * For a row this worker does not have: the row from a worker the old placement may have
+     * put it on, if that worker has not moved its rows yet; otherwise null. Those are the
+     * key's worker by ID range and, if KeyFormat may have renamed the row from its encoded
+     * key, the workers the encoded key was placed on.
+     */
+    static Row legacyRow(String tableName, String rowKey) {
+        RingState s = state;
+        if (s.current == null) {
+            return null;
+        }
+        java.util.Set<String> holders = new java.util.LinkedHashSet<>();
+        holders.add(legacyOwner(s.current, rowKey));
+        String oldKey = encode(rowKey);
+        if (!oldKey.equals(rowKey)) {
+            holders.add(legacyOwner(s.current, oldKey));
+            holders.add(s.current.ownerOf(oldKey));
+        }
+        for (String holder : holders) {
+            String address = s.addresses.get(holder);
+            if (holder.equals(selfId) || legacyDone.contains(holder) || address == null) {
+                continue;
+            }
+            try {
+                tools.HTTP.Response res = tools.HTTP.doRequestWithTimeout("GET", "http://" + address + "/data/" + encode(tableName)
+                        + "/" + encode(rowKey) + "?migrated=true", null, 10000, false);
+                if (res != null && res.statusCode() == 200) {
+                    return Row.readFrom(new java.io.ByteArrayInputStream(res.body()));
+                }
+            } catch (Exception e) {
+                // Try the next one
+            }
+        }
+        return null;
+    }
+
+    private static void markPlacementDone() throws IOException {
+        if (!new File(storageDir, PLACEMENT_MARKER).exists() && !new File(storageDir, PLACEMENT_MARKER).createNewFile()) {
+            throw new IOException("Could not create " + PLACEMENT_MARKER + " in " + storageDir);
+        }
+    }
+
+    /** Ask the workers that have not yet reported their old rows moved whether they are done. */
+    private static void pollLegacyDone(RingState s) {
+        for (String id : s.current.workerIds()) {
+            if (id.equals(selfId) || legacyDone.contains(id) || s.addresses.get(id) == null) {
+                continue;
+            }
+            try {
+                tools.HTTP.Response res = tools.HTTP.doRequestWithTimeout("GET", "http://" + s.addresses.get(id) + "/placement", null, 2000, false);
+                if (res != null && res.statusCode() == 200 && new String(res.body(), StandardCharsets.UTF_8).equals("done")) {
+                    legacyDone.add(id);
+                }
+            } catch (IOException e) {
+                // Asked again on the next poll
+            }
+        }
+    }
+
+    /**
+     * Send every row held here but owned by another worker on the ring to its owner, then drop
+     * those this worker does not hold as a replica. Rows are dropped batch by batch, right
+     * after their owner has them, so scans find each row on one of the two.
+     */
+    private static void moveLegacyRows(RingState s) throws IOException {
+        for (String tableName : Worker.listTableNames()) {
+            TableStore store = Worker.store(tableName, false);
+            if (store == null) {
+                continue;
+            }
+            Map<String, List<String>> byOwner = new HashMap<>();
+            Iterator<String> keys = store.keys();
+            while (keys.hasNext()) {
+                String rowKey = keys.next();
+                String owner = s.current.ownerOf(rowKey);
+                if (!owner.equals(selfId)) {
+                    byOwner.computeIfAbsent(owner, k -> new ArrayList<>()).add(rowKey);
+                }
+            }
+            int replicas = ReplicationManager.replicationFactor(tableName);
+            for (Map.Entry<String, List<String>> e : byOwner.entrySet()) {
+                String target = s.addresses.get(e.getKey());
+                if (target == null) {
+                    throw new IOException("No address for worker " + e.getKey());
+                }
+                List<String> all = e.getValue();
+                for (int i = 0; i < all.size(); i += BATCH_ROWS) {
+                    List<String> batch = all.subList(i, Math.min(all.size(), i + BATCH_ROWS));
+                    List<Row> rows = new ArrayList<>();
+                    List<ReentrantLock> held = Worker.lockRows(tableName, batch);
+                    try {
+                        for (String rowKey : batch) {
+                            Row row = store.get(rowKey);
+                            if (row != null) {
+                                rows.add(row);
+                            }
+                        }
+                    } finally {
+                        Worker.unlockRows(held);
+                    }
+                    if (!rows.isEmpty()) {
+                        putBatch(target, tableName, rows, "migrated=true&legacy=true");
+                        legacyRowsMoved += rows.size();
+                    }
+                    for (String rowKey : batch) {
+                        if (!ReplicationManager.holdsKey(s.current, rowKey, replicas)) {
+                            Worker.dropRow(tableName, rowKey);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // ---- HTTP ----
+
+    private static int send(String method, String url, byte[] body) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+        c.setRequestMethod(method);
+        c.setConnectTimeout(2000);
+        c.setReadTimeout(30000);
+        if (body != null) {
+            c.setDoOutput(true);
+            c.setFixedLengthStreamingMode(body.length);
+            try (OutputStream os = c.getOutputStream()) {
+                os.write(body);
+            }
+        }
+        int code = c.getResponseCode();
+        try (InputStream in = (code < 400) ? c.getInputStream() : c.getErrorStream()) {
+            if (in != null) {
+                in.readAllBytes();
+            }
+        }
+        return code;
+    }
+
+    private static String encode(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,161 @@
+package kvs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import tools.HTTP;
+
+/**
+ * Ordered stream of replica writes from this worker (a key's owner) to one other worker.
+ *
+ * Writers enqueue under the row's lock, so each key's writes are queued in the order they
+ * were applied. A single sender thread drains the queue: whatever has queued up while the
+ * previous request was in flight goes out as the next PUT /batch, so under load many
+ * writes share a request, and requests reuse kept-alive connections from the shared
+ * tools.ConnectionPool. Rows are sent whole and replace the replica's copy; deletes are sent
+ * as they come, in order. A row is serialized when it is sent, so one changed in the meantime
+ * goes out in its newer state, which the write queued after it brings anyway.
+ *
+ * A failed request is retried a few times; after that its writes are dropped and left to
+ * anti-entropy, as are writes that find the queue full.
+ */
+final class ReplicaStream {
+
+    private static final int MAX_QUEUED = 100000;
+    private static final int MAX_BATCH_BYTES = 4 << 20;
+    private static final int ATTEMPTS = 3;
+
+    /** Counted down once per replica that has stored a write; quorum waits on it. */
+    static final class Ack {
+        final CountDownLatch replicas;
+
+        Ack(int count) {
+            replicas = new CountDownLatch(count);
+        }
+    }
+
+    private static final class Write {
+        final String tableName;
+        final String rowKey;
+        final Row row;           // null for a delete
+        final Ack ack;
+
+        Write(String tableName, String rowKey, Row row, Ack ack) {
+            this.tableName = tableName;
+            this.rowKey = rowKey;
+            this.row = row;
+            this.ack = ack;
+        }
+    }
+
+    private final String address;
+    private final LinkedBlockingQueue<Write> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+    private volatile long sent = 0;
+    private volatile long dropped = 0;
+
+    ReplicaStream(String address) {
+        this.address = address;
+        Thread sender = new Thread(this::run, "Replicate-" + address);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /** Queue a written row (or a delete, if row is null); callers hold the row's lock. */
+    void enqueue(String tableName, String rowKey, Row row, Ack ack) {
+        if (!queue.offer(new Write(tableName, rowKey, row, ack))) {
+            dropped++;
+        }
+    }
+
+    String describe() {
+        return address + ": " + queue.size() + " queued, " + sent + " sent, " + dropped + " dropped";
+    }
+
+    private void run() {
+        List<Write> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                int start = 0;
+                while (start < batch.size()) {
+                    start = sendRun(batch, start);
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** Send the writes from start on that fit in one request; returns the index of the first write not sent. */
+    private int sendRun(List<Write> batch, int start) throws InterruptedException {
+        Write first = batch.get(start);
+        int end = start + 1;
+        String url;
+        byte[] body = null;
+        if (first.row == null) {
+            url = "http://" + address + "/data/" + encode(first.tableName) + "/" + encode(first.rowKey) + "?replicated=true";
+        } else {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            append(out, first.row);
+            while (end < batch.size() && out.size() < MAX_BATCH_BYTES && batch.get(end).row != null
+                    && batch.get(end).tableName.equals(first.tableName)) {
+                append(out, batch.get(end++).row);
+            }
+            url = "http://" + address + "/batch/" + encode(first.tableName) + "?replicated=true&replace=true";
+            body = out.toByteArray();
+        }
+
+        boolean stored = false;
+        for (int attempt = 1; attempt <= ATTEMPTS && !stored; attempt++) {
+            try {
+                int code = send(first.row == null ? "DELETE" : "PUT", url, body);
+                stored = (code == 200 || (first.row == null && code == 404));
+            } catch (IOException e) {
+                if (attempt == ATTEMPTS) {
+                    System.err.println("Replication to " + address + " failed: " + e.getMessage());
+                }
+            }
+            if (!stored && attempt < ATTEMPTS) {
+                Thread.sleep(200L * attempt);
+            }
+        }
+        for (int i = start; i < end; i++) {
+            Write w = batch.get(i);
+            if (stored && w.ack != null) {
+                w.ack.replicas.countDown();
+            }
+        }
+        if (stored) {
+            sent += end - start;
+        } else {
+            dropped += end - start;
+        }
+        return end;
+    }
+
+    private static void append(ByteArrayOutputStream out, Row row) {
+        byte[] bytes = row.toByteArray();
+        out.write(bytes, 0, bytes.length);
+        out.write('\n');
+    }
+
+    private static int send(String method, String url, byte[] body) throws IOException {
+        HTTP.Response res = HTTP.doRequestWithTimeout(method, url, body, 10000, false);
+        if (res == null) {
+            throw new IOException("Malformed URL " + url);
+        }
+        return res.statusCode();
+    }
+
+    private static String encode(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+}
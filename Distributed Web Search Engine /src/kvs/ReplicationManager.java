@@ -1,17 +1,30 @@
 package kvs;
 
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.security.MessageDigest;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import tools.HTTP;
+import tools.HashRing;
 
 public class ReplicationManager {
     private static final List<WorkerInfo> workers = new CopyOnWriteArrayList<WorkerInfo>();
+    // Same placement as KVSClient: the first worker on the ring owns a key, the next ones hold its
+    // replicas; this many workers in all unless the table sets <table>.replicas
+    static final int REPLICAS = 3;
+    private static volatile HashRing ring;
     private static String selfId;
     private static int selfPort;
     private static String coordinator;
@@ -55,11 +68,7 @@ public class ReplicationManager {
     }
 
     private static void fetchWorkers() throws Exception {
-        URL u = new URL("http://"+coordinator+"/workers");
-        HttpURLConnection c = (HttpURLConnection) u.openConnection();
-        c.setConnectTimeout(2000);
-        c.setReadTimeout(2000);
-        try (var in = c.getInputStream(); var s = new java.util.Scanner(in)) {
+        try (var in = request("GET", "http://"+coordinator+"/workers", null, 2000); var s = new java.util.Scanner(in)) {
             if (!s.hasNextLine()) return; // first line count
             s.nextLine();
             List<WorkerInfo> list = new ArrayList<>();
@@ -79,95 +88,109 @@ public class ReplicationManager {
             }
             workers.clear();
             workers.addAll(list);
+            List<String> ids = new ArrayList<String>();
+            for (WorkerInfo w : list) ids.add(w.id());
+            HashRing current = ring;
+            if (Rebalancer.currentRing() != null) {
+                ring = Rebalancer.currentRing();
+            } else if (ids.isEmpty()) {
+                ring = null;
+            } else if (current == null || !current.workerIds().equals(new ArrayList<String>(new java.util.TreeSet<String>(ids)))) {
+                ring = new HashRing(ids);
+            }
         }
     }
 
-    // Simple ring ordering by worker ID lexicographically
-    private static List<WorkerInfo> ringOrdered() {
-        List<WorkerInfo> copy = new ArrayList<WorkerInfo>(workers);
-        java.util.Collections.sort(copy, new Comparator<WorkerInfo>() {
-            public int compare(WorkerInfo a, WorkerInfo b) { return a.id().compareTo(b.id()); }
-        });
-        return copy;
+    private static WorkerInfo findWorker(String id) {
+        for (WorkerInfo w : workers) if (w.id().equals(id)) return w;
+        return null;
     }
 
-    private static WorkerInfo findSelf(List<WorkerInfo> ordered) {
-        for (WorkerInfo w : ordered) if (w.id().equals(selfId)) return w;
-        return null;
+    /** Ring the worker routes by: the coordinator's once it has one. */
+    private static HashRing ring() {
+        HashRing current = Rebalancer.currentRing();
+        return (current != null) ? current : ring;
     }
 
-    // Determine if this worker is primary (simplistic: the smallest ID responsible for all keys). For real consistent hashing you'd hash keys; here we just always replicate outward.
-    private static boolean isPrimaryForKey(String key) {
-        // Basic heuristic: choose worker whose ID is lexicographically >= key hash prefix, else wrap.
-        List<WorkerInfo> ordered = ringOrdered();
-        if (ordered.isEmpty()) return true;
-        String h = sha1Hex(key).substring(0, 4); // prefix
-        for (WorkerInfo w : ordered) {
-            if (w.id().compareTo(h) >= 0) {
-                return w.id().equals(selfId);
-            }
-        }
-        // wrap to first
-        return ordered.get(0).id().equals(selfId);
+    /** Number of workers holding each row of the table, its owner included (setting <table>.replicas). */
+    static int replicationFactor(String table) {
+        return Math.max(1, Integer.parseInt(WorkerConfig.forTable(table, "replicas", String.valueOf(REPLICAS))));
     }
 
-    public static void maybeReplicate(String table, String rowKey, String column, byte[] data, String rawQuery) {
-        if (!isPrimaryForKey(rowKey)) return;
-        List<WorkerInfo> ordered = ringOrdered();
-        if (ordered.size() < 2) return;
-        // find self index
-        int idx = -1;
-        for (int i=0;i<ordered.size();i++) if (ordered.get(i).id().equals(selfId)) { idx = i; break; }
-        if (idx < 0) return;
-        WorkerInfo w1 = ordered.get((idx - 1 + ordered.size()) % ordered.size());
-        WorkerInfo w2 = ordered.get((idx - 2 + ordered.size()) % ordered.size());
-        replicateTo(w1, table, rowKey, column, data, rawQuery);
-        replicateTo(w2, table, rowKey, column, data, rawQuery);
+    /** Workers, the owner included, that must have stored a write before it is acknowledged (<table>.writeQuorum). */
+    static int writeQuorum(String table) {
+        return Math.max(1, Integer.parseInt(WorkerConfig.forTable(table, "writeQuorum", "1")));
     }
 
-    private static void replicateTo(WorkerInfo w, String table, String rowKey, String column, byte[] data, String rawQuery) {
-        try {
-            StringBuilder qs = new StringBuilder();
-            if (rawQuery != null && !rawQuery.isEmpty()) {
-                qs.append(rawQuery).append('&');
-            }
-            qs.append("replicated=true");
-            URL u = new URL("http://"+w.host()+":"+w.port()+"/data/"+encode(table)+"/"+encode(rowKey)+"/"+encode(column)+(qs.length()>0?"?"+qs:""));
-            HttpURLConnection c = (HttpURLConnection) u.openConnection();
-            c.setRequestMethod("PUT");
-            c.setDoOutput(true);
-            c.setConnectTimeout(2000);
-            c.setReadTimeout(2000);
-            try (OutputStream os = c.getOutputStream()) { os.write(data); }
-            c.getResponseCode(); // fire
-        } catch (Exception e) {
-            System.err.println("Replication forward failed: "+e.getMessage());
+    /** True if this worker should hold the key, as its owner or as one of its count-1 replicas. */
+    static boolean holdsKey(HashRing r, String key, int count) {
+        for (int idx : r.successors(key, count)) {
+            if (r.workerIds().get(idx).equals(selfId)) return true;
         }
+        return false;
     }
 
-    private static String encode(String s) {
-        try { return java.net.URLEncoder.encode(s, "UTF-8"); } catch (Exception e) { return s; }
+    // ---- write path ----
+
+    private static final long QUORUM_TIMEOUT_MS = 5000;
+    private static final Map<String, ReplicaStream> streams = new ConcurrentHashMap<>();
+    /** Acks that the current client request waits for; null outside client requests. */
+    private static final ThreadLocal<List<ReplicaStream.Ack>> pendingAcks = new ThreadLocal<>();
+
+    /** Called before each request; client requests may wait for a write quorum at the end. */
+    static void beginRequest(boolean clientRequest) {
+        pendingAcks.set(clientRequest ? new ArrayList<>() : null);
     }
 
-    // Hashing a row: concatenate key + sorted columns + values
-    public static String hashRow(Row r) {
+    /** Called after each request; false if a write it made did not reach its quorum in time. */
+    static boolean endRequest() {
+        List<ReplicaStream.Ack> acks = pendingAcks.get();
+        pendingAcks.remove();
+        if (acks == null) return true;
+        long deadline = System.currentTimeMillis() + QUORUM_TIMEOUT_MS;
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            md.update(r.key().getBytes());
-            List<String> cols = new ArrayList<>(r.columns());
-            Collections.sort(cols);
-            for (String c : cols) {
-                md.update(c.getBytes());
-                byte[] v = r.getBytes(c);
-                if (v != null) md.update(v);
+            for (ReplicaStream.Ack ack : acks) {
+                if (!ack.replicas.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) return false;
             }
-            byte[] dig = md.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : dig) sb.append(String.format("%02x", b));
-            return sb.toString();
-        } catch (Exception e) {
-            return "";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called with the row's lock held, after a row has been written (or, if row is null,
+     * deleted) here. If this worker owns the key, the write is queued for each replica; if
+     * the table needs a write quorum, the current request waits in endRequest() until
+     * enough replicas have stored it.
+     */
+    static void replicate(String table, String rowKey, Row row) {
+        HashRing r = ring();
+        if (r == null || r.size() < 2 || !r.ownerOf(rowKey).equals(selfId)) return;
+        List<Integer> holders = r.successors(rowKey, replicationFactor(table));
+        List<ReplicaStream> targets = new ArrayList<>();
+        for (int i = 1; i < holders.size(); i++) {
+            WorkerInfo w = findWorker(r.workerIds().get(holders.get(i)));
+            if (w != null) targets.add(streams.computeIfAbsent(w.host()+":"+w.port(), ReplicaStream::new));
         }
+        List<ReplicaStream.Ack> acks = pendingAcks.get();
+        int needed = Math.min(writeQuorum(table), holders.size()) - 1;
+        ReplicaStream.Ack ack = (acks != null && needed > 0) ? new ReplicaStream.Ack(needed) : null;
+        if (ack != null) acks.add(ack);
+        for (ReplicaStream target : targets) target.enqueue(table, rowKey, row, ack);
+    }
+
+    /** Replication queues, for the worker dashboard. */
+    static String describe() {
+        if (streams.isEmpty()) return "No replicas written yet";
+        StringBuilder sb = new StringBuilder();
+        for (ReplicaStream stream : streams.values()) sb.append(sb.length() > 0 ? "; " : "").append(stream.describe());
+        return sb.toString();
+    }
+
+    private static String encode(String s) {
+        try { return java.net.URLEncoder.encode(s, "UTF-8"); } catch (Exception e) { return s; }
     }
 
     private static void maintenanceLoop() {
@@ -181,68 +204,184 @@ public class ReplicationManager {
     }
 
     private static void performMaintenance() {
-        List<WorkerInfo> ordered = ringOrdered();
-        if (ordered.size() < 2) return;
-        // find successors (next higher IDs)
-        java.util.Collections.sort(ordered, new Comparator<WorkerInfo>() { public int compare(WorkerInfo a, WorkerInfo b) { return a.id().compareTo(b.id()); }});
-        int idx = -1; for (int i=0;i<ordered.size();i++) if (ordered.get(i).id().equals(selfId)) { idx=i; break; }
-        if (idx < 0) return;
-        WorkerInfo s1 = ordered.get((idx + 1) % ordered.size());
-        WorkerInfo s2 = ordered.get((idx + 2) % ordered.size());
-        syncFrom(s1);
-        syncFrom(s2);
-    }
-
-    private static void syncFrom(WorkerInfo other) {
+        HashRing r = ring();
+        if (r == null || r.size() < 2) return;
+        // Build our own indexes first, so that peers asking for them do not wait on the build
+        for (String t : Worker.listTableNames()) {
+            try {
+                Worker.merkleIndex(t);
+            } catch (Exception e) {
+                System.err.println("Could not index "+t+": "+e.getMessage());
+            }
+        }
+        // With virtual nodes, any other worker may own keys that we replicate
+        for (WorkerInfo w : workers) {
+            if (!w.id().equals(selfId)) syncFrom(w, r);
+        }
+    }
+
+    // ---- anti-entropy: compare Merkle trees (see MerkleIndex), then pull the rows that differ ----
+
+    /** Nodes requested per round trip are this many levels below the differing ones. */
+    private static final int LEVELS_PER_REQUEST = 4;
+    private static final int PULL_BATCH = 500;
+
+    /** Body of GET /repl/tree; null if the table does not exist here. */
+    static String treeNodes(String table, String ringSpec, String peer, String nodes) throws Exception {
+        MerkleIndex index = Worker.merkleIndex(table);
+        if (index == null) return null;
+        HashRing r = HashRing.parse(ringSpec);
+        long[] tree = index.tree(r, MerkleIndex.sharedArcs(r, selfId, peer, replicationFactor(table)));
+        StringBuilder sb = new StringBuilder();
+        for (String node : nodes.split("\n")) {
+            if (node.isBlank()) continue;
+            int n = Integer.parseInt(node.trim());
+            sb.append(Long.toHexString(n < tree.length ? tree[n] : 0)).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /** Body of POST /repl/rows; null if the table does not exist here. */
+    static String leafRows(String table, String ringSpec, String peer, String leafList) throws Exception {
+        MerkleIndex index = Worker.merkleIndex(table);
+        if (index == null) return null;
+        HashRing r = HashRing.parse(ringSpec);
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : index.rowsIn(Worker.store(table, false), r, MerkleIndex.sharedArcs(r, selfId, peer, replicationFactor(table)), parseLeaves(leafList)).entrySet()) {
+            sb.append(e.getKey()).append(' ').append(Long.toHexString(e.getValue())).append("\n");
+        }
+        return sb.toString();
+    }
+
+    private static Set<Integer> parseLeaves(String leafList) {
+        Set<Integer> leaves = new HashSet<>();
+        for (String line : leafList.split("\n")) {
+            if (!line.isBlank()) leaves.add(Integer.parseInt(line.trim()));
+        }
+        return leaves;
+    }
+
+    /**
+     * Pull from the other worker the rows of the arcs we both hold that we are missing, and
+     * those that differ if it is their owner. Equal subtrees are never descended into, so a
+     * table in sync costs one hash, and only the keys in differing leaves are listed.
+     *
+     * Deletes are settled by the row's owner, using the tombstones both sides list (see
+     * MerkleIndex): a row we deleted is pulled back only from its owner, which has written
+     * it again since, and a row whose owner lists a tombstone for it is deleted here. So a
+     * replica that missed a delete neither hands the row back to the others nor keeps it.
+     */
+    private static void syncFrom(WorkerInfo other, HashRing r) {
         try {
-            List<String> tables = fetchLines("http://"+other.host()+":"+other.port()+"/repl/tables");
-            for (String t : tables) {
+            String base = "http://"+other.host()+":"+other.port();
+            String query = "?ring="+encode(r.spec())+"&peer="+encode(selfId);
+            for (String t : fetchLines(base+"/repl/tables")) {
                 if (t.isBlank()) continue;
-                List<String> rows = fetchLines("http://"+other.host()+":"+other.port()+"/repl/rows/"+encode(t));
-                for (String line : rows) {
-                    if (line.isBlank()) continue;
+                int[] arcs = MerkleIndex.sharedArcs(r, selfId, other.id(), replicationFactor(t));
+                if (arcs.length == 0) continue;
+                MerkleIndex local = Worker.merkleIndex(t);
+                long[] mine = (local != null) ? local.tree(r, arcs) : new MerkleIndex().tree(r, arcs);
+                int leafBase = mine.length / 2;
+
+                // Compare the roots, then walk down LEVELS_PER_REQUEST levels per request,
+                // asking only for the descendants of nodes that differ
+                String treeUrl = base+"/repl/tree/"+encode(t)+query;
+                if (Long.parseUnsignedLong(postLines(treeUrl, "1\n").get(0), 16) == mine[1]) continue;
+                List<Integer> differing = List.of(1);
+                while (!differing.isEmpty() && differing.get(0) < leafBase) {
+                    int levels = 0;
+                    while (levels < LEVELS_PER_REQUEST && (differing.get(0) << levels) < leafBase) levels++;
+                    List<Integer> asked = new ArrayList<>();
+                    for (int node : differing) {
+                        for (int n = node << levels; n < (node + 1) << levels; n++) asked.add(n);
+                    }
+                    List<String> theirs = postLines(treeUrl, lines(asked));
+                    List<Integer> next = new ArrayList<>();
+                    for (int i = 0; i < asked.size(); i++) {
+                        if (Long.parseUnsignedLong(theirs.get(i), 16) != mine[asked.get(i)]) next.add(asked.get(i));
+                    }
+                    differing = next;
+                }
+                if (differing.isEmpty() || differing.get(0) < leafBase) continue;
+
+                StringBuilder leaves = new StringBuilder();
+                for (int node : differing) leaves.append(node - leafBase).append("\n");
+                Map<String, Long> theirRows = new HashMap<>();
+                for (String line : postLines(base+"/repl/rows/"+encode(t)+query, leaves.toString())) {
                     int sp = line.indexOf(' ');
-                    if (sp < 0) continue;
-                    String key = line.substring(0, sp);
-                    // simplistic: if we don't have it, fetch full row
-                    Row local = Worker.getRow(t, key);
-                    if (local == null) {
-                        // download streaming single row
-                        // Using whole-row read
-                        URL u = new URL("http://"+other.host()+":"+other.port()+"/data/"+encode(t)+"/"+encode(key));
-                        HttpURLConnection c = (HttpURLConnection) u.openConnection();
-                        c.setConnectTimeout(2000); c.setReadTimeout(2000);
-                        if (c.getResponseCode() == 200) {
-                            try (var in = c.getInputStream()) {
-                                Row fetched = Row.readFrom(in);
-                                if (fetched != null) Worker.putRow(t, fetched);
-                            }
-                        }
+                    if (sp > 0) theirRows.put(line.substring(0, sp), Long.parseUnsignedLong(line.substring(sp+1), 16));
+                }
+                Map<String, Long> myRows = (local == null) ? Collections.emptyMap()
+                        : local.rowsIn(Worker.store(t, false), r, arcs, parseLeaves(leaves.toString()));
+                List<String> pull = new ArrayList<>();
+                List<String> drop = new ArrayList<>();
+                for (Map.Entry<String, Long> e : theirRows.entrySet()) {
+                    Long myHash = myRows.get(e.getKey());
+                    boolean theyOwn = r.ownerOf(e.getKey()).equals(other.id());
+                    if (e.getValue() == 0) {
+                        if (theyOwn && myHash != null && myHash != 0) drop.add(e.getKey());
+                    } else if (myHash == null || (!myHash.equals(e.getValue()) && theyOwn)) {
+                        pull.add(e.getKey());
                     }
                 }
+                for (String key : drop) {
+                    Worker.dropRow(t, key);
+                }
+                for (int i = 0; i < pull.size(); i += PULL_BATCH) {
+                    pullRows(base, t, pull.subList(i, Math.min(pull.size(), i + PULL_BATCH)));
+                }
             }
-        } catch (Exception ignored) {}
+        } catch (Exception e) {
+            System.err.println("Anti-entropy with "+other.id()+" failed: "+e.getMessage());
+        }
     }
 
-    private static List<String> fetchLines(String url) throws Exception {
-        URL u = new URL(url);
-        HttpURLConnection c = (HttpURLConnection) u.openConnection();
-        c.setConnectTimeout(2000); c.setReadTimeout(2000);
+    /** Fetch rows with one POST /mget and store them as our replicas. */
+    private static void pullRows(String base, String table, List<String> keys) throws Exception {
+        byte[] body = (String.join("\n", keys)+"\n").getBytes(StandardCharsets.UTF_8);
+        try (InputStream in = request("POST", base+"/mget/"+encode(table)+"?replicated=true", body, 30000)) {
+            Row row;
+            while ((row = Row.readFrom(in)) != null) {
+                ReentrantLock lock = Worker.rowLock(table, row.key());
+                lock.lock();
+                try {
+                    Worker.preserveForSnapshots(table, row.key());
+                    Worker.putRow(table, row);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private static List<String> postLines(String url, String body) throws Exception {
         List<String> lines = new ArrayList<>();
-        try (var in = c.getInputStream(); var sc = new java.util.Scanner(in)) {
+        try (var in = request("POST", url, body.getBytes(StandardCharsets.UTF_8), 30000); var sc = new java.util.Scanner(in, StandardCharsets.UTF_8)) {
             while (sc.hasNextLine()) lines.add(sc.nextLine());
         }
         return lines;
     }
 
-    private static String sha1Hex(String s) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            md.update(s.getBytes());
-            byte[] dig = md.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : dig) sb.append(String.format("%02x", b));
-            return sb.toString();
-        } catch (Exception e) { return ""; }
+    /** Send a request over the shared connection pool (see tools.ConnectionPool); the answer must be 200 OK. */
+    private static InputStream request(String method, String url, byte[] body, int timeoutMillis) throws Exception {
+        HTTP.Response res = HTTP.doRequestWithTimeout(method, url, body, timeoutMillis, false);
+        if (res == null || res.statusCode() != 200) {
+            throw new IOException(method+" "+url+" failed: "+(res == null ? "no response" : "status="+res.statusCode()));
+        }
+        return new ByteArrayInputStream(res.body());
+    }
+
+    private static String lines(List<Integer> nodes) {
+        StringBuilder sb = new StringBuilder();
+        for (int n : nodes) sb.append(n).append("\n");
+        return sb.toString();
+    }
+
+    private static List<String> fetchLines(String url) throws Exception {
+        List<String> lines = new ArrayList<>();
+        try (var in = request("GET", url, null, 2000); var sc = new java.util.Scanner(in)) {
+            while (sc.hasNextLine()) lines.add(sc.nextLine());
+        }
+        return lines;
     }
 }
@@ -46,40 +46,46 @@ public class Row implements Serializable {
     return values.get(key);
   }
 
+  // Old text encoding: reads up to the next space; null at a newline or end of stream
   static String readStringSpace(InputStream in) throws Exception {
-    byte buffer[] = new byte[16384];
-    int numRead = 0;
-    while (true) {
-      if (numRead == buffer.length)
-        throw new Exception("Format error: Expecting string+space");
-
-      int b = in.read();
-      if ((b < 0) || (b == 10))
-        return null;
-      buffer[numRead++] = (byte)b;
-      if (b == ' ')
-        return new String(buffer, 0, numRead-1);
-    }
+    return readStringSpace(in, in.read());
   }
 
-  static String readStringSpace(RandomAccessFile in) throws Exception {
-    byte buffer[] = new byte[16384];
+  private static String readStringSpace(InputStream in, int b) throws Exception {
+    byte buffer[] = new byte[64];
     int numRead = 0;
     while (true) {
-      if (numRead == buffer.length)
-        throw new Exception("Format error: Expecting string+space");
-
-      int b = in.read();
       if ((b < 0) || (b == 10))
         return null;
-      buffer[numRead++] = (byte)b;
       if (b == ' ')
-        return new String(buffer, 0, numRead-1);
+        return new String(buffer, 0, numRead);
+      if (numRead == buffer.length) {
+        if (numRead >= 16384)
+          throw new Exception("Format error: Expecting string+space");
+        buffer = Arrays.copyOf(buffer, 2*numRead);
+      }
+      buffer[numRead++] = (byte)b;
+      b = in.read();
     }
   }
 
+  // Reads one row in either encoding (see RowCodec); null at a blank line or end of stream.
+  // Text rows end at their newline; a binary row is self-delimiting, so the newline that
+  // follows it in /batch bodies and text scans is skipped here, which needs a stream that
+  // supports mark() when more than one row is read from it.
   public static Row readFrom(InputStream in) throws Exception {
-    String theKey = readStringSpace(in);
+    int first = in.read();
+    if (first == (RowCodec.MAGIC & 0xff)) {
+      Row row = RowCodec.readBinary(in);
+      if (in.markSupported()) {
+        in.mark(1);
+        if (in.read() != '\n')
+          in.reset();
+      }
+      return row;
+    }
+
+    String theKey = readStringSpace(in, first);
     if (theKey == null) 
       return null;
 
@@ -108,32 +114,36 @@ public class Row implements Serializable {
   }
 
   public static Row readFrom(RandomAccessFile in) throws Exception {
-    String theKey = readStringSpace(in);
-    if (theKey == null) 
-      return null;
+    return readFrom(java.nio.channels.Channels.newInputStream(in.getChannel()));
+  }
 
-    Row newRow = new Row(theKey);
-    while (true) {
-      String keyOrMarker = readStringSpace(in);
-      if (keyOrMarker == null)
-        return newRow;
+  // Length-prefixed framing used by binary scans: a 4-byte big-endian length, then the row
+  // in toByteArray() form. A zero length marks the end of the stream.
+  public void writeFramed(DataOutputStream out) throws IOException {
+    byte[] data = toByteArray();
+    out.writeInt(data.length);
+    out.write(data);
+  }
 
-      int len = Integer.parseInt(readStringSpace(in));
-      byte[] theValue = new byte[len];
-      int bytesRead = 0;
-      while (bytesRead < len) {
-        int n = in.read(theValue, bytesRead, len - bytesRead);
-        if (n < 0)
-          throw new Exception("Premature end of stream while reading value for key '"+keyOrMarker+"' (read "+bytesRead+" bytes, expecting "+len+")");
-        bytesRead += n;
-      }
+  public static void writeEndOfFrames(DataOutputStream out) throws IOException {
+    out.writeInt(0);
+  }
 
-      byte b = (byte)in.read();
-      if (b != ' ')
-        throw new Exception("Expecting a space separator after value for key '"+keyOrMarker+"'");
+  // Returns null at the end marker; a stream that ends before it is an error
+  public static Row readFramed(DataInputStream in) throws Exception {
+    int len = in.readInt();
+    if (len == 0)
+      return null;
+    if (len < 0)
+      throw new Exception("Format error: negative frame length "+len);
+    byte[] data = new byte[len];
+    in.readFully(data);
+    return fromByteArray(data);
+  }
 
-      newRow.put(keyOrMarker, theValue);
-    }
+  // Parse a complete toByteArray() encoding, or an old text one, in place
+  public static Row fromByteArray(byte[] data) throws Exception {
+    return RowCodec.decode(data, 0, data.length);
   }
 
   public synchronized String toString() {
@@ -146,26 +156,8 @@ public class Row implements Serializable {
     return s + " }";
   }
 
+  // Binary encoding; see RowCodec
   public synchronized byte[] toByteArray()  {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-    try {
-      baos.write(key.getBytes());
-      baos.write(' ');
-
-      for (String s : values.keySet()) {
-        baos.write(s.getBytes());
-        baos.write(' ');
-        baos.write((""+values.get(s).length).getBytes());
-        baos.write(' ');
-        baos.write(values.get(s));
-        baos.write(' ');
-      }
-    } catch (Exception e) {
-      e.printStackTrace();
-      throw new RuntimeException("This should not happen!");
-    };
-
-    return baos.toByteArray();
+    return RowCodec.encode(this);
   }
-}
\ No newline at end of file
+}
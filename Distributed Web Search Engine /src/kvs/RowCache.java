@@ -0,0 +1,190 @@
+package kvs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Byte-bounded cache of decoded rows for one persistent table, so that hot rows (popular
+ * pt-index words, pt-pageranks entries) are served without going to disk.
+ *
+ * Entries are kept in LRU order and weighed by their approximate heap size. Admission is
+ * TinyLFU: a count-min sketch estimates how often each key was requested recently, and a
+ * new row only displaces the least recently used one if its key is requested more often.
+ * This keeps a scan over cold rows from flushing the working set. The sketch halves all of
+ * its counters every 10 x width increments, so old popularity fades.
+ *
+ * Rows held here are private copies; callers must not modify them, and CachedTableStore
+ * hands out clones. Writers invalidate() after storing; a reader that loaded a row passes
+ * the stamp() it took before loading to admit(), which drops the row if the key was
+ * invalidated in between, so a slow reader cannot put back an overwritten version.
+ */
+final class RowCache {
+
+    private static final int SKETCH_DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int STRIPES = 64;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long bytes = 0;
+
+    private final byte[][] sketch;
+    private final int sketchMask;
+    private final int sampleSize;
+    private int samples = 0;
+
+    /** Bumped on every invalidation of a key in the stripe. */
+    private final long[] generations = new long[STRIPES];
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long rejections = 0;
+
+    private static final class Entry {
+        final Row row;
+        final int weight;
+
+        Entry(Row row, int weight) {
+            this.row = row;
+            this.weight = weight;
+        }
+    }
+
+    RowCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        // About one counter per 512 bytes of capacity, so a cache of small rows is still sampled well
+        int width = Integer.highestOneBit((int) Math.max(1024, Math.min(1 << 20, maxBytes / 512)));
+        sketch = new byte[SKETCH_DEPTH][width];
+        sketchMask = width - 1;
+        sampleSize = 10 * width;
+    }
+
+    /** Approximate heap footprint of a row: the map entry, name and value per column. */
+    static int weigh(Row row) {
+        long weight = 64 + 2L * row.key().length();
+        synchronized (row) {
+            for (Map.Entry<String, byte[]> e : row.values.entrySet()) {
+                weight += 48 + 2L * e.getKey().length() + 16 + e.getValue().length;
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, weight);
+    }
+
+    /** The cached row, or null on a miss. Either way the request counts towards the key's frequency. */
+    synchronized Row get(String key) {
+        increment(key);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.row;
+    }
+
+    synchronized long stamp(String key) {
+        return generations[stripe(key)];
+    }
+
+    /** Cache a row loaded from the store, unless the key was invalidated since stamp() or loses admission. */
+    synchronized void admit(String key, Row row, long stamp) {
+        if (generations[stripe(key)] != stamp || entries.containsKey(key)) {
+            return;
+        }
+        int weight = weigh(row);
+        if (weight > maxBytes / 8) {
+            rejections++;
+            return;
+        }
+        if (bytes + weight > maxBytes) {
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            if (it.hasNext() && frequency(key) <= frequency(it.next().getKey())) {
+                rejections++;
+                return;
+            }
+            it = entries.entrySet().iterator();
+            while (bytes + weight > maxBytes && it.hasNext()) {
+                bytes -= it.next().getValue().weight;
+                it.remove();
+                evictions++;
+            }
+        }
+        entries.put(key, new Entry(row, weight));
+        bytes += weight;
+    }
+
+    synchronized void invalidate(String key) {
+        generations[stripe(key)]++;
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.weight;
+        }
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < STRIPES; i++) {
+            generations[i]++;
+        }
+        entries.clear();
+        bytes = 0;
+    }
+
+    /** Short summary for the worker dashboard. */
+    synchronized String describe() {
+        long requests = hits + misses;
+        return entries.size() + " rows, " + formatBytes(bytes) + " of " + formatBytes(maxBytes)
+                + ", " + (requests == 0 ? 0 : 100 * hits / requests) + "% hits (" + hits + " hits, "
+                + misses + " misses, " + evictions + " evictions, " + rejections + " not admitted)";
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return (bytes / 1024) + " KB";
+        return (bytes / (1024 * 1024)) + " MB";
+    }
+
+    // ---- frequency sketch ----
+
+    private static int stripe(String key) {
+        return (key.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    private static int spread(String key) {
+        int h = key.hashCode() * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /** Index of the key's counter in sketch row i, from double hashing. */
+    private int index(int h, int i) {
+        return (h + i * ((h >>> 13) | 1)) & sketchMask;
+    }
+
+    private void increment(String key) {
+        int h = spread(key);
+        for (int i = 0; i < SKETCH_DEPTH; i++) {
+            int idx = index(h, i);
+            if (sketch[i][idx] < MAX_COUNT) {
+                sketch[i][idx]++;
+            }
+        }
+        if (++samples >= sampleSize) {
+            for (byte[] row : sketch) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] >>= 1;
+                }
+            }
+            samples /= 2;
+        }
+    }
+
+    private int frequency(String key) {
+        int h = spread(key);
+        int min = MAX_COUNT;
+        for (int i = 0; i < SKETCH_DEPTH; i++) {
+            min = Math.min(min, sketch[i][index(h, i)]);
+        }
+        return min;
+    }
+}
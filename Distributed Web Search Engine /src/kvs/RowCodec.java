@@ -0,0 +1,313 @@
+package kvs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Binary encoding of a Row, used for storage and on the wire.
+ *
+ * Version 1 layout: 0x81 | varint keyLength | key | varint columns |
+ * (varint nameLength | name | varint valueLength | value)*, with unsigned LEB128 varints
+ * and UTF-8 strings. The leading byte is 0x80 | version; it can never start the old
+ * space-delimited text encoding (key SP (column SP length SP value SP)*), because a UTF-8
+ * key cannot start with a continuation byte, so decode() tells the two apart and still reads
+ * rows written before this format existed.
+ *
+ * Rows are decoded straight out of a ByteBuffer (heap, direct or mapped) with one copy per
+ * value into the Row; column names are interned, since most tables repeat a handful of them
+ * on every row.
+ */
+public final class RowCodec {
+
+    static final int VERSION = 1;
+    static final byte MAGIC = (byte) (0x80 | VERSION);
+
+    private static final int MAX_FIELD_BYTES = Integer.MAX_VALUE - 16;
+
+    private RowCodec() {
+    }
+
+    // ---- column name caches; direct-mapped, racy by design (entries are immutable) ----
+
+    private static final int NAME_CACHE_SIZE = 1024;
+    private static final int MAX_INTERNED_NAME = 64;
+
+    private static final class Name {
+        final String value;
+        final byte[] bytes;
+
+        Name(String value, byte[] bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final Name[] namesByBytes = new Name[NAME_CACHE_SIZE];
+    private static final Name[] namesByString = new Name[NAME_CACHE_SIZE];
+
+    /** UTF-8 bytes of a column name, cached for names that repeat. */
+    static byte[] nameBytes(String name) {
+        int slot = (name.hashCode() & 0x7fffffff) % NAME_CACHE_SIZE;
+        Name cached = namesByString[slot];
+        if (cached != null && cached.value.equals(name)) {
+            return cached.bytes;
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= MAX_INTERNED_NAME) {
+            namesByString[slot] = new Name(name, bytes);
+        }
+        return bytes;
+    }
+
+    /** Column name at buf[pos, pos + len), reusing the String of an earlier row when possible. */
+    static String name(ByteBuffer buf, int pos, int len) {
+        if (len > MAX_INTERNED_NAME) {
+            return string(buf, pos, len);
+        }
+        int h = 1;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + buf.get(pos + i);
+        }
+        int slot = (h & 0x7fffffff) % NAME_CACHE_SIZE;
+        Name cached = namesByBytes[slot];
+        if (cached != null && cached.bytes.length == len) {
+            boolean same = true;
+            for (int i = 0; i < len && same; i++) {
+                same = cached.bytes[i] == buf.get(pos + i);
+            }
+            if (same) {
+                return cached.value;
+            }
+        }
+        byte[] bytes = new byte[len];
+        buf.get(pos, bytes);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        namesByBytes[slot] = new Name(value, bytes);
+        return value;
+    }
+
+    private static String string(ByteBuffer buf, int pos, int len) {
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + pos, len, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[len];
+        buf.get(pos, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // ---- varints ----
+
+    static int varintLength(int value) {
+        int n = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    private static int putVarint(byte[] out, int pos, int value) {
+        while ((value & ~0x7f) != 0) {
+            out[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Premature end of stream in varint");
+            }
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return checkLength(value);
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int checkLength(int value) throws IOException {
+        if (value < 0 || value > MAX_FIELD_BYTES) {
+            throw new IOException("Bad field length " + value);
+        }
+        return value;
+    }
+
+    /** Reads a varint at the buffer's position and advances it. */
+    private static int readVarint(ByteBuffer buf) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!buf.hasRemaining()) {
+                throw new EOFException("Truncated row in varint");
+            }
+            int b = buf.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return checkLength(value);
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    // ---- encoding ----
+
+    /** Encodes the row into a single exactly-sized array. */
+    public static byte[] encode(Row row) {
+        synchronized (row) {
+            byte[] key = row.key.getBytes(StandardCharsets.UTF_8);
+            int columns = row.values.size();
+            byte[][] names = new byte[columns][];
+            byte[][] values = new byte[columns][];
+            int size = 1 + varintLength(key.length) + key.length + varintLength(columns);
+            int i = 0;
+            for (Map.Entry<String, byte[]> e : row.values.entrySet()) {
+                names[i] = nameBytes(e.getKey());
+                values[i] = e.getValue();
+                size += varintLength(names[i].length) + names[i].length + varintLength(values[i].length) + values[i].length;
+                i++;
+            }
+
+            byte[] out = new byte[size];
+            out[0] = MAGIC;
+            int pos = putVarint(out, 1, key.length);
+            System.arraycopy(key, 0, out, pos, key.length);
+            pos = putVarint(out, pos + key.length, columns);
+            for (i = 0; i < columns; i++) {
+                pos = putVarint(out, pos, names[i].length);
+                System.arraycopy(names[i], 0, out, pos, names[i].length);
+                pos = putVarint(out, pos + names[i].length, values[i].length);
+                System.arraycopy(values[i], 0, out, pos, values[i].length);
+                pos += values[i].length;
+            }
+            return out;
+        }
+    }
+
+    // ---- decoding ----
+
+    public static Row decode(byte[] data, int offset, int length) throws IOException {
+        return decode(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * Decodes the row held in the buffer's remaining bytes, in either encoding, and advances
+     * the position past it. Rows in the text encoding are not self-delimiting, so the buffer
+     * must end where the row does.
+     */
+    public static Row decode(ByteBuffer buf) throws IOException {
+        if (!buf.hasRemaining()) {
+            throw new EOFException("Empty row");
+        }
+        if (buf.get(buf.position()) == MAGIC) {
+            buf.get();
+            return decodeBinary(buf);
+        }
+        return decodeText(buf);
+    }
+
+    private static Row decodeBinary(ByteBuffer buf) throws IOException {
+        int keyLength = readVarint(buf);
+        need(buf, keyLength);
+        Row row = new Row(string(buf, buf.position(), keyLength));
+        buf.position(buf.position() + keyLength);
+        int columns = readVarint(buf);
+        for (int i = 0; i < columns; i++) {
+            int nameLength = readVarint(buf);
+            need(buf, nameLength);
+            String column = name(buf, buf.position(), nameLength);
+            buf.position(buf.position() + nameLength);
+            int valueLength = readVarint(buf);
+            need(buf, valueLength);
+            byte[] value = new byte[valueLength];
+            buf.get(value);
+            row.values.put(column, value);
+        }
+        return row;
+    }
+
+    private static void need(ByteBuffer buf, int length) throws IOException {
+        if (buf.remaining() < length) {
+            throw new EOFException("Truncated row: need " + length + " bytes, have " + buf.remaining());
+        }
+    }
+
+    /** Reads a binary row whose leading MAGIC byte has already been consumed. */
+    static Row readBinary(InputStream in) throws IOException {
+        Row row = new Row(new String(readFully(in, readVarint(in)), StandardCharsets.UTF_8));
+        int columns = readVarint(in);
+        for (int i = 0; i < columns; i++) {
+            byte[] name = readFully(in, readVarint(in));
+            String column = name(ByteBuffer.wrap(name), 0, name.length);
+            row.values.put(column, readFully(in, readVarint(in)));
+        }
+        return row;
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(data, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Premature end of stream (read " + read + " bytes, expecting " + length + ")");
+            }
+            read += n;
+        }
+        return data;
+    }
+
+    /** The old space-delimited encoding: key SP (column SP length SP value SP)*. */
+    private static Row decodeText(ByteBuffer buf) throws IOException {
+        int end = buf.limit();
+        int pos = buf.position();
+        int space = indexOfSpace(buf, pos, end);
+        Row row = new Row(legacyString(buf, pos, space - pos));
+        pos = space + 1;
+        while (pos < end) {
+            space = indexOfSpace(buf, pos, end);
+            String column = name(buf, pos, space - pos);
+            pos = space + 1;
+            space = indexOfSpace(buf, pos, end);
+            int length;
+            try {
+                length = Integer.parseInt(legacyString(buf, pos, space - pos));
+            } catch (NumberFormatException e) {
+                throw new IOException("Format error: bad value length for column '" + column + "'");
+            }
+            pos = space + 1;
+            if (length < 0 || pos + length >= end || buf.get(pos + length) != ' ') {
+                throw new IOException("Format error: bad value length " + length + " for column '" + column + "'");
+            }
+            byte[] value = new byte[length];
+            buf.get(pos, value);
+            row.values.put(column, value);
+            pos += length + 1;
+        }
+        buf.position(end);
+        return row;
+    }
+
+    private static int indexOfSpace(ByteBuffer buf, int from, int end) throws IOException {
+        for (int i = from; i < end; i++) {
+            if (buf.get(i) == ' ') {
+                return i;
+            }
+        }
+        throw new IOException("Format error: Expecting string+space");
+    }
+
+    /** Text rows were written with the platform charset. */
+    private static String legacyString(ByteBuffer buf, int pos, int len) {
+        byte[] bytes = new byte[len];
+        buf.get(pos, bytes);
+        return new String(bytes);
+    }
+}
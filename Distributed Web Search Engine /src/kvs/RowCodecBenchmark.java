@@ -0,0 +1,214 @@
+package kvs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the old space-delimited row encoding with RowCodec on rows shaped like pt-crawl
+ * (a few small columns and an HTML page) and pt-index (chunked comma-separated URL lists).
+ *
+ * Usage: java kvs.RowCodecBenchmark [rows] [seconds per measurement]
+ */
+public class RowCodecBenchmark {
+
+    private static volatile long sink;
+
+    interface Op {
+        long run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2.0;
+
+        Random random = new Random(42);
+        run("pt-crawl", crawlRows(rows, random), seconds);
+        run("pt-index", indexRows(rows, random), seconds);
+    }
+
+    private static void run(String name, List<Row> rows, double seconds) throws Exception {
+        List<byte[]> oldBytes = new ArrayList<>();
+        List<byte[]> newBytes = new ArrayList<>();
+        long oldSize = 0;
+        long newSize = 0;
+        for (Row row : rows) {
+            byte[] o = oldEncode(row);
+            byte[] n = RowCodec.encode(row);
+            oldBytes.add(o);
+            newBytes.add(n);
+            oldSize += o.length;
+            newSize += n.length;
+            if (!same(row, oldDecode(new ByteArrayInputStream(o))) || !same(row, RowCodec.decode(n, 0, n.length))) {
+                throw new IllegalStateException("Round trip failed for " + row.key());
+            }
+        }
+        System.out.printf("%s: %d rows, %.1f KB/row (old) vs %.1f KB/row (new)%n",
+                name, rows.size(), oldSize / 1024.0 / rows.size(), newSize / 1024.0 / rows.size());
+
+        measure("  encode old        ", rows.size(), oldSize, seconds, () -> {
+            long total = 0;
+            for (Row row : rows) total += oldEncode(row).length;
+            return total;
+        });
+        measure("  encode RowCodec   ", rows.size(), newSize, seconds, () -> {
+            long total = 0;
+            for (Row row : rows) total += RowCodec.encode(row).length;
+            return total;
+        });
+        measure("  decode old        ", rows.size(), oldSize, seconds, () -> {
+            long total = 0;
+            for (byte[] b : oldBytes) total += oldDecode(new ByteArrayInputStream(b)).values.size();
+            return total;
+        });
+        measure("  decode text, new  ", rows.size(), oldSize, seconds, () -> {
+            long total = 0;
+            for (byte[] b : oldBytes) total += RowCodec.decode(b, 0, b.length).values.size();
+            return total;
+        });
+        measure("  decode RowCodec   ", rows.size(), newSize, seconds, () -> {
+            long total = 0;
+            for (byte[] b : newBytes) total += RowCodec.decode(b, 0, b.length).values.size();
+            return total;
+        });
+        measure("  decode stream     ", rows.size(), newSize, seconds, () -> {
+            long total = 0;
+            for (byte[] b : newBytes) total += Row.readFrom(new ByteArrayInputStream(b)).values.size();
+            return total;
+        });
+    }
+
+    /** Runs op for a warm-up period and then for the measured period; prints rows/s and MB/s. */
+    private static void measure(String label, int rows, long bytes, double seconds, Op op) throws Exception {
+        long warmupEnd = System.nanoTime() + (long) (seconds * 0.5e9);
+        while (System.nanoTime() < warmupEnd) {
+            sink += op.run();
+        }
+        long start = System.nanoTime();
+        long end = start + (long) (seconds * 1e9);
+        long iterations = 0;
+        long now;
+        do {
+            sink += op.run();
+            iterations++;
+            now = System.nanoTime();
+        } while (now < end);
+        double elapsed = (now - start) / 1e9;
+        System.out.printf("%s %12.0f rows/s %10.1f MB/s%n", label,
+                iterations * rows / elapsed, iterations * bytes / elapsed / (1 << 20));
+    }
+
+    private static boolean same(Row a, Row b) {
+        if (!a.key().equals(b.key()) || !a.columns().equals(b.columns())) return false;
+        for (String c : a.columns()) {
+            if (!java.util.Arrays.equals(a.getBytes(c), b.getBytes(c))) return false;
+        }
+        return true;
+    }
+
+    // ---- sample data ----
+
+    private static String url(Random random) {
+        return "https://en.wikipedia.org/wiki/Article_" + Integer.toString(random.nextInt(1 << 30), 36);
+    }
+
+    private static List<Row> crawlRows(int n, Random random) {
+        String[] words = { "search", "engine", "page", "rank", "index", "crawler", "the", "of", "and", "distributed" };
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            StringBuilder page = new StringBuilder("<html><head><title>Page</title></head><body>");
+            int paragraphs = 20 + random.nextInt(200);
+            for (int p = 0; p < paragraphs; p++) {
+                page.append("<p>");
+                for (int w = 0; w < 30; w++) page.append(words[random.nextInt(words.length)]).append(' ');
+                page.append("<a href=\"").append(url(random)).append("\">link</a></p>\n");
+            }
+            page.append("</body></html>");
+            String url = url(random);
+            Row row = new Row(tools.Hasher.hash(url));
+            row.put("url", url);
+            row.put("page", page.toString());
+            row.put("responseCode", "200");
+            row.put("contentType", "text/html; charset=UTF-8");
+            row.put("status", "ok");
+            row.put("done", "1");
+            row.put("length", String.valueOf(page.length()));
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static List<Row> indexRows(int n, Random random) {
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Row row = new Row("word" + Integer.toString(i, 36));
+            int urls = 1 + random.nextInt(100);
+            StringBuilder chunk = new StringBuilder();
+            int chunkIndex = 0;
+            for (int u = 0; u < urls; u++) {
+                if (chunk.length() > 0) chunk.append(',');
+                chunk.append(url(random));
+                if ((u + 1) % 10 == 0 || u == urls - 1) {
+                    row.put(String.format("chunk%04d", chunkIndex++), chunk.toString());
+                    chunk.setLength(0);
+                }
+            }
+            row.put("__count", String.valueOf(urls));
+            row.put("__nextChunk", String.valueOf(chunkIndex - 1));
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    // ---- the encoding Row used before RowCodec, kept here as the baseline ----
+
+    private static byte[] oldEncode(Row row) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.write(row.key().getBytes());
+        baos.write(' ');
+        for (String s : row.columns()) {
+            baos.write(s.getBytes());
+            baos.write(' ');
+            baos.write(("" + row.getBytes(s).length).getBytes());
+            baos.write(' ');
+            baos.write(row.getBytes(s));
+            baos.write(' ');
+        }
+        return baos.toByteArray();
+    }
+
+    private static String oldReadStringSpace(InputStream in) throws Exception {
+        byte[] buffer = new byte[16384];
+        int numRead = 0;
+        while (true) {
+            if (numRead == buffer.length) throw new Exception("Format error: Expecting string+space");
+            int b = in.read();
+            if ((b < 0) || (b == 10)) return null;
+            buffer[numRead++] = (byte) b;
+            if (b == ' ') return new String(buffer, 0, numRead - 1);
+        }
+    }
+
+    private static Row oldDecode(InputStream in) throws Exception {
+        String key = oldReadStringSpace(in);
+        if (key == null) return null;
+        Row row = new Row(key);
+        while (true) {
+            String column = oldReadStringSpace(in);
+            if (column == null) return row;
+            int len = Integer.parseInt(oldReadStringSpace(in));
+            byte[] value = new byte[len];
+            int read = 0;
+            while (read < len) {
+                int n = in.read(value, read, len - read);
+                if (n < 0) throw new Exception("Premature end of stream");
+                read += n;
+            }
+            if (in.read() != ' ') throw new Exception("Expecting a space separator");
+            row.put(column, value);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package kvs;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Read-modify-write operations that the worker runs on a single row while holding its row
+ * lock, so that clients on different machines can share a row without racing each other.
+ * Each method changes the row in place; the caller writes it back.
+ */
+class RowOps {
+
+    static final String META_COUNT = "__count";
+    static final String META_NEXT_CHUNK = "__nextChunk";
+    static final String META_FULL = "__full";
+
+    static final String APPENDED = "OK";
+    static final String EXISTS = "EXISTS";
+    static final String FULL = "FULL";
+
+    /** Outcome of appendCapped(); status is also the body of the HTTP response. */
+    static final class AppendResult {
+        final String status;
+        final boolean changed;      // the row has to be written back
+
+        AppendResult(String status, boolean changed) {
+            this.status = status;
+            this.changed = changed;
+        }
+    }
+
+    private static int intColumn(Row row, String column, int defaultValue) {
+        String value = row.get(column);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static String chunkColumnName(String prefix, int index) {
+        String actualPrefix = (prefix == null || prefix.isEmpty()) ? "chunk" : prefix;
+        return actualPrefix + String.format("%04d", Math.max(index, 0));
+    }
+
+    private static boolean chunkContains(String chunkValue, String candidate, char sep) {
+        for (String part : chunkValue.split(java.util.regex.Pattern.quote(String.valueOf(sep)))) {
+            if (part.equals(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int countItems(String chunkValue, char sep) {
+        int count = 1;
+        for (int i = 0; i < chunkValue.length(); i++) {
+            if (chunkValue.charAt(i) == sep) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Append a value to a chunked list: columns prefix0000, prefix0001, ... hold up to
+     * chunkSize separated values each, __count the number of values, __nextChunk the chunk
+     * being filled, and __full is set to "1" once cap values have been appended. Only the
+     * current chunk is checked for duplicates.
+     */
+    static AppendResult appendCapped(Row row, String prefix, String value, int cap, char sep, int chunkSize) {
+        if ("1".equals(row.get(META_FULL))) {
+            return new AppendResult(FULL, false);
+        }
+        int count = intColumn(row, META_COUNT, 0);
+        int nextChunk = Math.max(0, intColumn(row, META_NEXT_CHUNK, 0));
+        int startChunk = nextChunk;
+        String result;
+
+        while (true) {
+            if (count >= cap) {
+                row.put(META_FULL, "1");
+                return new AppendResult(FULL, true);
+            }
+            String chunkColumn = chunkColumnName(prefix, nextChunk);
+            String chunkValue = row.get(chunkColumn);
+            if (chunkValue == null || chunkValue.isEmpty()) {
+                row.put(chunkColumn, value);
+                count++;
+                result = APPENDED;
+                break;
+            }
+            if (chunkContains(chunkValue, value, sep)) {
+                result = EXISTS;
+                break;
+            }
+            int items = countItems(chunkValue, sep);
+            if (items >= chunkSize) {
+                nextChunk++;
+                continue;
+            }
+            row.put(chunkColumn, chunkValue + sep + value);
+            count++;
+            if (items + 1 >= chunkSize) {
+                nextChunk++;
+            }
+            result = APPENDED;
+            break;
+        }
+
+        if (APPENDED.equals(result)) {
+            row.put(META_COUNT, Integer.toString(count));
+            if (count >= cap) {
+                row.put(META_FULL, "1");
+            }
+        }
+        boolean changed = (APPENDED.equals(result) || nextChunk != startChunk);
+        if (changed) {
+            row.put(META_NEXT_CHUNK, Integer.toString(nextChunk));
+        }
+        return new AppendResult(result, changed);
+    }
+
+    /** Add delta to a decimal counter column (missing or unparsable counts as 0); returns the new value. */
+    static long increment(Row row, String column, long delta) {
+        long current = 0;
+        String value = row.get(column);
+        if (value != null) {
+            try {
+                current = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                current = 0;
+            }
+        }
+        long updated = current + delta;
+        row.put(column, Long.toString(updated));
+        return updated;
+    }
+
+    /**
+     * Apply updates only if every expected column currently holds the given bytes; a null
+     * expected value means the column must be absent. Returns false and leaves the row
+     * untouched otherwise.
+     */
+    static boolean compareAndSet(Row row, Map<String, byte[]> expected, Map<String, byte[]> updates) {
+        for (Map.Entry<String, byte[]> e : expected.entrySet()) {
+            byte[] current = row.getBytes(e.getKey());
+            if (e.getValue() == null ? current != null : !Arrays.equals(current, e.getValue())) {
+                return false;
+            }
+        }
+        for (Map.Entry<String, byte[]> e : updates.entrySet()) {
+            row.put(e.getKey(), e.getValue());
+        }
+        return true;
+    }
+}
@@ -0,0 +1,183 @@
+package kvs;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Condition on rows that a KVS worker evaluates during a scan, so that only matching rows
+ * are sent (see KVSClient.scan(table, startRow, endRowExclusive, filter)).
+ *
+ * A row matches if it meets every condition added: hasColumn, columnEquals, columnPrefix,
+ * keyPrefix, and, if any key ranges were added, if its key falls into at least one of them.
+ * Key prefixes and ranges also narrow the part of the table the worker reads, which for
+ * persistent tables means only the matching part of the key index is visited.
+ *
+ * On the wire, a filter is one condition per line, each a keyword followed by its
+ * URL-encoded arguments, separated by spaces; see toString() and parse().
+ */
+public class ScanFilter {
+
+    private final List<String[]> conditions = new ArrayList<>();
+
+    /** Rows that have a value in the column. */
+    public ScanFilter hasColumn(String column) {
+        conditions.add(new String[] { "has", column });
+        return this;
+    }
+
+    /** Rows whose column holds exactly this value. */
+    public ScanFilter columnEquals(String column, String value) {
+        conditions.add(new String[] { "eq", column, value });
+        return this;
+    }
+
+    /** Rows whose column holds a value that starts with the prefix. */
+    public ScanFilter columnPrefix(String column, String prefix) {
+        conditions.add(new String[] { "prefix", column, prefix });
+        return this;
+    }
+
+    /** Rows whose key starts with the prefix. */
+    public ScanFilter keyPrefix(String prefix) {
+        conditions.add(new String[] { "keyPrefix", prefix });
+        return this;
+    }
+
+    /** Allow rows with startRow <= key < endRowExclusive (either bound may be null); rows in any added range match. */
+    public ScanFilter keyRange(String startRow, String endRowExclusive) {
+        conditions.add(new String[] { "range", startRow == null ? "" : startRow, endRowExclusive == null ? "" : endRowExclusive });
+        return this;
+    }
+
+    public boolean accepts(Row row) {
+        String key = row.key();
+        boolean ranged = false, inRange = false;
+        for (String[] c : conditions) {
+            switch (c[0]) {
+                case "has":
+                    if (row.getBytes(c[1]) == null) return false;
+                    break;
+                case "eq":
+                    if (!c[2].equals(row.get(c[1]))) return false;
+                    break;
+                case "prefix": {
+                    String value = row.get(c[1]);
+                    if (value == null || !value.startsWith(c[2])) return false;
+                    break;
+                }
+                case "keyPrefix":
+                    if (!key.startsWith(c[1])) return false;
+                    break;
+                case "range":
+                    ranged = true;
+                    inRange |= (c[1].isEmpty() || key.compareTo(c[1]) >= 0) && (c[2].isEmpty() || key.compareTo(c[2]) < 0);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return !ranged || inRange;
+    }
+
+    /** Smallest key a matching row can have, or null if there is no lower bound. */
+    public String startRow() {
+        String low = null;
+        boolean ranged = false;
+        String rangeLow = null;
+        for (String[] c : conditions) {
+            if (c[0].equals("keyPrefix")) {
+                low = max(low, c[1]);
+            } else if (c[0].equals("range")) {
+                // The lowest of the ranges' lower bounds; an unbounded range means none
+                rangeLow = !ranged ? c[1] : (rangeLow.isEmpty() || c[1].isEmpty()) ? "" : min(rangeLow, c[1]);
+                ranged = true;
+            }
+        }
+        if (ranged && !rangeLow.isEmpty()) {
+            low = max(low, rangeLow);
+        }
+        return low;
+    }
+
+    /** A key above the key of every matching row, or null if there is no upper bound. */
+    public String endRowExclusive() {
+        String high = null;
+        boolean ranged = false;
+        String rangeHigh = null;
+        for (String[] c : conditions) {
+            if (c[0].equals("keyPrefix")) {
+                String next = prefixEnd(c[1]);
+                if (next != null) {
+                    high = (high == null) ? next : min(high, next);
+                }
+            } else if (c[0].equals("range")) {
+                rangeHigh = !ranged ? c[2] : (rangeHigh.isEmpty() || c[2].isEmpty()) ? "" : max(rangeHigh, c[2]);
+                ranged = true;
+            }
+        }
+        if (ranged && !rangeHigh.isEmpty()) {
+            high = (high == null) ? rangeHigh : min(high, rangeHigh);
+        }
+        return high;
+    }
+
+    /** The first string after all strings that start with the prefix; null if there is none. */
+    private static String prefixEnd(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return null;
+    }
+
+    private static String min(String a, String b) {
+        return (a.compareTo(b) <= 0) ? a : b;
+    }
+
+    private static String max(String a, String b) {
+        return (a == null || a.compareTo(b) < 0) ? b : a;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (String[] c : conditions) {
+            sb.append(c[0]);
+            for (int i = 1; i < c.length; i++) {
+                sb.append(' ').append(URLEncoder.encode(c[i], StandardCharsets.UTF_8));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** Read a filter written by toString(); throws IllegalArgumentException on unknown conditions. */
+    public static ScanFilter parse(String text) {
+        ScanFilter filter = new ScanFilter();
+        for (String line : text.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] pieces = line.split(" ", -1);
+            int arity;
+            switch (pieces[0]) {
+                case "has": case "keyPrefix": arity = 1; break;
+                case "eq": case "prefix": case "range": arity = 2; break;
+                default: throw new IllegalArgumentException("Unknown scan filter condition: " + pieces[0]);
+            }
+            if (pieces.length != arity + 1) {
+                throw new IllegalArgumentException("Malformed scan filter condition: " + line);
+            }
+            for (int i = 1; i < pieces.length; i++) {
+                pieces[i] = URLDecoder.decode(pieces[i], StandardCharsets.UTF_8);
+            }
+            filter.conditions.add(pieces);
+        }
+        return filter;
+    }
+}
@@ -0,0 +1,147 @@
+package kvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+
+import tools.HashRing;
+import tools.Logger;
+
+/**
+ * Secondary index over one column of a table on this worker: which of the rows stored here
+ * hold a given value in that column. Tables declare their indexes in kvs.properties, as
+ * "<table>.indexes = column,column"; an index is named after its column.
+ *
+ * An entry is the 64-bit hash of the value (HashRing.token, as 16 hex digits), a '.', and
+ * the row key, so entries sort by value and the rows with one value form a range. Indexes of
+ * pt-* tables are SegmentStores of their own under <storage>/indexes and survive restarts
+ * (an index whose build did not finish is built again); indexes of in-memory tables live in
+ * memory.
+ *
+ * Writers only ever add: after a row is stored, the entry for its current value is added
+ * unless it is there already, which is an in-memory check. Entries for values a row no
+ * longer holds, and for deleted rows, stay behind until a lookup reads the row, sees that it
+ * does not hold the value any more, and removes the entry. So a write that does not change
+ * the indexed column costs nothing, and every row holding a value is always found under it.
+ *
+ * A new index is filled from the table by a background thread while writers already add to
+ * it; lookups wait until it is complete.
+ */
+final class SecondaryIndex {
+
+    private static final Logger logger = Logger.getLogger(SecondaryIndex.class);
+
+    // Written into an index directory once the index holds every row of the table
+    private static final String BUILT_MARKER = "built";
+
+    final String tableName;
+    final String column;
+    private final SegmentStore disk;                    // indexes of persistent tables
+    private final ConcurrentSkipListSet<String> memory; // indexes of in-memory tables
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    /** Open the index, and fill it from the table in the background if it is new; dir is null for in-memory tables. */
+    SecondaryIndex(String tableName, String column, File dir, TableStore table) throws IOException {
+        this.tableName = tableName;
+        this.column = column;
+        boolean fresh = true;
+        if (dir == null) {
+            disk = null;
+            memory = new ConcurrentSkipListSet<>();
+        } else {
+            fresh = !new File(dir, BUILT_MARKER).exists();
+            disk = new SegmentStore(dir);
+            memory = null;
+        }
+        if (!fresh) {
+            ready.countDown();
+            return;
+        }
+        Thread builder = new Thread(() -> {
+            try {
+                int rows = 0;
+                Iterator<Row> it = table.scan(null, null);
+                while (it.hasNext()) {
+                    Row row = it.next();
+                    String value = row.get(column);
+                    if (value != null) {
+                        add(value, row.key());
+                        rows++;
+                    }
+                }
+                if (dir != null && !new File(dir, BUILT_MARKER).createNewFile()) {
+                    logger.warn("Could not mark index " + tableName + "." + column + " as built");
+                }
+                logger.info("Built index " + tableName + "." + column + " over " + rows + " row(s)");
+            } catch (Exception e) {
+                logger.error("Could not build index " + tableName + "." + column, e);
+            } finally {
+                ready.countDown();
+            }
+        }, "IndexBuild-" + tableName + "." + column);
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    private static String prefix(String value) {
+        return HashRing.tokenString(HashRing.token(value)) + ".";
+    }
+
+    /** Note that the row holds the value; callers hold the row's lock. */
+    void add(String value, String rowKey) throws IOException {
+        String entry = prefix(value) + rowKey;
+        if (memory != null) {
+            memory.add(entry);
+        } else if (!disk.contains(entry)) {
+            disk.put(new Row(entry));
+        }
+    }
+
+    /** Drop the entry of a row that no longer holds the value; callers hold the row's lock. */
+    void remove(String value, String rowKey) throws IOException {
+        String entry = prefix(value) + rowKey;
+        if (memory != null) {
+            memory.remove(entry);
+        } else {
+            disk.delete(entry);
+        }
+    }
+
+    /** Keys of the rows that may hold the value, in no particular order; callers check each row. */
+    List<String> rowKeys(String value) throws IOException {
+        try {
+            ready.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while building index " + tableName + "." + column);
+        }
+        String from = prefix(value);
+        String to = from.substring(0, from.length() - 1) + "/";   // '/' follows '.'
+        List<String> keys = new ArrayList<>();
+        if (memory != null) {
+            for (String entry : memory.subSet(from, to)) {
+                keys.add(entry.substring(from.length()));
+            }
+        } else {
+            Iterator<Row> entries = disk.scan(from, to);
+            while (entries.hasNext()) {
+                keys.add(entries.next().key().substring(from.length()));
+            }
+        }
+        return keys;
+    }
+
+    String describe() {
+        return column + " (" + (memory != null ? memory.size() + " entries in memory" : disk.count() + " entries, " + disk.describe()) + ")";
+    }
+
+    void close() {
+        if (disk != null) {
+            disk.close();
+        }
+    }
+}
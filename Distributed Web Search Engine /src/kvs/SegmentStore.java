@@ -0,0 +1,1055 @@
+package kvs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import tools.Logger;
+
+/**
+ * Log-structured persistent table.
+ *
+ * Rows are appended as records to segment files (<table>/NNNNNNNN.seg). The active segment
+ * is written until it reaches segment.maxBytes and is then sealed with a footer that lists
+ * every record in it, so startup only reads footers to rebuild the in-memory key index.
+ * Overwrites and deletes leave garbage behind.
+ *
+ * A background thread rewrites sealed segments into sorted runs: the live records of a
+ * batch of segments are written out in key order, so the rows of a key range sit next to
+ * each other on disk and a range scan reads them in large sequential blocks instead of
+ * one random read per row. Sorted runs are rewritten again once their live fraction
+ * drops below the configured threshold.
+ *
+ * Record:  int length | int crc32 | long seq | byte flags | int keyLength | key | row bytes
+ *          (length counts the bytes after itself, the crc covers the bytes after itself)
+ * Footer:  per record: int keyLength | key | long offset | int length | long seq | byte flags
+ * Trailer: long footerOffset | int entryCount | int footerCrc | long minSeq | long maxSeq | int magic
+ *          (the magic tells apart append-order segments and key-sorted runs)
+ *
+ * Every record carries a store-wide sequence number, so the newest version of a key wins
+ * regardless of which segment file it ended up in after compaction.
+ *
+ * With the table's "compression" setting at deflate:N, row bytes of records larger than
+ * COMPRESS_MIN_BYTES are stored deflated (FLAG_DEFLATE, payload: int rawLength | deflated
+ * bytes). Each record is compressed on its own, so point reads still touch a single record.
+ *
+ * Point reads from sealed segments go through MappedRegionCache: the segment is mapped once
+ * and rows are decoded straight from the mapping. The active segment is still growing, so
+ * it is read with positional reads, and so are scans, which would only push hot segments
+ * out of the cache. Set the table's "mmap" setting to off to read everything with pread.
+ */
+public class SegmentStore implements TableStore {
+
+    private static final Logger logger = Logger.getLogger(SegmentStore.class);
+
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final byte FLAG_TOMBSTONE = 1;
+    static final byte FLAG_DEFLATE = 2;
+    // Smaller rows rarely shrink enough to pay for the inflate on read
+    private static final int COMPRESS_MIN_BYTES = 256;
+    private static final int TRAILER_MAGIC = 0x4B565331; // "KVS1", records in append order
+    private static final int TRAILER_MAGIC_SORTED = 0x4B565353; // "KVSS", records in key order
+    private static final int TRAILER_BYTES = 8 + 4 + 4 + 8 + 8 + 4;
+    private static final int RECORD_BODY_MIN = 4 + 8 + 1 + 4;
+    // Scans read runs of adjacent records in blocks of up to this size
+    private static final int SCAN_BLOCK_BYTES = 256 * 1024;
+    private static final int SCAN_BATCH_ROWS = 512;
+
+    // All open stores, visited by the background compactor
+    private static final Set<SegmentStore> openStores = ConcurrentHashMap.newKeySet();
+    private static Thread compactor = null;
+
+    /** Where the current version of a row lives. */
+    static final class Location {
+        final int segment;
+        final long offset;
+        final int length;
+        final long seq;
+
+        Location(int segment, long offset, int length, long seq) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.seq = seq;
+        }
+    }
+
+    /** One record as listed in a segment footer. */
+    static final class Entry {
+        final String key;
+        final long offset;
+        final int length;
+        final long seq;
+        final byte flags;
+
+        Entry(String key, long offset, int length, long seq, byte flags) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+            this.seq = seq;
+            this.flags = flags;
+        }
+
+        boolean isTombstone() {
+            return (flags & FLAG_TOMBSTONE) != 0;
+        }
+    }
+
+    /** Decoded record body (everything after the length prefix); body may be a view of a mapped segment. */
+    static final class Record {
+        final String key;
+        final long seq;
+        final byte flags;
+        final ByteBuffer body;
+        final int payloadOffset;
+        final int payloadLength;
+
+        Record(String key, long seq, byte flags, ByteBuffer body, int payloadOffset, int payloadLength) {
+            this.key = key;
+            this.seq = seq;
+            this.flags = flags;
+            this.body = body;
+            this.payloadOffset = payloadOffset;
+            this.payloadLength = payloadLength;
+        }
+
+        boolean isTombstone() {
+            return (flags & FLAG_TOMBSTONE) != 0;
+        }
+
+        Row toRow() throws IOException {
+            try {
+                ByteBuffer payload = body.duplicate();
+                payload.limit(payloadOffset + payloadLength).position(payloadOffset);
+                if ((flags & FLAG_DEFLATE) != 0) {
+                    byte[] raw = inflate(payload);
+                    return RowCodec.decode(raw, 0, raw.length);
+                }
+                return RowCodec.decode(payload);
+            } catch (Exception e) {
+                throw new IOException("Corrupt row '" + key + "': " + e.getMessage());
+            }
+        }
+    }
+
+    static final class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        final AtomicLong liveBytes = new AtomicLong();
+        final AtomicLong tombstoneBytes = new AtomicLong();
+        long dataBytes = 0;             // end of record data; the footer starts here once sealed
+        long minSeq = Long.MAX_VALUE;
+        long maxSeq = -1;
+        List<Entry> entries = null;     // records written so far, while the segment is active
+        volatile boolean sealed = false;
+        boolean sorted = false;
+        int pins = 0;                   // versions pinned by snapshots; guarded by the store
+        boolean retired = false;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        void noteSeq(long seq) {
+            minSeq = Math.min(minSeq, seq);
+            maxSeq = Math.max(maxSeq, seq);
+        }
+
+        /**
+         * Close and delete a segment that no longer holds live data. A pinned segment's file
+         * is deleted at once, so a restart never reads it, but stays open for the pinned
+         * versions until the last of them is released.
+         */
+        void retire() {
+            retired = true;
+            if (pins == 0) {
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+            if (!file.delete() && file.exists()) {
+                logger.warn("Could not delete retired segment " + file);
+            }
+        }
+
+        void unpin() {
+            if (--pins == 0 && retired) {
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    private final File dir;
+    private final long maxSegmentBytes;
+    private final int compressionLevel;     // -1 = store rows uncompressed
+    private final boolean mmap;             // point reads from sealed segments use MappedRegionCache
+    private final ConcurrentSkipListMap<String, Location> index = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private Segment active;
+    private long nextSeq = 1;
+    private int nextSegmentId = 1;
+    private volatile int liveRows = 0;
+    private volatile boolean closed = false;
+
+    public SegmentStore(File dir) throws IOException {
+        this.dir = dir;
+        this.maxSegmentBytes = WorkerConfig.getLong("segment.maxBytes", 64L << 20);
+        this.compressionLevel = compressionLevel(WorkerConfig.forTable(dir.getName(), "compression", "deflate:1"));
+        this.mmap = !WorkerConfig.forTable(dir.getName(), "mmap", "on").equals("off");
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        recover();
+        openStores.add(this);
+        startCompactor();
+    }
+
+    /** True if the directory holds a table in this layout. */
+    static boolean isSegmentDir(File dir) {
+        String[] names = dir.list();
+        if (names == null) return false;
+        for (String n : names) {
+            if (n.endsWith(SEGMENT_SUFFIX)) return true;
+        }
+        return false;
+    }
+
+    /** Parse "none", "deflate" or "deflate:N" into a Deflater level, -1 meaning none. */
+    private static int compressionLevel(String spec) {
+        spec = spec.trim().toLowerCase();
+        if (spec.equals("deflate")) {
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+        if (spec.startsWith("deflate:")) {
+            try {
+                return Math.max(0, Math.min(9, Integer.parseInt(spec.substring(8).trim())));
+            } catch (NumberFormatException e) {
+                logger.warn("Bad compression setting '" + spec + "', storing rows uncompressed");
+            }
+        } else if (!spec.equals("none")) {
+            logger.warn("Unknown compression setting '" + spec + "', storing rows uncompressed");
+        }
+        return -1;
+    }
+
+    // ---- Startup ----
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) files = new File[0];
+        Arrays.sort(files, (a, b) -> Integer.compare(segmentId(a), segmentId(b)));
+
+        Map<String, Location> latest = new HashMap<>();
+        Map<String, Long> deletedAt = new HashMap<>();
+        long maxSeq = 0;
+        int maxId = 0;
+        for (File f : files) {
+            int id = segmentId(f);
+            if (id < 0) continue;
+            maxId = Math.max(maxId, id);
+            Segment seg = new Segment(id, f);
+            List<Entry> entries = readFooter(seg);
+            if (entries == null) {
+                entries = replay(seg);
+                if (entries.isEmpty()) {
+                    seg.retire();
+                    continue;
+                }
+                seal(seg, entries);
+            }
+            segments.put(id, seg);
+            for (Entry e : entries) {
+                maxSeq = Math.max(maxSeq, e.seq);
+                if (e.isTombstone()) {
+                    seg.tombstoneBytes.addAndGet(e.length);
+                    Long d = deletedAt.get(e.key);
+                    if (d == null || e.seq > d) deletedAt.put(e.key, e.seq);
+                } else {
+                    Location cur = latest.get(e.key);
+                    if (cur == null || e.seq > cur.seq) latest.put(e.key, new Location(id, e.offset, e.length, e.seq));
+                }
+            }
+        }
+
+        int rows = 0;
+        for (Map.Entry<String, Location> e : latest.entrySet()) {
+            Location loc = e.getValue();
+            Long d = deletedAt.get(e.getKey());
+            if (d != null && d > loc.seq) continue;
+            index.put(e.getKey(), loc);
+            segments.get(loc.segment).liveBytes.addAndGet(loc.length);
+            rows++;
+        }
+        liveRows = rows;
+        nextSeq = maxSeq + 1;
+        nextSegmentId = maxId + 1;
+        active = newSegment();
+        segments.put(active.id, active);
+        logger.info("Opened " + dir + ": " + rows + " rows in " + segments.size() + " segment(s)");
+    }
+
+    private static int segmentId(File f) {
+        String name = f.getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Load the footer of a sealed segment; null if the segment was never sealed. */
+    private static List<Entry> readFooter(Segment seg) throws IOException {
+        long size = seg.channel.size();
+        if (size < TRAILER_BYTES) return null;
+        ByteBuffer trailer = readAt(seg.channel, size - TRAILER_BYTES, TRAILER_BYTES);
+        long footerOffset = trailer.getLong();
+        int count = trailer.getInt();
+        int footerCrc = trailer.getInt();
+        long minSeq = trailer.getLong();
+        long maxSeq = trailer.getLong();
+        int magic = trailer.getInt();
+        if ((magic != TRAILER_MAGIC && magic != TRAILER_MAGIC_SORTED) || footerOffset < 0 || footerOffset > size - TRAILER_BYTES || count < 0) {
+            return null;
+        }
+        int footerLength = (int) (size - TRAILER_BYTES - footerOffset);
+        ByteBuffer footer = readAt(seg.channel, footerOffset, footerLength);
+        CRC32 crc = new CRC32();
+        crc.update(footer.array(), 0, footerLength);
+        if ((int) crc.getValue() != footerCrc) return null;
+
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[footer.getInt()];
+            footer.get(key);
+            entries.add(new Entry(new String(key, StandardCharsets.UTF_8), footer.getLong(), footer.getInt(), footer.getLong(), footer.get()));
+        }
+        seg.dataBytes = footerOffset;
+        seg.minSeq = minSeq;
+        seg.maxSeq = maxSeq;
+        seg.sealed = true;
+        seg.sorted = (magic == TRAILER_MAGIC_SORTED);
+        return entries;
+    }
+
+    /** Read the records of an unsealed segment, truncating a torn tail left by a crash. */
+    private static List<Entry> replay(Segment seg) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long size = seg.channel.size();
+        long pos = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(seg.file), 1 << 16))) {
+            while (pos + 4 <= size) {
+                int len = in.readInt();
+                if (len < RECORD_BODY_MIN || pos + 4 + len > size) break;
+                byte[] body = new byte[len];
+                in.readFully(body);
+                Record r = decodeRecord(ByteBuffer.wrap(body));
+                if (r == null) break;
+                entries.add(new Entry(r.key, pos, 4 + len, r.seq, r.flags));
+                seg.noteSeq(r.seq);
+                pos += 4 + len;
+            }
+        } catch (EOFException e) {
+            // torn record; truncated below
+        }
+        if (pos < size) {
+            logger.warn("Truncating " + (size - pos) + " trailing byte(s) of " + seg.file);
+            seg.channel.truncate(pos);
+        }
+        seg.dataBytes = pos;
+        return entries;
+    }
+
+    // ---- Record and footer encoding ----
+
+    private static ByteBuffer encodeRecord(String key, byte[] payload, long seq, byte flags) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = RECORD_BODY_MIN + k.length + payload.length;
+        ByteBuffer buf = ByteBuffer.allocate(4 + bodyLength);
+        buf.putInt(bodyLength);
+        buf.putInt(0);
+        buf.putLong(seq);
+        buf.put(flags);
+        buf.putInt(k.length);
+        buf.put(k);
+        buf.put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 8, bodyLength - 4);
+        buf.putInt(4, (int) crc.getValue());
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Decode the record body in buf's remaining bytes without copying it; null if it is
+     * truncated or fails its checksum.
+     */
+    static Record decodeRecord(ByteBuffer buf) {
+        ByteBuffer body = buf.slice();
+        int length = body.remaining();
+        if (length < RECORD_BODY_MIN) return null;
+        int storedCrc = body.getInt();
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != storedCrc) return null;
+        long seq = body.getLong();
+        byte flags = body.get();
+        int keyLength = body.getInt();
+        if (keyLength < 0 || keyLength > body.remaining()) return null;
+        byte[] key = new byte[keyLength];
+        body.get(key);
+        int payloadOffset = body.position();
+        return new Record(new String(key, StandardCharsets.UTF_8), seq, flags, body.clear(), payloadOffset, length - payloadOffset);
+    }
+
+    /** Deflated form of the row bytes, or null if it would not be smaller. */
+    private static byte[] deflate(byte[] raw, int level) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] out = new byte[raw.length];
+            ByteBuffer.wrap(out).putInt(raw.length);
+            int n = 4;
+            while (!deflater.finished() && n < out.length) {
+                n += deflater.deflate(out, n, out.length - n);
+            }
+            return deflater.finished() ? Arrays.copyOf(out, n) : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < 4) throw new IOException("Truncated compressed row");
+        int rawLength = payload.getInt();
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload);
+            byte[] raw = new byte[rawLength];
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                int k = inflater.inflate(raw, n, rawLength - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += k;
+            }
+            if (n != rawLength) throw new IOException("Compressed row inflated to " + n + " of " + rawLength + " bytes");
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed row: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] encodeFooter(List<Entry> entries, long footerOffset, long minSeq, long maxSeq, boolean sorted) {
+        java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        try {
+            for (Entry e : entries) {
+                byte[] k = e.key.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(k.length);
+                out.write(k);
+                out.writeLong(e.offset);
+                out.writeInt(e.length);
+                out.writeLong(e.seq);
+                out.writeByte(e.flags);
+            }
+            out.flush();
+            CRC32 crc = new CRC32();
+            crc.update(baos.toByteArray());
+            out.writeLong(footerOffset);
+            out.writeInt(entries.size());
+            out.writeInt((int) crc.getValue());
+            out.writeLong(minSeq);
+            out.writeLong(maxSeq);
+            out.writeInt(sorted ? TRAILER_MAGIC_SORTED : TRAILER_MAGIC);
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("This should not happen!");
+        }
+        return baos.toByteArray();
+    }
+
+    /** Append the footer so the segment can be loaded without replaying its records. */
+    private static void seal(Segment seg, List<Entry> entries) throws IOException {
+        byte[] footer = encodeFooter(entries, seg.dataBytes, seg.minSeq, seg.maxSeq, false);
+        writeFully(seg.channel, ByteBuffer.wrap(footer), seg.dataBytes);
+        seg.channel.force(false);
+        seg.sealed = true;
+        seg.entries = null;
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0) throw new EOFException("Unexpected end of segment at " + (position + buf.position()));
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    // ---- Writes ----
+
+    /** Create a segment file with the next id; callers hold the store lock. */
+    private Segment newSegment() throws IOException {
+        int id = nextSegmentId++;
+        Segment seg = new Segment(id, new File(dir, String.format("%08d", id) + SEGMENT_SUFFIX));
+        seg.entries = new ArrayList<>();
+        return seg;
+    }
+
+    private synchronized void append(String key, byte[] payload, byte flags) throws IOException {
+        if (closed) throw new ClosedChannelException();
+        long seq = nextSeq++;
+        ByteBuffer rec = encodeRecord(key, payload, seq, flags);
+        int length = rec.remaining();
+        Segment seg = active;
+        long offset = seg.dataBytes;
+        writeFully(seg.channel, rec, offset);
+        seg.dataBytes += length;
+        seg.noteSeq(seq);
+        seg.entries.add(new Entry(key, offset, length, seq, flags));
+
+        Location old;
+        if ((flags & FLAG_TOMBSTONE) != 0) {
+            seg.tombstoneBytes.addAndGet(length);
+            old = index.remove(key);
+            if (old != null) liveRows--;
+        } else {
+            old = index.put(key, new Location(seg.id, offset, length, seq));
+            seg.liveBytes.addAndGet(length);
+            if (old == null) liveRows++;
+        }
+        if (old != null) {
+            Segment prev = segments.get(old.segment);
+            if (prev != null) prev.liveBytes.addAndGet(-old.length);
+        }
+
+        if (seg.dataBytes >= maxSegmentBytes) {
+            seal(seg, seg.entries);
+            active = newSegment();
+            segments.put(active.id, active);
+        }
+    }
+
+    @Override
+    public void put(Row row) throws IOException {
+        byte[] payload = row.toByteArray();
+        if (compressionLevel >= 0 && payload.length >= COMPRESS_MIN_BYTES) {
+            byte[] deflated = deflate(payload, compressionLevel);
+            if (deflated != null) {
+                append(row.key(), deflated, FLAG_DEFLATE);
+                return;
+            }
+        }
+        append(row.key(), payload, (byte) 0);
+    }
+
+    @Override
+    public synchronized boolean delete(String key) throws IOException {
+        if (!index.containsKey(key)) {
+            return false;
+        }
+        append(key, new byte[0], FLAG_TOMBSTONE);
+        return true;
+    }
+
+    // ---- Reads ----
+
+    private Row read(Location loc) throws IOException {
+        Segment seg = segments.get(loc.segment);
+        if (seg == null) throw new ClosedChannelException();
+        ByteBuffer body;
+        if (mmap && seg.sealed && seg.dataBytes <= Integer.MAX_VALUE) {
+            body = MappedRegionCache.SHARED.get(this, seg.id, () -> seg.channel.map(FileChannel.MapMode.READ_ONLY, 0, seg.dataBytes));
+            body.limit((int) (loc.offset + loc.length)).position((int) loc.offset + 4);
+        } else {
+            body = readAt(seg.channel, loc.offset + 4, loc.length - 4);
+        }
+        Record r = decodeRecord(body);
+        if (r == null) throw new IOException("Checksum mismatch in " + seg.file + " at offset " + loc.offset);
+        return r.toRow();
+    }
+
+    @Override
+    public Row get(String key) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Location loc = index.get(key);
+            if (loc == null) return null;
+            try {
+                return read(loc);
+            } catch (IOException e) {
+                // The segment may have been compacted away between lookup and read
+                if (attempt >= 3 || index.get(key) == loc) throw e;
+            }
+        }
+    }
+
+    /**
+     * Snapshots keep the record of the row's current version where it is: its segment is
+     * pinned, and compaction deletes a pinned segment's file but keeps the file open until
+     * the last pin is released. Pinned versions are read with positional reads.
+     */
+    @Override
+    public synchronized Version pin(String key) throws IOException {
+        if (closed) throw new ClosedChannelException();
+        Location loc = index.get(key);
+        if (loc == null) return null;
+        Segment seg = segments.get(loc.segment);
+        if (seg == null) throw new ClosedChannelException();
+        seg.pins++;
+        return new Version() {
+            private boolean released = false;
+
+            public Row row() throws IOException {
+                Record r = decodeRecord(readAt(seg.channel, loc.offset + 4, loc.length - 4));
+                if (r == null) throw new IOException("Checksum mismatch in " + seg.file + " at offset " + loc.offset);
+                return r.toRow();
+            }
+
+            public void release() {
+                synchronized (SegmentStore.this) {
+                    if (!released) {
+                        released = true;
+                        seg.unpin();
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public Iterator<Row> scan(String startRow, String endRowExclusive) {
+        NavigableMap<String, Location> range = index;
+        if (startRow != null && endRowExclusive != null) {
+            if (startRow.compareTo(endRowExclusive) >= 0) return Collections.emptyIterator();
+            range = index.subMap(startRow, true, endRowExclusive, false);
+        } else if (startRow != null) {
+            range = index.tailMap(startRow, true);
+        } else if (endRowExclusive != null) {
+            range = index.headMap(endRowExclusive, false);
+        }
+        Iterator<Map.Entry<String, Location>> entries = range.entrySet().iterator();
+        return new Iterator<Row>() {
+            final ArrayDeque<Row> buffer = new ArrayDeque<>();
+
+            private void fill() {
+                while (buffer.isEmpty() && entries.hasNext()) {
+                    List<Map.Entry<String, Location>> batch = new ArrayList<>();
+                    while (batch.size() < SCAN_BATCH_ROWS && entries.hasNext()) {
+                        batch.add(entries.next());
+                    }
+                    readBatch(batch, buffer);
+                }
+            }
+
+            public boolean hasNext() {
+                fill();
+                return !buffer.isEmpty();
+            }
+
+            public Row next() {
+                fill();
+                if (buffer.isEmpty()) throw new NoSuchElementException();
+                return buffer.poll();
+            }
+        };
+    }
+
+    /** Reads the keys in batches, each in segment and offset order, so that adjacent records share a read. */
+    @Override
+    public Iterator<Row> scanKeys(Iterator<String> keys) {
+        return new Iterator<Row>() {
+            final ArrayDeque<Row> buffer = new ArrayDeque<>();
+
+            private void fill() {
+                while (buffer.isEmpty() && keys.hasNext()) {
+                    List<Map.Entry<String, Location>> batch = new ArrayList<>();
+                    while (batch.size() < SCAN_BATCH_ROWS && keys.hasNext()) {
+                        String key = keys.next();
+                        Location loc = index.get(key);
+                        if (loc != null) batch.add(new AbstractMap.SimpleImmutableEntry<>(key, loc));
+                    }
+                    batch.sort((a, b) -> (a.getValue().segment != b.getValue().segment)
+                            ? Integer.compare(a.getValue().segment, b.getValue().segment)
+                            : Long.compare(a.getValue().offset, b.getValue().offset));
+                    readBatch(batch, buffer);
+                }
+            }
+
+            public boolean hasNext() {
+                fill();
+                return !buffer.isEmpty();
+            }
+
+            public Row next() {
+                fill();
+                if (buffer.isEmpty()) throw new NoSuchElementException();
+                return buffer.poll();
+            }
+        };
+    }
+
+    /** Decode a batch of index entries, reading records that are adjacent on disk with a single read. */
+    private void readBatch(List<Map.Entry<String, Location>> batch, ArrayDeque<Row> out) {
+        int i = 0;
+        while (i < batch.size()) {
+            Location first = batch.get(i).getValue();
+            long end = first.offset + first.length;
+            int j = i + 1;
+            while (j < batch.size()) {
+                Location next = batch.get(j).getValue();
+                if (next.segment != first.segment || next.offset != end || end + next.length - first.offset > SCAN_BLOCK_BYTES) break;
+                end += next.length;
+                j++;
+            }
+            try {
+                Segment seg = segments.get(first.segment);
+                if (seg == null) throw new ClosedChannelException();
+                byte[] block = readAt(seg.channel, first.offset, (int) (end - first.offset)).array();
+                List<Row> rows = new ArrayList<>(j - i);
+                for (int k = i; k < j; k++) {
+                    Location loc = batch.get(k).getValue();
+                    int start = (int) (loc.offset - first.offset);
+                    Record r = decodeRecord(ByteBuffer.wrap(block, start + 4, loc.length - 4));
+                    if (r == null) throw new IOException("Checksum mismatch in " + seg.file + " at offset " + loc.offset);
+                    rows.add(r.toRow());
+                }
+                out.addAll(rows);
+            } catch (IOException e) {
+                // Segment compacted away underneath us, or a bad record: fall back to row-by-row reads
+                for (int k = i; k < j; k++) {
+                    String key = batch.get(k).getKey();
+                    try {
+                        Row row = get(key);
+                        if (row != null) out.add(row);
+                    } catch (IOException e2) {
+                        logger.error("Error reading row '" + key + "' from " + dir, e2);
+                    }
+                }
+            }
+            i = j;
+        }
+    }
+
+    @Override
+    public boolean sortedScans() {
+        return true;
+    }
+
+    @Override
+    public int count() {
+        return liveRows;
+    }
+
+    @Override
+    public Iterator<String> keys() {
+        return index.keySet().iterator();
+    }
+
+    @Override
+    public String describe() {
+        long total = 0, live = 0;
+        for (Segment seg : segments.values()) {
+            total += seg.dataBytes;
+            live += seg.liveBytes.get();
+        }
+        int pct = (total == 0) ? 100 : (int) (100 * live / total);
+        String compression = (compressionLevel < 0) ? "" : ", deflated";
+        return "segments (" + segments.size() + " files, " + (total >> 20) + " MB, " + pct + "% live" + compression + ")";
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        openStores.remove(this);
+        MappedRegionCache.SHARED.invalidateAll(this);
+        for (Segment seg : segments.values()) {
+            try { seg.channel.close(); } catch (IOException ignored) {}
+        }
+        segments.clear();
+        index.clear();
+    }
+
+    // ---- Compaction ----
+
+    private static synchronized void startCompactor() {
+        if (compactor != null) return;
+        compactor = new Thread(() -> {
+            long intervalMs = WorkerConfig.getLong("compaction.intervalSeconds", 30) * 1000L;
+            while (true) {
+                try {
+                    Thread.sleep(intervalMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (SegmentStore store : openStores) {
+                    try {
+                        store.compact();
+                    } catch (Exception e) {
+                        logger.error("Compaction failed for " + store.dir, e);
+                    }
+                }
+            }
+        }, "SegmentCompactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Pick segments to rewrite: sealed segments still in append order, and sorted runs whose
+     * garbage fraction exceeds compaction.minGarbageRatio. At most compaction.maxBytesPerPass
+     * bytes of input are rewritten per pass, oldest segments first.
+     */
+    void compact() throws IOException {
+        double minGarbage = WorkerConfig.getDouble("compaction.minGarbageRatio", 0.5);
+        long budget = WorkerConfig.getLong("compaction.maxBytesPerPass", 4 * maxSegmentBytes);
+        List<Segment> candidates = new ArrayList<>(segments.values());
+        candidates.sort((a, b) -> Integer.compare(a.id, b.id));
+        List<Segment> victims = new ArrayList<>();
+        long bytes = 0;
+        for (Segment seg : candidates) {
+            if (!seg.sealed) continue;
+            long kept = seg.liveBytes.get() + seg.tombstoneBytes.get();
+            boolean mostlyGarbage = seg.dataBytes == 0 || 1.0 - (double) kept / seg.dataBytes >= minGarbage;
+            if (!seg.sorted || mostlyGarbage) {
+                victims.add(seg);
+                bytes += seg.dataBytes;
+                if (bytes >= budget) break;
+            }
+        }
+        if (!victims.isEmpty() && !closed) {
+            rewrite(victims);
+        }
+    }
+
+    /** True if a segment outside 'except' may still hold records older than seq. */
+    private boolean olderRecordsMayExist(long seq, Set<Integer> except) {
+        for (Segment seg : segments.values()) {
+            if (!except.contains(seg.id) && seg.minSeq < seq) return true;
+        }
+        return false;
+    }
+
+    /** One record copied into a sorted run, and where the index pointed before the copy. */
+    private static final class Moved {
+        final String key;
+        final Location from;
+        final Location to;
+
+        Moved(String key, Location from, Location to) {
+            this.key = key;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /** Writes records into new key-sorted segments, starting a new file every segment.maxBytes. */
+    private final class RunWriter {
+        final List<Segment> finished = new ArrayList<>();
+        private int id;
+        private File file;
+        private DataOutputStream out = null;
+        private List<Entry> entries;
+        private long bytes, minSeq, maxSeq;
+
+        Location add(String key, byte[] record, long seq, byte flags) throws IOException {
+            if (out == null) {
+                open();
+            }
+            long offset = bytes;
+            out.write(record);
+            bytes += record.length;
+            entries.add(new Entry(key, offset, record.length, seq, flags));
+            minSeq = Math.min(minSeq, seq);
+            maxSeq = Math.max(maxSeq, seq);
+            Location loc = new Location(id, offset, record.length, seq);
+            if (bytes >= maxSegmentBytes) {
+                seal();
+            }
+            return loc;
+        }
+
+        private void open() throws IOException {
+            synchronized (SegmentStore.this) {
+                id = nextSegmentId++;
+            }
+            file = new File(dir, String.format("%08d", id) + SEGMENT_SUFFIX);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            entries = new ArrayList<>();
+            bytes = 0;
+            minSeq = Long.MAX_VALUE;
+            maxSeq = -1;
+        }
+
+        private void seal() throws IOException {
+            out.write(encodeFooter(entries, bytes, minSeq, maxSeq, true));
+            out.close();
+            out = null;
+            Segment seg = new Segment(id, file);
+            seg.channel.force(false);
+            seg.dataBytes = bytes;
+            seg.minSeq = minSeq;
+            seg.maxSeq = maxSeq;
+            seg.sealed = true;
+            seg.sorted = true;
+            for (Entry e : entries) {
+                if (e.isTombstone()) seg.tombstoneBytes.addAndGet(e.length);
+            }
+            finished.add(seg);
+        }
+
+        void finish() throws IOException {
+            if (out != null) {
+                seal();
+            }
+        }
+
+        void abort() {
+            if (out != null) {
+                try { out.close(); } catch (IOException ignored) {}
+                file.delete();
+                out = null;
+            }
+            for (Segment seg : finished) {
+                seg.retire();
+            }
+            finished.clear();
+        }
+    }
+
+    private static Map.Entry<String, Location> nextIn(Iterator<Map.Entry<String, Location>> it, Set<Integer> segmentIds) {
+        while (it.hasNext()) {
+            Map.Entry<String, Location> e = it.next();
+            if (segmentIds.contains(e.getValue().segment)) return e;
+        }
+        return null;
+    }
+
+    /** Rewrite the live records of the victims, and the tombstones still needed, as sorted runs. */
+    private void rewrite(List<Segment> victims) throws IOException {
+        Set<Integer> victimIds = new HashSet<>();
+        for (Segment v : victims) {
+            victimIds.add(v.id);
+        }
+
+        // Tombstones that still shadow older versions in other segments
+        TreeMap<String, Record> tombstones = new TreeMap<>();
+        for (Segment v : victims) {
+            if (v.tombstoneBytes.get() == 0) continue;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(v.file), 1 << 16))) {
+                long pos = 0;
+                while (pos < v.dataBytes) {
+                    int len = in.readInt();
+                    byte[] body = new byte[len];
+                    in.readFully(body);
+                    pos += 4 + len;
+                    Record r = decodeRecord(ByteBuffer.wrap(body));
+                    if (r == null) throw new IOException("Checksum mismatch in " + v.file + " before offset " + pos);
+                    if (!r.isTombstone() || index.containsKey(r.key) || !olderRecordsMayExist(r.seq, victimIds)) continue;
+                    Record prev = tombstones.get(r.key);
+                    if (prev == null || r.seq > prev.seq) tombstones.put(r.key, r);
+                }
+            }
+        }
+
+        // Merge live rows (already in key order in the index) with the surviving tombstones
+        RunWriter writer = new RunWriter();
+        List<Moved> moved = new ArrayList<>();
+        Iterator<Map.Entry<String, Location>> live = index.entrySet().iterator();
+        Iterator<Record> dead = tombstones.values().iterator();
+        Map.Entry<String, Location> l = nextIn(live, victimIds);
+        Record d = dead.hasNext() ? dead.next() : null;
+        try {
+            while (l != null || d != null) {
+                if (closed) throw new ClosedChannelException();
+                if (d == null || (l != null && l.getKey().compareTo(d.key) <= 0)) {
+                    Location from = l.getValue();
+                    Segment src = segments.get(from.segment);
+                    if (src == null) throw new ClosedChannelException();
+                    byte[] record = readAt(src.channel, from.offset, from.length).array();
+                    moved.add(new Moved(l.getKey(), from, writer.add(l.getKey(), record, from.seq, (byte) 0)));
+                    l = nextIn(live, victimIds);
+                } else {
+                    ByteBuffer record = ByteBuffer.allocate(4 + d.body.remaining());
+                    record.putInt(d.body.remaining()).put(d.body.duplicate());
+                    writer.add(d.key, record.array(), d.seq, FLAG_TOMBSTONE);
+                    d = dead.hasNext() ? dead.next() : null;
+                }
+            }
+            writer.finish();
+        } catch (IOException e) {
+            writer.abort();
+            if (closed) return;
+            throw e;
+        }
+
+        synchronized (this) {
+            if (closed) {
+                writer.abort();
+                return;
+            }
+            for (Segment seg : writer.finished) {
+                segments.put(seg.id, seg);
+            }
+            // Rows overwritten or deleted since they were copied keep their newer location
+            for (Moved m : moved) {
+                if (index.replace(m.key, m.from, m.to)) {
+                    segments.get(m.to.segment).liveBytes.addAndGet(m.to.length);
+                }
+            }
+            for (Segment v : victims) {
+                segments.remove(v.id);
+                MappedRegionCache.SHARED.invalidate(this, v.id);
+                v.retire();
+            }
+        }
+        logger.info("Compacted " + victims.size() + " segment(s) of " + dir + " into " + writer.finished.size()
+                + " sorted run(s), " + moved.size() + " row(s), " + tombstones.size() + " tombstone(s)");
+    }
+}
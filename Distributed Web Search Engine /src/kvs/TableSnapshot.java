@@ -0,0 +1,256 @@
+package kvs;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tools.HashRing;
+
+/**
+ * Point-in-time view of one table on this worker, for scans that must not see writes made
+ * while they run.
+ *
+ * Nothing is copied when the snapshot is taken. Instead, the first write or delete of a row
+ * after that point keeps the row's previous state here (its pre-image), or notes that the
+ * row did not exist yet; later writes of the same row find the pre-image and leave it alone.
+ * Rows that are never written are read from the table itself. Writers call preserve() with
+ * the row's lock held, before they change the row.
+ *
+ * Stores that keep old versions (SegmentStore, for pt- tables) pin the record of the
+ * pre-image where it is on disk, so a pre-image costs a few dozen bytes of heap and holds
+ * back the deletion of the segment file it is in. Other stores (in-memory and logged tables)
+ * keep a copy of the row on the heap. Copies are bounded: once a snapshot has copied more
+ * than snapshot.maxCopiedBytes (default 256 MB), it is dropped, its scans fail with "410
+ * Gone", and the client has to open a new one.
+ *
+ * The snapshot is opened on all workers at one cut (see WriteHold).
+ *
+ * A scan merges the table's rows with the pre-images in key order: a row that has a
+ * pre-image is replaced by it (or skipped, if it did not exist), and pre-images of rows
+ * deleted since are emitted where they belong. A row is looked up among the pre-images only
+ * after it has been read from the table, so a write racing with the scan is either not yet
+ * visible in what was read or has already left its pre-image. Scans never hold row locks,
+ * and a scan that runs for hours sees the same rows as one that runs for seconds.
+ *
+ * Stores without ordered scans (in-memory tables) are read by their sorted keys instead,
+ * and their rows, which are shared with the store, are cloned as they are read.
+ */
+final class TableSnapshot {
+
+    /** A pre-image copied to the heap. */
+    private static final class Copy implements TableStore.Version {
+        private final Row row;
+
+        Copy(Row row) {
+            this.row = row;
+        }
+
+        public Row row() {
+            return row;
+        }
+
+        public void release() {
+        }
+    }
+
+    /** Pre-image of a row created after the snapshot was taken. */
+    private static final TableStore.Version ABSENT = new Copy(null);
+
+    final String id;
+    final HashRing ring;         // ring at the time of the snapshot; null before the first one
+    final long created = System.currentTimeMillis();
+    private final long idleMillis;
+    private final long maxCopiedBytes;
+    private volatile long lastUsed = created;
+    private final ConcurrentSkipListMap<String, TableStore.Version> before = new ConcurrentSkipListMap<>();
+    private final AtomicLong copiedBytes = new AtomicLong();
+    private volatile String dropped = null;     // why the snapshot can no longer be read
+
+    TableSnapshot(String id, HashRing ring, long idleMillis, long maxCopiedBytes) {
+        this.id = id;
+        this.ring = ring;
+        this.idleMillis = idleMillis;
+        this.maxCopiedBytes = maxCopiedBytes;
+    }
+
+    /** True if no scan has used the snapshot for longer than its idle timeout. */
+    boolean expired(long now) {
+        return now - lastUsed > idleMillis;
+    }
+
+    /** Why scans of the snapshot fail, or null while it can be read. */
+    String dropped() {
+        return dropped;
+    }
+
+    /** Keep the row's state before its first change; store is null if the table does not exist. Callers hold the row's lock. */
+    void preserve(String rowKey, TableStore store) throws IOException {
+        if (dropped != null || before.containsKey(rowKey)) {
+            return;
+        }
+        TableStore.Version kept = (store == null) ? null : store.pin(rowKey);
+        if (kept == null) {
+            Row current = (store == null) ? null : store.get(rowKey);
+            if (current == null) {
+                kept = ABSENT;
+            } else {
+                if (copiedBytes.addAndGet(heapBytes(current)) > maxCopiedBytes) {
+                    drop("it copied more than " + maxCopiedBytes + " bytes of rows written since it was opened");
+                    return;
+                }
+                kept = new Copy(current.clone());
+            }
+        }
+        if (before.putIfAbsent(rowKey, kept) != null) {
+            kept.release();
+        } else if (dropped != null && before.remove(rowKey, kept)) {
+            kept.release();
+        }
+    }
+
+    /** Rough heap size of a copied row. */
+    private static long heapBytes(Row row) {
+        long bytes = 64 + 2L * row.key().length();
+        for (String column : row.columns()) {
+            byte[] value = row.getBytes(column);
+            bytes += 48 + 2L * column.length() + ((value == null) ? 0 : value.length);
+        }
+        return bytes;
+    }
+
+    /** Release what the snapshot keeps; scans that are still running fail with the reason. */
+    void drop(String reason) {
+        dropped = reason;
+        for (TableStore.Version kept : before.values()) {
+            kept.release();
+        }
+        before.clear();
+    }
+
+    int preservedRows() {
+        return before.size();
+    }
+
+    long copiedBytes() {
+        return copiedBytes.get();
+    }
+
+    /** Rows with startRow <= key < endRowExclusive as they were when the snapshot was taken, in key order. */
+    Iterator<Row> scan(TableStore store, String startRow, String endRowExclusive) throws IOException {
+        lastUsed = System.currentTimeMillis();
+        Iterator<Row> current = (store == null) ? java.util.Collections.emptyIterator() : sortedRows(store, startRow, endRowExclusive);
+        NavigableMap<String, TableStore.Version> kept = (endRowExclusive == null) ? before : before.headMap(endRowExclusive, false);
+        return new Iterator<Row>() {
+            String last = null;                          // key of the last row merged
+            Row fromStore = current.hasNext() ? current.next() : null;
+            Row next = advance();
+
+            private Row advance() {
+                while (true) {
+                    // Looked up afresh on every step, so pre-images kept since the last step are not missed
+                    Map.Entry<String, TableStore.Version> keptNext = (last != null) ? kept.higherEntry(last)
+                            : (startRow != null) ? kept.ceilingEntry(startRow) : kept.firstEntry();
+                    if (fromStore == null && keptNext == null) {
+                        return null;
+                    }
+                    Row row;
+                    if (keptNext != null && (fromStore == null || keptNext.getKey().compareTo(fromStore.key()) <= 0)) {
+                        last = keptNext.getKey();
+                        if (fromStore != null && last.equals(fromStore.key())) {
+                            fromStore = current.hasNext() ? current.next() : null;
+                        }
+                        row = read(keptNext.getValue());
+                    } else {
+                        row = fromStore;
+                        last = row.key();
+                        fromStore = current.hasNext() ? current.next() : null;
+                        TableStore.Version pre = before.get(last);
+                        if (pre != null) {
+                            row = read(pre);
+                        }
+                    }
+                    // A dropped snapshot has lost its pre-images, so the row may be too new
+                    if (dropped != null) {
+                        throw new IllegalStateException("Snapshot " + id + " was dropped: " + dropped);
+                    }
+                    if (row != null) {
+                        return row;
+                    }
+                }
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Row next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Row r = next;
+                next = advance();
+                lastUsed = System.currentTimeMillis();
+                return r;
+            }
+        };
+    }
+
+    private static Row read(TableStore.Version kept) {
+        try {
+            return kept.row();
+        } catch (IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    /** The store's rows in key order; rows of stores that share them with writers are cloned. */
+    private static Iterator<Row> sortedRows(TableStore store, String startRow, String endRowExclusive) throws IOException {
+        if (store.sortedScans()) {
+            return store.scan(startRow, endRowExclusive);
+        }
+        TreeSet<String> keys = new TreeSet<>();
+        Iterator<String> all = store.keys();
+        while (all.hasNext()) {
+            String key = all.next();
+            if ((startRow == null || key.compareTo(startRow) >= 0) && (endRowExclusive == null || key.compareTo(endRowExclusive) < 0)) {
+                keys.add(key);
+            }
+        }
+        Iterator<String> sorted = keys.iterator();
+        return new Iterator<Row>() {
+            Row next = advance();
+
+            private Row advance() {
+                while (sorted.hasNext()) {
+                    try {
+                        Row row = store.get(sorted.next());
+                        if (row != null) {
+                            return row.clone();
+                        }
+                    } catch (IOException e) {
+                        throw new java.io.UncheckedIOException(e);
+                    }
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Row next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Row r = next;
+                next = advance();
+                return r;
+            }
+        };
+    }
+}
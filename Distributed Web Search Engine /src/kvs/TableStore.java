@@ -0,0 +1,108 @@
+package kvs;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Storage backend for a single table on a KVS worker.
+ *
+ * Rows returned by get() and scan() may be shared with the store (in-memory tables) or
+ * freshly decoded copies (persistent tables); callers that modify a row must put() it back.
+ */
+public interface TableStore {
+
+    Row get(String key) throws IOException;
+
+    void put(Row row) throws IOException;
+
+    /** Store several rows; backends with per-write overhead can override this to share it. */
+    default void putAll(List<Row> rows) throws IOException {
+        for (Row row : rows) {
+            put(row);
+        }
+    }
+
+    /** Returns false if the row did not exist. */
+    boolean delete(String key) throws IOException;
+
+    boolean contains(String key) throws IOException;
+
+    /** Rows with startRow <= key < endRowExclusive; either bound may be null. Order is backend-specific. */
+    Iterator<Row> scan(String startRow, String endRowExclusive) throws IOException;
+
+    /** True if scan() returns rows in key order, and every row it returns is the caller's own copy. */
+    default boolean sortedScans() {
+        return false;
+    }
+
+    int count() throws IOException;
+
+    /** All row keys; backends with a key index override this to avoid decoding rows. */
+    default Iterator<String> keys() throws IOException {
+        Iterator<Row> rows = scan(null, null);
+        return new Iterator<String>() {
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            public String next() {
+                return rows.next().key();
+            }
+        };
+    }
+
+    /**
+     * Rows for keys found elsewhere (see TokenIndex), skipping keys that have no row. Like
+     * scan(), it bypasses row caches; backends may return the rows in another order.
+     */
+    default Iterator<Row> scanKeys(Iterator<String> keys) {
+        TableStore store = this;
+        return new Iterator<Row>() {
+            Row next = null;
+
+            public boolean hasNext() {
+                while (next == null && keys.hasNext()) {
+                    try {
+                        next = store.get(keys.next());
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return next != null;
+            }
+
+            public Row next() {
+                if (!hasNext()) {
+                    throw new java.util.NoSuchElementException();
+                }
+                Row row = next;
+                next = null;
+                return row;
+            }
+        };
+    }
+
+    /** A version of a row kept readable by pin(), however the row changes later. */
+    interface Version {
+        Row row() throws IOException;
+
+        /** Let the store reclaim the space the version takes. */
+        void release();
+    }
+
+    /**
+     * Keep the row's current version readable until it is released, or return null if the
+     * row does not exist or the store does not keep old versions (see TableSnapshot); callers
+     * hold the row's lock.
+     */
+    default Version pin(String key) throws IOException {
+        return null;
+    }
+
+    /** Short description for the worker dashboard. */
+    String describe();
+
+    /** Release files and background resources; the store must not be used afterwards. */
+    void close();
+}
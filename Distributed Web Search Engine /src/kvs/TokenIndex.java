@@ -0,0 +1,77 @@
+package kvs;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+
+import tools.HashRing;
+
+/**
+ * The row keys of one table on this worker in ring token order, so that a scan of a token
+ * range (a Flame partition, see tools.Partitioner) reads only the rows in that range instead
+ * of the whole table.
+ *
+ * Each entry is the key's HashRing.tokenString followed by the key; token strings have a fixed
+ * length and sort like the tokens, so a token range is a contiguous range of entries. The
+ * index is built from the store's key index on the first token-range scan of the table and
+ * kept up to date by every later write and delete. A key deleted while the index is being
+ * built may be left behind; scans look every key up in the store, which skips it.
+ */
+final class TokenIndex {
+
+    private final ConcurrentSkipListSet<String> entries = new ConcurrentSkipListSet<>();
+    final CountDownLatch ready = new CountDownLatch(1);
+
+    private static String entry(String rowKey) {
+        return HashRing.tokenString(HashRing.token(rowKey)) + rowKey;
+    }
+
+    /** Record a written row, or a deleted one if present is false. */
+    void update(String rowKey, boolean present) {
+        if (present) {
+            entries.add(entry(rowKey));
+        } else {
+            entries.remove(entry(rowKey));
+        }
+    }
+
+    /** Add every key of the store; called once, by the thread that registered the index. */
+    void build(TableStore store) throws IOException {
+        Iterator<String> keys = store.keys();
+        while (keys.hasNext()) {
+            entries.add(entry(keys.next()));
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /** Keys with fromToken <= token < toTokenExclusive, in token order; either bound may be null. */
+    Iterator<String> keys(String fromToken, String toTokenExclusive) {
+        NavigableSet<String> range = entries;
+        if (fromToken != null && toTokenExclusive != null) {
+            if (fromToken.compareTo(toTokenExclusive) >= 0) {
+                return java.util.Collections.emptyIterator();
+            }
+            range = entries.subSet(fromToken, true, toTokenExclusive, false);
+        } else if (fromToken != null) {
+            range = entries.tailSet(fromToken, true);
+        } else if (toTokenExclusive != null) {
+            range = entries.headSet(toTokenExclusive, false);
+        }
+        Iterator<String> it = range.iterator();
+        int tokenLength = HashRing.tokenString(0).length();
+        return new Iterator<String>() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public String next() {
+                return it.next().substring(tokenLength);
+            }
+        };
+    }
+}
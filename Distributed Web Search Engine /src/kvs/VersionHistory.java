@@ -0,0 +1,280 @@
+package kvs;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Row version history behind GET /data/:T/:R/:C?version=N.
+ *
+ * The policy of a table is its "versions" setting in kvs.properties:
+ *   off         no history and no version numbers (default for pt-* tables)
+ *   last:N      keep the N most recent versions of each row (default for other tables: last:10)
+ *   window:S    keep the versions written during the last S seconds
+ *
+ * Each row keeps the columns of its newest version plus, for older versions, backward deltas
+ * holding only the columns that differ from the next version. Column values are shared with
+ * the stored rows rather than copied.
+ */
+class VersionHistory {
+
+    private static final long SWEEP_INTERVAL_MS = 60 * 1000;
+
+    /** Parsed versioning policy of one table. */
+    static final class Policy {
+        final boolean enabled;
+        final int maxVersions;      // 0 = unlimited
+        final long windowMillis;    // 0 = unlimited
+
+        private Policy(boolean enabled, int maxVersions, long windowMillis) {
+            this.enabled = enabled;
+            this.maxVersions = maxVersions;
+            this.windowMillis = windowMillis;
+        }
+
+        static Policy parse(String spec) {
+            spec = spec.trim().toLowerCase();
+            try {
+                if (spec.startsWith("last:")) {
+                    return new Policy(true, Math.max(1, Integer.parseInt(spec.substring(5).trim())), 0);
+                }
+                if (spec.startsWith("window:")) {
+                    return new Policy(true, 0, Long.parseLong(spec.substring(7).trim()) * 1000);
+                }
+                if (spec.equals("all")) {
+                    return new Policy(true, 0, 0);
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("Bad versions setting '" + spec + "', disabling history");
+            }
+            return new Policy(false, 0, 0);
+        }
+    }
+
+    /** Columns to restore to go from the next version back to this one; null = column absent. */
+    private static final class Delta {
+        final int version;
+        final long timestamp;
+        final HashMap<String, byte[]> changed;
+        final long bytes;
+
+        Delta(int version, long timestamp, HashMap<String, byte[]> changed) {
+            this.version = version;
+            this.timestamp = timestamp;
+            this.changed = changed;
+            this.bytes = estimate(changed);
+        }
+    }
+
+    private static final class RowHistory {
+        int version = 0;
+        long timestamp;
+        HashMap<String, byte[]> columns = null;
+        final ArrayDeque<Delta> older = new ArrayDeque<>();   // newest first
+        long bytes = 0;
+    }
+
+    private static final class TableHistory {
+        final Policy policy;
+        final ConcurrentHashMap<String, RowHistory> rows;
+        final AtomicLong bytes;
+        volatile long lastSweep = System.currentTimeMillis();
+
+        TableHistory(Policy policy, ConcurrentHashMap<String, RowHistory> rows, long bytes) {
+            this.policy = policy;
+            this.rows = rows;
+            this.bytes = new AtomicLong(bytes);
+        }
+    }
+
+    private final ConcurrentHashMap<String, TableHistory> tables = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    private static Policy policyFor(String tableName) {
+        String def = tableName.startsWith("pt-") ? "off" : "last:10";
+        return Policy.parse(WorkerConfig.forTable(tableName, "versions", def));
+    }
+
+    private TableHistory table(String tableName) {
+        return tables.computeIfAbsent(tableName, t -> new TableHistory(policyFor(t), new ConcurrentHashMap<>(), 0));
+    }
+
+    /** Rough heap footprint of a column map: entry overhead, key chars and value bytes. */
+    private static long estimate(Map<String, byte[]> columns) {
+        long bytes = 64;
+        for (Map.Entry<String, byte[]> e : columns.entrySet()) {
+            bytes += 48 + 2L * e.getKey().length() + (e.getValue() == null ? 0 : 16 + e.getValue().length);
+        }
+        return bytes;
+    }
+
+    private static void trim(RowHistory h, Policy policy, long now) {
+        while (policy.maxVersions > 0 && h.older.size() >= policy.maxVersions) {
+            h.bytes -= h.older.removeLast().bytes;
+        }
+        while (policy.windowMillis > 0 && !h.older.isEmpty() && h.older.peekLast().timestamp < now - policy.windowMillis) {
+            h.bytes -= h.older.removeLast().bytes;
+        }
+    }
+
+    /** Record the row as its next version; returns the version number, or 0 if the table keeps no history. */
+    int record(String tableName, Row row) {
+        TableHistory t = table(tableName);
+        if (!t.policy.enabled) {
+            return 0;
+        }
+        HashMap<String, byte[]> now;
+        synchronized (row) {
+            now = new HashMap<>(row.values);
+        }
+        long timestamp = System.currentTimeMillis();
+        RowHistory h = t.rows.computeIfAbsent(row.key(), k -> new RowHistory());
+        int version;
+        long growth;
+        synchronized (h) {
+            long before = h.bytes;
+            if (h.columns != null) {
+                HashMap<String, byte[]> changed = new HashMap<>();
+                for (Map.Entry<String, byte[]> e : h.columns.entrySet()) {
+                    byte[] v = now.get(e.getKey());
+                    if (v != e.getValue() && !Arrays.equals(v, e.getValue())) {
+                        changed.put(e.getKey(), e.getValue());
+                    }
+                }
+                for (String col : now.keySet()) {
+                    if (!h.columns.containsKey(col)) {
+                        changed.put(col, null);
+                    }
+                }
+                Delta d = new Delta(h.version, h.timestamp, changed);
+                h.older.addFirst(d);
+                h.bytes += d.bytes - estimate(h.columns);
+            }
+            h.version++;
+            h.timestamp = timestamp;
+            h.columns = now;
+            h.bytes += estimate(now);
+            trim(h, t.policy, timestamp);
+            version = h.version;
+            growth = h.bytes - before;
+        }
+        t.bytes.addAndGet(growth);
+        totalBytes.addAndGet(growth);
+
+        if (t.policy.windowMillis > 0 && timestamp - t.lastSweep > SWEEP_INTERVAL_MS) {
+            t.lastSweep = timestamp;
+            sweep(t, timestamp);
+        }
+        return version;
+    }
+
+    /** Drop versions that fell out of the time window on rows that are no longer written. */
+    private void sweep(TableHistory t, long now) {
+        for (RowHistory h : t.rows.values()) {
+            long freed;
+            synchronized (h) {
+                long before = h.bytes;
+                trim(h, t.policy, now);
+                freed = before - h.bytes;
+            }
+            t.bytes.addAndGet(-freed);
+            totalBytes.addAndGet(-freed);
+        }
+    }
+
+    /** Newest version number of a row, or 0 if none is recorded. */
+    int current(String tableName, String rowKey) {
+        TableHistory t = tables.get(tableName);
+        RowHistory h = (t == null) ? null : t.rows.get(rowKey);
+        if (h == null) {
+            return 0;
+        }
+        synchronized (h) {
+            return h.version;
+        }
+    }
+
+    /** Reconstruct a version of a row; null if it was never recorded or has been evicted. */
+    Row get(String tableName, String rowKey, int version) {
+        TableHistory t = tables.get(tableName);
+        RowHistory h = (t == null) ? null : t.rows.get(rowKey);
+        if (h == null) {
+            return null;
+        }
+        synchronized (h) {
+            if (version < 1 || version > h.version) {
+                return null;
+            }
+            HashMap<String, byte[]> columns = new HashMap<>(h.columns);
+            if (version < h.version) {
+                boolean found = false;
+                for (Delta d : h.older) {
+                    for (Map.Entry<String, byte[]> e : d.changed.entrySet()) {
+                        if (e.getValue() == null) {
+                            columns.remove(e.getKey());
+                        } else {
+                            columns.put(e.getKey(), e.getValue());
+                        }
+                    }
+                    if (d.version == version) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    return null;
+                }
+            }
+            Row row = new Row(rowKey);
+            row.values.putAll(columns);
+            return row;
+        }
+    }
+
+    void removeRow(String tableName, String rowKey) {
+        TableHistory t = tables.get(tableName);
+        RowHistory h = (t == null) ? null : t.rows.remove(rowKey);
+        if (h != null) {
+            long freed;
+            synchronized (h) {
+                freed = h.bytes;
+            }
+            t.bytes.addAndGet(-freed);
+            totalBytes.addAndGet(-freed);
+        }
+    }
+
+    void removeTable(String tableName) {
+        TableHistory t = tables.remove(tableName);
+        if (t != null) {
+            totalBytes.addAndGet(-t.bytes.get());
+        }
+    }
+
+    /** Move history to a new table name; the new name's policy applies from now on. */
+    void renameTable(String oldTableName, String newTableName) {
+        TableHistory t = tables.remove(oldTableName);
+        if (t == null) {
+            return;
+        }
+        Policy policy = policyFor(newTableName);
+        if (!policy.enabled) {
+            totalBytes.addAndGet(-t.bytes.get());
+            return;
+        }
+        tables.put(newTableName, new TableHistory(policy, t.rows, t.bytes.get()));
+    }
+
+    /** Estimated heap held by the history of one table. */
+    long heapBytes(String tableName) {
+        TableHistory t = tables.get(tableName);
+        return (t == null) ? 0 : t.bytes.get();
+    }
+
+    long heapBytes() {
+        return totalBytes.get();
+    }
+}
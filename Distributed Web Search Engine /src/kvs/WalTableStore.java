@@ -0,0 +1,137 @@
+package kvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory table whose writes are also appended to a write-ahead log, so that the table
+ * survives a worker restart. When the log holds far more records than the table has rows,
+ * it is rewritten from the current rows.
+ */
+public class WalTableStore implements TableStore {
+
+    private final MemoryTableStore memory = new MemoryTableStore();
+    private final WriteAheadLog log;
+    // Writers share the read side; rewriting the log takes the write side
+    private final ReentrantReadWriteLock rewriteLock = new ReentrantReadWriteLock();
+    private final long rewriteSlack;
+
+    public WalTableStore(File logFile) throws IOException {
+        this.rewriteSlack = WorkerConfig.getLong("wal.rewriteSlackRecords", 100000);
+        this.log = new WriteAheadLog(logFile, new WriteAheadLog.Replay() {
+            public void put(Row row) {
+                memory.put(row);
+            }
+
+            public void delete(String key) {
+                memory.delete(key);
+            }
+        });
+    }
+
+    @Override
+    public Row get(String key) {
+        return memory.get(key);
+    }
+
+    @Override
+    public void put(Row row) throws IOException {
+        rewriteLock.readLock().lock();
+        try {
+            log.append(WriteAheadLog.OP_PUT, row.key(), row.toByteArray());
+            memory.put(row);
+        } finally {
+            rewriteLock.readLock().unlock();
+        }
+        maybeRewrite();
+    }
+
+    @Override
+    public void putAll(List<Row> rows) throws IOException {
+        rewriteLock.readLock().lock();
+        try {
+            log.appendPuts(rows);
+            for (Row row : rows) {
+                memory.put(row);
+            }
+        } finally {
+            rewriteLock.readLock().unlock();
+        }
+        maybeRewrite();
+    }
+
+    @Override
+    public boolean delete(String key) throws IOException {
+        rewriteLock.readLock().lock();
+        try {
+            if (!memory.contains(key)) {
+                return false;
+            }
+            log.append(WriteAheadLog.OP_DELETE, key, new byte[0]);
+            return memory.delete(key);
+        } finally {
+            rewriteLock.readLock().unlock();
+        }
+    }
+
+    private void maybeRewrite() throws IOException {
+        if (log.records() <= 2L * memory.count() + rewriteSlack || !rewriteLock.writeLock().tryLock()) {
+            return;
+        }
+        try {
+            log.rewrite(memory.scan(null, null));
+        } finally {
+            rewriteLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return memory.contains(key);
+    }
+
+    @Override
+    public Iterator<Row> scan(String startRow, String endRowExclusive) {
+        return memory.scan(startRow, endRowExclusive);
+    }
+
+    @Override
+    public int count() {
+        return memory.count();
+    }
+
+    @Override
+    public Iterator<String> keys() {
+        return memory.keys();
+    }
+
+    @Override
+    public String describe() {
+        return "memory + log (" + (log.bytes() >> 20) + " MB)";
+    }
+
+    /** Follow a table rename. */
+    void moveTo(File newLogFile) throws IOException {
+        rewriteLock.writeLock().lock();
+        try {
+            log.moveTo(newLogFile);
+        } finally {
+            rewriteLock.writeLock().unlock();
+        }
+    }
+
+    /** Close the table and delete its log. */
+    void drop() {
+        log.delete();
+        memory.close();
+    }
+
+    @Override
+    public void close() {
+        log.close();
+        memory.close();
+    }
+}
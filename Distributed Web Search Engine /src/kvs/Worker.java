@@ -3,13 +3,13 @@ package kvs;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import tools.Logger;
 import webserver.Server;
@@ -20,179 +20,604 @@ public class Worker extends generic.Worker {
     // Storage directory for persistent tables
     private static String storageDir;
     
-    // Data structure: Table name -> (Row key -> Row object)
-    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, Row>> tables = new ConcurrentHashMap<>();
-    
-    // Versioning data structures: Table name -> (Row key -> version number)
-    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> rowVersions = new ConcurrentHashMap<>();
+    // Data structure: Table name -> storage backend (memory for regular tables, disk for pt-* tables)
+    private static final ConcurrentHashMap<String, TableStore> tables = new ConcurrentHashMap<>();
+
+    // Striped locks guarding read-modify-write of a single row
+    private static final ReentrantLock[] rowLocks = new ReentrantLock[256];
+    static {
+        for (int i = 0; i < rowLocks.length; i++) {
+            rowLocks[i] = new ReentrantLock();
+        }
+    }
     
-    // tableName -> rowKey -> (version -> Row)
-    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, ConcurrentHashMap<Integer, Row>>> versionHistory = new ConcurrentHashMap<>();
+    // Row versions, bounded by each table's versioning policy
+    private static final VersionHistory history = new VersionHistory();
+
+    // Bloom filters over row keys, built on the first GET /bloom/<table> and kept up to date
+    // by every later write; deleted rows stay in the filter until the worker restarts
+    private static final ConcurrentHashMap<String, TableBloom> blooms = new ConcurrentHashMap<>();
+
+    // Row hashes for anti-entropy (see MerkleIndex), built on first use like the Bloom filters
+    private static final ConcurrentHashMap<String, MerkleIndex> merkles = new ConcurrentHashMap<>();
+
+    // Row keys in ring token order (see TokenIndex), built on the first token-range scan and kept up to date like the Merkle indexes
+    private static final ConcurrentHashMap<String, TokenIndex> tokenIndexes = new ConcurrentHashMap<>();
+
+    // Secondary indexes (see SecondaryIndex): table name -> column -> index; empty for tables that declare none
+    private static final ConcurrentHashMap<String, java.util.Map<String, SecondaryIndex>> indexes = new ConcurrentHashMap<>();
+
+    // Open snapshots (see TableSnapshot): table name -> snapshot id -> snapshot
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, TableSnapshot>> snapshots = new ConcurrentHashMap<>();
+
+    private static final class TableBloom {
+        final BloomFilter filter;
+        final java.util.concurrent.CountDownLatch ready = new java.util.concurrent.CountDownLatch(1);
+
+        TableBloom(int expectedKeys) {
+            filter = new BloomFilter(expectedKeys);
+        }
+    }
     
     /** True for pt-* tables. */
     private static boolean isPersistentTable(String tableName) {
         return tableName.startsWith("pt-");
     }
-    
-    /** Insert row into table. */
-    public static void putRow(String tableName, Row row) {
-        if (isPersistentTable(tableName)) {
-            writeToDisk(tableName, row);
-        } else {
-            ConcurrentHashMap<String, Row> table = tables.computeIfAbsent(tableName, k -> new ConcurrentHashMap<>());
-            table.put(row.key(), row);
+
+    private static int rowLockIndex(String tableName, String rowKey) {
+        int h = tableName.hashCode() * 31 + rowKey.hashCode();
+        return (h & 0x7fffffff) % rowLocks.length;
+    }
+
+    /** Lock for a row; hold it while reading, modifying and writing back the row. */
+    static ReentrantLock rowLock(String tableName, String rowKey) {
+        return rowLocks[rowLockIndex(tableName, rowKey)];
+    }
+
+    /** Lock several rows at once, always in stripe order so that concurrent batches cannot deadlock. */
+    static java.util.List<ReentrantLock> lockRows(String tableName, java.util.Collection<String> rowKeys) {
+        java.util.TreeSet<Integer> stripes = new java.util.TreeSet<>();
+        for (String rowKey : rowKeys) {
+            stripes.add(rowLockIndex(tableName, rowKey));
+        }
+        java.util.List<ReentrantLock> held = new java.util.ArrayList<>(stripes.size());
+        for (int stripe : stripes) {
+            rowLocks[stripe].lock();
+            held.add(rowLocks[stripe]);
         }
+        return held;
     }
-    
-    /** Persist row to disk. */
-    private static void writeToDisk(String tableName, Row row) {
-        try {
-            File tableDir = new File(storageDir, tableName);
-            if (!tableDir.exists()) {
-                tableDir.mkdirs();
+
+    static void unlockRows(java.util.List<ReentrantLock> held) {
+        for (int i = held.size() - 1; i >= 0; i--) {
+            held.get(i).unlock();
+        }
+    }
+
+    /** Store for a table; null if the table does not exist and create is false. */
+    static TableStore store(String tableName, boolean create) throws IOException {
+        TableStore store = tables.get(tableName);
+        if (store != null || (!create && !isPersistentTable(tableName))) {
+            return store;
+        }
+        synchronized (tables) {
+            store = tables.get(tableName);
+            if (store != null) {
+                return store;
             }
-            
-            String encodedKey = tools.KeyEncoder.encode(row.key());
-            File rowFile;
-            // subdirectories when encoded file name length >= 6
-            if (encodedKey.length() >= 6) {
-                String subDirName = "_" + encodedKey.substring(0, 2);
-                File subDir = new File(tableDir, subDirName);
-                if (!subDir.exists()) {
-                    subDir.mkdirs();
-                }
-                rowFile = new File(subDir, encodedKey);
+            if (isPersistentTable(tableName)) {
+                File tableDir = new File(storageDir, tableName);
+                if (!create && !tableDir.isDirectory()) {
+                    return null;
+                }
+                if (!tableDir.isDirectory()) {
+                    KeyFormat.markDecoded(storageDir, tableName);
+                }
+                store = openPersistentStore(tableDir);
+                long cacheBytes = Long.parseLong(WorkerConfig.forTable(tableName, "rowCache", String.valueOf(16L << 20)));
+                if (cacheBytes > 0) {
+                    store = new CachedTableStore(store, cacheBytes);
+                }
+            } else if (WorkerConfig.forTable(tableName, "wal", "off").equals("on")) {
+                if (!walFile(tableName).exists()) {
+                    KeyFormat.markDecoded(storageDir, tableName);
+                }
+                store = new WalTableStore(walFile(tableName));
+            } else if (WorkerConfig.forTable(tableName, "memory", WorkerConfig.get("memory", "heap")).equals("offheap")) {
+                store = new OffHeapTableStore();
             } else {
-                rowFile = new File(tableDir, encodedKey);
+                store = new MemoryTableStore();
+            }
+            tables.put(tableName, store);
+            merkles.putIfAbsent(tableName, new MerkleIndex());
+            return store;
+        }
+    }
+
+    /** Write-ahead log of an in-memory table. */
+    private static File walFile(String tableName) {
+        return new File(new File(storageDir, "wal"), tools.KeyEncoder.encode(tableName) + ".log");
+    }
+
+    /** Reopen in-memory tables that have a write-ahead log, replaying it. */
+    private static void openLoggedTables() {
+        File[] logs = new File(storageDir, "wal").listFiles((d, name) -> name.endsWith(".log"));
+        if (logs == null) return;
+        for (File f : logs) {
+            String tableName = tools.KeyEncoder.decode(f.getName().substring(0, f.getName().length() - 4));
+            try {
+                tables.put(tableName, new WalTableStore(f));
+                merkles.putIfAbsent(tableName, new MerkleIndex());
+            } catch (IOException e) {
+                logger.error("Could not replay log for table " + tableName, e);
             }
-            
-            FileOutputStream fos = new FileOutputStream(rowFile);
-            fos.write(row.toByteArray());
-            fos.close();
-            logger.debug("Wrote file " + rowFile.getName() + " to location: " + rowFile.getAbsolutePath());
-            System.out.println("Wrote file " + rowFile.getName() + " to location: " + rowFile.getAbsolutePath());
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
+
+    /** Existing directories keep their layout; new tables use the configured backend. */
+    private static TableStore openPersistentStore(File tableDir) throws IOException {
+        if (SegmentStore.isSegmentDir(tableDir)) {
+            return new SegmentStore(tableDir);
+        }
+        String[] existing = tableDir.list();
+        if (existing != null && existing.length > 0) {
+            return new FileTableStore(tableDir);
+        }
+        String backend = WorkerConfig.forTable(tableDir.getName(), "storage", WorkerConfig.get("storage", "segment"));
+        if (backend.equals("file")) {
+            tableDir.mkdirs();
+            return new FileTableStore(tableDir);
+        }
+        return new SegmentStore(tableDir);
+    }
     
-    /** Load persistent row from disk. */
-    private static Row readFromDisk(String tableName, String rowKey) {
+    /** Insert row into table; callers hold the row's lock. */
+    public static void putRow(String tableName, Row row) throws IOException {
+        store(tableName, true).put(row);
+        noteKey(tableName, row.key());
+        noteRow(tableName, row.key(), row);
+        indexRow(tableName, row);
+        ReplicationManager.replicate(tableName, row.key(), row);
+        Rebalancer.forwardWrites(tableName, java.util.Collections.singletonList(row));
+    }
+
+    /** Delete a row that has moved to another worker. */
+    static void dropRow(String tableName, String rowKey) throws IOException {
+        TableStore store = store(tableName, false);
+        if (store == null) {
+            return;
+        }
+        ReentrantLock lock = rowLock(tableName, rowKey);
+        lock.lock();
         try {
-            File tableDir = new File(storageDir, tableName);
-            if (!tableDir.exists()) {
-                return null;
+            preserveForSnapshots(tableName, rowKey);
+            store.delete(rowKey);
+            noteRow(tableName, rowKey, null);
+        } finally {
+            lock.unlock();
+        }
+        history.removeRow(tableName, rowKey);
+    }
+
+    /** Add a written key to the table's Bloom filter, if one has been built. */
+    private static void noteKey(String tableName, String rowKey) {
+        TableBloom bloom = blooms.get(tableName);
+        if (bloom != null) {
+            bloom.filter.add(rowKey);
+        }
+    }
+
+    /** Update the table's Merkle and token indexes, if registered, for a written (or, if row is null, deleted) row. */
+    private static void noteRow(String tableName, String rowKey, Row row) {
+        MerkleIndex merkle = merkles.get(tableName);
+        if (merkle != null) {
+            merkle.update(rowKey, row);
+        }
+        TokenIndex tokens = tokenIndexes.get(tableName);
+        if (tokens != null) {
+            tokens.update(rowKey, row != null);
+        }
+    }
+
+    /** Add a written row to the table's secondary indexes; callers hold the row's lock. */
+    private static void indexRow(String tableName, Row row) throws IOException {
+        for (SecondaryIndex index : secondaryIndexes(tableName).values()) {
+            String value = row.get(index.column);
+            if (value != null) {
+                index.add(value, row.key());
             }
-            
-            String encodedKey = tools.KeyEncoder.encode(rowKey);
-            File rowFile;
-            if (encodedKey.length() >= 6) {
-                File subDir = new File(tableDir, "_" + encodedKey.substring(0, 2));
-                rowFile = new File(subDir, encodedKey);
-            } else {
-                rowFile = new File(tableDir, encodedKey);
+        }
+    }
+
+    /** Secondary indexes the table declares ("<table>.indexes"), opened on first use; empty if it declares none. */
+    static java.util.Map<String, SecondaryIndex> secondaryIndexes(String tableName) throws IOException {
+        java.util.Map<String, SecondaryIndex> open = indexes.get(tableName);
+        if (open != null) {
+            return open;
+        }
+        String declared = WorkerConfig.forTable(tableName, "indexes", "");
+        TableStore store = declared.isEmpty() ? null : store(tableName, true);
+        synchronized (indexes) {
+            open = indexes.get(tableName);
+            if (open != null) {
+                return open;
+            }
+            open = new java.util.LinkedHashMap<>();
+            for (String column : declared.split(",")) {
+                column = column.trim();
+                if (column.isEmpty() || open.containsKey(column)) {
+                    continue;
+                }
+                File dir = isPersistentTable(tableName) ? indexDir(tableName, column) : null;
+                open.put(column, new SecondaryIndex(tableName, column, dir, store));
             }
+            open = java.util.Collections.unmodifiableMap(open);
+            indexes.put(tableName, open);
+            return open;
+        }
+    }
+
+    private static File indexDir(String tableName, String column) {
+        return new File(new File(new File(storageDir, "indexes"), tableName), tools.KeyEncoder.encode(column));
+    }
 
-            if (!rowFile.exists() && encodedKey.length() >= 6) {
-                File rootFile = new File(tableDir, encodedKey);
-                if (rootFile.exists()) {
-                    rowFile = rootFile;
+    /** Close a table's secondary indexes and delete those on disk; they are rebuilt on next use. */
+    private static void dropIndexes(String tableName) {
+        synchronized (indexes) {
+            java.util.Map<String, SecondaryIndex> open = indexes.remove(tableName);
+            if (open != null) {
+                for (SecondaryIndex index : open.values()) {
+                    index.close();
                 }
             }
-            
-            if (!rowFile.exists()) {
-                return null;
+            deleteRecursive(new File(new File(storageDir, "indexes"), tableName));
+        }
+    }
+
+    /**
+     * Keep the row's current state for the table's open snapshots before a write changes it;
+     * callers hold the row's lock. Snapshots that have not been used for a while are dropped here.
+     */
+    static void preserveForSnapshots(String tableName, String rowKey) throws IOException {
+        ConcurrentHashMap<String, TableSnapshot> open = snapshots.get(tableName);
+        if (open == null || open.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        TableStore store = store(tableName, false);
+        for (TableSnapshot snapshot : open.values()) {
+            if (snapshot.expired(now)) {
+                open.remove(snapshot.id, snapshot);
+                snapshot.drop("no scan used it for too long");
+                logger.info("Dropped idle snapshot " + snapshot.id + " of " + tableName);
+                continue;
             }
-            
+            String dropped = snapshot.dropped();
+            snapshot.preserve(rowKey, store);
+            if (dropped == null && snapshot.dropped() != null) {
+                logger.warn("Dropped snapshot " + snapshot.id + " of " + tableName + ": " + snapshot.dropped());
+            }
+        }
+    }
 
-            try {
-                FileInputStream fis = new FileInputStream(rowFile);
-                Row row = Row.readFrom(fis);
-                fis.close();
-                return row;
-            } catch (Exception e) {
-                return null;
+    /** Drop the snapshots of a table whose store is going away. */
+    private static void dropSnapshots(java.util.Map<String, TableSnapshot> open, String reason) {
+        if (open != null) {
+            for (TableSnapshot snapshot : open.values()) {
+                snapshot.drop(reason);
+            }
+        }
+    }
+
+    /** Open a snapshot of a table, at a point where no write is in progress on this worker. */
+    private static TableSnapshot openSnapshot(String tableName, String id) {
+        long idleMillis = 1000L * WorkerConfig.getLong("snapshot.idleSeconds", 600);
+        long maxCopiedBytes = WorkerConfig.getLong("snapshot.maxCopiedBytes", 256L << 20);
+        for (ReentrantLock lock : rowLocks) {
+            lock.lock();
+        }
+        try {
+            ConcurrentHashMap<String, TableSnapshot> open = snapshots.computeIfAbsent(tableName, k -> new ConcurrentHashMap<>());
+            TableSnapshot snapshot = new TableSnapshot(id, Rebalancer.currentRing(), idleMillis, maxCopiedBytes);
+            TableSnapshot existing = open.putIfAbsent(id, snapshot);
+            return (existing != null) ? existing : snapshot;
+        } finally {
+            for (int i = rowLocks.length - 1; i >= 0; i--) {
+                rowLocks[i].unlock();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Merkle index of a table, or null if the table does not exist; built from the rows on
+     * first use. It is registered when the table is opened, so that every delete leaves a
+     * tombstone in it, and built by the first caller.
+     */
+    static MerkleIndex merkleIndex(String tableName) throws IOException {
+        TableStore store = store(tableName, false);
+        if (store == null) {
             return null;
         }
+        MerkleIndex merkle = merkles.computeIfAbsent(tableName, k -> new MerkleIndex());
+        if (merkle.claimBuild()) {
+            try {
+                merkle.build(store);
+            } catch (IOException | RuntimeException e) {
+                merkles.remove(tableName, merkle);
+                throw e;
+            } finally {
+                merkle.ready.countDown();
+            }
+        }
+        try {
+            merkle.ready.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while building Merkle index for " + tableName);
+        }
+        return merkle;
     }
-    
-    /** Fetch row by key. */
-    public static Row getRow(String tableName, String rowKey) {
-        if (isPersistentTable(tableName)) {
-            return readFromDisk(tableName, rowKey);
-        } else {
-            ConcurrentHashMap<String, Row> table = tables.get(tableName);
-            if (table == null) {
-                return null;
+
+    /** Token index of a table, built from its key index on first use and registered before the build like the Merkle index. */
+    private static TokenIndex tokenIndex(String tableName, TableStore store) throws IOException {
+        TokenIndex tokens = tokenIndexes.get(tableName);
+        if (tokens == null) {
+            TokenIndex fresh = new TokenIndex();
+            tokens = tokenIndexes.putIfAbsent(tableName, fresh);
+            if (tokens == null) {
+                tokens = fresh;
+                try {
+                    tokens.build(store);
+                } catch (IOException | RuntimeException e) {
+                    tokenIndexes.remove(tableName, tokens);
+                    throw e;
+                } finally {
+                    tokens.ready.countDown();
+                }
             }
-            return table.get(rowKey);
         }
+        try {
+            tokens.ready.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while building token index for " + tableName);
+        }
+        return tokens;
+    }
+
+    /**
+     * Bloom filter for a table, built from its key index on first use. The filter is
+     * registered before the keys are read, so writes that race with the build land in it too.
+     */
+    private static BloomFilter bloomFilter(String tableName, TableStore store) throws IOException {
+        TableBloom bloom = blooms.get(tableName);
+        if (bloom == null) {
+            TableBloom fresh = new TableBloom(2 * store.count());
+            bloom = blooms.putIfAbsent(tableName, fresh);
+            if (bloom == null) {
+                bloom = fresh;
+                try {
+                    java.util.Iterator<String> keys = store.keys();
+                    while (keys.hasNext()) {
+                        bloom.filter.add(keys.next());
+                    }
+                } catch (IOException | RuntimeException e) {
+                    blooms.remove(tableName, bloom);
+                    throw e;
+                } finally {
+                    bloom.ready.countDown();
+                }
+            }
+        }
+        try {
+            bloom.ready.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while building Bloom filter for " + tableName);
+        }
+        return bloom.filter;
+    }
+    
+    /** Fetch row by key. */
+    public static Row getRow(String tableName, String rowKey) throws IOException {
+        TableStore store = store(tableName, false);
+        return (store == null) ? null : store.get(rowKey);
     }
     
     /** Fetch row by version. */
     public static Row getRowVersion(String tableName, String rowKey, int version) {
-        ConcurrentHashMap<String, ConcurrentHashMap<Integer, Row>> tableHistory = versionHistory.get(tableName);
-        if (tableHistory == null) {
-            return null;
+        return history.get(tableName, rowKey, version);
+    }
+    
+    /** Current version number; 0 if the table keeps no history. */
+    public static int getCurrentVersion(String tableName, String rowKey) {
+        return history.current(tableName, rowKey);
+    }
+    
+    /** Save row and record it as the next version; returns 0 if the table keeps no history. */
+    public static int putRowWithVersion(String tableName, Row row) throws IOException {
+        putRow(tableName, row);
+        return history.record(tableName, row);
+    }
+
+    /** Streams bytes to the client through Response.write(). */
+    private static class ResponseStream extends java.io.OutputStream {
+        private final webserver.Response response;
+
+        ResponseStream(webserver.Response response) {
+            this.response = response;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                response.write((off == 0 && len == b.length) ? b : java.util.Arrays.copyOfRange(b, off, off + len));
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /** Requests sent by other workers (replication, row moves), which are never proxied. */
+    private static boolean internalRequest(webserver.Request request) {
+        return "true".equals(request.queryParams("replicated")) || "true".equals(request.queryParams("migrated"));
+    }
+
+    private static final String[] WRITE_ROUTES = { "/data/", "/batch/", "/append/", "/incr/", "/cas/", "/rename/", "/delete/" };
+
+    /** Client requests that change rows or tables; they wait while a snapshot is opened (see WriteHold). */
+    private static boolean clientWrite(webserver.Request request) {
+        if (request.requestMethod().equals("GET") || request.requestMethod().equals("HEAD") || internalRequest(request)) {
+            return false;
+        }
+        for (String route : WRITE_ROUTES) {
+            if (request.url().startsWith(route)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Relays a request for a row this worker no longer owns to the owner and the owner's answer
+     * back. Only clients that have not yet seen the new ring get here; the X-Ring-Epoch header
+     * on the answer tells them to refresh it. Returns the owner's answer, which routes return
+     * as their own, or null if the owner could not be reached.
+     */
+    private static byte[] proxy(webserver.Request request, webserver.Response response, String target) throws IOException {
+        StringBuilder url = new StringBuilder("http://").append(target).append(request.url());
+        char separator = '?';
+        for (String name : request.queryParams()) {
+            url.append(separator).append(java.net.URLEncoder.encode(name, "UTF-8")).append('=')
+                .append(java.net.URLEncoder.encode(request.queryParams(name), "UTF-8"));
+            separator = '&';
         }
-        ConcurrentHashMap<Integer, Row> rowHistory = tableHistory.get(rowKey);
-        if (rowHistory == null) {
+        byte[] body = request.bodyAsBytes();
+        tools.HTTP.Response answer = tools.HTTP.doRequest(request.requestMethod(), url.toString(), (body == null || body.length == 0) ? null : body);
+        if (answer == null) {
             return null;
         }
-        return rowHistory.get(version);
+        response.halt(answer.statusCode(), answer.statusCode() == 200 ? "OK" : "Proxied");
+        response.bodyAsBytes(answer.body());
+        java.util.Map<String, String> headers = answer.headers();
+        if (headers.get("content-type") != null) {
+            response.type(headers.get("content-type"));
+        }
+        if (headers.get("version") != null) {
+            response.header("Version", headers.get("version"));
+        }
+        return answer.body();
     }
-    
-    /** Current version counter. */
-    public static int getCurrentVersion(String tableName, String rowKey) {
-        ConcurrentHashMap<String, Integer> tableVersions = rowVersions.get(tableName);
-        if (tableVersions == null) {
-            return 0;
+
+    /** Row key or column name from the path; clients URL-encode them, the batch body carries them raw (see KeyFormat). */
+    private static String pathParam(webserver.Request request, String name) {
+        try {
+            return java.net.URLDecoder.decode(request.params(name), "UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 encoding not supported?!?");
         }
-        return tableVersions.getOrDefault(rowKey, 0);
     }
-    
-    /** Bump and return next version. */
-    public static int getNextVersion(String tableName, String rowKey) {
-        ConcurrentHashMap<String, Integer> tableVersions = rowVersions.computeIfAbsent(tableName, k -> new ConcurrentHashMap<>());
-        return tableVersions.compute(rowKey, (key, currentVersion) -> (currentVersion == null) ? 1 : currentVersion + 1);
+
+    /** Columns from a "columns=a,b" parameter; null means all columns. */
+    private static java.util.Set<String> parseColumns(String columnsParam) {
+        if (columnsParam == null || columnsParam.isEmpty()) {
+            return null;
+        }
+        return new java.util.HashSet<>(java.util.Arrays.asList(columnsParam.split(",")));
     }
-    
-    /** Save row plus version history. */
-    public static void putRowWithVersion(String tableName, Row row, int version) {
-        putRow(tableName, row);
-        ConcurrentHashMap<String, ConcurrentHashMap<Integer, Row>> tableHistory = versionHistory.computeIfAbsent(tableName, k -> new ConcurrentHashMap<>());
-        ConcurrentHashMap<Integer, Row> rowHistory = tableHistory.computeIfAbsent(row.key(), k -> new ConcurrentHashMap<>());
-        rowHistory.put(version, row.clone());
-    }
-
-    // List persistent row files.
-    private static java.util.List<File> listRowFiles(File tableDir) {
-        java.util.List<File> result = new java.util.ArrayList<>();
-        File[] children = tableDir.listFiles();
-        if (children == null) return result;
-        for (File f : children) {
-            if (f.isFile()) {
-                // Skip hidden/system files.
-                String name = f.getName();
-                if (name.startsWith(".")) {
-                    continue; // ignore hidden/system files that aren't row data
-                }
-                result.add(f);
-            } else if (f.isDirectory() && f.getName().startsWith("_")) {
-                File[] nested = f.listFiles();
-                if (nested != null) {
-                    for (File nf : nested) if (nf.isFile()) {
-                        String name = nf.getName();
-                        if (name.startsWith(".")) continue;
-                        result.add(nf);
-                    }
+
+    /** Copy of the row restricted to the given columns; the row itself if columns is null. */
+    private static Row project(Row row, java.util.Set<String> columns) {
+        if (columns == null) {
+            return row;
+        }
+        Row projected = new Row(row.key());
+        for (String column : columns) {
+            byte[] value = row.getBytes(column);
+            if (value != null) {
+                projected.put(column, value);
+            }
+        }
+        return projected;
+    }
+
+    /**
+     * Scan filter for ring=, owner=, fromToken= and toTokenExclusive=: keeps the rows that
+     * the owner holds on the client's ring, optionally only those in a token range, so that
+     * replicas of other workers' rows are not returned twice.
+     */
+    static final class RingFilter {
+        private static volatile tools.HashRing lastRing;
+
+        final String tableName;
+        final tools.HashRing ring;
+        final int ownerIdx;
+        final long from;
+        final long to;
+        final boolean bounded;
+        final String fromToken;
+        final String toTokenExclusive;
+
+        private RingFilter(String tableName, tools.HashRing ring, int ownerIdx, String fromToken, String toTokenExclusive) {
+            this.tableName = tableName;
+            this.ring = ring;
+            this.ownerIdx = ownerIdx;
+            this.from = (fromToken == null) ? Long.MIN_VALUE : tools.HashRing.parseToken(fromToken) ^ Long.MIN_VALUE;
+            this.to = (toTokenExclusive == null) ? Long.MAX_VALUE : tools.HashRing.parseToken(toTokenExclusive) ^ Long.MIN_VALUE;
+            this.bounded = toTokenExclusive != null;
+            this.fromToken = fromToken;
+            this.toTokenExclusive = toTokenExclusive;
+        }
+
+        /** True if only part of the token space is asked for, which a TokenIndex can seek to. */
+        boolean tokenRange() {
+            return fromToken != null || toTokenExclusive != null;
+        }
+
+        /** Null if the request has no ring parameters. The last parsed ring is reused, since clients rarely change it. */
+        static RingFilter parse(String tableName, String spec, String owner, String fromToken, String toTokenExclusive) {
+            if (spec == null && fromToken == null && toTokenExclusive == null) {
+                return null;
+            }
+            tools.HashRing ring = null;
+            int ownerIdx = -1;
+            if (spec != null && owner != null) {
+                ring = lastRing;
+                if (ring == null || !ring.spec().equals(spec)) {
+                    ring = tools.HashRing.parse(spec);
+                    lastRing = ring;
                 }
+                ownerIdx = ring.workerIds().indexOf(owner);
             }
+            return new RingFilter(tableName, ring, ownerIdx, fromToken, toTokenExclusive);
         }
-        return result;
+
+        boolean accepts(String rowKey) {
+            long token = tools.HashRing.token(rowKey);
+            long flipped = token ^ Long.MIN_VALUE;
+            if (flipped < from || (bounded && flipped >= to)) {
+                return false;
+            }
+            if (ring == null || ring.ownerIndexForToken(token) == ownerIdx) {
+                return true;
+            }
+            // Rows by the old worker-ID placement that this worker has not moved to their owner yet
+            return ownerIdx >= 0 && Rebalancer.holdsLegacyRow(ring, tableName, rowKey);
+        }
+    }
+
+    // Human-readable byte count for the dashboard.
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return (bytes / 1024) + " KB";
+        return (bytes / (1024 * 1024)) + " MB";
     }
 
     // List persistent table dirs.
@@ -209,6 +634,24 @@ public class Worker extends generic.Worker {
         return names;
     }
 
+    // All table names, in memory and on disk.
+    static java.util.Set<String> listTableNames() {
+        java.util.Set<String> names = new java.util.TreeSet<>(tables.keySet());
+        names.addAll(listPersistentTableNames());
+        return names;
+    }
+
+    // Read every row of a table, sorted by key.
+    private static java.util.List<Row> sortedRows(TableStore store) throws IOException {
+        java.util.List<Row> rows = new java.util.ArrayList<>();
+        Iterator<Row> it = store.scan(null, null);
+        while (it.hasNext()) {
+            rows.add(it.next());
+        }
+        rows.sort((a, b) -> a.key().compareTo(b.key()));
+        return rows;
+    }
+
     // Recursively delete table dirs.
     private static void deleteRecursive(File f) {
         if (f == null || !f.exists()) return;
@@ -288,21 +731,96 @@ public class Worker extends generic.Worker {
         // Derive worker ID
         String workerId = getOrCreateWorkerId(storageDirectory);
 
+        // Open persistent and logged tables up front so they are rebuilt before serving
+        openLoggedTables();
+        for (String tableName : listPersistentTableNames()) {
+            try {
+                store(tableName, false);
+            } catch (IOException e) {
+                logger.error("Could not open table " + tableName, e);
+            }
+        }
+
+        // Tables written before path parameters were decoded are migrated once (see KeyFormat)
+        for (String tableName : listTableNames()) {
+            if (KeyFormat.isDecoded(storageDir, tableName)) {
+                continue;
+            }
+            try {
+                TableStore store = store(tableName, false);
+                if (store == null) {
+                    continue;
+                }
+                java.util.List<String> renamed = KeyFormat.migrate(storageDir, tableName, store);
+                dropIndexes(tableName);
+                Rebalancer.keysRenamed(storageDirectory, tableName, renamed);
+                logger.info("Decoded the keys of " + tableName + "; " + renamed.size() + " rows renamed");
+            } catch (IOException e) {
+                logger.error("Could not decode the keys of " + tableName, e);
+            }
+        }
+
         // Configure HTTP port
         Server.port(port);
 
+        // Every answer carries the ring epoch this worker routes by, so clients notice a new ring.
+        // Single-row requests for rows that have moved elsewhere are relayed to the new owner.
+        // Client requests also start collecting the replica acks their writes wait for, and
+        // client writes wait while a snapshot is being opened.
+        Server.before((request, response) -> {
+            response.header("X-Ring-Epoch", String.valueOf(Rebalancer.epoch()));
+            ReplicationManager.beginRequest(!internalRequest(request));
+            if (request.params("R") != null && !internalRequest(request)) {
+                String target = Rebalancer.redirect(pathParam(request, "R"));
+                if (target != null) {
+                    proxy(request, response, target);
+                    return null;
+                }
+            }
+            if (clientWrite(request)) {
+                WriteHold.admit();
+            }
+            return null;
+        });
+
+        // Client writes to tables with a write quorum are acknowledged once enough replicas have them
+        Server.after((request, response) -> {
+            boolean quorum = ReplicationManager.endRequest();
+            WriteHold.done();
+            if (!quorum) {
+                response.halt(503, "Write quorum not reached");
+            }
+            return null;
+        });
+
         Server.put("/data/:T", (request, response) -> {
             String tableName = request.params("T");
 
             byte[] data = request.bodyAsBytes();
             Row row = Row.readFrom(new ByteArrayInputStream(data));
+            if (!internalRequest(request)) {
+                String target = Rebalancer.redirect(row.key());
+                byte[] relayed = (target == null) ? null : proxy(request, response, target);
+                if (relayed != null) {
+                    return relayed;
+                }
+            }
 
             // Version row before storing
-            int newVersion = getNextVersion(tableName, row.key());
-            putRowWithVersion(tableName, row, newVersion);
+            int newVersion;
+            ReentrantLock lock = rowLock(tableName, row.key());
+            lock.lock();
+            try {
+                preserveForSnapshots(tableName, row.key());
+                newVersion = putRowWithVersion(tableName, row);
+            } finally {
+                lock.unlock();
+            }
 
             // Return version header
-            response.header("Version", String.valueOf(newVersion));
+            if (newVersion > 0) {
+                response.header("Version", String.valueOf(newVersion));
+            }
 
             return "OK";
         });
@@ -310,40 +828,261 @@ public class Worker extends generic.Worker {
         // PUT /data/<table>/<row>/<column> with optional condition
         Server.put("/data/:T/:R/:C", (request, response) -> {
             String tableName = request.params("T");
-            String rowKey = request.params("R");
-            String columnName = request.params("C");
+            String rowKey = pathParam(request, "R");
+            String columnName = pathParam(request, "C");
 
             byte[] data = request.bodyAsBytes();
 
             String ifColumn = request.queryParams("ifcolumn");
             String equals = request.queryParams("equals");
 
-            if (ifColumn != null && equals != null) {
-                Row existingRow = getRow(tableName, rowKey);
-                if (existingRow != null) {
-                    String existingValue = existingRow.get(ifColumn);
+            int newVersion;
+            ReentrantLock lock = rowLock(tableName, rowKey);
+            lock.lock();
+            try {
+                preserveForSnapshots(tableName, rowKey);
+                Row row = getRow(tableName, rowKey);
+                if (ifColumn != null && equals != null) {
+                    if (row == null) {
+                        return "FAIL"; // Row doesn't exist, condition not met
+                    }
+                    String existingValue = row.get(ifColumn);
                     if (existingValue == null || !existingValue.equals(equals)) {
                         return "FAIL"; // Condition not met
                     }
-                } else {
-                    return "FAIL"; // Row doesn't exist, condition not met
                 }
-            }
-
-            ConcurrentHashMap<String, Row> table = tables.computeIfAbsent(tableName, k -> new ConcurrentHashMap<>());
-            Row row = table.computeIfAbsent(rowKey, k -> new Row(rowKey));
-
-            row.put(columnName, data);
 
-            int newVersion = getNextVersion(tableName, rowKey);
-            putRowWithVersion(tableName, row, newVersion);
+                if (row == null) {
+                    row = new Row(rowKey);
+                }
+                row.put(columnName, data);
+                newVersion = putRowWithVersion(tableName, row);
+            } finally {
+                lock.unlock();
+            }
             
             // Add version header to response
-            response.header("Version", String.valueOf(newVersion));
+            if (newVersion > 0) {
+                response.header("Version", String.valueOf(newVersion));
+            }
             
             return "OK";
         });
         
+        // PUT /batch/<table>: rows in Row.toByteArray() framing, each followed by "\n".
+        // Columns are merged into existing rows, as if each cell had been PUT separately.
+        Server.put("/batch/:T", (request, response) -> {
+            String tableName = request.params("T");
+
+            java.util.LinkedHashMap<String, Row> incoming = new java.util.LinkedHashMap<>();
+            ByteArrayInputStream in = new ByteArrayInputStream(request.bodyAsBytes());
+            Row next;
+            while ((next = Row.readFrom(in)) != null) {
+                Row pending = incoming.get(next.key());
+                if (pending == null) {
+                    incoming.put(next.key(), next);
+                } else {
+                    for (String column : next.columns()) {
+                        pending.put(column, next.getBytes(column));
+                    }
+                }
+            }
+            if (!internalRequest(request)) {
+                // Rows that have moved to another worker go there, in one batch per worker
+                java.util.Map<String, java.util.List<Row>> moved = new java.util.HashMap<>();
+                for (Iterator<Row> it = incoming.values().iterator(); it.hasNext(); ) {
+                    Row row = it.next();
+                    String target = Rebalancer.redirect(row.key());
+                    if (target != null) {
+                        moved.computeIfAbsent(target, k -> new java.util.ArrayList<>()).add(row);
+                        it.remove();
+                    }
+                }
+                for (java.util.Map.Entry<String, java.util.List<Row>> e : moved.entrySet()) {
+                    java.io.ByteArrayOutputStream body = new java.io.ByteArrayOutputStream();
+                    for (Row row : e.getValue()) {
+                        body.write(row.toByteArray());
+                        body.write('\n');
+                    }
+                    tools.HTTP.Response answer = tools.HTTP.doRequest("PUT", "http://" + e.getKey() + "/batch/"
+                            + java.net.URLEncoder.encode(tableName, "UTF-8") + "?migrated=true", body.toByteArray());
+                    if (answer == null || answer.statusCode() != 200) {
+                        response.status(502, "Bad Gateway");
+                        return "Could not relay " + e.getValue().size() + " rows to " + e.getKey();
+                    }
+                }
+            }
+            if (incoming.isEmpty()) {
+                return "OK";
+            }
+
+            // Rows moved here during a ring change (see Rebalancer): copies lose against forwarded writes
+            String movedEpoch = request.queryParams("epoch");
+            boolean copy = "true".equals(request.queryParams("fill"));
+            // Replicas receive whole rows (see ReplicaStream), which replace the stored ones
+            boolean replace = "true".equals(request.queryParams("replace"));
+            // Rows moved from the old worker-ID placement lose against columns written here since
+            boolean legacy = "true".equals(request.queryParams("legacy"));
+
+            TableStore store = store(tableName, true);
+            java.util.List<ReentrantLock> held = lockRows(tableName, incoming.keySet());
+            try {
+                java.util.List<Row> merged = new java.util.ArrayList<>(incoming.size());
+                for (Row row : incoming.values()) {
+                    if (movedEpoch != null) {
+                        if (copy && !Rebalancer.copyAllowed(tableName, row.key(), Integer.parseInt(movedEpoch))) {
+                            continue;
+                        }
+                        if (!copy) {
+                            Rebalancer.noteForwarded(tableName, row.key(), Integer.parseInt(movedEpoch));
+                        }
+                    }
+                    preserveForSnapshots(tableName, row.key());
+                    Row existing = replace ? null : store.get(row.key());
+                    if (existing != null) {
+                        for (String column : row.columns()) {
+                            if (!legacy || existing.getBytes(column) == null) {
+                                existing.put(column, row.getBytes(column));
+                            }
+                        }
+                        row = existing;
+                    }
+                    merged.add(row);
+                }
+                store.putAll(merged);
+                for (Row row : merged) {
+                    noteKey(tableName, row.key());
+                    noteRow(tableName, row.key(), row);
+                    indexRow(tableName, row);
+                    ReplicationManager.replicate(tableName, row.key(), row);
+                    history.record(tableName, row);
+                }
+                Rebalancer.forwardWrites(tableName, merged);
+            } finally {
+                unlockRows(held);
+            }
+
+            return "OK";
+        });
+
+        // POST /append/<table>/<row>?prefix=p&cap=N&sep=,&chunkSize=K: body is the value to add
+        // to the row's chunked list (see RowOps.appendCapped); returns OK, EXISTS or FULL
+        Server.post("/append/:T/:R", (request, response) -> {
+            String tableName = request.params("T");
+            String rowKey = pathParam(request, "R");
+            String value = new String(request.bodyAsBytes(), java.nio.charset.StandardCharsets.UTF_8);
+            String sepParam = request.queryParams("sep");
+            int cap, chunkSize;
+            try {
+                cap = Integer.parseInt(request.queryParams("cap"));
+                chunkSize = Integer.parseInt(request.queryParams("chunkSize"));
+            } catch (NumberFormatException e) {
+                response.status(400, "Bad Request");
+                return "cap and chunkSize must be integers";
+            }
+            if (value.isEmpty() || sepParam == null || sepParam.length() != 1 || chunkSize <= 0) {
+                response.status(400, "Bad Request");
+                return "Bad Request";
+            }
+
+            ReentrantLock lock = rowLock(tableName, rowKey);
+            lock.lock();
+            try {
+                preserveForSnapshots(tableName, rowKey);
+                Row row = getRow(tableName, rowKey);
+                if (row == null) {
+                    row = new Row(rowKey);
+                }
+                RowOps.AppendResult result = RowOps.appendCapped(row, request.queryParams("prefix"), value, cap, sepParam.charAt(0), chunkSize);
+                if (result.changed) {
+                    putRowWithVersion(tableName, row);
+                }
+                return result.status;
+            } finally {
+                lock.unlock();
+            }
+        });
+
+        // POST /incr/<table>/<row>/<column>?delta=N: adds N (default 1) to a decimal counter
+        // and returns the new value
+        Server.post("/incr/:T/:R/:C", (request, response) -> {
+            String tableName = request.params("T");
+            String rowKey = pathParam(request, "R");
+            String deltaParam = request.queryParams("delta");
+            long delta;
+            try {
+                delta = (deltaParam == null) ? 1 : Long.parseLong(deltaParam);
+            } catch (NumberFormatException e) {
+                response.status(400, "Bad Request");
+                return "delta must be an integer";
+            }
+
+            ReentrantLock lock = rowLock(tableName, rowKey);
+            lock.lock();
+            try {
+                preserveForSnapshots(tableName, rowKey);
+                Row row = getRow(tableName, rowKey);
+                if (row == null) {
+                    row = new Row(rowKey);
+                }
+                long updated = RowOps.increment(row, pathParam(request, "C"), delta);
+                putRowWithVersion(tableName, row);
+                return String.valueOf(updated);
+            } finally {
+                lock.unlock();
+            }
+        });
+
+        // POST /cas/<table>/<row>?absent=a,b: body holds two rows in /batch framing, the
+        // expected column values and then the new ones. The new values are written only if
+        // every expected column matches and every absent column is missing; returns OK or FAIL
+        Server.post("/cas/:T/:R", (request, response) -> {
+            String tableName = request.params("T");
+            String rowKey = pathParam(request, "R");
+
+            ByteArrayInputStream in = new ByteArrayInputStream(request.bodyAsBytes());
+            Row expectedRow = Row.readFrom(in);
+            Row updateRow = (expectedRow == null) ? null : Row.readFrom(in);
+            if (updateRow == null) {
+                response.status(400, "Bad Request");
+                return "Expected two rows";
+            }
+            java.util.Map<String, byte[]> expected = new java.util.HashMap<>();
+            for (String column : expectedRow.columns()) {
+                expected.put(column, expectedRow.getBytes(column));
+            }
+            java.util.Set<String> absent = parseColumns(request.queryParams("absent"));
+            if (absent != null) {
+                for (String column : absent) {
+                    expected.put(column, null);
+                }
+            }
+            java.util.Map<String, byte[]> updates = new java.util.HashMap<>();
+            for (String column : updateRow.columns()) {
+                updates.put(column, updateRow.getBytes(column));
+            }
+
+            ReentrantLock lock = rowLock(tableName, rowKey);
+            lock.lock();
+            try {
+                preserveForSnapshots(tableName, rowKey);
+                Row row = getRow(tableName, rowKey);
+                if (row == null) {
+                    row = new Row(rowKey);
+                }
+                if (!RowOps.compareAndSet(row, expected, updates)) {
+                    return "FAIL";
+                }
+                int newVersion = putRowWithVersion(tableName, row);
+                if (newVersion > 0) {
+                    response.header("Version", String.valueOf(newVersion));
+                }
+                return "OK";
+            } finally {
+                lock.unlock();
+            }
+        });
+
         // PUT /rename/<oldTableName>
         Server.put("/rename/:oldTableName", (request, response) -> {
             String oldTableName = request.params("oldTableName");
@@ -355,51 +1094,61 @@ public class Worker extends generic.Worker {
                 response.status(400, "Bad Request");
                 return null;
             }
-            
-            if (isPersistentTable(oldTableName)) {
-                File oldTableDir = new File(storageDir, oldTableName);
-                if (!oldTableDir.exists() || !oldTableDir.isDirectory()) {
+
+            synchronized (tables) {
+                if (store(oldTableName, false) == null) {
                     response.status(404, "Not Found");
                     return null;
                 }
-                
-                File newTableDir = new File(storageDir, newTableName);
-                if (newTableDir.exists() && newTableDir.isDirectory()) {
+                if (store(newTableName, false) != null) {
                     response.status(409, "Conflict");
                     return null;
                 }
-                try {
-                    java.nio.file.Path root = java.nio.file.Paths.get(storageDir).toAbsolutePath().normalize();
-                    java.nio.file.Path src = root.resolve(oldTableName).normalize();
-                    java.nio.file.Path dst = src.resolveSibling(newTableName).normalize();
-                    java.nio.file.Files.move(src, dst);
-                } catch (IOException e) {
-                    response.status(500, "Internal Server Error");
-                    return "Error renaming table: " + e.getMessage();
+
+                if (isPersistentTable(oldTableName)) {
+                    // Close the files, move the directory, and let the next access reopen it
+                    tables.remove(oldTableName).close();
+                    try {
+                        java.nio.file.Path root = java.nio.file.Paths.get(storageDir).toAbsolutePath().normalize();
+                        java.nio.file.Path src = root.resolve(oldTableName).normalize();
+                        java.nio.file.Path dst = src.resolveSibling(newTableName).normalize();
+                        java.nio.file.Files.move(src, dst);
+                    } catch (IOException e) {
+                        response.status(500, "Internal Server Error");
+                        return "Error renaming table: " + e.getMessage();
+                    }
+                } else {
+                    TableStore store = tables.remove(oldTableName);
+                    if (store instanceof WalTableStore) {
+                        ((WalTableStore) store).moveTo(walFile(newTableName));
+                    }
+                    tables.put(newTableName, store);
                 }
-            } else {
-                if (!tables.containsKey(oldTableName)) {
-                    response.status(404, "Not Found");
-                    return null;
+                TableBloom bloom = blooms.remove(oldTableName);
+                if (bloom != null) {
+                    blooms.put(newTableName, bloom);
                 }
-                if (tables.containsKey(newTableName)) {
-                    response.status(409, "Conflict");
-                    return null;
+                MerkleIndex merkle = merkles.remove(oldTableName);
+                if (merkle != null) {
+                    merkles.put(newTableName, merkle);
                 }
-                
-                ConcurrentHashMap<String, Row> table = tables.get(oldTableName);
-                tables.remove(oldTableName);
-                tables.put(newTableName, table);
-                ConcurrentHashMap<String, Integer> versions = rowVersions.remove(oldTableName);
-                if (versions != null) {
-                    rowVersions.put(newTableName, versions);
+                KeyFormat.rename(storageDir, oldTableName, newTableName);
+                TokenIndex tokens = tokenIndexes.remove(oldTableName);
+                if (tokens != null) {
+                    tokenIndexes.put(newTableName, tokens);
                 }
-                
-                ConcurrentHashMap<String, ConcurrentHashMap<Integer, Row>> history = versionHistory.remove(oldTableName);
-                if (history != null) {
-                    versionHistory.put(newTableName, history);
+                ConcurrentHashMap<String, TableSnapshot> open = snapshots.remove(oldTableName);
+                if (open != null) {
+                    // Versions pinned in the closed files can no longer be read
+                    if (isPersistentTable(oldTableName)) {
+                        dropSnapshots(open, "its table was renamed");
+                    }
+                    snapshots.put(newTableName, open);
                 }
+                dropIndexes(oldTableName);
             }
+
+            history.renameTable(oldTableName, newTableName);
             
             return "OK";
         });
@@ -407,25 +1156,30 @@ public class Worker extends generic.Worker {
         // PUT /delete/<tableName>
         Server.put("/delete/:tableName", (request, response) -> {
             String tableName = request.params("tableName");
-            
-            if (isPersistentTable(tableName)) {
-                File tableDir = new File(storageDir, tableName);
-                if (!tableDir.exists() || !tableDir.isDirectory()) {
-                    response.status(404, "Not Found");
-                    return null;
-                }
-                deleteRecursive(tableDir);
-                
-            } else {
-                if (!tables.containsKey(tableName)) {
+
+            synchronized (tables) {
+                TableStore store = store(tableName, false);
+                if (store == null) {
                     response.status(404, "Not Found");
                     return null;
                 }
-                
                 tables.remove(tableName);
-                rowVersions.remove(tableName);
-                versionHistory.remove(tableName);
+                blooms.remove(tableName);
+                merkles.remove(tableName);
+                tokenIndexes.remove(tableName);
+                KeyFormat.forget(storageDir, tableName);
+                dropSnapshots(snapshots.remove(tableName), "its table was deleted");
+                dropIndexes(tableName);
+                if (store instanceof WalTableStore) {
+                    ((WalTableStore) store).drop();
+                } else {
+                    store.close();
+                }
+                if (isPersistentTable(tableName)) {
+                    deleteRecursive(new File(storageDir, tableName));
+                }
             }
+            history.removeTable(tableName);
             
             return "OK";
         });
@@ -433,66 +1187,178 @@ public class Worker extends generic.Worker {
         // GET /data/<table>/<row>
         Server.get("/data/:T/:R", (request, response) -> {
             String tableName = request.params("T");
-            String rowKey = request.params("R");
+            String rowKey = pathParam(request, "R");
 
             Row row = getRow(tableName, rowKey);
+            if (row == null && !internalRequest(request)) {
+                row = Rebalancer.legacyRow(tableName, rowKey);
+            }
             if (row == null) {
                 response.status(404, "Not Found");
                 return "Not Found";
             }
 
+            row = project(row, parseColumns(request.queryParams("columns")));
             response.bodyAsBytes(row.toByteArray());
             return row;
         });
 
+        // POST /mget/<table>?columns=a,b: body is one row key per line; returns the rows that
+        // exist, in the /data/<table> scan framing, optionally restricted to the given columns
+        Server.post("/mget/:T", (request, response) -> {
+            String tableName = request.params("T");
+            java.util.Set<String> columns = parseColumns(request.queryParams("columns"));
+
+            response.type("text/plain");
+            TableStore store = store(tableName, false);
+            String body = new String(request.bodyAsBytes(), java.nio.charset.StandardCharsets.UTF_8);
+            java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+            // Rows that have moved to another worker are fetched from there
+            java.util.Map<String, StringBuilder> moved = new java.util.HashMap<>();
+            for (String rowKey : body.split("\n")) {
+                if (rowKey.isEmpty()) continue;
+                String target = internalRequest(request) ? null : Rebalancer.redirect(rowKey);
+                if (target != null) {
+                    moved.computeIfAbsent(target, k -> new StringBuilder()).append(rowKey).append('\n');
+                    continue;
+                }
+                Row row = (store == null) ? null : store.get(rowKey);
+                if (row == null && !internalRequest(request)) {
+                    row = Rebalancer.legacyRow(tableName, rowKey);
+                }
+                if (row == null) continue;
+                out.write(project(row, columns).toByteArray());
+                out.write('\n');
+            }
+            for (java.util.Map.Entry<String, StringBuilder> e : moved.entrySet()) {
+                String query = request.queryParams("columns") == null ? "" : "?columns=" + java.net.URLEncoder.encode(request.queryParams("columns"), "UTF-8");
+                tools.HTTP.Response answer = tools.HTTP.doRequest("POST", "http://" + e.getKey() + "/mget/"
+                        + java.net.URLEncoder.encode(tableName, "UTF-8") + query, e.getValue().toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                if (answer == null || answer.statusCode() != 200) {
+                    response.status(502, "Bad Gateway");
+                    return "Could not fetch rows from " + e.getKey();
+                }
+                // Drop the owner's terminating empty line; ours follows
+                byte[] rows = answer.body();
+                out.write(rows, 0, Math.max(0, rows.length - 1));
+            }
+            out.write('\n');
+            return out.toByteArray();
+        });
+
         // GET /data/<table>
         Server.get("/data/:T", (request, response) -> {
             String tableName = request.params("T");
 
             String startRow = request.queryParams("startRow");
             String endRowExclusive = request.queryParams("endRowExclusive");
+            java.util.Set<String> columns = parseColumns(request.queryParams("columns"));
+            String ringSpec = request.queryParams("ring");
 
             response.type("text/plain");
 
-            if (isPersistentTable(tableName)) {
-                File tableDir = new File(storageDir, tableName);
-                if (!tableDir.exists()) {
-                    response.status(404, "Not Found");
-                    return "Not Found";
+            // snapshot=<id>: the rows as they were when the snapshot was taken, owned on the ring of that time
+            TableSnapshot snapshot = null;
+            if (request.queryParams("snapshot") != null) {
+                java.util.Map<String, TableSnapshot> open = snapshots.get(tableName);
+                snapshot = (open == null) ? null : open.get(request.queryParams("snapshot"));
+                if (snapshot == null) {
+                    response.status(410, "Gone");
+                    return "No snapshot " + request.queryParams("snapshot") + " of " + tableName;
                 }
-                java.util.List<File> rowFiles = listRowFiles(tableDir);
-                for (File file : rowFiles) {
-                    try (FileInputStream fis = new FileInputStream(file)) {
-                        Row row = Row.readFrom(fis);
-                        if (row == null) continue;
-                        if (startRow != null && row.key().compareTo(startRow) < 0) continue;
-                        if (endRowExclusive != null && row.key().compareTo(endRowExclusive) >= 0) continue;
-                        response.write(row.toByteArray());
-                        response.write("\n".getBytes());
-                    } catch (Exception e) {
-                        System.err.println("Error reading file " + file.getName() + ": " + e.getMessage());
-                    }
+                if (snapshot.dropped() != null) {
+                    response.status(410, "Gone");
+                    return "Snapshot " + snapshot.id + " of " + tableName + " was dropped: " + snapshot.dropped();
                 }
-            } else {
-                ConcurrentHashMap<String, Row> table = tables.get(tableName);
-                if (table == null) {
-                    response.status(404, "Not Found");
-                    return "Not Found";
+                if (snapshot.ring != null) {
+                    ringSpec = snapshot.ring.spec();
                 }
+            }
+            RingFilter ringFilter = RingFilter.parse(tableName, ringSpec, request.queryParams("owner"),
+                    request.queryParams("fromToken"), request.queryParams("toTokenExclusive"));
 
-                for (Row row : table.values()) {
-                    if (startRow != null && row.key().compareTo(startRow) < 0) {
-                        continue;
-                    }
-                    if (endRowExclusive != null && row.key().compareTo(endRowExclusive) >= 0) {
-                        continue;
-                    }
-                    response.write(row.toByteArray());
-                    response.write("\n".getBytes());
+            // filter=<ScanFilter>: only matching rows are sent, and its key bounds narrow the scan
+            ScanFilter filter = null;
+            if (request.queryParams("filter") != null) {
+                try {
+                    filter = ScanFilter.parse(request.queryParams("filter"));
+                } catch (IllegalArgumentException e) {
+                    response.status(400, "Bad Request");
+                    return e.getMessage();
+                }
+                String low = filter.startRow();
+                if (low != null && (startRow == null || low.compareTo(startRow) > 0)) {
+                    startRow = low;
+                }
+                String high = filter.endRowExclusive();
+                if (high != null && (endRowExclusive == null || high.compareTo(endRowExclusive) < 0)) {
+                    endRowExclusive = high;
+                }
+            }
+
+            TableStore store = store(tableName, false);
+            if (store == null) {
+                response.status(404, "Not Found");
+                return "Not Found";
+            }
+
+            // Clients that send "Accept-Encoding: gzip" get the stream gzipped
+            String acceptEncoding = request.headers("accept-encoding");
+            boolean gzip = acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+            if (gzip) {
+                response.header("Content-Encoding", "gzip");
+            }
+
+            // framing=binary: length-prefixed rows (see Row.writeFramed) instead of newline-separated text
+            boolean framed = "binary".equals(request.queryParams("framing"));
+            if (framed) {
+                response.header("X-Row-Framing", "binary");
+            }
+
+            // Rows are sent in 256 KB chunks; a client that stops reading blocks the scan here
+            java.io.OutputStream out = new java.io.BufferedOutputStream(new ResponseStream(response), 1 << 18);
+            if (gzip) {
+                out = new java.util.zip.GZIPOutputStream(out, 1 << 16);
+            }
+            java.io.DataOutputStream data = new java.io.DataOutputStream(out);
+            // A token range (a Flame partition) reads only its own rows, found with the token index
+            Iterator<Row> rows;
+            boolean checkKeys = false;
+            if (snapshot != null) {
+                rows = snapshot.scan(store, startRow, endRowExclusive);
+            } else if (ringFilter != null && ringFilter.tokenRange()) {
+                rows = store.scanKeys(tokenIndex(tableName, store).keys(ringFilter.fromToken, ringFilter.toTokenExclusive));
+                checkKeys = (startRow != null || endRowExclusive != null);
+            } else {
+                rows = store.scan(startRow, endRowExclusive);
+            }
+            while (rows.hasNext()) {
+                Row row = rows.next();
+                if (checkKeys && ((startRow != null && row.key().compareTo(startRow) < 0)
+                        || (endRowExclusive != null && row.key().compareTo(endRowExclusive) >= 0))) {
+                    continue;
+                }
+                if (ringFilter != null && !ringFilter.accepts(row.key())) {
+                    continue;
+                }
+                if (filter != null && !filter.accepts(row)) {
+                    continue;
+                }
+                row = project(row, columns);
+                if (framed) {
+                    row.writeFramed(data);
+                } else {
+                    data.write(row.toByteArray());
+                    data.write('\n');
                 }
             }
 
-            response.write("\n".getBytes());
+            if (framed) {
+                Row.writeEndOfFrames(data);
+            } else {
+                data.write('\n');
+            }
+            data.close();
             return null;
         });
 
@@ -500,8 +1366,8 @@ public class Worker extends generic.Worker {
         Server.get("/data/:T/:R/:C", (request, response) -> {
             try {
                 String tableName = request.params("T");
-                String rowKey = request.params("R");
-                String columnName = request.params("C");
+                String rowKey = pathParam(request, "R");
+                String columnName = pathParam(request, "C");
 
                 Row row;
                 int version;
@@ -522,6 +1388,9 @@ public class Worker extends generic.Worker {
                 } else {
                     row = getRow(tableName, rowKey);
                     version = getCurrentVersion(tableName, rowKey);
+                    if (row == null && !internalRequest(request)) {
+                        row = Rebalancer.legacyRow(tableName, rowKey);
+                    }
                     if (row == null) {
                         response.status(404, "Not Found");
                         return "Not Found";
@@ -534,7 +1403,9 @@ public class Worker extends generic.Worker {
                     return "Not Found";
                 }
 
-                response.header("Version", String.valueOf(version));
+                if (version > 0) {
+                    response.header("Version", String.valueOf(version));
+                }
 
                 response.bodyAsBytes(data);
                 return data;
@@ -549,84 +1420,166 @@ public class Worker extends generic.Worker {
         // DELETE /data/<table>/<row>
         Server.delete("/data/:T/:R", (request, response) -> {
             String tableName = request.params("T");
-            String rowKey = request.params("R");
-            
-            boolean deleted = false;
+            String rowKey = pathParam(request, "R");
+            if (request.queryParams("epoch") != null) {
+                // Forwarded during a ring change; copies of the row that arrive later must not revive it
+                Rebalancer.noteForwarded(tableName, rowKey, Integer.parseInt(request.queryParams("epoch")));
+            }
             
-            if (isPersistentTable(tableName)) {
-                File tableDir = new File(storageDir, tableName);
-                if (!tableDir.exists()) {
-                    response.status(404, "Not Found");
-                    return "Table not found";
-                }
-
-                String encodedKey = tools.KeyEncoder.encode(rowKey);
-                File rowFile;
-                if (encodedKey.length() >= 6) {
-                    File subDir = new File(tableDir, "_" + encodedKey.substring(0, 2));
-                    rowFile = new File(subDir, encodedKey);
-                } else {
-                    rowFile = new File(tableDir, encodedKey);
-                }
+            TableStore store = store(tableName, false);
+            if (store == null) {
+                response.status(404, "Not Found");
+                return "Table not found";
+            }
 
-                if (rowFile.exists() && rowFile.isFile()) {
-                    deleted = rowFile.delete();
-                    if (!deleted) {
-                        response.status(500, "Internal Server Error");
-                        return "Failed to delete row file";
-                    }
-                } else {
+            ReentrantLock lock = rowLock(tableName, rowKey);
+            lock.lock();
+            try {
+                preserveForSnapshots(tableName, rowKey);
+                if (!store.delete(rowKey)) {
                     response.status(404, "Not Found");
                     return "Row not found";
                 }
-                
-            } else {
-                ConcurrentHashMap<String, Row> table = tables.get(tableName);
-                if (table == null) {
-                    response.status(404, "Not Found");
-                    return "Table not found";
+                noteRow(tableName, rowKey, null);
+                ReplicationManager.replicate(tableName, rowKey, null);
+                Rebalancer.forwardDelete(tableName, rowKey);
+            } catch (IOException e) {
+                response.status(500, "Internal Server Error");
+                return "Failed to delete row: " + e.getMessage();
+            } finally {
+                lock.unlock();
+            }
+
+            history.removeRow(tableName, rowKey);
+            
+            response.status(200, "OK");
+            return "OK";
+        });
+
+        // GET /index/<table>/<column>?value=v&columns=a,b: rows whose column holds the value,
+        // found with the table's secondary index, in the /mget framing. With ring= and owner=,
+        // only the rows the worker owns on that ring, as for scans; clients ask every worker.
+        Server.get("/index/:T/:I", (request, response) -> {
+            String tableName = request.params("T");
+            String column = pathParam(request, "I");
+            String value = request.queryParams("value");
+            java.util.Set<String> columns = parseColumns(request.queryParams("columns"));
+            RingFilter ringFilter = RingFilter.parse(tableName, request.queryParams("ring"), request.queryParams("owner"), null, null);
+
+            response.type("text/plain");
+            if (value == null) {
+                response.status(400, "Bad Request");
+                return "Missing value parameter";
+            }
+            TableStore store = store(tableName, false);
+            if (store == null) {
+                response.status(404, "Not Found");
+                return "Not Found";
+            }
+            SecondaryIndex index = secondaryIndexes(tableName).get(column);
+            if (index == null) {
+                response.status(400, "Bad Request");
+                return "Table " + tableName + " has no index on " + column;
+            }
+
+            java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+            for (String rowKey : index.rowKeys(value)) {
+                if (ringFilter != null && !ringFilter.accepts(rowKey)) {
+                    continue;
                 }
-                
-                Row removedRow = table.remove(rowKey);
-                deleted = (removedRow != null);
-                
-                if (!deleted) {
-                    response.status(404, "Not Found");
-                    return "Row not found";
+                Row row = store.get(rowKey);
+                if (row == null || !value.equals(row.get(column))) {
+                    // Left behind by a later write or a delete: drop it, unless the row has regained the value since
+                    ReentrantLock lock = rowLock(tableName, rowKey);
+                    lock.lock();
+                    try {
+                        Row current = store.get(rowKey);
+                        String held = (current == null) ? null : current.get(column);
+                        if (held == null || tools.HashRing.token(held) != tools.HashRing.token(value)) {
+                            index.remove(value, rowKey);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    continue;
                 }
+                out.write(project(row, columns).toByteArray());
+                out.write('\n');
+            }
+            out.write('\n');
+            return out.toByteArray();
+        });
 
-                if (rowVersions.containsKey(tableName)) {
-                    rowVersions.get(tableName).remove(rowKey);
+        // POST /snapshot/<table>?id=<id>&hold=<ms>: open a snapshot of the table (see TableSnapshot)
+        // for GET /data/<table>?snapshot=<id>, and hold client writes for up to <ms> or until
+        // POST /snapshot/<table>/<id>/resume (see WriteHold). Clients open it on every worker
+        // under the same id; the answer is the spec of the ring it is read on
+        Server.post("/snapshot/:T", (request, response) -> {
+            String id = request.queryParams("id");
+            if (id == null || id.isEmpty()) {
+                response.status(400, "Bad Request");
+                return "Missing id parameter";
+            }
+            if (request.queryParams("hold") != null) {
+                long holdMillis;
+                try {
+                    holdMillis = Long.parseLong(request.queryParams("hold"));
+                } catch (NumberFormatException e) {
+                    response.status(400, "Bad Request");
+                    return "Bad hold parameter";
                 }
-                if (versionHistory.containsKey(tableName)) {
-                    versionHistory.get(tableName).remove(rowKey);
+                if (!WriteHold.hold(id, holdMillis)) {
+                    WriteHold.release(id);
+                    response.status(503, "Service Unavailable");
+                    return "Writes in progress did not finish in time";
                 }
             }
-            
-            response.status(200, "OK");
+            TableSnapshot snapshot = openSnapshot(request.params("T"), id);
+            return (snapshot.ring == null) ? "" : snapshot.ring.spec();
+        });
+
+        // POST /snapshot/<table>/<id>/resume: let client writes through again after POST /snapshot
+        Server.post("/snapshot/:T/:id/resume", (request, response) -> {
+            WriteHold.release(request.params("id"));
+            return "OK";
+        });
+
+        // DELETE /snapshot/<table>/<id>: release a snapshot before it times out
+        Server.delete("/snapshot/:T/:id", (request, response) -> {
+            java.util.Map<String, TableSnapshot> open = snapshots.get(request.params("T"));
+            TableSnapshot snapshot = (open == null) ? null : open.remove(request.params("id"));
+            if (snapshot == null) {
+                response.status(404, "Not Found");
+                return "Not Found";
+            }
+            snapshot.drop("it was released");
             return "OK";
         });
 
+        // GET /placement: "done" once this worker holds no rows by the old worker-ID placement
+        Server.get("/placement", (request, response) -> Rebalancer.placementStatus());
+
+        // GET /bloom/<table>: serialized BloomFilter over the table's row keys on this worker.
+        // None while rows by the old placement may be elsewhere, since misses are not final then.
+        Server.get("/bloom/:T", (request, response) -> {
+            String tableName = request.params("T");
+            if (Rebalancer.legacyRowsPossible()) {
+                response.status(503, "Service Unavailable");
+                return "Rows are still being moved to their owners";
+            }
+            TableStore store = store(tableName, false);
+            if (store == null) {
+                response.status(404, "Not Found");
+                return "Table not found";
+            }
+            response.type("application/octet-stream");
+            return bloomFilter(tableName, store).toByteArray();
+        });
+
         // GET /count/<table>
         Server.get("/count/:tableName", (request, response) -> {
-            String tableName = request.params("tableName");
-            int count = 0;
-            
-            if (isPersistentTable(tableName)) {
-                File tableDir = new File(storageDir, tableName);
-                if (tableDir.exists() && tableDir.isDirectory()) {
-                    for (File f : listRowFiles(tableDir)) {
-                        if (f.isFile()) count++;
-                    }
-                }
-            } else {
-                ConcurrentHashMap<String, Row> table = tables.get(tableName);
-                if (table != null) {
-                    count = table.size();
-                }
-            }
-            
-            return String.valueOf(count);
+            TableStore store = store(request.params("tableName"), false);
+            return String.valueOf(store == null ? 0 : store.count());
         });
 
         // GET /
@@ -637,26 +1590,38 @@ public class Worker extends generic.Worker {
             html.append("<html><head><title>KVS Worker - Tables</title></head><body>");
             html.append("<h1>Tables</h1>");
             html.append("<table border=\"1\">");
-            html.append("<tr><th>Table Name</th><th>Number of Keys</th></tr>");
+            html.append("<tr><th>Table Name</th><th>Number of Keys</th><th>Storage</th><th>Version History</th><th>Row Cache</th></tr>");
             
-            java.util.Set<String> names = new java.util.TreeSet<>();
-            names.addAll(tables.keySet());
-            names.addAll(listPersistentTableNames());
-            for (String tname : names) {
-                int rowCount = 0;
-                if (isPersistentTable(tname)) {
-                    File tableDir = new File(storageDir, tname);
-                    if (tableDir.exists()) {
-                        rowCount = listRowFiles(tableDir).size();
-                    }
-                } else {
-                    ConcurrentHashMap<String, Row> table = tables.get(tname);
-                    if (table != null) rowCount = table.size();
-                }
-                html.append("<tr><td><a href=\"/view/").append(tname).append("\">").append(tname).append("</a></td><td>").append(rowCount).append("</td></tr>");
+            for (String tname : listTableNames()) {
+                TableStore store = store(tname, false);
+                if (store == null) continue;
+                html.append("<tr><td><a href=\"/view/").append(tname).append("\">").append(tname).append("</a></td><td>").append(store.count())
+                    .append("</td><td>").append(store.describe()).append("</td><td>").append(formatBytes(history.heapBytes(tname)))
+                    .append("</td><td>").append(store instanceof CachedTableStore ? ((CachedTableStore) store).describeCache() : "-").append("</td></tr>");
             }
             
             html.append("</table>");
+            html.append("<p>").append(Rebalancer.describe()).append("</p>");
+            html.append("<p>Replication: ").append(ReplicationManager.describe()).append("</p>");
+            int openSnapshots = 0, keptRows = 0;
+            long copiedBytes = 0;
+            for (java.util.Map<String, TableSnapshot> open : snapshots.values()) {
+                for (TableSnapshot snapshot : open.values()) {
+                    openSnapshots++;
+                    keptRows += snapshot.preservedRows();
+                    copiedBytes += snapshot.copiedBytes();
+                }
+            }
+            for (java.util.Map.Entry<String, java.util.Map<String, SecondaryIndex>> e : indexes.entrySet()) {
+                for (SecondaryIndex index : e.getValue().values()) {
+                    html.append("<p>Index ").append(e.getKey()).append(".").append(index.describe()).append("</p>");
+                }
+            }
+            html.append("<p>Connections: ").append(tools.ConnectionPool.shared().describe()).append("</p>");
+            html.append("<p>Snapshots: ").append(openSnapshots).append(" open, ").append(keptRows).append(" row(s) kept, ")
+                .append(formatBytes(copiedBytes)).append(" copied</p>");
+            html.append("<p>Version history: ").append(formatBytes(history.heapBytes())).append(" of ")
+                .append(formatBytes(Runtime.getRuntime().maxMemory())).append(" max heap</p>");
             html.append("</body></html>");
             
             return html.toString();
@@ -668,37 +1633,13 @@ public class Worker extends generic.Worker {
             String tableName = request.params("tableName");
             String fromRow = request.queryParams("fromRow");
             
-            java.util.List<Row> allRows = new java.util.ArrayList<>();
-            boolean tableExists = false;
-            
-            if (isPersistentTable(tableName)) {
-                File tableDir = new File(storageDir, tableName);
-                if (tableDir.exists() && tableDir.isDirectory()) {
-                    tableExists = true;
-                    java.util.List<File> rowFiles = listRowFiles(tableDir);
-                    for (File file : rowFiles) {
-                        try (FileInputStream fis = new FileInputStream(file)) {
-                            Row row = Row.readFrom(fis);
-                            if (row != null) allRows.add(row);
-                        } catch (Exception e) {
-                            System.err.println("Error reading file " + file.getName() + ": " + e.getMessage());
-                        }
-                    }
-                }
-            } else {
-                ConcurrentHashMap<String, Row> table = tables.get(tableName);
-                if (table != null) {
-                    tableExists = true;
-                    allRows.addAll(table.values());
-                }
-            }
-            
-            if (!tableExists) {
+            TableStore store = store(tableName, false);
+            if (store == null) {
                 response.status(404, "Not Found");
                 return "Table not found";
             }
 
-            allRows.sort((r1, r2) -> r1.key().compareTo(r2.key()));
+            java.util.List<Row> allRows = sortedRows(store);
             if (fromRow != null) {
                 allRows.removeIf(row -> row.key().compareTo(fromRow) < 0);
             }
@@ -762,37 +1703,34 @@ public class Worker extends generic.Worker {
         Server.get("/repl/tables", (req, res) -> {
             res.type("text/plain");
             StringBuilder sb = new StringBuilder();
-            java.util.Set<String> names = new java.util.TreeSet<>();
-            names.addAll(tables.keySet());
-            names.addAll(listPersistentTableNames());
-            for (String n : names) sb.append(n).append("\n");
+            for (String n : listTableNames()) sb.append(n).append("\n");
             return sb.toString();
         });
 
-        // GET /repl/rows/<tableName>
-        Server.get("/repl/rows/:tableName", (req, res) -> {
+        // POST /repl/tree/<table>?ring=<spec>&peer=<id>: body is one node number per line; returns
+        // the hex hashes of those nodes of the Merkle tree over the arcs this worker shares with the peer
+        Server.post("/repl/tree/:T", (req, res) -> {
             res.type("text/plain");
-            String tableName = req.params("tableName");
-            StringBuilder sb = new StringBuilder();
-            java.util.List<Row> rows = new java.util.ArrayList<>();
-            if (isPersistentTable(tableName)) {
-                File tableDir = new File(storageDir, tableName);
-                if (tableDir.exists()) {
-                    for (File f : listRowFiles(tableDir)) {
-                        try (FileInputStream fis = new FileInputStream(f)) {
-                            Row r = Row.readFrom(fis); if (r!=null) rows.add(r);
-                        } catch (Exception ignored) {}
-                    }
-                }
-            } else {
-                ConcurrentHashMap<String, Row> table = tables.get(tableName);
-                if (table != null) rows.addAll(table.values());
+            String answer = ReplicationManager.treeNodes(req.params("T"), req.queryParams("ring"), req.queryParams("peer"),
+                    new String(req.bodyAsBytes(), java.nio.charset.StandardCharsets.UTF_8));
+            if (answer == null) {
+                res.status(404, "Not Found");
+                return "Not Found";
             }
-            rows.sort((a,b)->a.key().compareTo(b.key()));
-            for (Row r : rows) {
-                sb.append(r.key()).append(" ").append(ReplicationManager.hashRow(r)).append("\n");
+            return answer;
+        });
+
+        // POST /repl/rows/<table>?ring=<spec>&peer=<id>: body is one leaf position per line;
+        // returns "<key> <hex hash>" for each row in those leaves
+        Server.post("/repl/rows/:T", (req, res) -> {
+            res.type("text/plain");
+            String answer = ReplicationManager.leafRows(req.params("T"), req.queryParams("ring"), req.queryParams("peer"),
+                    new String(req.bodyAsBytes(), java.nio.charset.StandardCharsets.UTF_8));
+            if (answer == null) {
+                res.status(404, "Not Found");
+                return "Not Found";
             }
-            return sb.toString();
+            return answer;
         });
 
         // Configure ping metadata
@@ -801,6 +1739,13 @@ public class Worker extends generic.Worker {
         // Start ping thread
         startPingThread();
 
+        // Follow the coordinator's ring and move rows when it changes
+        try {
+            Rebalancer.start(coordinatorAddress, workerId, storageDirectory);
+        } catch (IOException e) {
+            logger.error("Could not check for rows placed by worker-ID ranges", e);
+        }
+
         // Start replication refresh
         ReplicationManager.start(coordinatorAddress, workerId, port);
         
@@ -0,0 +1,137 @@
+package kvs;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Optional KVS worker settings, read once from kvs.properties in the working directory.
+ *
+ * Lines have the form "key = value"; '#' starts a comment. Table-specific settings are
+ * written as "table.setting", where table may be an exact name ("pt-crawl.compression")
+ * or a prefix pattern ending in '*' ("pt-*.compression"). Exact names win over patterns,
+ * longer patterns win over shorter ones, and a missing file just means all defaults.
+ *
+ * Keys currently understood:
+ *   storage = segment | file        backend for new persistent tables (default: segment)
+ *   segment.maxBytes = N            roll the active segment after N bytes (default: 64 MB)
+ *   compaction.intervalSeconds = N  how often the background compactor runs (default: 30)
+ *   compaction.minGarbageRatio = F  rewrite sorted runs with more garbage than this (default: 0.5)
+ *   compaction.maxBytesPerPass = N  input bytes rewritten per compaction pass (default: 4 segments)
+ *   <table>.compression = none | deflate | deflate:N   deflate rows of segment tables at level N (default: deflate:1)
+ *   <table>.mmap = on | off          serve point reads of persistent tables from mapped files (default: on)
+ *   <table>.rowCache = N             cache up to N bytes of decoded rows of a persistent table; 0 disables (default: 16 MB)
+ *   mmap.maxBytes = N               address space kept mapped across all tables (default: 1 GB)
+ *   mmap.maxRegions = N             number of mappings kept across all tables (default: 8192)
+ *   <table>.versions = off | last:N | window:S   row version history (default: off for pt-*, last:10 otherwise)
+ *   <table>.wal = on | off          write-ahead log for in-memory tables (default: off)
+ *   <table>.replicas = N            workers holding each row, owner included (default: 3)
+ *   <table>.writeQuorum = N         workers that must have a write before it is acknowledged (default: 1)
+ *   replication.tombstoneSeconds = N  remember deleted rows for anti-entropy for N seconds (default: 3600)
+ *   <table>.indexes = col,col       keep a secondary index on these columns (default: none)
+ *   snapshot.idleSeconds = N        drop a table snapshot no scan has used for N seconds (default: 600)
+ *   snapshot.maxCopiedBytes = N     drop a snapshot of an in-memory or logged table once it has copied
+ *                                   N bytes of rows written while it is open (default: 256 MB)
+ *   memory = heap | offheap         engine for in-memory tables, also per table (default: heap)
+ *   offheap.arenaBytes = N          size of each off-heap arena (default: 64 MB)
+ *   wal.syncMillis = N              group commit: wait up to N ms for more writers before fsync (default: 5)
+ *   wal.syncRecords = N             group commit: fsync at once when N records are waiting (default: 1000)
+ *   wal.rewriteSlackRecords = N     rewrite a log once it has 2 x rows + N records (default: 100000)
+ */
+public class WorkerConfig {
+
+    private static final String FILE_NAME = "kvs.properties";
+    private static Map<String, String> values = null;
+
+    private static synchronized Map<String, String> values() {
+        if (values != null) {
+            return values;
+        }
+        values = new ConcurrentHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(FILE_NAME))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int eq = line.indexOf('=');
+                if (eq <= 0) {
+                    System.err.println("Ignoring malformed line in " + FILE_NAME + ": " + line);
+                    continue;
+                }
+                values.put(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+            }
+        } catch (FileNotFoundException e) {
+            // OK not to have a config file
+        } catch (IOException e) {
+            System.err.println("Error reading " + FILE_NAME + ": " + e.getMessage());
+        }
+        return values;
+    }
+
+    /** Override a setting at runtime (used by admin routes and ad-hoc tools). */
+    public static void set(String key, String value) {
+        values().put(key, value);
+    }
+
+    public static String get(String key, String defaultValue) {
+        String v = values().get(key);
+        return (v == null || v.isEmpty()) ? defaultValue : v;
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String v = get(key, null);
+        if (v == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(v);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static double getDouble(String key, double defaultValue) {
+        String v = get(key, null);
+        if (v == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(v);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /** Look up "table.setting", falling back to the longest matching "prefix*.setting". */
+    public static String forTable(String tableName, String setting, String defaultValue) {
+        Map<String, String> all = values();
+        String exact = all.get(tableName + "." + setting);
+        if (exact != null && !exact.isEmpty()) {
+            return exact;
+        }
+        String best = null;
+        int bestLen = -1;
+        String suffix = "." + setting;
+        for (Map.Entry<String, String> e : all.entrySet()) {
+            String k = e.getKey();
+            if (!k.endsWith(suffix)) {
+                continue;
+            }
+            String pattern = k.substring(0, k.length() - suffix.length());
+            if (!pattern.endsWith("*")) {
+                continue;
+            }
+            String prefix = pattern.substring(0, pattern.length() - 1);
+            if (tableName.startsWith(prefix) && prefix.length() > bestLen) {
+                best = e.getValue();
+                bestLen = prefix.length();
+            }
+        }
+        return (best == null || best.isEmpty()) ? defaultValue : best;
+    }
+}
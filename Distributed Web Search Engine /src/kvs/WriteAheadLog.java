@@ -0,0 +1,285 @@
+package kvs;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import tools.Logger;
+
+/**
+ * Append-only redo log for one in-memory table, with group commit.
+ *
+ * A writer appends its record and then waits until the sync thread has forced it to disk.
+ * The sync thread forces the file wal.syncMillis after the first pending record, or as soon
+ * as wal.syncRecords records are pending, so concurrent writers share a single fsync.
+ *
+ * Record: int length | int crc32 | byte op | int keyLength | key | row bytes
+ */
+class WriteAheadLog {
+
+    private static final Logger logger = Logger.getLogger(WriteAheadLog.class);
+
+    static final byte OP_PUT = 1;
+    static final byte OP_DELETE = 2;
+    private static final int RECORD_BODY_MIN = 4 + 1 + 4;
+
+    /** Receives the records of an existing log while it is opened. */
+    interface Replay {
+        void put(Row row);
+        void delete(String key);
+    }
+
+    private File file;
+    private FileChannel channel;
+    private final long syncMillis;
+    private final long syncRecords;
+    private long bytes = 0;
+    private long appended = 0;      // records appended since the log was opened
+    private long synced = 0;        // records known to be on disk
+    private long records = 0;       // records in the file, including replayed ones
+    private IOException failure = null;
+    private boolean closed = false;
+
+    WriteAheadLog(File file, Replay replay) throws IOException {
+        this.file = file;
+        this.syncMillis = WorkerConfig.getLong("wal.syncMillis", 5);
+        this.syncRecords = Math.max(1, WorkerConfig.getLong("wal.syncRecords", 1000));
+        file.getParentFile().mkdirs();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        replay(replay);
+
+        Thread syncer = new Thread(this::syncLoop, "WAL-" + file.getName());
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    private void replay(Replay replay) throws IOException {
+        long size = channel.size();
+        long pos = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (pos + 4 <= size) {
+                int len = in.readInt();
+                if (len < RECORD_BODY_MIN || pos + 4 + len > size) break;
+                byte[] body = new byte[len];
+                in.readFully(body);
+                ByteBuffer buf = ByteBuffer.wrap(body);
+                CRC32 crc = new CRC32();
+                crc.update(body, 4, len - 4);
+                if (buf.getInt() != (int) crc.getValue()) break;
+                byte op = buf.get();
+                int keyLength = buf.getInt();
+                String key = new String(body, buf.position(), keyLength, StandardCharsets.UTF_8);
+                int payloadOffset = buf.position() + keyLength;
+                if (op == OP_PUT) {
+                    try {
+                        replay.put(RowCodec.decode(body, payloadOffset, len - payloadOffset));
+                    } catch (Exception e) {
+                        throw new IOException("Corrupt row '" + key + "' in " + file + ": " + e.getMessage());
+                    }
+                } else if (op == OP_DELETE) {
+                    replay.delete(key);
+                }
+                records++;
+                pos += 4 + len;
+            }
+        } catch (EOFException e) {
+            // torn record; truncated below
+        }
+        if (pos < size) {
+            logger.warn("Truncating " + (size - pos) + " trailing byte(s) of " + file);
+            channel.truncate(pos);
+        }
+        bytes = pos;
+    }
+
+    private static ByteBuffer encode(byte op, String key, byte[] payload) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = RECORD_BODY_MIN + k.length + payload.length;
+        ByteBuffer buf = ByteBuffer.allocate(4 + bodyLength);
+        buf.putInt(bodyLength);
+        buf.putInt(0);
+        buf.put(op);
+        buf.putInt(k.length);
+        buf.put(k);
+        buf.put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 8, bodyLength - 4);
+        buf.putInt(4, (int) crc.getValue());
+        buf.flip();
+        return buf;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    /** Append a record and wait until it is on disk. */
+    void append(byte op, String key, byte[] payload) throws IOException {
+        append(Collections.singletonList(encode(op, key, payload)));
+    }
+
+    /** Append a PUT record per row and wait once until all of them are on disk. */
+    void appendPuts(List<Row> rows) throws IOException {
+        List<ByteBuffer> recs = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+            recs.add(encode(OP_PUT, row.key(), row.toByteArray()));
+        }
+        append(recs);
+    }
+
+    private void append(List<ByteBuffer> recs) throws IOException {
+        synchronized (this) {
+            if (closed) throw new ClosedChannelException();
+            if (failure != null) throw failure;
+            boolean wasIdle = (appended == synced);
+            for (ByteBuffer rec : recs) {
+                int length = rec.remaining();
+                writeFully(channel, rec, bytes);
+                bytes += length;
+            }
+            records += recs.size();
+            appended += recs.size();
+            long mine = appended;
+            if (wasIdle || mine - synced >= syncRecords) {
+                notifyAll();
+            }
+            try {
+                while (synced < mine && failure == null && !closed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for log sync");
+            }
+            if (synced < mine) {
+                throw (failure != null) ? failure : new ClosedChannelException();
+            }
+        }
+    }
+
+    private void syncLoop() {
+        while (true) {
+            long target;
+            FileChannel ch;
+            synchronized (this) {
+                try {
+                    while (!closed && appended == synced) {
+                        wait();
+                    }
+                    // Give other writers a moment to join this sync
+                    long deadline = System.currentTimeMillis() + syncMillis;
+                    long remaining;
+                    while (!closed && appended - synced < syncRecords && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) return;
+                target = appended;
+                ch = channel;
+            }
+            try {
+                ch.force(false);
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (ch != channel) continue;    // log was rewritten or moved meanwhile
+                    failure = e;
+                    notifyAll();
+                }
+                logger.error("Sync failed for " + file, e);
+                return;
+            }
+            synchronized (this) {
+                if (ch == channel) {
+                    synced = Math.max(synced, target);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    synchronized long records() {
+        return records;
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    /** Replace the log with one PUT record per row; callers must stop concurrent appends first. */
+    synchronized void rewrite(Iterator<Row> rows) throws IOException {
+        if (closed) throw new ClosedChannelException();
+        File tmp = new File(file.getPath() + ".tmp");
+        long newBytes = 0, newRecords = 0;
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (rows.hasNext()) {
+                Row row = rows.next();
+                ByteBuffer rec = encode(OP_PUT, row.key(), row.toByteArray());
+                newBytes += rec.remaining();
+                while (rec.hasRemaining()) {
+                    out.write(rec);
+                }
+                newRecords++;
+            }
+            out.force(false);
+        }
+        channel.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        bytes = newBytes;
+        records = newRecords;
+        synced = appended;
+        notifyAll();
+    }
+
+    /** Move the log file, e.g. when its table is renamed. */
+    synchronized void moveTo(File newFile) throws IOException {
+        channel.force(false);
+        channel.close();
+        newFile.getParentFile().mkdirs();
+        Files.move(file.toPath(), newFile.toPath());
+        file = newFile;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        synced = appended;
+        notifyAll();
+    }
+
+    synchronized void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            channel.force(false);
+            synced = appended;
+        } catch (IOException e) {
+            logger.error("Final sync failed for " + file, e);
+        }
+        try { channel.close(); } catch (IOException ignored) {}
+        notifyAll();
+    }
+
+    /** Close the log and delete its file. */
+    synchronized void delete() {
+        close();
+        if (!file.delete()) {
+            logger.warn("Could not delete log " + file);
+        }
+    }
+}
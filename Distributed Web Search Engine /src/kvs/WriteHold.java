@@ -0,0 +1,111 @@
+package kvs;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds client writes on this worker while a snapshot is opened on every worker, so that all
+ * workers take their part of it at one cut (see KVSClient.snapshot).
+ *
+ * Opening a snapshot takes two rounds. In the first, each worker stops admitting client
+ * writes, waits for the ones in progress to finish, and opens its part; in the second, the
+ * client lets writes through again everywhere. No write is admitted anywhere between the
+ * first worker's part and the last one's, so a write one worker's part contains cannot
+ * depend on a write another worker's part lacks. Writes from other workers (replication, row
+ * moves) are not held; snapshots keep pre-images of the rows they change like any other.
+ *
+ * A hold ends by itself after the time the client asked for, at most MAX_HOLD_MS, so a
+ * client that dies between the rounds stalls writes only briefly. Writes in progress are
+ * tracked by the threads serving them; a request that failed without reaching the after
+ * filters ends its connection and its thread, which no longer counts.
+ */
+final class WriteHold {
+
+    static final long MAX_HOLD_MS = 10_000;
+
+    private static final Object monitor = new Object();
+    private static final Map<String, Long> holds = new HashMap<>();         // snapshot id -> end of hold
+    private static final Set<Thread> writing = ConcurrentHashMap.newKeySet();
+
+    private WriteHold() {
+    }
+
+    /** End of the latest hold still in force, or 0; callers hold the monitor. */
+    private static long heldUntil(long now) {
+        long until = 0;
+        for (Iterator<Long> it = holds.values().iterator(); it.hasNext(); ) {
+            long end = it.next();
+            if (end <= now) {
+                it.remove();
+            } else {
+                until = Math.max(until, end);
+            }
+        }
+        return until;
+    }
+
+    /** Before a client write: wait while a hold is in force, then count the write as in progress. */
+    static void admit() {
+        synchronized (monitor) {
+            long now;
+            long until;
+            while ((until = heldUntil(now = System.currentTimeMillis())) > 0) {
+                try {
+                    monitor.wait(until - now);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            writing.add(Thread.currentThread());
+        }
+    }
+
+    /** After every request; ends the client write this thread was serving, if any. */
+    static void done() {
+        if (writing.remove(Thread.currentThread())) {
+            synchronized (monitor) {
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stop admitting client writes for up to millis and wait for those in progress. Returns
+     * false if they did not finish while the hold lasted; the hold stays until released.
+     */
+    static boolean hold(String id, long millis) {
+        long end = System.currentTimeMillis() + Math.min(Math.max(millis, 0), MAX_HOLD_MS);
+        synchronized (monitor) {
+            holds.put(id, end);
+            while (true) {
+                writing.removeIf(t -> !t.isAlive());
+                if (writing.isEmpty()) {
+                    return true;
+                }
+                long now = System.currentTimeMillis();
+                if (now >= end) {
+                    return false;
+                }
+                try {
+                    monitor.wait(Math.min(end - now, 100));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+    }
+
+    /** Let client writes through again, unless another hold is still in force. */
+    static void release(String id) {
+        synchronized (monitor) {
+            if (holds.remove(id) != null) {
+                monitor.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package tools;
+
+import java.util.*;
+import java.net.*;
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Kept-alive connections to other servers, per host, shared by all threads of the process.
+// HTTP.doRequest() takes a connection from here and gives it back once it has read the whole
+// answer; connections whose answer was not framed by a Content-Length, or that the server
+// will close, are closed instead.
+//
+// Idle connections are bounded per host and in total, because on our web server an idle
+// kept-alive connection ties up one of its worker threads; connections beyond the bounds are
+// closed when they are given back, and connections idle for longer than idleTimeoutMillis are
+// closed by a background sweep. The newest idle connection is handed out first. One that has
+// been idle for a while is checked before it is handed out (a server that closed it has sent
+// EOF by now), so callers rarely write a request into a dead socket.
+//
+// Connections in use are not bounded: a thread that waits for one while it serves a request
+// could wait for itself, since the servers call each other.
+
+public class ConnectionPool {
+  public static class Connection {
+    public final Socket socket;
+    public final boolean reused;     // true if it has carried a request before
+    final String hostKey;
+
+    Connection(Socket socketArg, boolean reusedArg, String hostKeyArg) {
+      socket = socketArg;
+      reused = reusedArg;
+      hostKey = hostKeyArg;
+    }
+  }
+
+  static class Idle {
+    final Socket socket;
+    final long since;
+
+    Idle(Socket socketArg, long sinceArg) {
+      socket = socketArg;
+      since = sinceArg;
+    }
+  }
+
+  static final ConnectionPool shared = new ConnectionPool(32, 256, 30000, 2000);
+
+  public static ConnectionPool shared() {
+    return shared;
+  }
+
+  final int maxIdlePerHost;
+  final int maxIdle;
+  final long idleTimeoutMillis;
+  final long checkAfterMillis;
+
+  final Map<String,ArrayDeque<Idle>> idle = new HashMap<String,ArrayDeque<Idle>>();   // guarded by this
+  int idleCount = 0;
+
+  final AtomicLong acquired = new AtomicLong();
+  final AtomicLong reused = new AtomicLong();
+  final AtomicLong opened = new AtomicLong();
+  final AtomicLong connectNanos = new AtomicLong();
+  final AtomicLong maxConnectNanos = new AtomicLong();
+  final AtomicLong stale = new AtomicLong();       // idle connections found closed by the server
+  final AtomicLong expired = new AtomicLong();     // idle connections closed after idleTimeoutMillis
+  final AtomicLong overflow = new AtomicLong();    // connections closed because the pool was full
+
+  public ConnectionPool(int maxIdlePerHostArg, int maxIdleArg, long idleTimeoutMillisArg, long checkAfterMillisArg) {
+    maxIdlePerHost = maxIdlePerHostArg;
+    maxIdle = maxIdleArg;
+    idleTimeoutMillis = idleTimeoutMillisArg;
+    checkAfterMillis = checkAfterMillisArg;
+
+    Thread sweeper = new Thread(() -> {
+      while (true) {
+        try {
+          Thread.sleep(Math.max(1000, idleTimeoutMillis/2));
+        } catch (InterruptedException ie) {
+          return;
+        }
+        evictExpired();
+      }
+    }, "ConnectionPool-sweeper");
+    sweeper.setDaemon(true);
+    sweeper.start();
+  }
+
+  static String hostKey(String protocol, String host, int port) {
+    return protocol+"-"+host+"-"+port;
+  }
+
+  // An idle connection to the host if there is a usable one, or else a new one
+  public Connection acquire(String protocol, String host, int port) throws IOException {
+    acquired.incrementAndGet();
+    String key = hostKey(protocol, host, port);
+    while (true) {
+      Idle candidate = null;
+      synchronized (this) {
+        ArrayDeque<Idle> q = idle.get(key);
+        if (q != null && !q.isEmpty()) {
+          candidate = q.pollLast();
+          idleCount --;
+        }
+      }
+      if (candidate == null)
+        break;
+
+      long idleFor = System.currentTimeMillis() - candidate.since;
+      if (idleFor > idleTimeoutMillis) {
+        expired.incrementAndGet();
+        close(candidate.socket);
+        continue;
+      }
+      if (idleFor > checkAfterMillis && !alive(candidate.socket)) {
+        stale.incrementAndGet();
+        close(candidate.socket);
+        continue;
+      }
+      reused.incrementAndGet();
+      return new Connection(candidate.socket, true, key);
+    }
+
+    long start = System.nanoTime();
+    Socket sock = HTTP.openSocket(protocol, host, port);
+    if (sock == null)
+      throw new IOException("Cannot connect to server "+host+":"+port);
+    long took = System.nanoTime() - start;
+    opened.incrementAndGet();
+    connectNanos.addAndGet(took);
+    maxConnectNanos.accumulateAndGet(took, Math::max);
+    sock.setTcpNoDelay(true); // to get good performance with KVS and Flame
+    return new Connection(sock, false, key);
+  }
+
+  // Give back a connection that has read a complete answer and may carry another request
+  public void release(Connection c) {
+    if (c.socket.isClosed())
+      return;
+    synchronized (this) {
+      ArrayDeque<Idle> q = idle.computeIfAbsent(c.hostKey, k -> new ArrayDeque<Idle>());
+      if (q.size() < maxIdlePerHost && idleCount < maxIdle) {
+        q.addLast(new Idle(c.socket, System.currentTimeMillis()));
+        idleCount ++;
+        return;
+      }
+    }
+    overflow.incrementAndGet();
+    close(c.socket);
+  }
+
+  // Close a connection that is broken or that the server will close
+  public void discard(Connection c) {
+    close(c.socket);
+  }
+
+  void evictExpired() {
+    long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+    List<Socket> toClose = new ArrayList<Socket>();
+    synchronized (this) {
+      for (Iterator<ArrayDeque<Idle>> it = idle.values().iterator(); it.hasNext(); ) {
+        ArrayDeque<Idle> q = it.next();
+        // Oldest first
+        while (!q.isEmpty() && q.peekFirst().since < cutoff) {
+          toClose.add(q.pollFirst().socket);
+          idleCount --;
+        }
+        if (q.isEmpty())
+          it.remove();
+      }
+    }
+    expired.addAndGet(toClose.size());
+    for (Socket s : toClose)
+      close(s);
+  }
+
+  // An idle connection should have nothing to read; EOF or stray bytes mean the server is done with it
+  static boolean alive(Socket sock) {
+    if (sock.isClosed() || sock.isInputShutdown() || sock.isOutputShutdown())
+      return false;
+    try {
+      InputStream in = sock.getInputStream();
+      if (in.available() > 0)
+        return false;
+      int timeout = sock.getSoTimeout();
+      sock.setSoTimeout(1);
+      try {
+        in.read();
+        return false;
+      } catch (SocketTimeoutException ste) {
+        return true;
+      } finally {
+        sock.setSoTimeout(timeout);
+      }
+    } catch (IOException ioe) {
+      return false;
+    }
+  }
+
+  static void close(Socket sock) {
+    try { sock.close(); } catch (Exception e) {}
+  }
+
+  public synchronized int idleConnections() {
+    return idleCount;
+  }
+
+  // Share of requests that went out on a kept-alive connection
+  public double reuseRate() {
+    long n = acquired.get();
+    return (n == 0) ? 0 : reused.get() / (double)n;
+  }
+
+  public double averageConnectMillis() {
+    long n = opened.get();
+    return (n == 0) ? 0 : connectNanos.get() / 1e6 / n;
+  }
+
+  public String describe() {
+    int hosts;
+    synchronized (this) {
+      hosts = idle.size();
+    }
+    return idleConnections()+" idle to "+hosts+" host(s); "+acquired.get()+" requests, "
+      +String.format("%.1f", 100*reuseRate())+"% on kept-alive connections; "+opened.get()+" opened, connect "
+      +String.format("%.2f", averageConnectMillis())+" ms avg, "+String.format("%.2f", maxConnectNanos.get()/1e6)+" ms max; "
+      +stale.get()+" stale, "+expired.get()+" expired, "+overflow.get()+" over the limit";
+  }
+}
@@ -7,7 +7,8 @@ import javax.net.ssl.*;
 import java.security.*;
 import java.security.cert.X509Certificate;
 
-// This class is NOT thread-safe! If you have more than one thread, each thread should get its own instance.
+// Requests may be sent from any number of threads; connections are kept alive and shared
+// through ConnectionPool.shared().
 
 public class HTTP {
   public static class Response {
@@ -34,7 +35,13 @@ public class HTTP {
     }
   }
 
-  static Map<String,Vector<Socket>> cachedConnections;
+  static final int CONNECT_TIMEOUT = 10000;
+
+  static Socket connect(String host, int port) throws IOException {
+    Socket sock = new Socket();
+    sock.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+    return sock;
+  }
 
   static Socket openSocket(String protocol, String host, int port) {
     try {
@@ -48,12 +55,12 @@ public class HTTP {
         try { 
           sc = SSLContext.getInstance("SSL"); 
           sc.init(null, trustAllCerts, new SecureRandom());
-          return sc.getSocketFactory().createSocket(host, port);
+          return sc.getSocketFactory().createSocket(connect(host, port), host, port, true);
         } catch (NoSuchAlgorithmException nsae) {
         } catch (KeyManagementException kme) {
         }
       } else if (protocol.equals("http")) {
-        return new Socket(host, port);
+        return connect(host, port);
       }
     } catch (Exception e) {
       e.printStackTrace();
@@ -86,30 +93,16 @@ public class HTTP {
       host = host.substring(0, pos);
     }
 
-    String serverID = protocol+"-"+host+"-"+port;
+    ConnectionPool pool = ConnectionPool.shared();
 
     while (true) {
-      boolean usingCached = false;
-      Socket sock = null;
-      if ((cachedConnections != null) && (cachedConnections.get(serverID) != null)) {
-        synchronized(cachedConnections) {
-          if (cachedConnections.get(serverID).size() > 0)
-            sock = cachedConnections.get(serverID).remove(0);
-        }
-        if (sock != null)
-          usingCached = true;
-      }
-      if (sock == null) {
-        sock = openSocket(protocol, host, port);
-        sock.setTcpNoDelay(true); // to get good performance with KVS and Flame
-      }
-      if (sock == null)
-        throw new IOException("Cannot connect to server "+host+":"+port);
-      sock.setTcpNoDelay(true);
+      ConnectionPool.Connection conn = pool.acquire(protocol, host, port);
+      boolean usingCached = conn.reused;
+      Socket sock = conn.socket;
 
       try {
-        if (timeoutMillis > 0)
-          sock.setSoTimeout(timeoutMillis);
+        // Pooled connections keep the timeout of their last request
+        sock.setSoTimeout((timeoutMillis > 0) ? timeoutMillis : 0);
 
         OutputStream out = sock.getOutputStream();
         String request = method+" "+path+" HTTP/1.1\r\nHost: "+host+"\r\n";
@@ -122,11 +115,9 @@ public class HTTP {
           out.write(uploadOrNull);
         out.flush();
       } catch (IOException ioe) {
-        try { sock.close(); } catch (Exception e) {}
-        if (usingCached) {
-          System.out.println("XXX cached connection failed; continuing with normal connection");
+        pool.discard(conn);
+        if (usingCached)
           continue;
-        }
         throw new IOException("Connection to "+host+":"+port+" failed while writing the request");
       }
 
@@ -194,25 +185,23 @@ public class HTTP {
           }
         }
       } catch (Exception e) {
-        try { sock.close(); } catch (Exception e2) {}
+        pool.discard(conn);
         e.printStackTrace();
         throw new IOException("Connection to "+host+":"+port+" failed while reading the response ("+e+")");
       }
 
-      if (cachedConnections == null) 
-        cachedConnections = new HashMap<String,Vector<Socket>>();
-      /*
-      synchronized(cachedConnections) {
-        if (cachedConnections.get(serverID) == null)
-          cachedConnections.put(serverID, new Vector<Socket>());
-        cachedConnections.get(serverID).add(sock);
+      // A kept-alive connection the server closed before answering; the request was not served
+      if (readingHeaders && usingCached && buffer.size() == 0 && inBuf == 0) {
+        pool.discard(conn);
+        continue;
       }
-      */
-        synchronized (cachedConnections) {
-            cachedConnections
-                    .computeIfAbsent(serverID, k -> new Vector<Socket>())
-                    .add(sock);
-        }
+
+      // Only a connection whose answer has been read exactly to its end can carry the next request
+      boolean complete = !readingHeaders && (isHeadRequest || (contentLength >= 0 && buffer.size() == contentLength && inBuf == 0));
+      if (complete && !"close".equalsIgnoreCase(headers.get("connection")))
+        pool.release(conn);
+      else
+        pool.discard(conn);
 
       return new Response(buffer.toByteArray(), headers, statusCode);
     }
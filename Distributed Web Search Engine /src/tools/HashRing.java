@@ -0,0 +1,202 @@
+package tools;
+
+import java.util.*;
+
+/* Consistent-hash ring that decides which KVS worker owns a row key.
+
+   Each worker is placed at VNODES pseudo-random points ("virtual nodes") on a ring of
+   64-bit tokens, and a key belongs to the worker at the last point at or before the key's
+   token, wrapping around below the first point. Because tokens are hashes, every worker
+   owns about 1/N of the keys no matter how the keys themselves are distributed, and adding
+   a worker only takes over the arcs in front of its own points, i.e. about 1/(N+1) of the
+   keys. The ring is a pure function of the worker IDs and the vnode count, so the client,
+   the workers and the Flame partitioner agree on it without exchanging more than spec().
+
+   Tokens are compared as unsigned numbers; as strings (tokenString) they are 16 lowercase
+   hex digits, so they also sort correctly as strings. */
+
+public class HashRing {
+
+  public static final int VNODES = 128;
+
+  final String[] ids;
+  final int vnodes;
+  final long[] points;     // sorted; stored with the sign bit flipped, so signed order == unsigned order
+  final int[] owners;      // owners[j] is the index (into ids) of the worker at points[j]
+
+  public HashRing(Collection<String> workerIds) {
+    this(workerIds, VNODES);
+  }
+
+  public HashRing(Collection<String> workerIds, int vnodesArg) {
+    if (workerIds.isEmpty() || vnodesArg < 1)
+      throw new IllegalArgumentException("A ring needs at least one worker and one vnode");
+    ids = new TreeSet<String>(workerIds).toArray(new String[0]);
+    vnodes = vnodesArg;
+
+    long[] packed = new long[ids.length * vnodes];
+    Map<Long,Integer> ownerOf = new HashMap<Long,Integer>();
+    int n = 0;
+    for (int i=0; i<ids.length; i++) {
+      for (int v=0; v<vnodes; v++) {
+        long p = token(ids[i]+"#"+v) ^ Long.MIN_VALUE;
+        if (ownerOf.putIfAbsent(p, i) == null)   // a collision just leaves one point out
+          packed[n++] = p;
+      }
+    }
+    points = Arrays.copyOf(packed, n);
+    Arrays.sort(points);
+    owners = new int[n];
+    for (int j=0; j<n; j++)
+      owners[j] = ownerOf.get(points[j]);
+  }
+
+  // 64-bit FNV-1a over the key's chars, finished with the MurmurHash3 mixer so that keys
+  // sharing long prefixes (Hasher output, URLs) still spread over the whole ring
+  public static long token(String key) {
+    long h = 0xcbf29ce484222325L;
+    for (int i=0; i<key.length(); i++) {
+      h ^= key.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  public static String tokenString(long token) {
+    String hex = Long.toHexString(token);
+    return "0000000000000000".substring(hex.length()) + hex;
+  }
+
+  public static long parseToken(String tokenString) {
+    return Long.parseUnsignedLong(tokenString, 16);
+  }
+
+  // Worker IDs in sorted order; owner indexes refer to this list
+  public List<String> workerIds() {
+    return Collections.unmodifiableList(Arrays.asList(ids));
+  }
+
+  public int size() {
+    return ids.length;
+  }
+
+  // Index of the point that owns a (sign-flipped) token
+  int pointFor(long flipped) {
+    int j = Arrays.binarySearch(points, flipped);
+    if (j >= 0)
+      return j;
+    j = -j - 2;    // last point below the token
+    return (j < 0) ? points.length-1 : j;
+  }
+
+  public int ownerIndexForToken(long token) {
+    return owners[pointFor(token ^ Long.MIN_VALUE)];
+  }
+
+  public int ownerIndex(String key) {
+    return ownerIndexForToken(token(key));
+  }
+
+  public String ownerOf(String key) {
+    return ids[ownerIndex(key)];
+  }
+
+  // The key's owner followed by the next distinct workers clockwise, up to count workers;
+  // this is where replicas of the key go
+  public List<Integer> successors(String key, int count) {
+    return arcReplicas(arcOf(token(key)), count);
+  }
+
+  // The ring is cut into arcs, one per point, from the point up to the next one. All keys on
+  // an arc have the same owner and replicas, so arcs are the unit in which workers compare
+  // the keys they share (see kvs.MerkleIndex).
+  public int arcCount() {
+    return points.length;
+  }
+
+  public int arcOf(long token) {
+    return pointFor(token ^ Long.MIN_VALUE);
+  }
+
+  public List<Integer> arcReplicas(int arc, int count) {
+    List<Integer> result = new ArrayList<Integer>();
+    for (int k=0; k<points.length && result.size() < Math.min(count, ids.length); k++) {
+      int owner = owners[(arc+k) % points.length];
+      if (!result.contains(owner))
+        result.add(owner);
+    }
+    return result;
+  }
+
+  // True if the worker owns any token in [fromToken, toTokenExclusive); either bound may be null
+  public boolean ownsTokensIn(int workerIdx, String fromToken, String toTokenExclusive) {
+    long lo = (fromToken == null) ? Long.MIN_VALUE : (parseToken(fromToken) ^ Long.MIN_VALUE);
+    long hi;
+    if (toTokenExclusive == null) {
+      hi = Long.MAX_VALUE;
+    } else {
+      hi = parseToken(toTokenExclusive) ^ Long.MIN_VALUE;
+      if (hi == Long.MIN_VALUE)
+        return false;
+      hi--;
+    }
+    for (int j=0; j<points.length; j++) {
+      if (owners[j] != workerIdx)
+        continue;
+      long arcLo = points[j];
+      long arcHi = (j < points.length-1) ? points[j+1]-1 : Long.MAX_VALUE;
+      if (arcLo <= hi && lo <= arcHi)
+        return true;
+      if (j == points.length-1 && points[0] > Long.MIN_VALUE && lo <= points[0]-1)
+        return true;    // the last arc wraps around to the tokens below the first point
+    }
+    return false;
+  }
+
+  // Fraction of the token space owned by each worker
+  public double[] shares() {
+    double[] shares = new double[ids.length];
+    for (int j=0; j<points.length; j++) {
+      long next = (j < points.length-1) ? points[j+1] : points[0];
+      double width = (double)(next - points[j]);     // wraps correctly in two's complement
+      if (width <= 0)
+        width += 18446744073709551616.0;
+      shares[owners[j]] += width / 18446744073709551616.0;
+    }
+    return shares;
+  }
+
+  // "<vnodes>:<id>,<id>,...", enough for another process to rebuild the same ring
+  public String spec() {
+    return vnodes+":"+String.join(",", ids);
+  }
+
+  public static HashRing parse(String spec) {
+    int colon = spec.indexOf(':');
+    if (colon < 0)
+      throw new IllegalArgumentException("Bad ring spec: "+spec);
+    return new HashRing(Arrays.asList(spec.substring(colon+1).split(",")), Integer.parseInt(spec.substring(0, colon)));
+  }
+
+  public String toString() {
+    return spec();
+  }
+
+  public static void main(String args[]) {
+    List<String> ids = new ArrayList<String>();
+    for (int i=0; i<(args.length > 0 ? Integer.parseInt(args[0]) : 3); i++)
+      ids.add(new Random().ints(97,123).limit(5).collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append).toString());
+    HashRing ring = new HashRing(ids);
+    int[] counts = new int[ring.size()];
+    for (int i=0; i<100000; i++)
+      counts[ring.ownerIndex(Hasher.hash("http://example.com/page"+i))] ++;
+    double[] shares = ring.shares();
+    for (int i=0; i<ring.size(); i++)
+      System.out.printf("%s: %.1f%% of tokens, %d of 100000 keys%n", ring.ids[i], 100*shares[i], counts[i]);
+  }
+}
@@ -4,28 +4,25 @@ import java.util.*;
 
 public class Partitioner {
 
+  /* A slice [fromToken, toTokenExclusive) of the KVS hash ring (see HashRing); null bounds are
+     open. The rows of a slice are spread over all KVS workers, which Flame workers read with
+     KVSClient.scanTokens(). kvsWorker owns the start of the slice and is only used as a
+     locality hint when assigning Flame workers. */
   public class Partition {
     public String kvsWorker;
-    public String fromKey;
-    public String toKeyExclusive;
+    public String fromToken;
+    public String toTokenExclusive;
     public String assignedFlameWorker;
 
-    Partition(String kvsWorkerArg, String fromKeyArg, String toKeyExclusiveArg, String assignedFlameWorkerArg) {
+    Partition(String kvsWorkerArg, String fromTokenArg, String toTokenExclusiveArg) {
       kvsWorker = kvsWorkerArg;
-      fromKey = fromKeyArg;
-      toKeyExclusive = toKeyExclusiveArg;
-      assignedFlameWorker = assignedFlameWorkerArg;
-    }
-
-    Partition(String kvsWorkerArg, String fromKeyArg, String toKeyExclusiveArg) {
-      kvsWorker = kvsWorkerArg;
-      fromKey = fromKeyArg;
-      toKeyExclusive = toKeyExclusiveArg;
+      fromToken = fromTokenArg;
+      toTokenExclusive = toTokenExclusiveArg;
       assignedFlameWorker = null;
     }
 
     public String toString() {
-      return "[kvs:"+kvsWorker+", keys: "+(fromKey==null ? "" : fromKey)+"-"+(toKeyExclusive==null ? "" : toKeyExclusive)+", flame: "+assignedFlameWorker+"]";
+      return "[kvs:"+kvsWorker+", tokens: "+(fromToken==null ? "" : fromToken)+"-"+(toTokenExclusive==null ? "" : toTokenExclusive)+", flame: "+assignedFlameWorker+"]";
     }
   };
 
@@ -37,6 +34,8 @@ public class Partitioner {
 
   Vector<String> flameWorkers;
   Vector<Partition> partitions;
+  HashRing ring;
+  List<String> kvsWorkers;
   boolean alreadyAssigned;
   int keyRangesPerWorker;
 
@@ -51,8 +50,10 @@ public class Partitioner {
     keyRangesPerWorker = keyRangesPerWorkerArg;
   }
 
-  public void addKVSWorker(String kvsWorker, String fromKeyOrNull, String toKeyOrNull) {
-  	partitions.add(new Partition(kvsWorker, fromKeyOrNull, toKeyOrNull));
+  // The KVS ring, and the worker addresses in the ring's worker order (KVSClient.getWorkerAddress)
+  public void setRing(HashRing ringArg, List<String> kvsWorkerAddresses) {
+    ring = ringArg;
+    kvsWorkers = kvsWorkerAddresses;
   }
 
   public void addFlameWorker(String worker) {
@@ -60,24 +61,19 @@ public class Partitioner {
   }
 
   public Vector<Partition> assignPartitions() {
-    if (alreadyAssigned || (flameWorkers.size() < 1))
+    if (alreadyAssigned || (flameWorkers.size() < 1) || (ring == null))
       return null;
 
-    Random rand = new Random();
-
-    /* So far, the 'partitions' vector has one entry for each KVS worker, each of which is responsible for a range of keys. Normally, we would try to 
-       evenly assign Flame workers to these ranges, while matching up Flame workers with KVS workers that are on the same machine. But if we happen
-       to have fewer KVS partitions than Flame workers, we need to split up some of the KVS partitions first, otherwise some of the Flame workers
-       will be idle. */
-
-    while (partitions.size() < flameWorkers.size()) {
-      Partition p = partitions.elementAt(rand.nextInt(partitions.size()));
-      String split;
-      do {
-        split = rand.ints(97,123).limit(5).collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append).toString();
-      } while (((p.fromKey != null) && (split.compareTo(p.fromKey)<=0)) || ((p.toKeyExclusive != null) && (split.compareTo(p.toKeyExclusive) >= 0)));
-      partitions.add(new Partition(p.kvsWorker, split, p.toKeyExclusive));
-      p.toKeyExclusive = split;
+    /* Row keys are placed by hash, so equally wide slices of the token space hold about the same
+       number of rows, whatever the keys look like. We cut the ring into keyRangesPerWorker slices
+       per Flame worker, which gives every worker the same amount of input. */
+
+    int numSlices = flameWorkers.size() * keyRangesPerWorker;
+    long step = Long.divideUnsigned(-1L, numSlices);
+    for (int i=0; i<numSlices; i++) {
+      long from = step * i;
+      String owner = kvsWorkers.get(ring.ownerIndexForToken(from));
+      partitions.add(new Partition(owner, (i == 0) ? null : HashRing.tokenString(from), (i == numSlices-1) ? null : HashRing.tokenString(step * (i+1))));
     }
 
     /* Now we'll try to evenly assign partitions to workers, giving preference to workers on the same host */
@@ -100,31 +96,6 @@ public class Partitioner {
       partitions.elementAt(i).assignedFlameWorker = flameWorkers.elementAt(bestCandidate);
     }
 
-    /* Now split further to achieve the desired level of parallelism */
-
-    while (true) {
-      int toSplit = -1;
-      for (int i=0; i<numAssigned.length; i++)
-        if (numAssigned[i] < keyRangesPerWorker) 
-          toSplit = i;
-
-      if (toSplit < 0)
-        break;
-
-      Partition p = null;
-      do {
-        p = partitions.elementAt(rand.nextInt(partitions.size()));
-      } while (!p.assignedFlameWorker.equals(flameWorkers.elementAt(toSplit)));
-
-      String split;
-      do {
-        split = rand.ints(97,123).limit(5).collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append).toString();
-      } while (((p.fromKey != null) && (split.compareTo(p.fromKey)<=0)) || ((p.toKeyExclusive != null) && (split.compareTo(p.toKeyExclusive) >= 0)));
-      partitions.add(new Partition(p.kvsWorker, split, p.toKeyExclusive, p.assignedFlameWorker));
-      p.toKeyExclusive = split;
-      numAssigned[toSplit] ++;
-    }
-
     /* Finally, we'll return the partitions to the caller */
 
     alreadyAssigned = true;
@@ -134,9 +105,7 @@ public class Partitioner {
   public static void main(String args[]) {
     Partitioner p = new Partitioner();
     p.setKeyRangesPerWorker(3);
-    p.addKVSWorker("10.0.0.1:1001", null, "def");
-    p.addKVSWorker("10.0.0.2:1002", "def", "mno");
-    p.addKVSWorker("10.0.0.3:1003", "mno", null);
+    p.setRing(new HashRing(Arrays.asList("abcde", "ghijk", "stuvw")), Arrays.asList("10.0.0.1:1001", "10.0.0.2:1002", "10.0.0.3:1003"));
     p.addFlameWorker("10.0.0.1:2001");
     p.addFlameWorker("10.0.0.2:2002");
     p.addFlameWorker("10.0.0.3:2003");
@@ -144,4 +113,4 @@ public class Partitioner {
     for (Partition x : result)
       System.out.println(x);
   }
-}
\ No newline at end of file
+}
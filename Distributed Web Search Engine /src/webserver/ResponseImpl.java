@@ -19,11 +19,17 @@ public class ResponseImpl implements Response {
     private boolean committed = false;
     private boolean halted = false;
     private boolean writeMode = false; // if write() was used
+    private final boolean chunked;     // write() sends HTTP/1.1 chunks and keeps the connection
 
     private final OutputStream rawOut;
 
     public ResponseImpl(OutputStream rawOut) {
+        this(rawOut, "HTTP/1.0");
+    }
+
+    public ResponseImpl(OutputStream rawOut, String httpVersion) {
         this.rawOut = rawOut;
+        this.chunked = "HTTP/1.1".equalsIgnoreCase(httpVersion);
         header("Server", "MySimpleServer");
     }
 
@@ -36,6 +42,19 @@ public class ResponseImpl implements Response {
         return halted;
     }
 
+    /** True if the connection can take another request after this response. */
+    public boolean keepAlive() {
+        return !writeMode || chunked;
+    }
+
+    /** Ends a response sent with write(); the last chunk tells the client the body is complete. */
+    public void finish() throws java.io.IOException {
+        if (writeMode && chunked) {
+            rawOut.write(LAST_CHUNK);
+        }
+        rawOut.flush();
+    }
+
     // --- Body methods ---
     @Override
     public void body(String body) {
@@ -90,9 +109,13 @@ public class ResponseImpl implements Response {
     }
 
     // --- Write mode (bypass buffering) ---
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    // Each call is sent and flushed right away, so callers should buffer small writes.
+    // A slow client makes this block once the socket buffer is full.
     @Override
     public void write(byte[] b) throws Exception {
-        if (b == null) return;
+        if (b == null || (writeMode && b.length == 0)) return;
         if (!writeMode) {
             // first call: send headers immediately
             writeMode = true;
@@ -103,16 +126,28 @@ public class ResponseImpl implements Response {
             for (Map.Entry<String, String> e : headers.entrySet()) {
                 pw.print(e.getKey() + ": " + e.getValue() + "\r\n");
             }
-            pw.print("Connection: close\r\n");
+            if (chunked) {
+                pw.print("Transfer-Encoding: chunked\r\n");
+            } else {
+                pw.print("Connection: close\r\n");
+            }
             pw.print("\r\n");
             pw.flush();
         }
-        try {
-            rawOut.write(b);
-            rawOut.flush();
-        } catch (java.net.SocketException se) {
-            // Client disconnected, silently ignore
+        if (b.length == 0) return;
+        if (chunked) {
+            // Chunk header, data and trailing CRLF in one send
+            byte[] size = (Integer.toHexString(b.length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            byte[] chunk = new byte[size.length + b.length + 2];
+            System.arraycopy(size, 0, chunk, 0, size.length);
+            System.arraycopy(b, 0, chunk, size.length, b.length);
+            chunk[chunk.length - 2] = '\r';
+            chunk[chunk.length - 1] = '\n';
+            b = chunk;
         }
+        // A SocketException means the client went away; it propagates so the caller stops producing data
+        rawOut.write(b);
+        rawOut.flush();
     }
 
     // --- Commit buffered response ---
@@ -197,6 +197,11 @@ public class Server {
 
     // --- Client handler ---
     private void handleClient(Socket socket) {
+        // Headers and body go out in separate writes; with Nagle's algorithm on, the body of
+        // an answer on a kept-alive connection waits for the client's delayed ACK
+        try {
+            socket.setTcpNoDelay(true);
+        } catch (java.net.SocketException ignore) {}
         try (
             InputStream rawIn = socket.getInputStream();
             OutputStream rawOut = socket.getOutputStream();
@@ -260,7 +265,7 @@ public class Server {
 
                 RouteMatch match = findMatch(hostCtx.routes, method, pathOnly);
                 if (match != null) {
-                    ResponseImpl response = new ResponseImpl(rawOut);
+                    ResponseImpl response = new ResponseImpl(rawOut, req.version);
                     Request request = new RequestImpl(
                         method, pathOnly, req.version, req.headers, qparams,
                         match.pathParams, (InetSocketAddress) socket.getRemoteSocketAddress(),
@@ -289,8 +294,15 @@ public class Server {
                         try { f.handle(request, response); } catch (Exception ignore) {}
                     }
 
+                    // A response halted by the route or an after filter is sent as it is
+                    if (response.isHalted() && !response.headersSent()) {
+                        response.commit();
+                        continue;
+                    }
+
                     if (response.headersSent()) {
-                        rawOut.flush();
+                        response.finish();
+                        if (response.keepAlive()) continue;
                         return;
                     }
 